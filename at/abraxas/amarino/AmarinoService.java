@@ -31,11 +31,15 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.haldean.chopper.pilot.R;
 
@@ -49,6 +53,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import at.abraxas.amarino.log.Logger;
 
@@ -84,6 +89,21 @@ public class AmarinoService extends Service {
 	private FileWriter logfile;
 	private final static boolean loggingEnabled = false;
 	
+	/* the debug log is also kept here, compressed, while monitoring is enabled */
+	public static final String debugLogName = "/sdcard/chopper/amdebug.txt.gz";
+	
+	/* flags whose pending message is replaced by a newer one instead of both being sent */
+	private final boolean[] latestOnly = new boolean[256];
+	
+	/* longest a message waits for a flush before it is written anyway, in nanoseconds */
+	private static final long MAX_WRITE_DELAY = 50000000L;
+	
+	/* longest message from an Arduino; longer ones are dropped */
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+	
+	/* in-process receivers of Arduino messages, replaced on change so reading needs no lock */
+	private volatile ArduinoListener[] arduinoListeners = new ArduinoListener[0];
+	
 	@Override
 	public void onCreate() {
 		Logger.d(TAG, "Background service created");
@@ -114,6 +134,14 @@ public class AmarinoService extends Service {
 			Log.e("amarino", "Cannot open logfile");
 			e.printStackTrace();
 		}
+		if (PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Logger.KEY_IS_LOG_ENABLED, true)) {
+			try {
+				Logger.setLogFile(debugLogName);
+			}
+			catch (IOException e) {
+				Log.e(TAG, "Cannot open debug log file");
+			}
+		}
 		Amarino.setAmarinoService(this);
 		Log.i(TAG, "amser oncreate Thread ID " + Thread.currentThread().getId());
 	}
@@ -251,6 +279,7 @@ public class AmarinoService extends Service {
 		Amarino.setAmarinoService(null);
 		super.onDestroy();
 		Logger.d(TAG, "Background service stopped");
+		Logger.closeLogFile();
 		
 		// we do only stop our service if no connections are active, however Android may kill our service without warning
 		// clean up in case service gets killed from the system due to low memory condition
@@ -340,22 +369,82 @@ public class AmarinoService extends Service {
 	}
 	
 	public void sendData(final String address, byte[] data){
+		sendData(address, data, true);
+	}
+	
+	/**
+	 * Queues a message for a connected device.  Messages are written by the
+	 * connection's own thread, so this never blocks on Bluetooth.
+	 * 
+	 * @param address the Bluetooth device to send the message to
+	 * @param data the message, starting with its flag
+	 * @param flush whether to write everything queued now; messages sent together,
+	 * like one motor command per motor, are best queued and flushed with the last
+	 */
+	public void sendData(final String address, byte[] data, boolean flush){
 		ConnectedThread ct = connections.get(address);
 		if (ct != null) {
-			ct.write(data);
-			if (loggingEnabled) {
-				try {
-					if (logfile != null)
-						logfile.write(Long.toString(System.currentTimeMillis()) + " " + new String(data) + "\n");
-				}
-				catch (IOException e) {
-					Log.e(TAG, "Cannot write to logfile.");
-					e.printStackTrace();
-				}
-			}
+			ct.write(data, flush);
 		}
 	}
 	
+	/**
+	 * Queues part of a buffer, which may be reused as soon as this returns.
+	 * 
+	 * @see #sendData(String, byte[], boolean)
+	 */
+	public void sendData(final String address, byte[] data, int offset, int length, boolean flush){
+		if (connections.containsKey(address))
+			sendData(address, Arrays.copyOfRange(data, offset, offset + length), flush);
+	}
+	
+	/**
+	 * Queues an int array message, encoded straight into the bytes sent.
+	 * 
+	 * @param address the Bluetooth device to send the message to
+	 * @param flag the flag Arduino has registered a function for to receive this data
+	 * @param values the data
+	 * @param flush whether to write everything queued now
+	 */
+	public void sendData(final String address, char flag, int[] values, boolean flush){
+		byte[] data = new byte[MessageBuilder.getLength(values)];
+		MessageBuilder.encode(data, 0, flag, values);
+		sendData(address, data, flush);
+	}
+	
+	/**
+	 * Marks the messages with a flag as superseded by newer ones with the same flag:
+	 * if one is still queued when another is sent, only the newer is written.
+	 * Set this before sending messages with the flag.
+	 * 
+	 * @param flag the flag of the messages
+	 * @param enable true to replace superseded messages, false to send every one
+	 */
+	public void setLatestOnly(char flag, boolean enable){
+		latestOnly[flag & 0xff] = enable;
+	}
+	
+	/**
+	 * Delivers the messages of every connected Arduino to a listener, on the
+	 * connection's own thread.  While any listener is registered, messages are
+	 * no longer broadcast to other apps.
+	 * 
+	 * @param listener the listener to add
+	 */
+	public synchronized void registerArduinoListener(ArduinoListener listener){
+		for (ArduinoListener l : arduinoListeners)
+			if (l == listener) return;
+		ArduinoListener[] listeners = Arrays.copyOf(arduinoListeners, arduinoListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		arduinoListeners = listeners;
+	}
+	
+	public synchronized void unregisterArduinoListener(ArduinoListener listener){
+		ArrayList<ArduinoListener> listeners = new ArrayList<ArduinoListener>(Arrays.asList(arduinoListeners));
+		if (listeners.remove(listener))
+			arduinoListeners = listeners.toArray(new ArduinoListener[listeners.size()]);
+	}
+	
 
 	
 	private void informPlugins(String address, boolean enable){
@@ -636,7 +725,10 @@ public class AmarinoService extends Service {
 	    private final InputStream mInStream;
 	    private final OutputStream mOutStream;
 	    private final String mAddress;
-	    private StringBuffer forwardBuffer = new StringBuffer();
+	    private final WriterThread mWriter;
+	    /* the message being received, and how much of it has arrived; -1 between messages */
+	    private final byte[] mMessage = new byte[MAX_MESSAGE_LENGTH];
+	    private int mLength = -1;
 
 	    public ConnectedThread(BtSocket socket, String address) {
 	        mSocket = socket;
@@ -653,14 +745,15 @@ public class AmarinoService extends Service {
 
 	        mInStream = tmpIn;
 	        mOutStream = tmpOut;
+	        mWriter = new WriterThread(mOutStream, address);
 	    }
 
 	    public void run() {
 
 	        byte[] buffer = new byte[1024];  // buffer store for the stream
 	        int bytes = 0; // bytes returned from read()
-	        String msg;
 	        
+	        mWriter.start();
 	        sendConnectionEstablished(mAddress);
 	        
 	        // Keep listening to the InputStream until an exception occurs
@@ -668,12 +761,10 @@ public class AmarinoService extends Service {
 	            try {
 	            	// Read from the InputStream
 	                bytes = mInStream.read(buffer);
-
-	                // Send the obtained bytes to the UI Activity
-	                msg = new String(buffer, 0, (bytes != -1) ? bytes : 0 );
-	                //Log.d(TAG, msg); // raw data with control flags
+	                if (bytes == -1)
+	                	throw new IOException("end of stream");
 	                
-	                forwardData(msg);
+	                forwardData(buffer, bytes);
 
 	            } catch (IOException e) {
 	            	Logger.d(TAG, "communication to " + mAddress + " halted");
@@ -682,32 +773,42 @@ public class AmarinoService extends Service {
 	        }
 	    }
 	    
-	    private void forwardData(String data){
-			char c;
-			for (int i=0;i<data.length();i++){
-				c = data.charAt(i);
-				if (c == MessageBuilder.ARDUINO_MSG_FLAG){
-					// TODO this could be used to determine the data type
-//					if (i+1<data.length()){
-//						int dataType = data.charAt(i+1);
-//						i++;
-					// depending on the dataType we could convert the following data appropriately
-//					}
-//					else {
-//						// wait for the next char to be sent
-//					}
+	    /* Frames the bytes read into messages, which may span several reads */
+	    private void forwardData(byte[] data, int bytes){
+			for (int i = 0; i < bytes; i++){
+				byte b = data[i];
+				if (b == MessageBuilder.ARDUINO_MSG_FLAG){
+					// a new message starts, dropping any unfinished one
+					mLength = 0;
 				}
-				else if (c == MessageBuilder.ACK_FLAG){
+				else if (b == MessageBuilder.ACK_FLAG){
 					// message complete send the data
-					forwardDataToOtherApps(forwardBuffer.toString());
-					forwardBuffer = new StringBuffer();
+					if (mLength >= 0)
+						forwardMessage(mMessage, mLength);
+					mLength = -1;
 				}
-				else {
-					forwardBuffer.append(c);
+				else if (mLength >= 0){
+					if (mLength < mMessage.length)
+						mMessage[mLength++] = b;
+					else {
+						Logger.d(TAG, "message from " + mAddress + " too long, dropped");
+						mLength = -1;
+					}
 				}
+				// bytes outside a message are noise
 			}
 		}
 	    
+	    private void forwardMessage(byte[] message, int length){
+	    	ArduinoListener[] listeners = arduinoListeners;
+	    	if (listeners.length == 0){
+	    		forwardDataToOtherApps(new String(message, 0, length));
+	    		return;
+	    	}
+	    	for (ArduinoListener l : listeners)
+	    		l.dataReceived(mAddress, message, 0, length);
+	    }
+	    
 	    private void forwardDataToOtherApps(String msg){
 	    	Logger.d(TAG, "Arduino says: " + msg);
 	    	Intent intent = new Intent(AmarinoIntent.ACTION_RECEIVED);
@@ -717,16 +818,14 @@ public class AmarinoService extends Service {
             sendBroadcast(intent);
 	    }
 
-	    /* Call this from the main Activity to send data to the remote device */
-	    public void write(byte[] bytes) {
-	        try {
-	            mOutStream.write(bytes);
-	            Logger.d(TAG, "send to Arduino: " + new String(bytes));
-	        } catch (IOException e) { }
+	    /* Call this from any thread to send data to the remote device */
+	    public void write(byte[] bytes, boolean flush) {
+	        mWriter.write(bytes, flush);
 	    }
 
 	    /* Call this from the main Activity to shutdown the connection */
 	    public void cancel() {
+	        mWriter.cancel();
 	        try {
 	            mSocket.close();
 	            sendConnectionDisconnected(mAddress);
@@ -735,6 +834,89 @@ public class AmarinoService extends Service {
 	}
 
 	
+	/**
+	 * WriterThread owns the output stream of a connection.  Senders queue messages
+	 * without locking; when flushed, the thread writes everything queued in one
+	 * buffered write, then logs it.
+	 */
+	private class WriterThread extends Thread {
+		private final OutputStream mOutStream;
+		private final String mAddress;
+		/* messages in the order they were sent: byte arrays, or the flag of a latest-only message */
+		private final ConcurrentLinkedQueue<Object> mQueue = new ConcurrentLinkedQueue<Object>();
+		/* the newest queued message of each latest-only flag */
+		private final AtomicReferenceArray<byte[]> mLatest = new AtomicReferenceArray<byte[]>(256);
+		private final Integer[] mFlags = new Integer[256];
+		private byte[] mBatch = new byte[256];
+		private volatile boolean mRunning = true;
+		
+		public WriterThread(OutputStream out, String address) {
+			super("WriterThread " + address);
+			mOutStream = out;
+			mAddress = address;
+			for (int i = 0; i < mFlags.length; i++)
+				mFlags[i] = i;
+		}
+		
+		public void write(byte[] bytes, boolean flush) {
+			int flag = bytes.length > 0 ? bytes[0] & 0xff : 0;
+			if (bytes.length > 0 && latestOnly[flag]) {
+				// the first message of a flag holds its place in line for the ones replacing it
+				if (mLatest.getAndSet(flag, bytes) == null)
+					mQueue.offer(mFlags[flag]);
+			}
+			else {
+				mQueue.offer(bytes);
+			}
+			if (flush)
+				LockSupport.unpark(this);
+		}
+		
+		public void cancel() {
+			mRunning = false;
+			LockSupport.unpark(this);
+		}
+		
+		public void run() {
+			while (mRunning) {
+				LockSupport.parkNanos(MAX_WRITE_DELAY);
+				int length = 0;
+				Object next;
+				while ((next = mQueue.poll()) != null) {
+					byte[] bytes = (next instanceof Integer) ? mLatest.getAndSet((Integer) next, null) : (byte[]) next;
+					if (bytes == null)
+						continue;
+					if (length + bytes.length > mBatch.length)
+						mBatch = Arrays.copyOf(mBatch, Math.max(2 * mBatch.length, length + bytes.length));
+					System.arraycopy(bytes, 0, mBatch, length, bytes.length);
+					length += bytes.length;
+				}
+				if (length == 0 || mOutStream == null)
+					continue;
+				try {
+					mOutStream.write(mBatch, 0, length);
+					mOutStream.flush();
+				} catch (IOException e) {
+					Logger.d(TAG, "cannot write to " + mAddress);
+					continue;
+				}
+				
+				if (Logger.isLoggable(Logger.DEBUG))
+					Logger.d(TAG, "send to Arduino: " + new String(mBatch, 0, length));
+				if (loggingEnabled) {
+					try {
+						if (logfile != null)
+							logfile.write(Long.toString(System.currentTimeMillis()) + " " + new String(mBatch, 0, length) + "\n");
+					}
+					catch (IOException e) {
+						Log.e(TAG, "Cannot write to logfile.");
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+	
 	
 	/* ---------- BroadcastReceiver ---------- */
 	
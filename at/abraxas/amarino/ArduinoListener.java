@@ -0,0 +1,38 @@
+/*
+  Amarino - A prototyping software toolkit for Android and Arduino
+  Copyright (c) 2010 Bonifaz Kaufmann.  All right reserved.
+  
+  This application and its library is free software; you can redistribute
+  it and/or modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 3 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package at.abraxas.amarino;
+
+/**
+ * Receives the messages an Arduino sends, in the process of the
+ * {@link AmarinoService}, without an Intent per message.
+ */
+public interface ArduinoListener {
+
+	/**
+	 * Called on the connection's thread for each complete message.  The
+	 * buffer is reused for the next message, so copy what must be kept,
+	 * and return quickly, since the connection is not read meanwhile.
+	 * 
+	 * @param address the Bluetooth device that sent the message
+	 * @param buffer the buffer holding the message, without its flags
+	 * @param offset where the message starts in the buffer
+	 * @param length the length of the message
+	 */
+	public void dataReceived(String address, byte[] buffer, int offset, int length);
+}
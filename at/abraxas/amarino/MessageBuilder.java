@@ -18,6 +18,9 @@
 */
 package at.abraxas.amarino;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import android.content.Intent;
 import at.abraxas.amarino.log.Logger;
 
@@ -40,6 +43,7 @@ public class MessageBuilder {
 	public static final char ACK_FLAG = 19;
 	public static final char FLUSH_FLAG = 27;
 	public static final char DELIMITER = ';'; // used to separate data strings
+	public static final int MAX_INT_LENGTH = 11; // characters in "-2147483648"
 	
 	// alive msg is happens very often, we optimize it to be a constant
 	// instead of constructing it always from ground
@@ -118,9 +122,9 @@ public class MessageBuilder {
 		case AmarinoIntent.INT_ARRAY_EXTRA:
 			int[] ints = intent.getIntArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (ints != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (int integer : ints){
-					msg += String.valueOf(integer) + DELIMITER;
+					msg.append(integer).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -129,9 +133,9 @@ public class MessageBuilder {
 		case AmarinoIntent.CHAR_ARRAY_EXTRA:
 			char[] chars = intent.getCharArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (chars != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (char character : chars){
-					msg += String.valueOf(character) + DELIMITER;
+					msg.append(character).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -140,9 +144,9 @@ public class MessageBuilder {
 		case AmarinoIntent.BYTE_ARRAY_EXTRA:
 			byte[] bytes = intent.getByteArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (bytes != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (byte oneByte : bytes){
-					msg += String.valueOf(oneByte) + DELIMITER;
+					msg.append(oneByte).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -151,9 +155,9 @@ public class MessageBuilder {
 		case AmarinoIntent.SHORT_ARRAY_EXTRA:
 			short[] shorts = intent.getShortArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (shorts != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (short shorty : shorts){
-					msg += String.valueOf(shorty) + DELIMITER;
+					msg.append(shorty).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -162,9 +166,9 @@ public class MessageBuilder {
 		case AmarinoIntent.STRING_ARRAY_EXTRA:
 			String[] strings = intent.getStringArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (strings != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (String str : strings){
-					msg += String.valueOf(str) + DELIMITER;
+					msg.append(str).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -173,9 +177,9 @@ public class MessageBuilder {
 		case AmarinoIntent.DOUBLE_ARRAY_EXTRA:
 			double[] doubles = intent.getDoubleArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (doubles != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (double singleDouble : doubles){ // :-)
-					msg += String.valueOf(singleDouble) + DELIMITER;
+					msg.append(singleDouble).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -184,9 +188,9 @@ public class MessageBuilder {
 		case AmarinoIntent.FLOAT_ARRAY_EXTRA:
 			float[] floats = intent.getFloatArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (floats != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (float fl : floats){
-					msg += String.valueOf(fl) + DELIMITER;
+					msg.append(fl).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -195,9 +199,9 @@ public class MessageBuilder {
 		case AmarinoIntent.BOOLEAN_ARRAY_EXTRA:
 			boolean[] booleans = intent.getBooleanArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (booleans != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (boolean bool : booleans){
-					msg += String.valueOf((bool) ? 1 : 0) + DELIMITER;
+					msg.append((bool) ? 1 : 0).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -206,9 +210,9 @@ public class MessageBuilder {
 		case AmarinoIntent.LONG_ARRAY_EXTRA:
 			long[] longs = intent.getLongArrayExtra(AmarinoIntent.EXTRA_DATA);
 			if (longs != null){
-				String msg = new String();
+				StringBuilder msg = new StringBuilder();
 				for (long longo : longs){
-					msg += String.valueOf(longo) + DELIMITER;
+					msg.append(longo).append(DELIMITER);
 				}
 				return flag + finishingMessage(msg);
 			}
@@ -218,12 +222,13 @@ public class MessageBuilder {
 		return null;
 	}
 	
-	private static String finishingMessage(String msg){
+	private static String finishingMessage(StringBuilder msg){
 		int length = msg.length();
 		if (length > 0)
-			return msg.substring(0, length-1) + ACK_FLAG;
+			msg.setCharAt(length-1, ACK_FLAG);
 		else
-			return msg + ACK_FLAG;
+			msg.append(ACK_FLAG);
+		return msg.toString();
 	}
 	
 	/**
@@ -234,81 +239,197 @@ public class MessageBuilder {
 	 * @return
 	 */
 	public static String getMessage(int dataType, Object array){
-		String s = new String();
+		StringBuilder s = new StringBuilder();
 		switch(dataType){
 			case AmarinoIntent.INT_ARRAY_EXTRA:
 				int[] ints = (int[]) array;
 				for (int i2 : ints){
-					s += String.valueOf(i2);
-					s += "\n";
+					s.append(i2).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.FLOAT_ARRAY_EXTRA:
 				float[] floats = (float[]) array;
 				for (float f : floats){
-					s += String.valueOf(f);
-					s += "\n";
+					s.append(f).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.STRING_ARRAY_EXTRA:
 				String[] strings = (String[]) array;
 				for (String str : strings){
-					s += str;
-					s += "\n";
+					s.append(str).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.SHORT_ARRAY_EXTRA:
 				short[] shorts = (short[]) array;
 				for (short shorty : shorts){
-					s += String.valueOf(shorty);
-					s += "\n";
+					s.append(shorty).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.BYTE_ARRAY_EXTRA:
 				byte[] bytes = (byte[]) array;
 				for (byte b : bytes){
-					s += String.valueOf(b);
-					s += "\n";
+					s.append(b).append('\n');
 				}
 			break;
 		
 			case AmarinoIntent.BOOLEAN_ARRAY_EXTRA:
 				boolean[] booleans = (boolean[]) array;
 				for (boolean bool : booleans){
-					s += String.valueOf(bool);
-					s += "\n";
+					s.append(bool).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.CHAR_ARRAY_EXTRA:
 				char[] chars = (char[]) array;
 				for (char c : chars){
-					s += String.valueOf(c);
-					s += "\n";
+					s.append(c).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.DOUBLE_ARRAY_EXTRA:
 				double[] doubles = (double[]) array;
 				for (double d : doubles){
-					s += String.valueOf(d);
-					s += "\n";
+					s.append(d).append('\n');
 				}
 			break;
 			
 			case AmarinoIntent.LONG_ARRAY_EXTRA:
 				long[] longs = (long[]) array;
 				for (long l : longs){
-					s += String.valueOf(l);
-					s += "\n";
+					s.append(l).append('\n');
 				}
 			break;
 		}
-		return s;
+		return s.toString();
+	}
+	
+	/**
+	 * Returns the length of the message {@link #encode(byte[], int, char, int[])}
+	 * writes for some values.
+	 */
+	public static int getLength(int[] values){
+		// the flag, the delimiters and the ACK_FLAG
+		int length = (values.length > 0) ? values.length + 1 : 2;
+		for (int value : values)
+			length += getLength(value);
+		return length;
+	}
+	
+	/* the number of characters of an int in decimal */
+	private static int getLength(int value){
+		long v = Math.abs((long) value);
+		int length = (value < 0) ? 2 : 1;
+		while (v >= 10){
+			v /= 10;
+			length++;
+		}
+		return length;
+	}
+	
+	/**
+	 * Writes the message {@link #getMessage(Intent)} makes of an int, without
+	 * making any Strings.
+	 * 
+	 * @param buffer the buffer to write the message into
+	 * @param offset where the message starts in the buffer
+	 * @param flag the flag Arduino has registered a function for to receive this data
+	 * @param value the data
+	 * @return the index after the message
+	 */
+	public static int encode(byte[] buffer, int offset, char flag, int value){
+		buffer[offset++] = (byte) flag;
+		offset = putInt(buffer, offset, value);
+		buffer[offset++] = (byte) ACK_FLAG;
+		return offset;
+	}
+	
+	/**
+	 * Writes the message {@link #getMessage(Intent)} makes of an int array, its
+	 * values separated by the {@link #DELIMITER}, without making any Strings.
+	 * 
+	 * @return the index after the message
+	 * @see #getLength(int[])
+	 */
+	public static int encode(byte[] buffer, int offset, char flag, int[] values){
+		buffer[offset++] = (byte) flag;
+		for (int i = 0; i < values.length; i++){
+			if (i > 0)
+				buffer[offset++] = (byte) DELIMITER;
+			offset = putInt(buffer, offset, values[i]);
+		}
+		buffer[offset++] = (byte) ACK_FLAG;
+		return offset;
+	}
+	
+	/**
+	 * Writes one int message per flag, back to back, so values Arduino reads
+	 * under different flags, like motor speeds, are sent in one piece.
+	 * 
+	 * @param flags the flag of each value
+	 * @param values the data, as many as there are flags
+	 * @return the index after the messages
+	 */
+	public static int encode(byte[] buffer, int offset, char[] flags, int[] values){
+		for (int i = 0; i < flags.length; i++)
+			offset = encode(buffer, offset, flags[i], values[i]);
+		return offset;
+	}
+	
+	/**
+	 * Writes the message of an int array at the position of a buffer, and
+	 * moves the position past it.
+	 * 
+	 * @throws BufferOverflowException if the message does not fit
+	 */
+	public static void encode(ByteBuffer buffer, char flag, int[] values){
+		int length = getLength(values);
+		if (buffer.remaining() < length)
+			throw new BufferOverflowException();
+		if (buffer.hasArray()){
+			int start = buffer.arrayOffset() + buffer.position();
+			encode(buffer.array(), start, flag, values);
+		}
+		else {
+			int offset = buffer.position();
+			buffer.put(offset++, (byte) flag);
+			for (int i = 0; i < values.length; i++){
+				if (i > 0)
+					buffer.put(offset++, (byte) DELIMITER);
+				int end = offset + getLength(values[i]);
+				long v = values[i];
+				if (v < 0){
+					buffer.put(offset, (byte) '-');
+					v = -v;
+				}
+				offset = end;
+				do {
+					buffer.put(--end, (byte) ('0' + v % 10));
+					v /= 10;
+				} while (v != 0);
+			}
+			buffer.put(offset, (byte) ACK_FLAG);
+		}
+		buffer.position(buffer.position() + length);
+	}
+	
+	/* writes an int in decimal, returning the index after it */
+	private static int putInt(byte[] buffer, int offset, int value){
+		int end = offset + getLength(value);
+		long v = value;
+		if (v < 0){
+			buffer[offset] = '-';
+			v = -v;
+		}
+		int i = end;
+		do {
+			buffer[--i] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v != 0);
+		return end;
 	}
 	
 }
@@ -18,15 +18,24 @@
 */
 package at.abraxas.amarino.log;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
 
 import android.util.Log;
 
 /**
+ * Keeps the latest log entries in a ring buffer of fixed size.  Adding an
+ * entry takes no lock and never blocks; listeners and the optional log
+ * file are fed from a background thread.
  * 
  * @author Bonifaz Kaufmann
  *
@@ -37,79 +46,238 @@ public class Logger {
 	public static boolean enabled = true;
 	public static final String KEY_IS_LOG_ENABLED = "is_log_enabled";
 
-	private static final boolean DEBUG = true;
+	/* levels, the same as those of android.util.Log */
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	
+	/* entries below this level are dropped */
+	public static volatile int level = DEBUG;
+
+	private static final boolean LOGCAT = true;
 	private static final String TAG = "AmarinoLogger";
 	
-	private static final int MAX_LOG_ENTRIES = 200;
+	/* a power of two, so a sequence number maps to its slot with a mask */
+	private static final int MAX_LOG_ENTRIES = 256;
+	private static final int MASK = MAX_LOG_ENTRIES - 1;
+	
+	/* how often listeners and the log file catch up, in nanoseconds, unless half the entries are new sooner */
+	private static final long DRAIN_PERIOD = 100000000L;
 
-	private static ArrayList<LogListener> listeners = new ArrayList<LogListener>();
-	private static List<String> log = Collections.synchronizedList(new LinkedList<String>());
-	private static int logSize = 0;
+	private static final CopyOnWriteArrayList<LogListener> listeners = new CopyOnWriteArrayList<LogListener>();
+	
+	/* entry n is in slot n & MASK; the slot's sequence number is n once it is written, and -1 while it is */
+	private static final AtomicReferenceArray<String> log = new AtomicReferenceArray<String>(MAX_LOG_ENTRIES);
+	private static final AtomicLongArray sequences = new AtomicLongArray(MAX_LOG_ENTRIES);
+	private static final AtomicLong next = new AtomicLong();
+	private static volatile long first = 0;
+	
+	private static volatile Thread drainer;
+	/* guards logfile, so it is never written while it is being closed */
+	private static final Object fileLock = new Object();
+	private static Writer logfile;
 
+	static {
+		for (int i = 0; i < MAX_LOG_ENTRIES; i++)
+			sequences.set(i, -1);
+	}
 	
 	public static void d(String tag, String msg){
-		String text = tag + ": " + msg;
-		if (DEBUG) 
-			Log.d(TAG, text);
-		if (enabled)
-			add(text);
-		
+		add(DEBUG, tag, msg);
 	}
 	
 	public static void d(String msg){
-		if (DEBUG) 
-			Log.d(TAG, msg);
-		if (enabled) 
-			add(msg);
+		add(DEBUG, null, msg);
 	}
 	
-	private static void add(String msg){
-		synchronized (log){
-			if (logSize < MAX_LOG_ENTRIES){
-				logSize++;
-			}
-			else {
-				// we don't check if elements are present, since we trust logSize
-				log.remove(0);
-				//log.removeFirst(); 
-			}
-			log.add(msg);
+	public static void i(String tag, String msg){
+		add(INFO, tag, msg);
+	}
+	
+	public static void w(String tag, String msg){
+		add(WARN, tag, msg);
+	}
+	
+	public static void e(String tag, String msg){
+		add(ERROR, tag, msg);
+	}
+	
+	/**
+	 * Tells whether entries of a level are kept, so callers can skip
+	 * building messages nobody will read.
+	 */
+	public static boolean isLoggable(int msgLevel){
+		return msgLevel >= level && (LOGCAT || enabled);
+	}
+	
+	private static void add(int msgLevel, String tag, String msg){
+		if (msgLevel < level)
+			return;
+		String text = (tag == null) ? msg : tag + ": " + msg;
+		if (LOGCAT) 
+			Log.println(msgLevel, TAG, text);
+		if (!enabled)
+			return;
+		
+		long n = next.getAndIncrement();
+		int slot = (int) (n & MASK);
+		sequences.set(slot, -1);
+		log.set(slot, text);
+		sequences.set(slot, n);
+		
+		if ((n & (MASK >> 1)) == 0){
+			Thread d = drainer;
+			if (d != null)
+				LockSupport.unpark(d);
 		}
-		notifyListeners(msg.toString());
 	}
 	
-	public static synchronized void clear(){
-		logSize = 0;
-		log.clear();
+	/* the entry with a sequence number, or null if it is not written yet or overwritten */
+	private static String get(long n){
+		int slot = (int) (n & MASK);
+		if (sequences.get(slot) != n)
+			return null;
+		String text = log.get(slot);
+		return (sequences.get(slot) == n) ? text : null;
+	}
+	
+	public static void clear(){
+		first = next.get();
 	}
 	
 	public static String getLog(){
 		StringBuilder sb = new StringBuilder();
-		synchronized(log){
-			ListIterator<String> iter = log.listIterator();
-			while (iter.hasNext()){
-				sb.append(iter.next());
+		long end = next.get();
+		for (long n = Math.max(first, end - MAX_LOG_ENTRIES); n < end; n++){
+			String text = get(n);
+			if (text != null){
+				sb.append(text);
 				sb.append("\n");
 			}
 		}
-		
 		return sb.toString();
 	}
 	
 	
+	/**
+	 * Listeners are told of new entries on a background thread, a little
+	 * after they are added.
+	 */
 	public static synchronized void registerLogListener(LogListener listener) {
-		if (!listeners.contains(listener))
-			listeners.add(listener);
+		listeners.addIfAbsent(listener);
+		startDrainer();
 	}
 	
 	public static synchronized void unregisterLogListener(LogListener listener) {
 		listeners.remove(listener);
 	}
 	
-	private static void notifyListeners(final String lastAddedMsg){
-		if (listeners != null){
-			for (LogListener ll : listeners)
-				ll.logChanged(lastAddedMsg);
+	/**
+	 * Also writes every entry to a gzip compressed file, until the file
+	 * is set to null.  Each batch is flushed through the compressor, so
+	 * the file is readable up to the last batch if the phone dies.
+	 * 
+	 * @param path the file to write, replaced if it exists; null to stop
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static synchronized void setLogFile(String path) throws IOException {
+		closeLogFile();
+		if (path != null){
+			Writer file = new BufferedWriter(new OutputStreamWriter(
+					new GZIPOutputStream(new FileOutputStream(path), true), "UTF-8"));
+			synchronized (fileLock) {
+				logfile = file;
+			}
+			startDrainer();
+		}
+	}
+	
+	/**
+	 * Stops writing entries to the log file, if there is one.
+	 */
+	public static void closeLogFile(){
+		synchronized (fileLock) {
+			if (logfile == null)
+				return;
+			try {
+				logfile.close();
+			} catch (IOException e) {
+				Log.e(TAG, "cannot close log file");
+			}
+			logfile = null;
+		}
+	}
+	
+	private static synchronized void startDrainer(){
+		if (drainer != null)
+			return;
+		drainer = new Thread("AmarinoLogger") {
+			public void run() {
+				drain();
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+	
+	/* hands each new entry to the listeners and the log file, until neither is left */
+	private static void drain(){
+		long n = next.get();
+		StringBuilder batch = new StringBuilder();
+		while (true) {
+			LockSupport.parkNanos(DRAIN_PERIOD);
+			boolean spill;
+			synchronized (Logger.class) {
+				synchronized (fileLock) {
+					spill = logfile != null;
+				}
+				if (listeners.isEmpty() && !spill){
+					drainer = null;
+					return;
+				}
+			}
+			long end = next.get();
+			long lost = 0;
+			if (end - n > MAX_LOG_ENTRIES){
+				lost = end - MAX_LOG_ENTRIES - n;
+				n = end - MAX_LOG_ENTRIES;
+			}
+			String now = Long.toString(System.currentTimeMillis());
+			batch.setLength(0);
+			if (lost > 0)
+				batch.append(now).append(' ').append(lost).append(" entries lost\n");
+			for (; n < end; n++){
+				String text = get(n);
+				if (text == null){
+					// still being written, so wait for it; otherwise it was overwritten
+					if (sequences.get((int) (n & MASK)) < n)
+						break;
+					continue;
+				}
+				for (LogListener ll : listeners)
+					ll.logChanged(text);
+				if (spill)
+					batch.append(now).append(' ').append(text).append('\n');
+			}
+			if (spill)
+				spill(batch);
+		}
+	}
+	
+	/* writes a batch of entries to the log file, if it is still open */
+	private static void spill(CharSequence batch){
+		synchronized (fileLock) {
+			if (logfile == null)
+				return;
+			try {
+				logfile.append(batch);
+				logfile.flush();
+			} catch (IOException e) {
+				Log.e(TAG, "cannot write log file, closing it");
+				closeLogFile();
+			}
 		}
 	}
 }
@@ -4,8 +4,12 @@ if [ "$1" == '' ]; then
     LOGFILE=~/logs/`date +"%y%m%d-%H%M%S"`.txt
 else
     LOGFILE=$1
+    shift
 fi
 
-echo Logging to $LOGFILE
-ncat --broker --listen 7000 -o $LOGFILE &
-ncat --broker --listen 7001 &
\ No newline at end of file
+# Relays text on 7000 and images on 7001; see Relay.java for options
+ROOT=`dirname $0`/..
+BUILD=$ROOT/broker/build
+mkdir -p $BUILD
+javac -d $BUILD $ROOT/org/haldean/chopper/server/Relay.java -encoding ISO-8859-1 && \
+    exec java -cp $BUILD org.haldean.chopper.server.Relay port=7000 log=$LOGFILE "$@"
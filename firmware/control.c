@@ -0,0 +1,139 @@
+#include "control.h"
+
+#define STATE_IDLE 0
+#define STATE_ASCII 1
+#define STATE_BINARY 2
+
+/* Longest speed worth reading; more digits are still consumed. */
+#define VALUE_LIMIT 1000
+
+void control_init(struct control *c, unsigned long now_ms) {
+  int i;
+  for (i = 0; i < MOTOR_COUNT; i++) {
+    c->target[i] = MOTOR_OFF_COMMAND;
+    c->current[i] = MOTOR_OFF_COMMAND;
+  }
+  c->last_command_ms = now_ms;
+  c->timed_out = 1;
+  c->state = STATE_IDLE;
+  c->commands = 0;
+  c->bad_commands = 0;
+}
+
+unsigned char control_speed_command(int speed) {
+  if (speed <= 0) {
+    return MOTOR_OFF_COMMAND;
+  }
+  if (speed > SPEED_MAX) {
+    speed = SPEED_MAX;
+  }
+  /* The same as map(speed, -1, 99, MOTOR_MIN_COMMAND, MOTOR_MAX_COMMAND) */
+  return MOTOR_MIN_COMMAND +
+    (long) (speed + 1) * (MOTOR_MAX_COMMAND - MOTOR_MIN_COMMAND) / SPEED_MAX;
+}
+
+static void accept(struct control *c, unsigned long now_ms) {
+  c->last_command_ms = now_ms;
+  c->timed_out = 0;
+  c->commands++;
+}
+
+/**
+ *  Drop a broken command.  The byte that broke it may start the next.
+ */
+static void reject(struct control *c, unsigned char b) {
+  c->bad_commands++;
+  c->state = STATE_IDLE;
+  if (b == CONTROL_SYNC || (b >= 'A' && b <= 'D')) {
+    control_feed(c, b, c->last_command_ms);
+  }
+}
+
+int control_feed(struct control *c, unsigned char b, unsigned long now_ms) {
+  int i;
+  unsigned char sum;
+
+  switch (c->state) {
+  case STATE_IDLE:
+    if (b == CONTROL_SYNC) {
+      c->state = STATE_BINARY;
+      c->count = 0;
+    } else if (b >= 'A' && b <= 'D') {
+      c->state = STATE_ASCII;
+      c->motor = b - 'A';
+      c->count = 0;
+      c->negative = 0;
+      c->value = 0;
+    }
+    /* Anything else, such as Amarino's alive messages, is ignored. */
+    return 0;
+
+  case STATE_ASCII:
+    if (b >= '0' && b <= '9') {
+      if (c->value < VALUE_LIMIT) {
+        c->value = 10 * c->value + (b - '0');
+      }
+      c->count++;
+    } else if (b == '-' && c->count == 0 && !c->negative) {
+      c->negative = 1;
+    } else if (b == ACK_FLAG && c->count > 0) {
+      c->target[c->motor] = control_speed_command(c->negative ? -c->value : c->value);
+      c->state = STATE_IDLE;
+      accept(c, now_ms);
+      return 1;
+    } else {
+      reject(c, b);
+    }
+    return 0;
+
+  case STATE_BINARY:
+    if (c->count < MOTOR_COUNT) {
+      if (b > SPEED_MAX) {
+        reject(c, b);
+      } else {
+        c->frame[c->count++] = b;
+      }
+      return 0;
+    }
+    sum = 0;
+    for (i = 0; i < MOTOR_COUNT; i++) {
+      sum += c->frame[i];
+    }
+    if ((unsigned char) ~sum != b) {
+      reject(c, b);
+      return 0;
+    }
+    for (i = 0; i < MOTOR_COUNT; i++) {
+      c->target[i] = control_speed_command(c->frame[i]);
+    }
+    c->state = STATE_IDLE;
+    accept(c, now_ms);
+    return 1;
+  }
+  return 0;
+}
+
+void control_tick(struct control *c, unsigned long now_ms, unsigned char armed) {
+  int i, step;
+
+  if (!c->timed_out && now_ms - c->last_command_ms > COMMAND_TIMEOUT_MS) {
+    c->timed_out = 1;
+  }
+
+  for (i = 0; i < MOTOR_COUNT; i++) {
+    if (!armed) {
+      c->current[i] = MOTOR_OFF_COMMAND;
+      continue;
+    }
+    if (c->timed_out) {
+      c->target[i] = MOTOR_OFF_COMMAND;
+    }
+    step = c->target[i] - c->current[i];
+    if (step > MOTOR_RAMP_STEP) {
+      step = MOTOR_RAMP_STEP;
+    } else if (step < -MOTOR_RAMP_STEP) {
+      step = -MOTOR_RAMP_STEP;
+    }
+    c->current[i] += step;
+  }
+}
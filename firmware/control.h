@@ -0,0 +1,80 @@
+/**
+ *  Motor control path of the firmware, kept free of Arduino calls so
+ *  it can be built and tested on Linux as well (see testing/).
+ *
+ *  Commands come in either as Amarino messages, a motor flag 'A' to 'D'
+ *  then a speed in ASCII then ACK_FLAG, or as binary frames:
+ *
+ *    CONTROL_SYNC, four speeds in motor order, checksum
+ *
+ *  where speeds are bytes from 0 (off) to 100 and the checksum is the
+ *  complement of their sum.  A frame sets all four motors at once.
+ */
+#ifndef CONTROL_H
+#define CONTROL_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#define MOTOR_COUNT 4
+#define MOTOR_MAX_COMMAND 160
+#define MOTOR_MIN_COMMAND 67
+#define MOTOR_OFF_COMMAND 50
+
+/* Servos are refreshed every 20 ms, so that is as often as speeds change. */
+#define CONTROL_PERIOD_US 20000
+/* Motors wind down if no command arrives for this long. */
+#define COMMAND_TIMEOUT_MS 500
+/* Largest change of a motor command in one period. */
+#define MOTOR_RAMP_STEP 5
+
+#define ACK_FLAG 19
+#define CONTROL_SYNC 0xA5
+#define SPEED_MAX 100
+
+struct control {
+  unsigned char target[MOTOR_COUNT];
+  unsigned char current[MOTOR_COUNT];
+  unsigned long last_command_ms;
+  unsigned char timed_out;
+
+  /* Parser state */
+  unsigned char state;
+  unsigned char motor;
+  unsigned char count;
+  unsigned char negative;
+  int value;
+  unsigned char frame[MOTOR_COUNT];
+
+  unsigned long commands;
+  unsigned long bad_commands;
+};
+
+/**
+ *  Stop all motors and reset the parser.
+ */
+void control_init(struct control *c, unsigned long now_ms);
+
+/**
+ *  Parse one byte from the serial port.
+ *  Returns 1 if it completed a command.
+ */
+int control_feed(struct control *c, unsigned char b, unsigned long now_ms);
+
+/**
+ *  Move the motor commands one period toward their targets.  Called
+ *  every CONTROL_PERIOD_US; motors stop at once when not armed.
+ */
+void control_tick(struct control *c, unsigned long now_ms, unsigned char armed);
+
+/**
+ *  The servo command for a speed from 0 (off) to 100.
+ */
+unsigned char control_speed_command(int speed);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -1,36 +1,27 @@
 #define ARM_BUTTON_PIN 12
-#define BAD_REQUEST "BADREQUEST"
+#define ARDUINO_MSG_FLAG 18
 #define HEARTBEAT_PULSE "PULSE"
-#define MESSAGE_TIMEOUT_CYCLES 100
+#define HEARTBEAT_TICKS 50
 #define MOTOR_ARM_TIME 5000
 #define MOTOR_ARM_VALUE 20
-#define MOTOR_COUNT 4
-#define MOTOR_MAX_COMMAND 160
-#define MOTOR_MIN_COMMAND 67
-#define MOTOR_OFF_COMMAND 50
-#define SPEED_HEADER "NEWSPEED"
 #define STATUS_LED 13
-#define STATUS_LED_CYCLES 30000
-#define WORD_BUFFER_LENGTH 4
-#define WORD_LENGTH 2
 
 #include <Servo.h>
-#include <MeetAndroid.h>
+#include "control.h"
 
-unsigned int led_cycles = 0;
-MeetAndroid bt;
+struct control control;
 bool enable_motors = true;
+unsigned long next_tick;
+unsigned int ticks = 0;
 
 struct motor {
   unsigned char pin;
-  unsigned int current_speed;
-  unsigned int next_speed;
   Servo ctrl;
 };
 
 struct motor motors[MOTOR_COUNT] = {
-  {6, 0, 0, Servo()}, {9, 0, 0, Servo()}, 
-  {10, 0, 0, Servo()}, {11, 0, 0, Servo()}
+  {6, Servo()}, {9, Servo()}, 
+  {10, Servo()}, {11, Servo()}
 };
 
 /**
@@ -38,33 +29,16 @@ struct motor motors[MOTOR_COUNT] = {
  */
 void write_speeds(void) {
   for (int i = 0; i < MOTOR_COUNT; i++) {
-    if (enable_motors) {
-      motors[i].current_speed = motors[i].next_speed;
-      motors[i].ctrl.write(motors[i].current_speed);
-    } else {
-      motors[i].ctrl.write(MOTOR_OFF_COMMAND);
-    }
+    motors[i].ctrl.write(control.current[i]);
   }
 }
 
-/**
- *  Print the speeds of the motors to serial.
- */
-void print_speeds(void) {
-  for (int i = 0; i < MOTOR_COUNT; i++) {
-    Serial.print(motors[i].current_speed);
-    Serial.print(" ");
-  }
-  Serial.print("\n");
-}
-
 /**
  *  Initialize and arm motors
  */
 void init_motors(void) {
   for (int i = 0; i < MOTOR_COUNT; i++) {
     motors[i].ctrl.attach(motors[i].pin);
-    motors[i].next_speed = MOTOR_OFF_COMMAND;
   }
 
   long time = millis();
@@ -74,11 +48,12 @@ void init_motors(void) {
     }
   }
   
+  control_init(&control, millis());
   write_speeds();
 }
 
 /**
- *  Initialize messenger service and speed vector.
+ *  Initialize serial port and motor commands.
  */
 void setup(void) {
   /* Set the serial status LED to output. */
@@ -88,55 +63,44 @@ void setup(void) {
   init_motors();
 
   Serial.begin(115200);
-  char flag;
-  for (flag='A'; flag<='D'; flag++) {
-    bt.registerFunction(motor_message, flag);
-  }
+  next_tick = micros();
 }
 
 /**
- *  Read a message from Android.
+ *  Parse serial information as it comes in, and update the motors once
+ *  every control period.
  */
-void motor_message(byte flag, byte numOfValues) {
-  int i, motor_val;
-
-  if (flag == 'A') i = 0;
-  else if (flag == 'B') i = 1;
-  else if (flag == 'C') i = 2;
-  else if (flag == 'D') i = 3;
-  
-  motor_val = bt.getInt();
-  
-  if (motor_val) {
-    motors[i].next_speed = map(motor_val, -1, 99, MOTOR_MIN_COMMAND, MOTOR_MAX_COMMAND);
-  } else {
-    motors[i].next_speed = MOTOR_OFF_COMMAND;
+void loop(void) {
+  while (Serial.available() > 0) {
+    control_feed(&control, Serial.read(), millis());
   }
 
-  //print_speeds();
-  Serial.println("done");
-  led_cycles = 0;
-}
+  unsigned long now = micros();
+  if ((long) (now - next_tick) < 0) {
+    return;
+  }
+  next_tick += CONTROL_PERIOD_US;
+  /* Skip the periods missed rather than running them back to back. */
+  if ((long) (now - next_tick) >= 0) {
+    next_tick = now + CONTROL_PERIOD_US;
+  }
 
-/**
- *  Wait for serial information to come in.
- */
-void loop(void) {
   enable_motors = digitalRead(ARM_BUTTON_PIN) == HIGH;
-  bt.receive();
-
+  control_tick(&control, millis(), enable_motors);
   write_speeds();
 
-  if (enable_motors) {
+  if (enable_motors && !control.timed_out) {
     digitalWrite(STATUS_LED, HIGH);
   } else {
     digitalWrite(STATUS_LED, LOW);
   }
   
+  ticks++;
   #ifdef ENABLE_HEARTBEAT
-  if (led_cycles % 10000 == 0) {
-    bt.send(HEARTBEAT_PULSE);
+  if (ticks % HEARTBEAT_TICKS == 0) {
+    Serial.write(ARDUINO_MSG_FLAG);
+    Serial.print(HEARTBEAT_PULSE);
+    Serial.write(ACK_FLAG);
   }
   #endif
 }
-
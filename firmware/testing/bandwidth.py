@@ -1,17 +1,32 @@
 #!/usr/bin/env python
 
-import random, serial, time
+import random, serial, sys, time
 
-def test(flags, msgs, port='/dev/ttyUSB0'):
-    s = serial.Serial(port)
+SYNC = 0xA5
+ACK = '\x13'
+
+def test(flags, msgs, port='/dev/ttyUSB0', binary=False):
+    s = serial.Serial(port, 115200)
     
     def send_speeds():
-        for f in flags:
-            msg = "%s%d\x13" % (f, random.randint(0,100))
-            s.write(msg)
+        speeds = [random.randint(0,100) for f in flags]
+        if binary:
+            # one frame for every motor: sync, speeds, complement of their sum
+            check = ~sum(speeds) & 0xFF
+            s.write(''.join(chr(b) for b in [SYNC] + speeds + [check]))
+        else:
+            for f, speed in zip(flags, speeds):
+                msg = "%s%d%s" % (f, speed, ACK)
+                s.write(msg)
 
     t = time.time()
     [send_speeds() for i in range(msgs)]
     t = time.time() - t 
     print "%f seconds for %d messages (average: %f)" % (t, msgs, t/msgs)
-    
+
+if __name__ == '__main__':
+    if len(sys.argv) < 2:
+        print "Usage: bandwidth.py port [messages] [-b]"
+        sys.exit(0)
+    msgs = int(sys.argv[2]) if len(sys.argv) > 2 else 1000
+    test('ABCD', msgs, sys.argv[1], '-b' in sys.argv)
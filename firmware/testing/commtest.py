@@ -10,6 +10,19 @@ import sys
 
 addr = None
 
+# a serial port, such as the one of ./simserial -p, needs no search;
+# each line typed is sent as one message, ending in ACK_FLAG
+if len(sys.argv) > 1 and sys.argv[1].startswith('/'):
+    import serial
+    port = serial.Serial(sys.argv[1], 115200)
+    print "connected to %s.  type stuff" % sys.argv[1]
+    while True:
+        data = raw_input()
+        if len(data) == 0: break
+        port.write(data + '\x13')
+    port.close()
+    sys.exit(0)
+
 if len(sys.argv) < 2:
     print "Searching via UUID"
 else:
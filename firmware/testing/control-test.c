@@ -0,0 +1,175 @@
+/**
+ *  Tests the firmware's control path on Linux:
+ *    gcc -I.. ../control.c control-test.c -o control-test && ./control-test
+ */
+#include <assert.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "control.h"
+
+#define PERIOD_MS (CONTROL_PERIOD_US / 1000)
+
+static int feed(struct control *c, const char *bytes, int length, unsigned long now) {
+  int i, commands = 0;
+  for (i = 0; i < length; i++) {
+    commands += control_feed(c, (unsigned char) bytes[i], now);
+  }
+  return commands;
+}
+
+static int feed_string(struct control *c, const char *bytes, unsigned long now) {
+  return feed(c, bytes, strlen(bytes), now);
+}
+
+static void frame(char *out, int m0, int m1, int m2, int m3) {
+  out[0] = (char) CONTROL_SYNC;
+  out[1] = m0;
+  out[2] = m1;
+  out[3] = m2;
+  out[4] = m3;
+  out[5] = (char) ~(m0 + m1 + m2 + m3);
+}
+
+static void test_speed_command(void) {
+  assert(control_speed_command(0) == MOTOR_OFF_COMMAND);
+  assert(control_speed_command(-5) == MOTOR_OFF_COMMAND);
+  assert(control_speed_command(100) == MOTOR_MAX_COMMAND);
+  assert(control_speed_command(500) == MOTOR_MAX_COMMAND);
+  /* map(50, -1, 99, 67, 160) */
+  assert(control_speed_command(50) == 67 + 51 * 93 / 100);
+}
+
+static void test_ascii(void) {
+  struct control c;
+  control_init(&c, 0);
+
+  /* Amarino alive messages and noise between commands are skipped */
+  assert(feed_string(&c, "\x11\x13" "A50\x13junk\r\nC100\x13", 0) == 2);
+  assert(c.target[0] == control_speed_command(50));
+  assert(c.target[2] == MOTOR_MAX_COMMAND);
+  assert(c.target[1] == MOTOR_OFF_COMMAND);
+
+  /* A command may arrive in pieces */
+  assert(feed_string(&c, "B7", 0) == 0);
+  assert(feed_string(&c, "5\x13", 0) == 1);
+  assert(c.target[1] == control_speed_command(75));
+
+  /* A broken command is counted, and the byte breaking it starts the next */
+  assert(feed_string(&c, "D4xD0\x13", 0) == 1);
+  assert(c.bad_commands == 1);
+  assert(c.target[3] == MOTOR_OFF_COMMAND);
+  assert(feed_string(&c, "D\x13", 0) == 0);
+  assert(c.bad_commands == 2);
+}
+
+static void test_binary(void) {
+  struct control c;
+  char f[6];
+  int i;
+  control_init(&c, 0);
+
+  frame(f, 10, 20, 30, 100);
+  assert(feed(&c, f, 6, 0) == 1);
+  assert(c.target[0] == control_speed_command(10));
+  assert(c.target[3] == MOTOR_MAX_COMMAND);
+
+  /* A bad checksum changes nothing */
+  frame(f, 0, 0, 0, 0);
+  f[5] ^= 1;
+  assert(feed(&c, f, 6, 0) == 0);
+  assert(c.bad_commands == 1);
+  for (i = 0; i < MOTOR_COUNT; i++) {
+    assert(c.target[i] != MOTOR_OFF_COMMAND);
+  }
+
+  /* Frames resynchronize after garbage, and mix with Amarino messages */
+  frame(f, 0, 1, 2, 3);
+  assert(feed_string(&c, "\xA5\xC8", 0) == 0);
+  assert(feed(&c, f, 6, 0) == 1);
+  assert(feed_string(&c, "A99\x13", 0) == 1);
+  assert(c.target[0] == control_speed_command(99));
+  assert(c.target[1] == control_speed_command(1));
+}
+
+static void test_ramp(void) {
+  struct control c;
+  unsigned long now = 0;
+  int ticks = 0;
+  control_init(&c, now);
+  feed_string(&c, "A100\x13", now);
+
+  while (c.current[0] != MOTOR_MAX_COMMAND) {
+    unsigned char before = c.current[0];
+    control_tick(&c, now, 1);
+    assert(c.current[0] - before <= MOTOR_RAMP_STEP);
+    ticks++;
+  }
+  assert(ticks == (MOTOR_MAX_COMMAND - MOTOR_OFF_COMMAND + MOTOR_RAMP_STEP - 1) / MOTOR_RAMP_STEP);
+  assert(c.current[1] == MOTOR_OFF_COMMAND);
+
+  /* Disarming stops the motors at once, and arming ramps them up again */
+  control_tick(&c, now, 0);
+  assert(c.current[0] == MOTOR_OFF_COMMAND);
+  control_tick(&c, now, 1);
+  assert(c.current[0] == MOTOR_OFF_COMMAND + MOTOR_RAMP_STEP);
+}
+
+static void test_watchdog(void) {
+  struct control c;
+  unsigned long now = 1000;
+  control_init(&c, now);
+
+  /* Motors stay off until the first command */
+  control_tick(&c, now, 1);
+  assert(c.timed_out);
+
+  feed_string(&c, "A50\x13", now);
+  assert(!c.timed_out);
+  for (; now <= 1000 + COMMAND_TIMEOUT_MS; now += PERIOD_MS) {
+    control_tick(&c, now, 1);
+  }
+  assert(!c.timed_out);
+  assert(c.current[0] == control_speed_command(50));
+
+  /* Without commands, the motors wind down at the ramp rate */
+  control_tick(&c, now, 1);
+  assert(c.timed_out);
+  assert(c.target[0] == MOTOR_OFF_COMMAND);
+  assert(c.current[0] == control_speed_command(50) - MOTOR_RAMP_STEP);
+
+  feed_string(&c, "A50\x13", now);
+  assert(!c.timed_out);
+}
+
+static void test_random(void) {
+  struct control c;
+  unsigned long now = 0;
+  int i, j;
+  srand(1);
+  control_init(&c, now);
+
+  for (i = 0; i < 100000; i++) {
+    control_feed(&c, rand() & 0xff, now);
+    if (i % 64 == 0) {
+      now += PERIOD_MS;
+      control_tick(&c, now, 1);
+      for (j = 0; j < MOTOR_COUNT; j++) {
+        assert(c.current[j] >= MOTOR_OFF_COMMAND);
+        assert(c.current[j] <= MOTOR_MAX_COMMAND);
+      }
+    }
+  }
+}
+
+int main(void) {
+  test_speed_command();
+  test_ascii();
+  test_binary();
+  test_ramp();
+  test_watchdog();
+  test_random();
+  printf("All control tests passed.\n");
+  return 0;
+}
@@ -0,0 +1,16 @@
+#!/bin/bash
+
+# Builds and runs the firmware's control path on Linux: the unit tests,
+# then a benchmark of each command format through the simulated serial port.
+
+set -e
+gcc -Wall -I.. ../control.c control-test.c -o control-test
+gcc -Wall -I.. ../control.c simserial.c -o simserial
+gcc -Wall parse-random.c -o parse-random
+
+./control-test
+
+echo 'Amarino messages:'
+head -c 40000 /dev/urandom | ./parse-random | ./simserial
+echo 'Binary frames:'
+head -c 40000 /dev/urandom | ./parse-random -b | ./simserial
@@ -1,20 +1,40 @@
 #include <stdio.h>
+#include <string.h>
+
+#include "../control.h"
 
 #define MAX 10000
 
+/**
+ *  Turns random bytes into MAX sets of motor commands: Amarino messages
+ *  for motors A to D, or binary frames with -b.
+ */
 int main(int argc, char* argv[]) {
-  int i;
+  int i, m, binary = argc > 1 && strcmp(argv[1], "-b") == 0;
   long j = 0;
+  unsigned char speeds[MOTOR_COUNT], sum;
   
   for (i = getchar(); i != EOF; i = getchar()) {
-    printf("%d ", i * 4);
+    speeds[j % MOTOR_COUNT] = i % (SPEED_MAX + 1);
     j++;
 
-    if (j % 4 == 0) {
-      printf("\r\n");
+    if (j % MOTOR_COUNT == 0) {
+      if (binary) {
+        sum = 0;
+        putchar(CONTROL_SYNC);
+        for (m = 0; m < MOTOR_COUNT; m++) {
+          putchar(speeds[m]);
+          sum += speeds[m];
+        }
+        putchar((unsigned char) ~sum);
+      } else {
+        for (m = 0; m < MOTOR_COUNT; m++) {
+          printf("%c%d%c", 'A' + m, speeds[m], ACK_FLAG);
+        }
+      }
     }
 
-    if (j == 10000) break;
+    if (j == MAX * MOTOR_COUNT) break;
   }
 
   return 0;
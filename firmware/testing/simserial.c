@@ -0,0 +1,136 @@
+/**
+ *  Runs the firmware's control path on Linux against a simulated serial
+ *  port, with the same period, watchdog and ramp as on the Arduino:
+ *
+ *    gcc -I.. ../control.c simserial.c -o simserial
+ *    ./simserial -p          opens a pseudo-terminal and prints its name,
+ *                            for bandwidth.py, commtest.py or speed-test.sh
+ *    ./simserial < commands  reads commands from a file or a pipe
+ *
+ *  Pass -v to print the motor commands each period.  Statistics are
+ *  printed when the input ends, or on ^C.
+ */
+#define _XOPEN_SOURCE 600
+#define _DEFAULT_SOURCE
+
+#include <fcntl.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/select.h>
+#include <termios.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "control.h"
+
+static volatile sig_atomic_t running = 1;
+
+static void stop(int sig) {
+  running = 0;
+}
+
+static unsigned long long now_us(void) {
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return (unsigned long long) t.tv_sec * 1000000 + t.tv_nsec / 1000;
+}
+
+static int open_pty(void) {
+  struct termios raw;
+  int fd = posix_openpt(O_RDWR | O_NOCTTY);
+  if (fd < 0 || grantpt(fd) < 0 || unlockpt(fd) < 0) {
+    perror("posix_openpt");
+    exit(1);
+  }
+  tcgetattr(fd, &raw);
+  cfmakeraw(&raw);
+  tcsetattr(fd, TCSANOW, &raw);
+  printf("Simulated serial port: %s\n", ptsname(fd));
+  fflush(stdout);
+  return fd;
+}
+
+int main(int argc, char* argv[]) {
+  struct control c;
+  unsigned char buffer[4096];
+  unsigned long long start, next_tick, parse_ns = 0, bytes = 0, ticks = 0, late = 0;
+  int i, fd = 0, verbose = 0, pty = 0;
+
+  for (i = 1; i < argc; i++) {
+    if (strcmp(argv[i], "-v") == 0) {
+      verbose = 1;
+    } else if (strcmp(argv[i], "-p") == 0) {
+      pty = 1;
+    } else {
+      fprintf(stderr, "Usage: simserial [-p] [-v]\n");
+      return 1;
+    }
+  }
+  if (pty) {
+    fd = open_pty();
+  }
+  signal(SIGINT, stop);
+
+  start = now_us();
+  next_tick = start + CONTROL_PERIOD_US;
+  control_init(&c, 0);
+
+  while (running) {
+    unsigned long long now = now_us();
+    if (now >= next_tick) {
+      next_tick += CONTROL_PERIOD_US;
+      if (now >= next_tick) {
+        late++;
+        next_tick = now + CONTROL_PERIOD_US;
+      }
+      control_tick(&c, (now - start) / 1000, 1);
+      ticks++;
+      if (verbose) {
+        printf("%llu ms:", (now - start) / 1000);
+        for (i = 0; i < MOTOR_COUNT; i++) {
+          printf(" %d", c.current[i]);
+        }
+        printf("%s\n", c.timed_out ? " (timed out)" : "");
+      }
+      continue;
+    }
+
+    fd_set fds;
+    struct timeval wait;
+    FD_ZERO(&fds);
+    FD_SET(fd, &fds);
+    wait.tv_sec = 0;
+    wait.tv_usec = next_tick - now;
+    if (select(fd + 1, &fds, NULL, NULL, &wait) <= 0) {
+      continue;
+    }
+
+    ssize_t n = read(fd, buffer, sizeof(buffer));
+    if (n <= 0) {
+      /* A pseudo-terminal reads nothing until a client opens it. */
+      if (pty) {
+        usleep(CONTROL_PERIOD_US);
+        continue;
+      }
+      break;
+    }
+
+    unsigned long long t = now_us();
+    unsigned long now_ms = (t - start) / 1000;
+    for (i = 0; i < n; i++) {
+      control_feed(&c, buffer[i], now_ms);
+    }
+    parse_ns += (now_us() - t) * 1000;
+    bytes += n;
+  }
+
+  double seconds = (now_us() - start) / 1e6;
+  printf("%llu bytes, %lu commands, %lu bad, in %.3f seconds\n",
+         bytes, c.commands, c.bad_commands, seconds);
+  printf("%.1f commands per second, %.1f ns per byte parsed\n",
+         c.commands / seconds, bytes ? (double) parse_ns / bytes : 0.0);
+  printf("%llu periods, %llu late\n", ticks, late);
+  return 0;
+}
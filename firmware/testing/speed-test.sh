@@ -1,16 +1,17 @@
 #!/bin/bash
 
 if [ '' == "$1" ]; then
-    echo 'Usage: speed-test.sh [block device of Arduino]'
+    echo 'Usage: speed-test.sh [block device of Arduino] [-b]'
+    echo 'Use the pseudo-terminal of ./simserial -p to test without an Arduino.'
     exit
 fi
 
-if [ ! -e "parse-random" ]; then
+if [ ! -e "parse-random" -o "parse-random.c" -nt "parse-random" ]; then
     echo 'Compiling parse-random utility.'
     gcc parse-random.c -o parse-random
 fi
 
 echo 'Testing transfer speed using random ASCII data from urandom.'
-/usr/bin/time -f %e -o timing.dat cat /dev/urandom | ./parse-random > /dev/ttyUSB2
+/usr/bin/time -f %e -o timing.dat sh -c "cat /dev/urandom | ./parse-random $2 > $1"
 echo 'Motor commands per second:'
-echo 10 k 10000 `tail -1 timing.dat` / p | dc
\ No newline at end of file
+echo 10 k 10000 `tail -1 timing.dat` / p | dc
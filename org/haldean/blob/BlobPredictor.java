@@ -0,0 +1,146 @@
+package org.haldean.blob;
+
+/**
+ * A constant-velocity (alpha-beta) filter over blob locations. It
+ * smooths the noisy output of the Segmenter, predicts where the blob
+ * will be in the next frame so that only a window around that point
+ * has to be searched, and keeps a confidence value that rises on
+ * every match and decays on every miss.
+ *
+ * Locations use the same coordinates as Segmenter.segment.
+ */
+public class BlobPredictor {
+    /* Weight given to the measured position over the predicted one */
+    private static final double ALPHA = 0.5;
+    /* Weight given to the measured velocity over the predicted one */
+    private static final double BETA = 0.2;
+    /* Fraction of the remaining confidence gained on each match */
+    private static final double CONFIDENCE_GAIN = 0.3;
+    /* Multiplier applied to the confidence on each miss */
+    private static final double CONFIDENCE_DECAY = 0.6;
+    /* Below this confidence the track is dropped entirely */
+    private static final double MIN_CONFIDENCE = 0.05;
+
+    private double[] position;
+    private double[] velocity;
+    private long lastUpdate;
+    private double confidence;
+    private int misses;
+    private boolean tracking;
+
+    public BlobPredictor() {
+	position = new double[2];
+	velocity = new double[2];
+	reset();
+    }
+
+    /**
+     * Forget the current track.
+     */
+    public void reset() {
+	position[0] = position[1] = 0;
+	velocity[0] = velocity[1] = 0;
+	confidence = 0;
+	misses = 0;
+	tracking = false;
+    }
+
+    /**
+     * @return True if there is a track to predict from.
+     */
+    public boolean hasTrack() {
+	return tracking;
+    }
+
+    /**
+     * @return A value between 0 and 1 describing how much the current
+     * position estimate should be trusted.
+     */
+    public double getConfidence() {
+	return confidence;
+    }
+
+    /**
+     * @return The number of consecutive frames in which the blob was
+     * not found.
+     */
+    public int getMisses() {
+	return misses;
+    }
+
+    /**
+     * Predict the location of the blob at the given time.
+     *
+     * @param time The time of the frame, in milliseconds.
+     * @return The predicted location, rounded to the nearest pixel.
+     */
+    public int[] predict(long time) {
+	double dt = elapsed(time);
+	return new int[] {(int) Math.round(position[0] + velocity[0] * dt),
+			  (int) Math.round(position[1] + velocity[1] * dt)};
+    }
+
+    /**
+     * Correct the estimate with a new measurement.
+     *
+     * @param measured The location returned by the Segmenter.
+     * @param time The time of the frame, in milliseconds.
+     */
+    public void update(int[] measured, long time) {
+	if (!tracking) {
+	    position[0] = measured[0];
+	    position[1] = measured[1];
+	    velocity[0] = velocity[1] = 0;
+	    tracking = true;
+	} else {
+	    double dt = elapsed(time);
+	    for (int k=0; k<2; k++) {
+		double predicted = position[k] + velocity[k] * dt;
+		double residual = measured[k] - predicted;
+		position[k] = predicted + ALPHA * residual;
+		if (dt > 0)
+		    velocity[k] += BETA * residual / dt;
+	    }
+	}
+
+	lastUpdate = time;
+	misses = 0;
+	confidence += CONFIDENCE_GAIN * (1 - confidence);
+    }
+
+    /**
+     * Record a frame in which the blob was not found. The estimate
+     * coasts along its last velocity until the confidence runs out.
+     *
+     * @param time The time of the frame, in milliseconds.
+     */
+    public void miss(long time) {
+	if (!tracking) return;
+
+	double dt = elapsed(time);
+	position[0] += velocity[0] * dt;
+	position[1] += velocity[1] * dt;
+	lastUpdate = time;
+	misses++;
+	confidence *= CONFIDENCE_DECAY;
+
+	if (confidence < MIN_CONFIDENCE)
+	    reset();
+    }
+
+    /**
+     * Write the smoothed position into the supplied array.
+     *
+     * @param target Array of length at least 2.
+     */
+    public void getPosition(double[] target) {
+	target[0] = position[0];
+	target[1] = position[1];
+    }
+
+    /* Seconds since the last update */
+    private double elapsed(long time) {
+	if (!tracking) return 0;
+	return Math.max(0, time - lastUpdate) / 1000.0;
+    }
+}
@@ -8,6 +8,7 @@ public class Segmenter {
     private int[] targetColor;
     private int targetArea;
     private int threshold;
+    private double lastQuality;
 
     private static final int NO_LABEL = 0;
     private static final int EXPANSION_PASSES = 1;
@@ -26,7 +27,8 @@ public class Segmenter {
 
     public static Segmenter fromString(String str) {
     	String[] parts = str.split(";");
-    	int[] targetColor = new int[] {new Integer(parts[0]), new Integer(parts[1]), new Integer(parts[2])};
+    	/* parts[0] is the SEGMENT header written by toString */
+    	int[] targetColor = new int[] {new Integer(parts[1]), new Integer(parts[2]), new Integer(parts[3])};
     	int targetArea = new Integer(parts[4]);
     	int threshold = new Integer(parts[5]);
     	return new Segmenter(targetColor, targetArea, threshold);
@@ -34,7 +36,8 @@ public class Segmenter {
 
     public static Segmenter getSegmenterForPoint(Image input, int x, int y) {
 	Segmenter seg = new Segmenter(input.getPixel(x, y), 0, DEFAULT_THRESHOLD);
-	int[][] labels = seg.labelField(seg.getField(input)).labels;
+	int[] size = input.getSize();
+	int[][] labels = seg.labelField(seg.getField(input, 0, size[0], 0, size[1])).labels;
 	int area = 0, targetLabel = labels[x][y];
 
 	for (int i=0; i<labels.length; i++) {
@@ -47,19 +50,77 @@ public class Segmenter {
 	return seg;
     }
 
+    public int getTargetArea() {
+	return targetArea;
+    }
+
+    /**
+     * @return How closely the area of the last match agreed with the
+     * target area, between 0 and 1, or 0 if nothing matched.
+     */
+    public double getMatchQuality() {
+	return lastQuality;
+    }
+
     public int[] segment(Image input) {
-	int[] result = matchArea(labelField(getField(input)));
+	int[] size = input.getSize();
+	return segment(input, 0, size[0], 0, size[1], 0);
+    }
+
+    /**
+     * Segment only a square window of the image. The center uses the
+     * same coordinates as the location returned by segment, so the
+     * result of a previous segmentation can be passed straight back in.
+     *
+     * @return The location of the best match inside the window, or
+     * null if nothing inside the window matches.
+     */
+    public int[] segment(Image input, int[] center, int radius) {
+	return segment(input, center, radius, 0);
+    }
+
+    /**
+     * Segment a square window of the image, rejecting matches whose
+     * quality is below a threshold. A rejected match does not change
+     * the target area, so noise in the window cannot retrain it.
+     *
+     * @param minQuality The lowest acceptable quality; see getMatchQuality.
+     * @return The location of the match, or null if there is none good enough.
+     */
+    public int[] segment(Image input, int[] center, int radius, double minQuality) {
+	int[] size = input.getSize();
+	int iMin = Math.max(0, center[1] - radius);
+	int iMax = Math.min(size[0], center[1] + radius + 1);
+	int jMin = Math.max(0, center[0] - radius);
+	int jMax = Math.min(size[1], center[0] + radius + 1);
+
+	if (iMin >= iMax || jMin >= jMax) {
+	    lastQuality = 0;
+	    return null;
+	}
+	return segment(input, iMin, iMax, jMin, jMax, minQuality);
+    }
+
+    private int[] segment(Image input, int iMin, int iMax, int jMin, int jMax, double minQuality) {
+	int[] result = matchArea(labelField(getField(input, iMin, iMax, jMin, jMax)), minQuality);
+
+	/* Labels are relative to the window; shift back into image
+	 * coordinates. */
+	if (result != null) {
+	    result[0] += jMin;
+	    result[1] += iMin;
+	}
 	return result;
     }
     
-    private boolean[][] getField(Image input) {
-	int[] size = input.getSize();
+    private boolean[][] getField(Image input, int iMin, int iMax, int jMin, int jMax) {
+	int[] size = new int[] {iMax - iMin, jMax - jMin};
 	boolean[][] field = new boolean[size[0]][size[1]];
 	int norm;
 
 	for (int i=0; i<size[0]; i++) {
 	    for (int j=0; j<size[1]; j++) {
-		int[] pixel = input.getPixel(i, j);
+		int[] pixel = input.getPixel(i + iMin, j + jMin);
 
 		/* Find L1 norm of this pixel. */
 		norm = 0;
@@ -154,7 +215,7 @@ public class Segmenter {
 	return new LabelledMatches(areas.values(), labels);
     }
 
-    private int[] matchArea(LabelledMatches matches) {
+    private int[] matchArea(LabelledMatches matches, double minQuality) {
 	Area bestArea = null;
 	int bestAreaDifference = 0, areaDifference;
 
@@ -171,11 +232,17 @@ public class Segmenter {
 	    }
 	}
 
-	if (bestArea != null) {
+	if (bestArea == null) {
+	    lastQuality = 0;
+	    return null;
+	}
+	lastQuality = targetArea == 0 ? 1 :
+	    Math.max(0, 1 - (double) bestAreaDifference / targetArea);
+	if (lastQuality < minQuality) {
+	    return null;
+	} else {
 	    targetArea = bestArea.size;
 	    return new int[] {bestArea.x, bestArea.y};
-	} else {
-	    return null;
 	}
     }
 
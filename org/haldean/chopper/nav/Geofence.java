@@ -0,0 +1,431 @@
+package org.haldean.chopper.nav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Areas the chopper must stay inside of, and obstacles it must stay out
+ * of, indexed so that a position is checked against all of them in a few
+ * microseconds, often enough to run with every iteration of the PID loops.
+ *
+ * Zones are polygons with a floor and a ceiling, projected into a single
+ * LocalFrame centered on the fence.  A
+ * coarse grid over the fence lists the zones whose bounds overlap each
+ * cell, and each zone is cut into horizontal bands listing the edges that
+ * span them, so that a point-in-polygon test only looks at the few edges
+ * a ray from the point can cross.
+ *
+ * A Geofence is never changed once built; a new set of zones makes a new
+ * Geofence, so it may be shared between threads.  Uses no Android classes,
+ * so that it can be shared by the pilot, the server and JVM tests.
+ */
+public class Geofence {
+	/** Type of a zone the chopper must stay inside of */
+	public static final String KEEP_IN = "IN";
+	/** Type of a zone the chopper must stay out of */
+	public static final String KEEP_OUT = "OUT";
+
+	/** Smallest side of a cell of the grid, in meters */
+	public static final double CELL_SIZE = 20.0;
+	/** Most cells in the grid; larger fences get larger cells */
+	public static final int MAX_CELLS = 4096;
+	/** Most bands into which a zone is cut */
+	public static final int MAX_BANDS = 256;
+
+	private static final String TYPE = "FENCE";
+
+	private Zone[] mZones;
+	private Zone mFirstKeepIn;
+
+	/* The frame, centered on the fence */
+	private LocalFrame mFrame;
+
+	/* The grid, listing for each cell the zones that overlap it */
+	private double mMinX;
+	private double mMinY;
+	private double mCellSize;
+	private int mColumns;
+	private int mRows;
+	private int[] mCellStart;
+	private int[] mCellZones;
+
+	/**
+	 * A polygon with a floor and a ceiling that the chopper must stay
+	 * inside of, or out of.  Serialized as
+	 * FENCE!name!IN|OUT!floor!ceiling!lat!lon!lat!lon..., in meters and degrees.
+	 */
+	public static class Zone {
+		private String mName;
+		private boolean mKeepIn;
+		private double mFloor;
+		private double mCeiling;
+		private double[] mLats;
+		private double[] mLons;
+
+		/* Vertices in the fence's frame, and their bounds */
+		private double[] mX;
+		private double[] mY;
+		private double mMinX;
+		private double mMaxX;
+		private double mMinY;
+		private double mMaxY;
+
+		/* Edges spanning each band; edge i runs from vertex i to the next */
+		private double mBandHeight;
+		private int[] mBandStart;
+		private int[] mBandEdges;
+
+		/**
+		 * @param name The name of the zone.  Must not contain '!', ':' or spaces.
+		 * @param keepIn true if the chopper must stay inside the zone, false if it must stay out.
+		 * @param floor The lowest altitude of the zone, in meters.
+		 * @param ceiling The highest altitude of the zone, in meters.
+		 * @param lats The latitudes of the vertices, in degrees.
+		 * @param lons The longitudes of the vertices, in degrees.
+		 */
+		public Zone(String name, boolean keepIn, double floor, double ceiling, double[] lats, double[] lons) {
+			if (lats.length != lons.length || lats.length < 3) {
+				throw new IllegalArgumentException("A zone needs at least three vertices");
+			}
+			if (floor > ceiling) {
+				throw new IllegalArgumentException("The floor of a zone must not be above its ceiling");
+			}
+			mName = name;
+			mKeepIn = keepIn;
+			mFloor = floor;
+			mCeiling = ceiling;
+			mLats = lats.clone();
+			mLons = lons.clone();
+		}
+
+		public static Zone fromString(String str) {
+			String[] params = str.split("!");
+			if (params.length < 11 || !params[0].equals(TYPE)) {
+				throw new IllegalArgumentException("Not a zone: " + str);
+			}
+			boolean keepIn;
+			if (params[2].equals(KEEP_IN)) {
+				keepIn = true;
+			}
+			else if (params[2].equals(KEEP_OUT)) {
+				keepIn = false;
+			}
+			else {
+				throw new IllegalArgumentException("Unknown zone type " + params[2]);
+			}
+			int vertices = (params.length - 5) / 2;
+			double[] lats = new double[vertices];
+			double[] lons = new double[vertices];
+			for (int i = 0; i < vertices; i++) {
+				lats[i] = new Double(params[5 + 2 * i]);
+				lons[i] = new Double(params[6 + 2 * i]);
+			}
+			return new Zone(params[1], keepIn, new Double(params[3]), new Double(params[4]), lats, lons);
+		}
+
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(TYPE).append('!').append(mName).append('!').append(mKeepIn ? KEEP_IN : KEEP_OUT);
+			str.append('!').append(mFloor).append('!').append(mCeiling);
+			for (int i = 0; i < mLats.length; i++) {
+				str.append('!').append(mLats[i]).append('!').append(mLons[i]);
+			}
+			return str.toString();
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public boolean isKeepIn() {
+			return mKeepIn;
+		}
+
+		public double getFloor() {
+			return mFloor;
+		}
+
+		public double getCeiling() {
+			return mCeiling;
+		}
+
+		/* Projects the vertices into a fence's frame and cuts the zone into bands. */
+		private void compile(Geofence fence) {
+			int n = mLats.length;
+			mX = new double[n];
+			mY = new double[n];
+			mMinX = mMinY = Double.POSITIVE_INFINITY;
+			mMaxX = mMaxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				mX[i] = fence.mFrame.toEast(mLons[i]);
+				mY[i] = fence.mFrame.toNorth(mLats[i]);
+				mMinX = Math.min(mMinX, mX[i]);
+				mMaxX = Math.max(mMaxX, mX[i]);
+				mMinY = Math.min(mMinY, mY[i]);
+				mMaxY = Math.max(mMaxY, mY[i]);
+			}
+
+			int bands = Math.max(1, Math.min(n, MAX_BANDS));
+			mBandHeight = Math.max((mMaxY - mMinY) / bands, Double.MIN_VALUE);
+			mBandStart = new int[bands + 1];
+			// Count the edges in each band, then fill them in.
+			for (int pass = 0; pass < 2; pass++) {
+				int[] fill = null;
+				if (pass == 1) {
+					for (int b = 0; b < bands; b++) {
+						mBandStart[b + 1] += mBandStart[b];
+					}
+					mBandEdges = new int[mBandStart[bands]];
+					fill = mBandStart.clone();
+				}
+				for (int i = 0; i < n; i++) {
+					int j = (i + 1) % n;
+					int first = band(Math.min(mY[i], mY[j]));
+					int last = band(Math.max(mY[i], mY[j]));
+					for (int b = first; b <= last; b++) {
+						if (pass == 0) {
+							mBandStart[b + 1]++;
+						}
+						else {
+							mBandEdges[fill[b]++] = i;
+						}
+					}
+				}
+			}
+		}
+
+		private int band(double y) {
+			int b = (int) ((y - mMinY) / mBandHeight);
+			return Math.max(0, Math.min(mBandStart.length - 2, b));
+		}
+
+		/* Counts the edges crossed by a ray east from the point; odd is inside. */
+		private boolean contains(double x, double y, double alt) {
+			if (alt < mFloor || alt > mCeiling || x < mMinX || x > mMaxX || y < mMinY || y > mMaxY) {
+				return false;
+			}
+			boolean inside = false;
+			int b = band(y);
+			int n = mX.length;
+			for (int k = mBandStart[b]; k < mBandStart[b + 1]; k++) {
+				int i = mBandEdges[k];
+				int j = (i + 1 == n) ? 0 : i + 1;
+				if ((mY[i] > y) != (mY[j] > y) &&
+						x < mX[i] + (mX[j] - mX[i]) * (y - mY[i]) / (mY[j] - mY[i])) {
+					inside = !inside;
+				}
+			}
+			return inside;
+		}
+	}
+
+	/**
+	 * Builds a fence.
+	 * @param zones The zones; may be empty, in which case nothing is ever breached.
+	 */
+	public Geofence(List<Zone> zones) {
+		// Copied, since each is compiled into this fence's frame.
+		mZones = new Zone[zones.size()];
+		for (int z = 0; z < mZones.length; z++) {
+			Zone zone = zones.get(z);
+			mZones[z] = new Zone(zone.mName, zone.mKeepIn, zone.mFloor, zone.mCeiling, zone.mLats, zone.mLons);
+		}
+		if (mZones.length == 0) {
+			return;
+		}
+
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for (Zone zone : mZones) {
+			for (int i = 0; i < zone.mLats.length; i++) {
+				minLat = Math.min(minLat, zone.mLats[i]);
+				maxLat = Math.max(maxLat, zone.mLats[i]);
+				minLon = Math.min(minLon, zone.mLons[i]);
+				maxLon = Math.max(maxLon, zone.mLons[i]);
+			}
+		}
+		mFrame = new LocalFrame((minLat + maxLat) / 2, (minLon + maxLon) / 2);
+
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		mMinX = mMinY = Double.POSITIVE_INFINITY;
+		for (Zone zone : mZones) {
+			zone.compile(this);
+			mMinX = Math.min(mMinX, zone.mMinX);
+			mMinY = Math.min(mMinY, zone.mMinY);
+			maxX = Math.max(maxX, zone.mMaxX);
+			maxY = Math.max(maxY, zone.mMaxY);
+			if (zone.mKeepIn && mFirstKeepIn == null) {
+				mFirstKeepIn = zone;
+			}
+		}
+
+		double width = maxX - mMinX;
+		double height = maxY - mMinY;
+		mCellSize = Math.max(CELL_SIZE, Math.sqrt(width * height / MAX_CELLS));
+		mColumns = (int) (width / mCellSize) + 1;
+		mRows = (int) (height / mCellSize) + 1;
+		while (mColumns * mRows > MAX_CELLS) {
+			// Long, thin fences
+			mCellSize *= 1.5;
+			mColumns = (int) (width / mCellSize) + 1;
+			mRows = (int) (height / mCellSize) + 1;
+		}
+
+		mCellStart = new int[mColumns * mRows + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int[] fill = null;
+			if (pass == 1) {
+				for (int c = 0; c < mColumns * mRows; c++) {
+					mCellStart[c + 1] += mCellStart[c];
+				}
+				mCellZones = new int[mCellStart[mColumns * mRows]];
+				fill = mCellStart.clone();
+			}
+			for (int z = 0; z < mZones.length; z++) {
+				Zone zone = mZones[z];
+				int firstColumn = column(zone.mMinX);
+				int lastColumn = column(zone.mMaxX);
+				int firstRow = row(zone.mMinY);
+				int lastRow = row(zone.mMaxY);
+				for (int r = firstRow; r <= lastRow; r++) {
+					for (int c = firstColumn; c <= lastColumn; c++) {
+						int cell = r * mColumns + c;
+						if (pass == 0) {
+							mCellStart[cell + 1]++;
+						}
+						else {
+							mCellZones[fill[cell]++] = z;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a fence from zones separated by spaces, as written by toString.
+	 * @param str The zones; empty for no fence.
+	 */
+	public static Geofence fromString(String str) {
+		ArrayList<Zone> zones = new ArrayList<Zone>();
+		for (String zone : str.trim().split(" +")) {
+			if (zone.length() > 0) {
+				zones.add(Zone.fromString(zone));
+			}
+		}
+		return new Geofence(zones);
+	}
+
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < mZones.length; i++) {
+			if (i > 0) {
+				str.append(' ');
+			}
+			str.append(mZones[i]);
+		}
+		return str.toString();
+	}
+
+	/** @return true if there are no zones, so that nothing is ever breached. */
+	public boolean isEmpty() {
+		return mZones.length == 0;
+	}
+
+	/** @return The number of zones. */
+	public int size() {
+		return mZones.length;
+	}
+
+	/** @return A zone. */
+	public Zone getZone(int zone) {
+		return mZones[zone];
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(mColumns - 1, (int) ((x - mMinX) / mCellSize)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(mRows - 1, (int) ((y - mMinY) / mCellSize)));
+	}
+
+	/**
+	 * Checks a position against the fence.
+	 * @param lat The latitude, in degrees.
+	 * @param lon The longitude, in degrees.
+	 * @param alt The altitude, in meters.
+	 * @return The zone breached at the position, or null if there is none.  Outside
+	 * of every zone to be kept inside of, the first of them is returned.
+	 */
+	public Zone check(double lat, double lon, double alt) {
+		if (mZones.length == 0) {
+			return null;
+		}
+		return checkLocal(mFrame.toEast(lon), mFrame.toNorth(lat), alt);
+	}
+
+	/**
+	 * Checks a position, and the positions the chopper will pass through if its
+	 * velocity holds, against the fence.
+	 * @param lat The latitude, in degrees.
+	 * @param lon The longitude, in degrees.
+	 * @param alt The altitude, in meters.
+	 * @param velocity The velocity east, north and up, in m/s.  Must be at least length 3.
+	 * @param seconds How far ahead to check, in seconds.
+	 * @param steps How many positions ahead to check, evenly spaced.
+	 * @return The first zone breached, or null if there is none.
+	 */
+	public Zone check(double lat, double lon, double alt, double[] velocity, double seconds, int steps) {
+		return check(lat, lon, alt, velocity, 0, seconds, steps);
+	}
+
+	/**
+	 * Checks where the chopper is now, given where it was a little while ago,
+	 * and the positions it will pass through if its velocity holds, against the fence.
+	 * @param lat The latitude at the last fix, in degrees.
+	 * @param lon The longitude at the last fix, in degrees.
+	 * @param alt The altitude at the last fix, in meters.
+	 * @param velocity The velocity east, north and up, in m/s.  Must be at least length 3.
+	 * @param since How long ago the fix was taken, in seconds.
+	 * @param seconds How far ahead of now to check, in seconds.
+	 * @param steps How many positions ahead to check, evenly spaced.
+	 * @return The first zone breached, or null if there is none.
+	 */
+	public Zone check(double lat, double lon, double alt, double[] velocity, double since, double seconds, int steps) {
+		if (mZones.length == 0) {
+			return null;
+		}
+		double x = mFrame.toEast(lon) + velocity[0] * since;
+		double y = mFrame.toNorth(lat) + velocity[1] * since;
+		alt += velocity[2] * since;
+		Zone breached = checkLocal(x, y, alt);
+		for (int i = 1; i <= steps && breached == null; i++) {
+			double t = seconds * i / steps;
+			breached = checkLocal(x + velocity[0] * t, y + velocity[1] * t, alt + velocity[2] * t);
+		}
+		return breached;
+	}
+
+	private Zone checkLocal(double x, double y, double alt) {
+		boolean keptIn = (mFirstKeepIn == null);
+		int column = (int) Math.floor((x - mMinX) / mCellSize);
+		int row = (int) Math.floor((y - mMinY) / mCellSize);
+		if (column >= 0 && column < mColumns && row >= 0 && row < mRows) {
+			int cell = row * mColumns + column;
+			for (int k = mCellStart[cell]; k < mCellStart[cell + 1]; k++) {
+				Zone zone = mZones[mCellZones[k]];
+				if (zone.contains(x, y, alt)) {
+					if (!zone.mKeepIn) {
+						return zone;
+					}
+					keptIn = true;
+				}
+			}
+		}
+		return keptIn ? null : mFirstKeepIn;
+	}
+}
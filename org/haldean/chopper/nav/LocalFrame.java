@@ -0,0 +1,81 @@
+package org.haldean.chopper.nav;
+
+/**
+ * A flat east-north frame centered on a point, in which positions are found
+ * by scaling the differences in latitude and longitude by the length of a
+ * degree near that point; over a few kilometers the error is far below that
+ * of the GPS.  Differences in longitude are taken the short way around the
+ * globe, so a frame may straddle the 180th meridian.
+ *
+ * Uses no Android classes, so that it can be shared by the pilot, the server and JVM tests.
+ */
+public class LocalFrame {
+	private double mLat;
+	private double mLon;
+	/* Meters per degree of latitude and longitude */
+	private double mPerLat;
+	private double mPerLon;
+
+	/**
+	 * @param lat The latitude of the center, in degrees.
+	 * @param lon The longitude of the center, in degrees.
+	 */
+	public LocalFrame(double lat, double lon) {
+		this(lat, lon, lat);
+	}
+
+	/**
+	 * @param lat The latitude of the center, in degrees.
+	 * @param lon The longitude of the center, in degrees.
+	 * @param scaleLat The latitude at which the length of a degree is taken, in degrees;
+	 * the middle of the area the frame covers is the most accurate.
+	 */
+	public LocalFrame(double lat, double lon, double scaleLat) {
+		mLat = lat;
+		mLon = lon;
+		mPerLat = metersPerDegreeLatitude(Math.toRadians(scaleLat));
+		mPerLon = metersPerDegreeLongitude(Math.toRadians(scaleLat));
+	}
+
+	/** The length of a degree of latitude on the WGS84 ellipsoid, in meters. */
+	public static double metersPerDegreeLatitude(double latRadians) {
+		return 111132.954 - 559.822 * Math.cos(2 * latRadians) + 1.175 * Math.cos(4 * latRadians);
+	}
+
+	/** The length of a degree of longitude on the WGS84 ellipsoid, in meters. */
+	public static double metersPerDegreeLongitude(double latRadians) {
+		return 111412.84 * Math.cos(latRadians) - 93.5 * Math.cos(3 * latRadians) +
+			0.118 * Math.cos(5 * latRadians);
+	}
+
+	/** @return An angle in degrees, brought between -180 and 180. */
+	public static double wrap(double degrees) {
+		while (degrees > 180) {
+			degrees -= 360;
+		}
+		while (degrees < -180) {
+			degrees += 360;
+		}
+		return degrees;
+	}
+
+	/** @return The distance east of the center of a longitude, in meters. */
+	public double toEast(double lon) {
+		return wrap(lon - mLon) * mPerLon;
+	}
+
+	/** @return The distance north of the center of a latitude, in meters. */
+	public double toNorth(double lat) {
+		return (lat - mLat) * mPerLat;
+	}
+
+	/** @return The longitude of a distance east of the center, in degrees. */
+	public double toLongitude(double east) {
+		return wrap(mLon + east / mPerLon);
+	}
+
+	/** @return The latitude of a distance north of the center, in degrees. */
+	public double toLatitude(double north) {
+		return mLat + north / mPerLat;
+	}
+}
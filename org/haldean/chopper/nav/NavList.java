@@ -1,6 +1,7 @@
 package org.haldean.chopper.nav;
 
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Stack;
 
@@ -104,6 +105,32 @@ public class NavList extends NavData {
         return mCurTask;
 	}
 	
+	/**
+	 * Collects the destinations to be flown in a row, starting with the
+	 * current task, through nested lists, up to the first task that is not a NavDest.
+	 * @param dests Receives the destinations, in order.
+	 */
+	public void getUpcomingDests(List<NavDest> dests) {
+		collectDests(this, dests);
+	}
+	
+	private static boolean collectDests(NavList list, List<NavDest> dests) {
+		for (NavData task : list.mList) {
+			if (task instanceof NavList) {
+				if (!collectDests((NavList) task, dests)) {
+					return false;
+				}
+			}
+			else if (task instanceof NavDest) {
+				dests.add((NavDest) task);
+			}
+			else {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public double getID() {
 		return mData[0];
 	}
@@ -0,0 +1,302 @@
+package org.haldean.chopper.nav;
+
+import java.util.List;
+
+/**
+ * A run of NavDests compiled into straight legs, so that following them
+ * costs a few multiplications per GPS fix.  Each leg has its own
+ * LocalFrame, scaled at the middle of the leg.
+ *
+ * Along a leg the speed follows a trapezoidal profile: it accelerates from
+ * the speed at which the last leg was left, cruises at the NavDest's
+ * velocity, and slows for the turn onto the next leg, or to a stop at the
+ * last destination.  A leg is left before its destination, by the distance
+ * needed to turn onto the next at that speed, and the chopper is steered
+ * back onto the leg in proportion to its distance from it.
+ *
+ * Uses no Android classes, so that it can be shared by the pilot and JVM tests.
+ */
+public class NavPlan {
+	/** Horizontal acceleration planned for, in m/s^2 */
+	public static final double ACCELERATION = 0.5;
+	/** Lateral acceleration allowed in turns, in m/s^2 */
+	public static final double TURN_ACCELERATION = 1.0;
+	/** Turns sharper than this, in degrees, are taken from a stop */
+	public static final double MAX_TURN = 120.0;
+	/** Velocity toward the leg per meter off it, in 1/s */
+	public static final double CROSS_TRACK_GAIN = 0.3;
+	/** Vertical velocity per meter off the leg's altitude, in 1/s */
+	public static final double ALTITUDE_GAIN = 0.5;
+	/** Slowest speed along a leg, so that its end is always reached, in m/s */
+	public static final double MIN_SPEED = 0.2;
+
+	/* Legs shorter than this, in meters, are flown straight up or down */
+	private static final double MIN_LENGTH = 0.01;
+
+	private Leg[] mLegs;
+	private int mCurrent = 0;
+
+	/* Where the last position fell on the current leg */
+	private double mEast;
+	private double mNorth;
+	private double mAlong;
+	private double mCross;
+	private double mAltError;
+	private double mFraction;
+
+	private static class Leg {
+		NavDest dest;
+		/* Centered on the start of the leg */
+		LocalFrame frame;
+		double alt;
+		double endAlt;
+		/* Unit vector along the leg */
+		double east;
+		double north;
+		double length;
+		double bearing;
+		double cruise;
+		double entrySpeed;
+		double exitSpeed;
+		/* Distance before the destination at which the leg is left */
+		double lead;
+		boolean last;
+	}
+
+	/**
+	 * Compiles a plan.
+	 * @param lat The latitude at which the first leg starts, in degrees.
+	 * @param lon The longitude at which the first leg starts, in degrees.
+	 * @param alt The altitude at which the first leg starts, in meters.
+	 * @param speed The horizontal speed at the start, in m/s.
+	 * @param dests The destinations, in order.  Must not be empty.
+	 */
+	public NavPlan(double lat, double lon, double alt, double speed, List<NavDest> dests) {
+		if (dests.isEmpty()) {
+			throw new IllegalArgumentException("A plan needs at least one destination");
+		}
+		mLegs = new Leg[dests.size()];
+		for (int i = 0; i < mLegs.length; i++) {
+			NavDest dest = dests.get(i);
+			Leg leg = new Leg();
+			leg.dest = dest;
+			leg.frame = new LocalFrame(lat, lon, (lat + dest.getLatitude()) / 2);
+			leg.alt = alt;
+			leg.endAlt = dest.getAltitude();
+
+			double east = leg.frame.toEast(dest.getLongitude());
+			double north = leg.frame.toNorth(dest.getLatitude());
+			leg.length = Math.sqrt(east * east + north * north);
+			if (leg.length >= MIN_LENGTH) {
+				leg.east = east / leg.length;
+				leg.north = north / leg.length;
+				leg.bearing = Math.toDegrees(Math.atan2(east, north));
+			}
+			else if (i > 0) {
+				leg.bearing = mLegs[i - 1].bearing;
+			}
+			leg.cruise = Math.abs(dest.getVelocity());
+			leg.last = (i == mLegs.length - 1);
+			mLegs[i] = leg;
+
+			lat = dest.getLatitude();
+			lon = dest.getLongitude();
+			alt = dest.getAltitude();
+		}
+
+		// Backwards, so that each leg is left slowly enough to make the
+		// turn onto the next, and to slow down on the next for the one after.
+		for (int i = mLegs.length - 2; i >= 0; i--) {
+			Leg leg = mLegs[i];
+			Leg next = mLegs[i + 1];
+			double exit = Math.min(leg.cruise, next.cruise);
+			exit = Math.min(exit, Math.sqrt(next.exitSpeed * next.exitSpeed +
+					2 * ACCELERATION * Math.max(0, next.length - next.lead)));
+
+			double turn = 0;
+			if (leg.length >= MIN_LENGTH && next.length >= MIN_LENGTH) {
+				double cos = leg.east * next.east + leg.north * next.north;
+				turn = Math.acos(Math.max(-1, Math.min(1, cos)));
+			}
+			else {
+				exit = 0;
+			}
+			if (turn > Math.toRadians(MAX_TURN)) {
+				exit = 0;
+			}
+			else if (turn > 0) {
+				// A turn of radius v^2 / a starts tan(turn / 2) of a radius before the corner.
+				double tangent = Math.tan(turn / 2);
+				double room = Math.min(leg.length, next.length) / 2;
+				exit = Math.min(exit, Math.sqrt(TURN_ACCELERATION * room / tangent));
+				leg.lead = exit * exit / TURN_ACCELERATION * tangent;
+			}
+			leg.exitSpeed = exit;
+		}
+		mLegs[0].entrySpeed = Math.min(Math.abs(speed), mLegs[0].cruise);
+		for (int i = 1; i < mLegs.length; i++) {
+			mLegs[i].entrySpeed = mLegs[i - 1].exitSpeed;
+		}
+	}
+
+	/** @return The number of legs. */
+	public int size() {
+		return mLegs.length;
+	}
+
+	/** @return The index of the leg being flown. */
+	public int getCurrentLeg() {
+		return mCurrent;
+	}
+
+	/** @return The destination at the end of a leg. */
+	public NavDest getDest(int leg) {
+		return mLegs[leg].dest;
+	}
+
+	/**
+	 * Moves on to the leg ending at a destination, if it is the current leg or a later one.
+	 * @param dest The destination.
+	 * @return true if the plan now flies to dest, false if dest is not ahead in the plan.
+	 */
+	public boolean select(NavDest dest) {
+		for (int i = mCurrent; i < mLegs.length; i++) {
+			if (mLegs[i].dest == dest) {
+				mCurrent = i;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Finds where a position falls on the current leg. */
+	private Leg project(double lat, double lon, double alt) {
+		Leg leg = mLegs[mCurrent];
+		mEast = leg.frame.toEast(lon);
+		mNorth = leg.frame.toNorth(lat);
+		mAlong = mEast * leg.east + mNorth * leg.north;
+		// Positive to the left of the leg
+		mCross = mNorth * leg.east - mEast * leg.north;
+		if (leg.length >= MIN_LENGTH) {
+			mFraction = Math.max(0, Math.min(1, mAlong / leg.length));
+		}
+		else {
+			mFraction = 1;
+		}
+		mAltError = leg.alt + (leg.endAlt - leg.alt) * mFraction - alt;
+		return leg;
+	}
+
+	/**
+	 * Checks whether the current leg is done with: the chopper is within the
+	 * destination's radius, or, unless it is the last leg, has reached the point
+	 * at which to turn onto the next.
+	 */
+	public boolean isComplete(double lat, double lon, double alt) {
+		Leg leg = project(lat, lon, alt);
+		double east = leg.length * leg.east - mEast;
+		double north = leg.length * leg.north - mNorth;
+		double vertical = leg.endAlt - alt;
+		double distance = Math.sqrt(east * east + north * north + vertical * vertical);
+		if (distance <= leg.dest.getRadius()) {
+			return true;
+		}
+		return !leg.last && leg.length >= MIN_LENGTH && leg.length - mAlong <= leg.lead;
+	}
+
+	/**
+	 * Calculates the velocity with which to fly the current leg.
+	 * @param target Receives the velocity east, north and up, in m/s, and the bearing
+	 * of the leg, in degrees.  Must be at least length 4.
+	 */
+	public void getVelocity(double lat, double lon, double alt, double[] target) {
+		Leg leg = project(lat, lon, alt);
+		double remaining = leg.length - mAlong;
+
+		double toExit = leg.last ? Math.abs(remaining) : Math.max(0, remaining - leg.lead);
+		double fromEntry = Math.max(0, mAlong);
+		double speed = Math.min(leg.cruise,
+				Math.sqrt(leg.exitSpeed * leg.exitSpeed + 2 * ACCELERATION * toExit));
+		speed = Math.min(speed, Math.sqrt(leg.entrySpeed * leg.entrySpeed + 2 * ACCELERATION * fromEntry));
+		speed = Math.max(speed, Math.min(leg.cruise, MIN_SPEED));
+		if (leg.last && remaining < 0) {
+			// Overshot the last destination; come back to it.
+			speed = -speed;
+		}
+
+		double east;
+		double north;
+		if (leg.length >= MIN_LENGTH) {
+			double correction = -CROSS_TRACK_GAIN * mCross;
+			correction = Math.max(-leg.cruise, Math.min(leg.cruise, correction));
+			east = speed * leg.east - correction * leg.north;
+			north = speed * leg.north + correction * leg.east;
+		}
+		else {
+			// Straight up or down; hold the position.
+			east = -CROSS_TRACK_GAIN * mEast;
+			north = -CROSS_TRACK_GAIN * mNorth;
+		}
+		double horizontal = Math.sqrt(east * east + north * north);
+		if (horizontal > leg.cruise && horizontal > 0) {
+			east *= leg.cruise / horizontal;
+			north *= leg.cruise / horizontal;
+		}
+
+		double up = ALTITUDE_GAIN * mAltError;
+		if (leg.length >= MIN_LENGTH && mFraction < 1) {
+			up += speed * (leg.endAlt - leg.alt) / leg.length;
+		}
+		up = Math.max(-leg.cruise, Math.min(leg.cruise, up));
+
+		target[0] = east;
+		target[1] = north;
+		target[2] = up;
+		target[3] = leg.bearing;
+	}
+
+	/**
+	 * Estimates the time to fly the plan from the start of its first leg, following
+	 * the speed profile and ignoring cross-track corrections, wind and the cut corners
+	 * of turns.  Legs flown straight up or down take their height at cruising speed.
+	 * @return The time, in seconds; infinite if a leg has no velocity.
+	 */
+	public double getDuration() {
+		double duration = 0;
+		for (Leg leg : mLegs) {
+			double v = leg.cruise;
+			if (v <= 0) {
+				return Double.POSITIVE_INFINITY;
+			}
+			if (leg.length < MIN_LENGTH) {
+				duration += Math.abs(leg.endAlt - leg.alt) / v;
+				continue;
+			}
+			double length = Math.max(0, leg.length - leg.lead);
+			double u = leg.entrySpeed;
+			double w = leg.exitSpeed;
+			double speedingUp = (v * v - u * u) / (2 * ACCELERATION);
+			double slowingDown = (v * v - w * w) / (2 * ACCELERATION);
+			if (speedingUp + slowingDown <= length) {
+				duration += (v - u) / ACCELERATION + (v - w) / ACCELERATION +
+					(length - speedingUp - slowingDown) / v;
+			}
+			else {
+				// Never reaches cruising speed
+				double peak = Math.sqrt((2 * ACCELERATION * length + u * u + w * w) / 2);
+				duration += (peak - u) / ACCELERATION + (peak - w) / ACCELERATION;
+			}
+		}
+		return duration;
+	}
+
+	/** @return The distance from the current leg at the last position, in meters; positive to its left. */
+	public double getCrossTrack() {
+		return mCross;
+	}
+
+	/** @return The distance left along the current leg at the last position, in meters. */
+	public double getRemaining() {
+		return mLegs[mCurrent].length - mAlong;
+	}
+}
@@ -2,24 +2,63 @@ package org.haldean.chopper.pilot;
 
 import android.util.Log;
 
+/**
+ * Turns the navigation target velocity into target roll and pitch angles.
+ * A PID loop on the velocity error, with a feed-forward term for the tilt
+ * needed to hold the target velocity against drag, runs in the chopper's
+ * own frame each time it is called.  The current velocity comes from a
+ * VelocityEstimator, so the loop may run faster than the GPS delivers fixes.
+ */
 public class AnglerImpl implements Constants, Angler {
 	private static final double LOW_SPEED_CUTOFF = .01;
 	
+	/** Degrees of tilt per m/s of velocity error */
+	public static final double VEL_P = 2.0;
+	/** Degrees of tilt per m of accumulated velocity error */
+	public static final double VEL_I = 0.3;
+	/** Degrees of tilt per m/s^2 of deceleration */
+	public static final double VEL_D = 0.5;
+	/** Degrees of tilt per m/s of target velocity */
+	public static final double VEL_FF = 2.0;
+	
+	/** Evaluations further apart than this, in ms, restart the loop */
+	public static final long MAX_INTERVAL = 2000;
+	
 	private Navigation mNav;
 	private ChopperStatus mStatus;
+	private VelocityEstimator mEstimator;
+	private Clock mClock = Clock.SYSTEM;
 	private double[] mNavTarget;
 	private double[] mRelativeTarget;
 	private double[] mCurrent;
 	
+	/** Velocity east and north, from the estimator */
+	private double[] mVelocity = new double[2];
+	
+	/** State of the loop, to the right and forward */
+	private double[] mPrevious = new double[2];
+	private double[] mIntegral = new double[2];
+	private double[] mTilt = new double[2];
+	private long mLastUpdate = 0;
+	
 	public AnglerImpl(ChopperStatus status, Navigation nav) {
 		mNav = nav;
 		mStatus = status;
+		mEstimator = new VelocityEstimator(status);
 		mCurrent = new double[4];
 		mNavTarget = new double[4];
 		mRelativeTarget = new double[4];
 		
 	}
 	
+	/**
+	 * Sets the clock against which the velocity loop is timed.
+	 * @param clock The new clock.
+	 */
+	public void setClock(Clock clock) {
+		mClock = clock;
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.haldean.chopper.pilot.Angler#getAngleTarget(double[])
 	 */
@@ -60,37 +99,41 @@ public class AnglerImpl implements Constants, Angler {
 			}
 		}
 		
-		// Calculate current relative velocity.
-		double mGpsBearing = mStatus.getGpsField(BEARING);
-		double phi = (mGpsBearing - mAzimuth) * Math.PI / 180.0;
+		long now = mClock.currentTimeMillis();
+		mEstimator.update(now, mVelocity);
+		long interval = now - mLastUpdate;
+		boolean restart = (mLastUpdate == 0) || (interval <= 0) || (interval > MAX_INTERVAL);
+		double dt = interval / 1000.0;
+		mLastUpdate = now;
 		
-		double mGpsSpeed = mStatus.getGpsField(SPEED);
-
-		mCurrent[0] = mGpsSpeed * Math.sin(phi);
-		mCurrent[1] = mGpsSpeed * Math.cos(phi);
+		// Transform current velocity components from absolute to relative.
+		mCurrent[0] = lowSpeedCutoff(mVelocity[0] * Math.cos(theta) - mVelocity[1] * Math.sin(theta));
+		mCurrent[1] = lowSpeedCutoff(mVelocity[0] * Math.sin(theta) + mVelocity[1] * Math.cos(theta));
 		mCurrent[2] = mStatus.getGpsField(dALT);
 		mCurrent[3] = mAzimuth;
 		
-		mCurrent[0] = lowSpeedCutoff(mCurrent[0]);
-		mCurrent[1] = lowSpeedCutoff(mCurrent[1]);
-		
 		logArray("mCurrent", mCurrent);
 		logArray("mRelativeTarget", mRelativeTarget);
 		
-		if (mCurrent[0] < mRelativeTarget[0]) {
-			target[0] += 1.0;
-		} else if (mCurrent[0] > mRelativeTarget[0]) {
-			target[0] -= 1.0;
-		}
-		
-		if (mCurrent[1] < mRelativeTarget[1]) {
-			target[1] += 1.0;
-		} else if (mCurrent[1] > mRelativeTarget[1]) {
-			target[1] -= 1.0;
+		// Roll corrects the velocity to the right, pitch the velocity forward.
+		for (int i = 0; i < 2; i++) {
+			double error = mRelativeTarget[i] - mCurrent[i];
+			double derivative = 0;
+			if (restart) {
+				mIntegral[i] = 0;
+			} else {
+				// On the velocity rather than the error, so that a new target does not kick the tilt.
+				derivative = (mPrevious[i] - mCurrent[i]) / dt;
+				// Stop accumulating while the tilt is at its limit and the error would push it further.
+				if (Math.abs(mTilt[i]) < MAX_ANGLE || error * mTilt[i] < 0) {
+					mIntegral[i] += error * dt;
+				}
+			}
+			mPrevious[i] = mCurrent[i];
+			mTilt[i] = restrainedTarget(VEL_FF * mRelativeTarget[i] + VEL_P * error +
+					VEL_I * mIntegral[i] + VEL_D * derivative);
+			target[i] = mTilt[i];
 		}
-		
-		target[0] = restrainedTarget(target[0]);
-		target[1] = restrainedTarget(target[1]);
 		target[2] = mRelativeTarget[2];
 		target[3] = mRelativeTarget[3];
 	}
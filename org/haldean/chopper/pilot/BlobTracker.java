@@ -1,41 +1,86 @@
 package org.haldean.chopper.pilot;
 
 import org.haldean.blob.AndroidImage;
+import org.haldean.blob.BlobPredictor;
 import org.haldean.blob.Image;
 import org.haldean.blob.Segmenter;
 
 public final class BlobTracker implements Runnable, Receivable {
     Image image;
-    Segmenter segmenter;
+    volatile Segmenter segmenter;
+    BlobPredictor predictor;
     int[] lastLocation;
     int[] lastVector;
+    int[] lastFrameSize;
+    double[] smoothed;
+    double confidence;
     MakePicture mPic;
     byte[] mBuffer;
-    boolean enabled;
+    volatile boolean enabled;
 
     private static final int TRACKING_PERIOD_MS = 200;
     private static final int DISABLED_PERIOD_MS = 1000;
     private static final int ASCEND_VELOCITY = 2;
+    /* Smallest half-width of the window searched around the prediction */
+    private static final int MIN_SEARCH_RADIUS = 16;
+    /* Half-width of the search window, in multiples of the blob radius */
+    private static final int SEARCH_RADIUS_FACTOR = 3;
+    /* Below this confidence the vector is replaced by an ascent */
+    private static final double MIN_CONFIDENCE = 0.25;
+    /* Matches in the search window of lower quality are taken for noise */
+    private static final double MIN_MATCH_QUALITY = 0.5;
 
     public BlobTracker(MakePicture pic) {
     	lastLocation = new int[2];
     	lastVector = new int[3];
+    	lastFrameSize = new int[2];
+    	smoothed = new double[2];
     	segmenter = null;
+    	predictor = new BlobPredictor();
     	image = new AndroidImage();
     	mPic = pic;
     	mBuffer = new byte[mPic.getBufferLength()];
     }
 
     public void receiveMessage(String msg, Receivable source) {
+    	/* Comm delivers it as IMAGE:SEGMENT;... */
+    	if (msg.startsWith("IMAGE:"))
+    	    msg = msg.substring("IMAGE:".length());
     	if (msg.startsWith("SEGMENT")) {
-	    segmenter = Segmenter.fromString(msg);
+	    /* The tracker thread uses the predictor under the same lock */
+	    synchronized (image) {
+		segmenter = Segmenter.fromString(msg);
+		predictor.reset();
+	    }
     	}
     }
 
     public int[] getVector() {
-    	
-    	int[] vector = new int[] { lastVector[0], lastVector[1], lastVector[2] };
-    	return vector;
+	synchronized (lastVector) {
+	    int[] vector = new int[] { lastVector[0], lastVector[1], lastVector[2] };
+	    return vector;
+	}
+    }
+
+    /**
+     * Writes the smoothed tracking vector, with the horizontal
+     * components scaled so that the edges of the frame are at +/-1.
+     * @param vector Array of length at least 3.
+     * @return The confidence in the vector, between 0 and 1.
+     */
+    public double getVector(double[] vector) {
+	synchronized (lastVector) {
+	    vector[0] = lastFrameSize[0] == 0 ? 0 : 2.0 * lastVector[0] / lastFrameSize[0];
+	    vector[1] = lastFrameSize[1] == 0 ? 0 : 2.0 * lastVector[1] / lastFrameSize[1];
+	    vector[2] = lastVector[2];
+	    return confidence;
+	}
+    }
+
+    public double getConfidence() {
+	synchronized (lastVector) {
+	    return confidence;
+	}
     }
 
     public void setEnabled(boolean enabled) {
@@ -43,22 +88,55 @@ public final class BlobTracker implements Runnable, Receivable {
     }
 
     private void calculateVector() {
+	Segmenter segmenter = this.segmenter;
 	if (segmenter == null || image == null) return;
 	synchronized (image) {
 	    int[] imageSize = image.getSize();
-	    lastLocation = segmenter.segment(image);
-	    
+	    long now = System.currentTimeMillis();
+
+	    /* Look near where the blob should be first; only segment
+	     * the whole frame if it isn't there, or what is there matches
+	     * too poorly to be the blob. */
+	    lastLocation = null;
+	    if (predictor.hasTrack()) {
+		lastLocation = segmenter.segment(image, predictor.predict(now),
+						 searchRadius(segmenter), MIN_MATCH_QUALITY);
+	    }
+	    if (lastLocation == null) {
+		lastLocation = segmenter.segment(image);
+	    }
+
 	    if (lastLocation != null) {
-		synchronized (lastVector) {
-		    lastVector[0] = lastLocation[0] - imageSize[0] / 2;
-		    lastVector[1] = lastLocation[1] - imageSize[1] / 2;
+		predictor.update(lastLocation, now);
+	    } else {
+		predictor.miss(now);
+	    }
+	    
+	    synchronized (lastVector) {
+		lastFrameSize[0] = imageSize[0];
+		lastFrameSize[1] = imageSize[1];
+		confidence = predictor.getConfidence();
+		if (confidence >= MIN_CONFIDENCE) {
+		    predictor.getPosition(smoothed);
+		    lastVector[0] = (int) Math.round(smoothed[0]) - imageSize[0] / 2;
+		    lastVector[1] = (int) Math.round(smoothed[1]) - imageSize[1] / 2;
 		    lastVector[2] = 0;
+		} else {
+		    lastVector[0] = 0;
+		    lastVector[1] = 0;
+		    lastVector[2] = ASCEND_VELOCITY;
 		}
-	    } else {
-		lastVector = new int[] { 0, 0, ASCEND_VELOCITY };
 	    }
 	}
     }
+
+    /** Half-width of the window searched around the predicted location.
+     *  Grows with the size of the blob and with each missed frame. */
+    private int searchRadius(Segmenter segmenter) {
+	int blobRadius = (int) Math.sqrt(segmenter.getTargetArea());
+	int radius = Math.max(MIN_SEARCH_RADIUS, SEARCH_RADIUS_FACTOR * blobRadius);
+	return radius * (1 + predictor.getMisses());
+    }
     
     public void run() {
 	while (true) {
@@ -1,20 +1,37 @@
 package org.haldean.chopper.pilot;
 
-import android.content.Intent;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import at.abraxas.amarino.Amarino;
-import at.abraxas.amarino.AmarinoIntent;
 import at.abraxas.amarino.AmarinoService;
+import at.abraxas.amarino.ArduinoListener;
+import at.abraxas.amarino.MessageBuilder;
 
 /**
- * Interfaces Pilot with Amarino
+ * Interfaces Pilot with Amarino.  Messages from the motor controller are
+ * delivered in process, from the first time speeds are sent, rather than
+ * broadcast to other apps.
+ * 
+ * May send the following messages to registered Receivables:<br>
+ * <pre>
+ * ARDUINO:&lt;message_from_motor_controller&gt;
+ * </pre>
  */
-public class BluetoothOutputImpl implements Constants, Runnable, BluetoothOutput {
+public class BluetoothOutputImpl implements Constants, Runnable, BluetoothOutput, ArduinoListener {
     static final String BT_DEVICE_ADDR = "00:06:66:04:B1:BE";
+    /* Motor flags, in the order speeds are sent */
+    static final char[] MOTOR_FLAGS = {'A', 'C', 'B', 'D'};
     public Handler mHandler;
     private AmarinoService amService;
+    /* Motor speeds, and the messages carrying them, reused for every update */
+    private final int[] mSpeeds = new int[4];
+    private final byte[] mMessage = new byte[MOTOR_FLAGS.length * (MessageBuilder.MAX_INT_LENGTH + 2)];
+    /** Registered receivers */
+    private final LinkedList<Receivable> mRec = new LinkedList<Receivable>();
     /* (non-Javadoc)
 	 * @see org.haldean.chopper.pilot.BluetoothOutput#run()
 	 */
@@ -41,6 +58,31 @@ public class BluetoothOutputImpl implements Constants, Runnable, BluetoothOutput
     	mHandler.sendMessage(msg);
     }
     
+    /**
+     * Registers a receiver to receive the motor controller's messages.
+     * @param rec
+     */
+    public void registerReceiver(Receivable rec) {
+    	synchronized (mRec) {
+    		mRec.add(rec);
+    	}
+    }
+    
+    /* (non-Javadoc)
+     * @see at.abraxas.amarino.ArduinoListener#dataReceived(java.lang.String, byte[], int, int)
+     */
+    public void dataReceived(String address, byte[] buffer, int offset, int length) {
+    	synchronized (mRec) {
+    		if (mRec.isEmpty())
+    			return;
+    		String msg = "ARDUINO:" + new String(buffer, offset, length);
+    		ListIterator<Receivable> myList = mRec.listIterator();
+    		while (myList.hasNext()) {
+    			myList.next().receiveMessage(msg, null);
+    		}
+    	}
+    }
+    
     /**
      * Send motor speeds to arduino.
      * @param m1 First motor's speed.
@@ -49,43 +91,22 @@ public class BluetoothOutputImpl implements Constants, Runnable, BluetoothOutput
      * @param m4 Fourth motor's speed.
      */
     private void setMotorSpeeds(double m1, double m2, double m3, double m4) {
-	sendDataToArduino(BT_DEVICE_ADDR, 'A', (int) (100 * m1));
-	sendDataToArduino(BT_DEVICE_ADDR, 'C', (int) (100 * m2));
-	sendDataToArduino(BT_DEVICE_ADDR, 'B', (int) (100 * m3));
-	sendDataToArduino(BT_DEVICE_ADDR, 'D', (int) (100 * m4));
-    }
-    
-    /**
-	 * Sends an int value to Arduino
-	 * 
-	 * @param context the context
-	 * @param address the Bluetooth device you want to send data to
-	 * @param flag the flag Arduino has registered a function for to receive this data
-	 * @param data your data you want to send
-	 */
-	private void sendDataToArduino(String address, char flag, int data) {
-		Intent intent = getSendIntent(address, AmarinoIntent.INT_EXTRA, flag);
-		intent.putExtra(AmarinoIntent.EXTRA_DATA, data);
-		amService = Amarino.getAmarinoService();
-		if (amService != null) {
-			amService.onStart(intent, 0); //Pretty sure that last 0 can be anything.
-		}
-		//else
-			//Log.e(TAG, "amarino service is null");
-	}
-	
-	/**
-	 * Form Intent to pass to AmarinoService
-	 * @param address Address of the arduino
-	 * @param dataType Add this as an "extra."
-	 * @param flag Which motor to change.
-	 * @return
-	 */
-    private static Intent getSendIntent(String address, int dataType, char flag){
-		Intent intent = new Intent(AmarinoIntent.ACTION_SEND);
-		intent.putExtra(AmarinoIntent.EXTRA_DEVICE_ADDRESS, address);
-		intent.putExtra(AmarinoIntent.EXTRA_DATA_TYPE, dataType);
-		intent.putExtra(AmarinoIntent.EXTRA_FLAG, flag);
-		return intent;
+	AmarinoService service = Amarino.getAmarinoService();
+	if (service == null)
+		return;
+	if (service != amService) {
+		// Only the newest speeds are worth sending.  They go as one piece, starting with the first flag
+		service.setLatestOnly(MOTOR_FLAGS[0], true);
+		if (amService != null)
+			amService.unregisterArduinoListener(this);
+		service.registerArduinoListener(this);
+		amService = service;
 	}
-}
\ No newline at end of file
+	mSpeeds[0] = (int) (100 * m1);
+	mSpeeds[1] = (int) (100 * m2);
+	mSpeeds[2] = (int) (100 * m3);
+	mSpeeds[3] = (int) (100 * m4);
+	int length = MessageBuilder.encode(mMessage, 0, MOTOR_FLAGS, mSpeeds);
+	service.sendData(BT_DEVICE_ADDR, mMessage, 0, length, true);
+    }
+}
@@ -83,17 +83,22 @@ public final class ChopperMain extends Activity implements Constants
         status = new ChopperStatusImpl(getApplicationContext());
         StatusReporter reporter = new StatusReporter(status);
         MakePicture pic = null;
+        BlobTracker tracker = null;
         if (telemetry) {
         	pic = new MakePicture(previewHolder);
+        	tracker = new BlobTracker(pic);
         }
         BluetoothOutputImpl mBTooth = new BluetoothOutputImpl();
         NavigationImpl nav = new NavigationImpl(status);
+        nav.setTracker(tracker);
         Angler angler = new AnglerImpl(status, nav);
         guid = new Guidance(status, mBTooth, angler);
+        guid.setNavigation(nav);
         
         if (telemetry) {
 	        comm.setTelemetrySource(pic);
 	        comm.registerReceiver(IMAGE, pic);
+	        comm.registerReceiver(IMAGE, tracker);
         }
         comm.registerReceiver(NAV, nav);
         comm.registerReceiver(CSYS, nav);
@@ -111,6 +116,7 @@ public final class ChopperMain extends Activity implements Constants
         	pic.registerReceiver(comm);
         }
         guid.registerReceiver(comm);
+        mBTooth.registerReceiver(comm);
         
         try {
 	        new Thread(mBTooth).start();
@@ -119,6 +125,7 @@ public final class ChopperMain extends Activity implements Constants
 	        new Thread(reporter).start();
 	        if (telemetry) {
 	        	new Thread(pic).start();
+	        	new Thread(tracker).start();
 	        }
 	        new Thread(guid).start();
         }
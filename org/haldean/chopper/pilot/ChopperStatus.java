@@ -5,7 +5,7 @@ import android.hardware.SensorEvent;
 import android.location.Location;
 import android.os.Bundle;
 
-public interface ChopperStatus {
+public interface ChopperStatus extends SensorSource {
 
 	/** Point of "officially" low battery */
 	public final static int LOW_BATT = 30;
@@ -26,13 +26,6 @@ public interface ChopperStatus {
 	 */
 	public String getGpsExtras();
 
-	/**
-	 * Returns the value stored at the specified GPS index.  If its lock is unavailable, blocks until it is.
-	 * @param whichField The index of the desired GPS data.
-	 * @return The desired GPS data.
-	 */
-	public double getGpsField(int whichField);
-
 	public long getGpsTimeStamp();
 
 	/**
@@ -57,13 +50,6 @@ public interface ChopperStatus {
 	 */
 	public void run();
 
-	/**
-	 * Returns the reading specified by the supplied index, if its lock is available.  Otherwise, throws an exception.
-	 * @param whichField The index of the desired reading.
-	 * @return The desired reading.
-	 */
-	public double getReadingField(int whichField);
-
 	/**
 	 * Registers a change in sensor accuracy.  Not used in this application.
 	 * @param sensor Sensor registering change in accuracy.
@@ -0,0 +1,21 @@
+package org.haldean.chopper.pilot;
+
+/**
+ * A source of time for the control loops.  On the chopper this is the
+ * system clock; the simulator substitutes a clock that only advances
+ * when it is stepped, so that flights are deterministic and can run
+ * faster than real time.
+ */
+public interface Clock {
+	/** The system clock. */
+	public static final Clock SYSTEM = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	/**
+	 * @return The current time, in milliseconds.
+	 */
+	public long currentTimeMillis();
+}
@@ -129,8 +129,11 @@ public interface Constants {
 	/** Nav status indicating surprise loss of connectivity */
 	public final static int NO_CONN = 2;
 	
+	/** Nav status indicating the chopper has left, or is about to leave, the geofence */
+	public final static int FENCE_BREACH = 3;
+	
 	/** Number of available Nav statuses. */
-	public final static int NAV_STATUSES = 3;
+	public final static int NAV_STATUSES = 4;
 	
 	
 	/* Server message categories */
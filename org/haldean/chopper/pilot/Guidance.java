@@ -27,6 +27,7 @@ import android.util.Log;
  *          SET:&lt;pid_loop_number&gt;:&lt;pid_parameter_index&gt;:&lt;pid_parameter_value&gt;
  *          GET
  *      AUTOPILOT
+ *      NAVRATE:&lt;evaluations_per_second&gt;
  *      VECTOR:&lt;north_motor_speed&gt;:&lt;south_motor_speed&gt;:&lt;east_motor_speed&gt;:&lt;west_motor_speed&gt;
  * 		LOCALVEC
  * 		ABSVEC
@@ -38,7 +39,10 @@ import android.util.Log;
 public class Guidance implements Runnable, Constants, Receivable {
 	
 	/** How many times per second the PID loop will run */
-	public static final int PIDREPS = 30;
+	public static final int PIDREPS = PidLoops.PIDREPS;
+	
+	/** How many times per second navigation and the velocity loop run, unless changed with setNavRate */
+	public static final int NAVREPS = 10;
 	
 	/** The maximum change in motor speed permitted at one time.  Must be positive. */
 	public static final double MAX_DMOTOR = .05;
@@ -46,8 +50,6 @@ public class Guidance implements Runnable, Constants, Receivable {
 	/** The maximum change in motor speed permitted at one time if the chopper is stabilizing.  Must be positive. */
 	public static final double MAX_DSTABLE = .1;
 	
-	public static final double MAX_AUTO_MOTOR = .67;
-	
 	/** Tag for logging */
 	public static final String TAG = new String("chopper.Guidance");
 	
@@ -56,10 +58,11 @@ public class Guidance implements Runnable, Constants, Receivable {
 	
 	private Angler mAngler;
 	
-	/** Stores orientation data persistently, as expected values in case lock is not immediately available*/
-	private double mAzimuth;
-	private double mPitchDeg;
-	private double mRollDeg;
+	/** Checked against its geofence with every iteration in autopilot; may be null */
+	private Navigation mNav;
+	
+	/** The PID loops themselves */
+	private PidLoops mLoops;
 	
 	/** Log file name **/
 	public static final String logname = "/sdcard/chopper/guidlog.txt";
@@ -76,28 +79,20 @@ public class Guidance implements Runnable, Constants, Receivable {
 	 * remain persistent from iteration to iteration. 
 	 */
 	
-	/** Stores current PID error */
-	private double[][] mErrors = new double[4][3];
-	
-	/** Manages integral error */
-	private int mIntegralIndex = 0;
-	private double[][] mIntegralErrors = new double[4][PIDREPS];
-	
-	/** Timestamp of last PID evaluation */
-	private long mLastUpdate = 0;
-	
+	/** Copy of the loops' outputs, for logging */
 	private double[] mControlVars = new double[4];
+	/** Receives the angle target from the Angler */
 	private double[] mAngleTarget = new double[4];
-	private long mLastGpsTimestamp;
+	
+	/** Time between evaluations of the angle target, in ms, and the time of the last */
+	private volatile long mNavPeriod = 1000 / NAVREPS;
+	private long mLastNavUpdate = 0;
 	private AtomicInteger mGuidanceMode = new AtomicInteger();
 	
 	private static final int DIRECT = 0;
 	private static final int MANUAL = 1;
 	private static final int AUTOPILOT = 2;
 	
-	/** Tuning parameters */
-	private double[][] mGain = new double[4][3];
-	
 	/** Motor speed */
 	private double[] mMotorSpeed = new double[4]; //ORDER: North, South, East, West
 	
@@ -108,6 +103,12 @@ public class Guidance implements Runnable, Constants, Receivable {
 	private ChopperStatus mStatus;
 	private BluetoothOutput mBt;
 	
+	/** Source of time for the PID loops */
+	private Clock mClock = Clock.SYSTEM;
+	
+	/** If true, the loops are stepped by the owner of mClock rather than by the handler */
+	private boolean mStepped = false;
+	
 	/** Flag for writing motor speeds to output file **/
 	public final static boolean mEnableLogging = true;
 	
@@ -123,21 +124,42 @@ public class Guidance implements Runnable, Constants, Receivable {
 		mRec = new LinkedList<Receivable>();
 		mBt = bT;
 		mAngler = angler;
+		mLoops = new PidLoops(status);
 		createHandler();  // Overridden at thread start.  Here for testing.
-		
-		//Temporary: need real tuning values at some point. Crap.
-		for (int i = 0; i < 3; i++)
-			mGain[i][0] = .01;
-		//mGain[3][0] = .01;
-				
-		try {
-			if (mEnableLogging)
-				logfile = new FileWriter(logname, false);
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-			Log.e(TAG, "Cannot open log file.");
+	}
+	
+	/**
+	 * Sets the clock used by the PID loops.  If the clock is not the system clock,
+	 * Guidance no longer schedules itself: messages are handled as they arrive,
+	 * and the owner of the clock must call step() once per iteration.
+	 * @param clock The new clock.
+	 */
+	public void setClock(Clock clock) {
+		mClock = clock;
+		mStepped = (clock != Clock.SYSTEM);
+	}
+	
+	/**
+	 * Sets the navigation whose geofence is checked with every iteration of the
+	 * PID loops in autopilot, so that a breach changes the angle target at once
+	 * rather than at the next evaluation of navigation.
+	 * @param nav The navigation; null to stop checking.
+	 */
+	public void setNavigation(Navigation nav) {
+		mNav = nav;
+	}
+	
+	/**
+	 * Sets how often the angle target is recalculated from the navigation
+	 * target in autopilot.  This is independent of the rate of GPS fixes, since
+	 * the Angler estimates the velocity between them.
+	 * @param hz Evaluations per second; at most PIDREPS.
+	 */
+	public void setNavRate(int hz) {
+		if (hz <= 0) {
+			throw new IllegalArgumentException("Navigation rate must be positive");
 		}
+		mNavPeriod = 1000 / Math.min(hz, PIDREPS);
 	}
 	
 	/**
@@ -145,10 +167,10 @@ public class Guidance implements Runnable, Constants, Receivable {
 	 * @return A string representing the error values.
 	 */
 	private String getErrorString() {
-		return "GUID:ERROR:" + mErrors[0][0]
-		               + ":" + mErrors[1][0]
-		               + ":" + mErrors[2][0]
-		               + ":" + mErrors[3][0];
+		return "GUID:ERROR:" + mLoops.getError(0)
+		               + ":" + mLoops.getError(1)
+		               + ":" + mLoops.getError(2)
+		               + ":" + mLoops.getError(3);
 	}
 	
 	/**
@@ -156,8 +178,10 @@ public class Guidance implements Runnable, Constants, Receivable {
 	 */
 	public void onDestroy() {
 		try {
-			if (logfile != null)
+			if (logfile != null) {
 				logfile.close();
+				logfile = null;
+			}
 		}
 		catch (IOException e) {
 			Log.e(TAG, "Cannot close logfile.");
@@ -169,13 +193,13 @@ public class Guidance implements Runnable, Constants, Receivable {
 			public void handleMessage(Message msg) {
 				switch (msg.what) {
 				case EVAL_MOTOR_SPEED:
-					reviseMotorSpeed();
-					//Log.d(TAG, getErrorString());
-					updateReceivers(getErrorString());
+					step();
+					break;
+				case EVAL_NAV:
+					updateAngleTarget();
 					break;
 				case NEW_PID_VALUE:
-					mGain[msg.arg1][msg.arg2] = (Double)msg.obj;
-					resetControlVars();
+					mLoops.setGain(msg.arg1, msg.arg2, (Double)msg.obj);
 					break;
 				case NEW_GUID_VECTOR:
 					Double[] mVector = (Double[])msg.obj;
@@ -192,7 +216,7 @@ public class Guidance implements Runnable, Constants, Receivable {
 						for (int j = 0; j < 3; j++) {
 							source.receiveMessage("GUID:PID:VALUE:" +
 												  i + ":" + j + ":" +
-												  mGain[i][j],
+												  mLoops.getGain(i, j),
 												  null);
 									
 						}
@@ -203,6 +227,31 @@ public class Guidance implements Runnable, Constants, Receivable {
 		};
 	}
 	
+	/**
+	 * Sends a message to the handler, or handles it immediately if stepped.
+	 */
+	private void dispatch(Message msg) {
+		if (mStepped) {
+			mHandler.handleMessage(msg);
+			msg.recycle();
+		} else {
+			msg.sendToTarget();
+		}
+	}
+	
+	/**
+	 * Starts the PID loops, unless they are stepped.
+	 */
+	private void startEvaluating() {
+		if (mStepped) {
+			return;
+		}
+		if (!mHandler.hasMessages(EVAL_MOTOR_SPEED))
+			mHandler.sendEmptyMessage(EVAL_MOTOR_SPEED);
+		if (mGuidanceMode.get() == AUTOPILOT && !mHandler.hasMessages(EVAL_NAV))
+			mHandler.sendEmptyMessage(EVAL_NAV);
+	}
+	
 	/**
 	 * Starts the guidance thread
 	 */
@@ -211,6 +260,17 @@ public class Guidance implements Runnable, Constants, Receivable {
 		Thread.currentThread().setName("Guidance");
 		Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
 		createHandler();
+		// Opened here rather than in the constructor, so that only the
+		// running Guidance, and not every one built by tests or the
+		// simulator, starts a new log.
+		try {
+			if (mEnableLogging)
+				logfile = new FileWriter(logname, false);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			Log.e(TAG, "Cannot open log file.");
+		}
 		//mHandler.sendEmptyMessage(EVAL_MOTOR_SPEED);
 		receiveMessage("DIRECT:0:0:0:0", null);
 		Looper.loop();
@@ -238,30 +298,38 @@ public class Guidance implements Runnable, Constants, Receivable {
 													  new Integer(parts[3]),
 													  new Integer(parts[4]), 
 													  new Double(parts[5]));
-					newValue.sendToTarget();
+					dispatch(newValue);
 				}
 				if (parts[2].equals("GET")) {
 					Message getPids = Message.obtain(mHandler, GET_PIDS, source);
-					getPids.sendToTarget();
+					dispatch(getPids);
+				}
+			}
+			if (parts[1].equals("NAVRATE")) {
+				// Also catches the NumberFormatException of a rate that is not a number.
+				try {
+					setNavRate(new Integer(parts.length > 2 ? parts[2] : ""));
+				} catch (IllegalArgumentException e) {
+					Log.e(TAG, "Ignoring invalid navigation rate: " + msg);
 				}
 			}
 			if (parts[1].equals("AUTOPILOT")) {
 				Log.v(TAG, "AUTOPILOT mode");
 				mGuidanceMode.set(AUTOPILOT);
 				mHandler.removeMessages(NEW_GUID_VECTOR);
-				if (!mHandler.hasMessages(EVAL_MOTOR_SPEED))
-					mHandler.sendEmptyMessage(EVAL_MOTOR_SPEED);
+				startEvaluating();
 			}
 			if (parts[1].equals("DIRECT")) {
 				Log.v(TAG, "direct mode");
 				mGuidanceMode.set(DIRECT);
 				mHandler.removeMessages(EVAL_MOTOR_SPEED);
+				mHandler.removeMessages(EVAL_NAV);
 				Double[] myVector = new Double[4];
 				for (int i = 0; i < 4; i++) {
 					myVector[i] = new Double(parts[i + 2]);
 				}
 				Message newValue = Message.obtain(mHandler, NEW_GUID_VECTOR, myVector);
-				newValue.sendToTarget();
+				dispatch(newValue);
 			}
 			if (parts[1].equals("MANUAL")) {
 				//autoPilot(false);
@@ -277,14 +345,12 @@ public class Guidance implements Runnable, Constants, Receivable {
 					newTarget[0] *= Angler.MAX_ANGLE;
 					newTarget[1] *= Angler.MAX_ANGLE;
 					// newTarget[2] *= 3.0;
-					synchronized (mAngleTarget) {
-						System.arraycopy(newTarget, 0, mAngleTarget, 0, 4);
-					}
+					mLoops.setTarget(newTarget);
 				}
 				mGuidanceMode.set(MANUAL);
 				mHandler.removeMessages(NEW_GUID_VECTOR);
-				if (!mHandler.hasMessages(EVAL_MOTOR_SPEED))
-					mHandler.sendEmptyMessage(EVAL_MOTOR_SPEED);
+				mHandler.removeMessages(EVAL_NAV);
+				startEvaluating();
 			}
 		}
 	}
@@ -299,102 +365,38 @@ public class Guidance implements Runnable, Constants, Receivable {
 		}
 	}
 	
-	private void resetControlVars() {
-		synchronized (mControlVars) {
-			for (int i = 0; i < 4; i++) {
-				mControlVars[i] = 0;
-			}
-		}
+	/**
+	 * Runs one iteration of the PID loops and reports the errors to receivers.
+	 */
+	public void step() {
+		reviseMotorSpeed();
+		//Log.d(TAG, getErrorString());
+		updateReceivers(getErrorString());
 	}
 	
 	/** Core of the class; calculates new motor speeds based on status */
 	public void reviseMotorSpeed() {
 		mHandler.removeMessages(EVAL_MOTOR_SPEED);
-		long starttime = System.currentTimeMillis();
-
-		//Retrieve current orientation.		
-		
-		mAzimuth = mStatus.getReadingField(AZIMUTH);		
-		mPitchDeg = mStatus.getReadingField(PITCH);
-		mRollDeg = -mStatus.getReadingField(ROLL);
-		
-		double[] errors = new double[4];
-		synchronized (mAngleTarget) {
-			//logArray("mAngleTarget", mAngleTarget);
-			errors[0] = mAngleTarget[0] - mRollDeg;
-			errors[1] = mAngleTarget[1] - mPitchDeg;
-			errors[2] = mAngleTarget[2] - mStatus.getGpsField(dALT);
-			errors[3] = mAngleTarget[3] - mAzimuth;
-			//logArray("errors", errors);
-		}
-		
-		@SuppressWarnings("unused")
-		String errs = "errors: ";
-		for (int i = 0; i < 4; i++) {
-			errs += errors[i] + ": ";
-		}
-		//Log.v(TAG, errs);
-		//For azimuth, multiple possibilities exist for error, each equally valid; but only the error nearest zero makes practical sense.
-		if (errors[3] > 180.0)
-			errors[3] -= 360.0;
-		if (errors[3] < -180.0)
-			errors[3] += 360.0;
-		
-		
-		for (int i = 0; i < 4; i++) {
-			//Calculate proportional errors
-			double err = errors[i];//mTarget[i] - mCurrent[i];
-			
-
-			//Calculate derivative errors.
-			long timeInterval = starttime - mLastUpdate;
-			if (timeInterval != 0) {
-				mErrors[i][2] = (err - mErrors[i][0]) * 1000.0 / timeInterval;
-			} else {
-				mErrors[i][2] = 0.0;
-			}
-			
-			
-			//Mark proportional error
-			mErrors[i][0] = err;
-			/*if (i == 2)
-				Log.v(TAG, "guid, dalt err is " + err);*/
-			//Update integral errors
-			mErrors[i][1] -= mIntegralErrors[i][mIntegralIndex];
-			mIntegralErrors[i][mIntegralIndex] = err;
-			mErrors[i][1] += err;
-			mIntegralIndex = ++mIntegralIndex % PIDREPS;
-			
-			//Calculate changes in output
-			for (int j = 0; j < 3; j++) {
-				mControlVars[i] += mErrors[i][j] * mGain[i][j];
-			}
-		}
-		if (mGuidanceMode.get() == MANUAL) {
-			synchronized (mAngleTarget) {
-				mControlVars[2] = mAngleTarget[2];
-			}
-		}
-		mLastUpdate = starttime;
-		
-		// Constrain control vars:
-		mControlVars[0] = constrainValue(mControlVars[0], -1, 1);
-		mControlVars[1] = constrainValue(mControlVars[1], -1, 1);
-		mControlVars[2] = constrainValue(mControlVars[2], 0, 1);
-		mControlVars[3] = constrainValue(mControlVars[3], -2, 2);
+		long starttime = mClock.currentTimeMillis();
 		
-		/*String vars = "Control vars: ";
-		for (int i = 0; i < 4; i++) {
-			vars += mControlVars[i] + ": ";
+		if (mNav != null && mGuidanceMode.get() == AUTOPILOT && mNav.checkFence()) {
+			updateAngleTarget();
 		}
-		Log.v(TAG, vars);*/
-		
-		controlVarsToMotorSpeeds();
+		mLoops.setDirectThrottle(mGuidanceMode.get() == MANUAL);
+		mLoops.step(starttime, mMotorSpeed);
+		mLoops.getControlVars(mControlVars);
+		logArray("controlVars", mControlVars);
+		logArray("motorSpeeds", mMotorSpeed);
 		
 		//Send motor values to motors here:
 		updateMotors();
-		updateAngleTarget();
+		if (mStepped && starttime - mLastNavUpdate >= mNavPeriod) {
+			updateAngleTarget();
+		}
 		//Log.v(TAG, "motors: " + mMotorSpeed[0] + ", " + mMotorSpeed[1] + ", " + mMotorSpeed[2] + ", " + mMotorSpeed[3]);
+		if (mStepped) {
+			return;
+		}
 		//Sleep a while
 		long timetonext = (1000 / PIDREPS) - (System.currentTimeMillis() - starttime);
 		//Log.v(TAG, "time to next: " + timetonext);
@@ -409,57 +411,29 @@ public class Guidance implements Runnable, Constants, Receivable {
 		}
 	}
 	
-	private void controlVarsToMotorSpeeds() {
-		logArray("controlVars", mControlVars);
-		double pitchrad = mPitchDeg * Math.PI / 180.0;
-		double rollrad = mRollDeg * Math.PI / 180.0;
-		double gradient = Math.sqrt(
-				Math.pow(Math.tan(rollrad), 2) +
-				Math.pow(Math.tan(pitchrad), 2)
-				);
-		double ascentRad = Math.atan(gradient);
-		
-		double cosGrad = Math.cos(ascentRad);
-		
-		double x = mControlVars[0];
-		double y = mControlVars[1];
-		double z;
-		if (cosGrad != 0) {
-			z = mControlVars[2] / cosGrad;
-		} else {
-			z = mControlVars[2]; // Chopper is vertical, we got other problems.
-		}
-		double t = mControlVars[3];
-		
-		mMotorSpeed[0] = Math.sqrt(constrainValue(t - 2*y + z, 0, MAX_AUTO_MOTOR));
-		mMotorSpeed[1] = Math.sqrt(constrainValue(t + 2*y + z, 0, MAX_AUTO_MOTOR));
-		mMotorSpeed[2] = Math.sqrt(constrainValue(-t - 2*x + z, 0, MAX_AUTO_MOTOR));
-		mMotorSpeed[3] = Math.sqrt(constrainValue(-t + 2*x + z, 0, MAX_AUTO_MOTOR));
-		logArray("motorSpeeds", mMotorSpeed);
-	}
-	
+	/**
+	 * Recalculates the angle target from the navigation target, and, unless
+	 * stepped, schedules the next evaluation mNavPeriod after this one.
+	 */
 	private void updateAngleTarget() {
+		mHandler.removeMessages(EVAL_NAV);
 		if (mGuidanceMode.get() != AUTOPILOT) {
 			return;
 		}
-		long currentGpsTimeStamp = mStatus.getGpsTimeStamp();
-		if (mLastGpsTimestamp == currentGpsTimeStamp) {
+		long starttime = mClock.currentTimeMillis();
+		mLastNavUpdate = starttime;
+		mAngler.getAngleTarget(mAngleTarget);
+		mLoops.setTarget(mAngleTarget);
+		if (mStepped) {
 			return;
 		}
-		mLastGpsTimestamp = currentGpsTimeStamp;
-		synchronized (mAngleTarget) {
-			mAngler.getAngleTarget(mAngleTarget);
-		}
-	}
-	
-	private static double constrainValue(double requested, double min, double max) {
-		if (requested > max) {
-			return max;
-		}
-		if (requested < min) {
-			return min;
+		long timetonext = mNavPeriod - (mClock.currentTimeMillis() - starttime);
+		if (timetonext > 0)
+			mHandler.sendEmptyMessageDelayed(EVAL_NAV, timetonext);
+		else {
+			Log.e(TAG, "Navigation too slow");
+			mHandler.sendEmptyMessage(EVAL_NAV);
 		}
-		return requested;
 	}
 	
 	/**
@@ -468,7 +442,7 @@ public class Guidance implements Runnable, Constants, Receivable {
 	private void updateMotors() {
 		//Pass filtered values to ChopperStatus.
 		mStatus.setMotorFields(mMotorSpeed);
-		String logline = Long.toString(System.currentTimeMillis()) + " " + mMotorSpeed[0] + " " + mMotorSpeed[1] + " " + mMotorSpeed[2] + " " + mMotorSpeed[3] + "\n";
+		String logline = Long.toString(mClock.currentTimeMillis()) + " " + mMotorSpeed[0] + " " + mMotorSpeed[1] + " " + mMotorSpeed[2] + " " + mMotorSpeed[3] + "\n";
 		try {
 			if (logfile != null) {
 				logfile.write(logline);
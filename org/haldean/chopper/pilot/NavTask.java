@@ -1,8 +1,11 @@
 package org.haldean.chopper.pilot;
 
+import java.util.ArrayList;
+
 import org.haldean.chopper.nav.NavData;
 import org.haldean.chopper.nav.NavDest;
 import org.haldean.chopper.nav.NavList;
+import org.haldean.chopper.nav.NavPlan;
 import org.haldean.chopper.nav.NavTrack;
 import org.haldean.chopper.nav.NavVel;
 
@@ -15,13 +18,38 @@ import android.util.Log;
  */
 public class NavTask {
 	private ChopperStatus myCs;
-	private Location currentLoc;
-	private Location destination;
+	/** Legs compiled from the destinations being flown; see planFor */
+	private NavPlan mPlan;
+	private ArrayList<NavDest> mDests = new ArrayList<NavDest>();
+	private BlobTracker mTracker;
+	/** The NavTrack for which the tracker is enabled, if any */
+	private NavTrack mTrack;
+	private double[] mTrackVector = new double[3];
+	private Clock mClock = Clock.SYSTEM;
 	public static final String TAG = "NavTask";
 	
+	/** Horizontal speed, in m/s, used when the tracked blob is at the edge of the frame */
+	static final double TRACK_VELOCITY = 1.0;
+	
 	public NavTask(ChopperStatus cs) {
 		myCs = cs;
 	}
+	
+	/**
+	 * Sets the blob tracker used to evaluate NavTracks.
+	 * @param tracker The tracker.  May be null, in which case NavTracks hold the last target.
+	 */
+	public void setTracker(BlobTracker tracker) {
+		mTracker = tracker;
+	}
+	/**
+	 * Sets the clock against which timed tasks are measured.
+	 * @param clock The new clock.
+	 */
+	public void setClock(Clock clock) {
+		mClock = clock;
+	}
+	
 	/**
 	 * Arbitrary value used by some NavTasks in deciding when next to evaluate the next navigation vector.
 	 * Smaller values mean more accurate navigation vectors at the expense of CPU time.
@@ -44,14 +72,14 @@ public class NavTask {
 			if (vel.getFirstCall() <= 0)
 				return (long) vel.getTime();
 			else
-				return (long) Math.max(NAVPAUSE, vel.getTime() - (System.currentTimeMillis() - vel.getFirstCall()));
+				return (long) Math.max(NAVPAUSE, vel.getTime() - (mClock.currentTimeMillis() - vel.getFirstCall()));
 		}
 		else if (nav instanceof NavTrack) {
 			NavTrack track = (NavTrack) nav;
 			if (track.getStartTime() <= 0)
 				return (long) track.getTrackTime();
 			else
-				return (long) Math.max(NAVPAUSE, track.getTrackTime() - (System.currentTimeMillis() - track.getStartTime()));
+				return (long) Math.max(NAVPAUSE, track.getTrackTime() - (mClock.currentTimeMillis() - track.getStartTime()));
 		}
 		return NAVPAUSE;
 	}
@@ -64,16 +92,20 @@ public class NavTask {
 		if (target.length < 4)
 			throw new IllegalArgumentException();
 		if (nav instanceof NavDest) {
+			stopTracking();
 			getDestTarg(nav, target);
 		}
 		else if (nav instanceof NavVel) {
+			stopTracking();
 			getVelTarg(nav, target);
 		}
 		else if (nav instanceof NavList) {
 			NavList lastList = (NavList) nav;
 			NavData curTask = lastList.getCurrentTask();
+			planAhead(lastList);
 			while (isComplete(curTask)) {
 				curTask = lastList.nextTask();
+				planAhead(lastList);
 			}
 			if (curTask != null) {
 				getVelocity(curTask, target);
@@ -92,24 +124,20 @@ public class NavTask {
 	 */
 	public boolean isComplete(NavData nav) {
 		if (nav instanceof NavDest) {
-			if (currentLoc == null | destination == null)
-				return false;
-			double horDistance = currentLoc.distanceTo(destination);
-			double verDistance = destination.getAltitude() - currentLoc.getAltitude();
-			double distance = Math.sqrt(Math.pow(horDistance, 2) +
-										Math.pow(verDistance, 2));
-			if (distance <= ((NavDest) nav).getRadius())
-				return true;
-			else
+			NavPlan plan = planFor((NavDest) nav, null);
+			if (plan == null)
 				return false;
+			return plan.isComplete(myCs.getGpsField(Constants.LAT),
+								   myCs.getGpsField(Constants.LONG),
+								   myCs.getGpsField(Constants.ALTITUDE));
 		}
 		else if (nav instanceof NavVel) {
 			NavVel vel = (NavVel) nav;
 			if ((vel.getFirstCall() > 0) && //The task has been called at least once
-					(System.currentTimeMillis() - vel.getFirstCall() >= vel.getTime())) {//the task has been running long enough
+					(mClock.currentTimeMillis() - vel.getFirstCall() >= vel.getTime())) {//the task has been running long enough
 				
 				System.out.println("Completing navVel");
-				System.out.println(System.currentTimeMillis());
+				System.out.println(mClock.currentTimeMillis());
 				System.out.println(vel.getFirstCall());
 				System.out.println(vel.getTime());
 				return true;
@@ -120,8 +148,10 @@ public class NavTask {
 		else if (nav instanceof NavList) {
 			NavList lastList = (NavList) nav;
 			NavData curTask = lastList.getCurrentTask();
+			planAhead(lastList);
 			while ((curTask != null) && (isComplete(curTask))) {
 				curTask = lastList.nextTask();
+				planAhead(lastList);
 			}
 			if (curTask == null)
 				return true;
@@ -130,8 +160,12 @@ public class NavTask {
 		}
 		else if (nav instanceof NavTrack) {
 			NavTrack track = (NavTrack) nav;
-			if (track.started() && (System.currentTimeMillis() - track.getStartTime() >= track.getTrackTime()))
+			if (track.started() && (mClock.currentTimeMillis() - track.getStartTime() >= track.getTrackTime())) {
+				if (track == mTrack) {
+					stopTracking();
+				}
 				return true;
+			}
 			else
 				return false;
 		}
@@ -143,11 +177,44 @@ public class NavTask {
 	 * @param nav The NavTrack
 	 * @param target Writes the velocity here.
 	 */
-    private void getTrackTarg(NavTrack nav, double[] target) {
-    	if (!nav.started()) {
-    		nav.start();
-    	}
-    }
+	private void getTrackTarg(NavTrack nav, double[] target) {
+		if (!nav.started()) {
+			nav.start();
+		}
+		if (mTracker == null) {
+			return;
+		}
+		if (mTrack != nav) {
+			mTrack = nav;
+			mTracker.setEnabled(true);
+		}
+		
+		// Horizontal components are scaled down as the tracker loses confidence;
+		// the vertical component is the tracker's ascent when it has lost the blob.
+		double confidence = mTracker.getVector(mTrackVector);
+		double right = mTrackVector[0] * confidence * TRACK_VELOCITY;
+		// Image y grows downward, and the camera faces down with the top of the frame forward.
+		double forward = -mTrackVector[1] * confidence * TRACK_VELOCITY;
+		
+		// Targets are absolute; undo the rotation AnglerImpl applies by the azimuth.
+		double azimuth = myCs.getReadingField(Constants.AZIMUTH);
+		double theta = azimuth * Math.PI / 180.0;
+		target[0] = right * Math.cos(theta) + forward * Math.sin(theta);
+		target[1] = forward * Math.cos(theta) - right * Math.sin(theta);
+		target[2] = mTrackVector[2];
+		target[3] = azimuth;
+	}
+	
+	/**
+	 * Turns the camera tracker off, if a NavTrack turned it on.  Called
+	 * whenever a task other than the NavTrack it was turned on for is flown.
+	 */
+	public void stopTracking() {
+		if (mTrack != null) {
+			mTrack = null;
+			mTracker.setEnabled(false);
+		}
+	}
 	
     /**
 	 * Get velocity target from a NavVel
@@ -158,7 +225,7 @@ public class NavTask {
 		NavVel vel = (NavVel) nav;
 		
 		if (vel.getFirstCall() <= 0) {
-			vel.setFirstCall(System.currentTimeMillis());
+			vel.setFirstCall(mClock.currentTimeMillis());
 		}
 		double[] velocity = vel.getVelocity();
 		
@@ -167,56 +234,63 @@ public class NavTask {
 		}
 	}
 	
+	/**
+	 * Compiles a plan for the destinations at the head of a list, unless the
+	 * current plan already flies to the first of them.
+	 * @param list The list.
+	 */
+	private void planAhead(NavList list) {
+		NavData task = list.getCurrentTask();
+		if (task instanceof NavDest) {
+			planFor((NavDest) task, list);
+		}
+	}
+	
+	/**
+	 * Finds the plan that flies to a destination, compiling a new one from the
+	 * current position if the current plan does not.
+	 * @param dest The destination.
+	 * @param list The list of which dest is the current task, or null.  A new plan
+	 * also flies to the destinations that follow dest in it.
+	 * @return The plan, or null if there is no GPS fix to start one from.
+	 */
+	private NavPlan planFor(NavDest dest, NavList list) {
+		if (mPlan != null && mPlan.select(dest)) {
+			return mPlan;
+		}
+		Location myLoc = myCs.getLastLocation();
+		if (myLoc == null) {
+			return null;
+		}
+		
+		mDests.clear();
+		if (list != null) {
+			list.getUpcomingDests(mDests);
+		}
+		if (mDests.isEmpty() || mDests.get(0) != dest) {
+			mDests.clear();
+			mDests.add(dest);
+		}
+		mPlan = new NavPlan(myLoc.getLatitude(), myLoc.getLongitude(), myLoc.getAltitude(),
+							myCs.getGpsField(Constants.SPEED), mDests);
+		Log.v(TAG, "Planned " + mPlan.size() + " legs");
+		return mPlan;
+	}
+	
 	/**
 	 * Get velocity target from a NavDest
 	 * @param nav The NavDest
 	 * @param target Writes the velocity here.
 	 */
 	private void getDestTarg(NavData nav, double[] target) {
-		NavDest lastDest = (NavDest) nav;
-		Location myLoc = myCs.getLastLocation();
-		if (myLoc == null) {
+		NavPlan plan = planFor((NavDest) nav, null);
+		if (plan == null) {
 			Log.w(TAG, "GPS Not Initialized");
 			return;
 		}
-		currentLoc = myLoc;
-		if (destination == null) {
-			destination = new Location(currentLoc);
-		}
-		
-		destination.setAltitude(lastDest.getAltitude());
-		destination.setLongitude(lastDest.getLongitude());
-		destination.setLatitude(lastDest.getLatitude());
-		
-		//Bearing, in degrees
-		double bearingDeg = currentLoc.bearingTo(destination);
-		double horDistance = currentLoc.distanceTo(destination);
-		double verDistance = destination.getAltitude() - currentLoc.getAltitude();
-		
-		//Establish vector
-		double bearingRad = bearingDeg / 180.0 * Math.PI;
-		target[0] = Math.sin(bearingRad);
-		target[1] = Math.cos(bearingRad);
-		if (horDistance != 0) {
-			target[2] = verDistance / horDistance;
-		} else {
-			target[2] = verDistance; 
-		}
-		
-		//Determine magnitude, "normalize" to myVelocity
-		double mag = Math.sqrt(Math.pow(target[0], 2) +
-								Math.pow(target[1], 2) +
-								Math.pow(target[2], 2));
-		double adjustment;
-		if (mag != 0) {
-			adjustment = lastDest.getVelocity() / mag;
-		} else {
-			adjustment = 0.0;
-		}
-		
-		for (int i = 0; i < 3; i++)
-			target[i] *= adjustment;
-		
-		target[3] = bearingDeg;
+		plan.getVelocity(myCs.getGpsField(Constants.LAT),
+						 myCs.getGpsField(Constants.LONG),
+						 myCs.getGpsField(Constants.ALTITUDE),
+						 target);
 	}
 }
@@ -15,6 +15,15 @@ public interface Navigation {
 	 */
 	public abstract void evalNextVector(double[] newNavTarget);
 
+	/**
+	 * Checks the chopper's position, and its course, against the geofence; on a
+	 * breach, switches to the flight plan for breaches.  Cheap enough to run with
+	 * every iteration of the PID loops.
+	 * @return true if the fence has just been breached, so that a new navigation
+	 * vector should be evaluated at once.
+	 */
+	public abstract boolean checkFence();
+
 	/**
 	 * Writes current navigation target vector into supplied
 	 * array.  If the data is locked, immediately returns with
@@ -5,6 +5,7 @@ import java.util.ListIterator;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.haldean.chopper.nav.Geofence;
 import org.haldean.chopper.nav.NavData;
 import org.haldean.chopper.nav.NavList;
 
@@ -16,6 +17,8 @@ import android.util.Log;
  * May send the following messages to registered Receivables:<br>
  * <pre>
  * NAV:AUTOTASK:&lt;travel_plan_index&gt;:&lt;serialized_NavTask&gt;
+ * NAV:GEOFENCE:&lt;serialized_Geofence&gt;
+ * NAV:BREACH:&lt;zone_name&gt;
  * </pre>
  * 
  * May receive the following messages from Chopper components:
@@ -26,7 +29,10 @@ import android.util.Log;
  *         AUTOPILOT
  *         AUTOTASK:&lt;travel_plan_index&gt;:&lt;serialized_NavTask&gt;
  *         FLIGHTPLAN:&lt;new_plan&gt;
- *     GET:AUTOTASKS
+ *         GEOFENCE:&lt;serialized_Geofence&gt;
+ *     GET:
+ *         AUTOTASKS
+ *         GEOFENCE
  * CSYS:
  *      NOCONN
  *      LOWPOWER
@@ -35,6 +41,11 @@ import android.util.Log;
  * @author Benjamin Bardin
  */
 public class NavigationImpl implements Constants, Receivable, Navigation {
+	/** How far ahead, in seconds, the chopper's course is checked against the geofence */
+	public static final double FENCE_LOOKAHEAD = 3.0;
+	
+	/** How many points along that course are checked */
+	public static final int FENCE_STEPS = 3;
 	
 	/** Velocity to achieve.  Must be locked on each read/write. */
 	private double[] mTarget = new double[4];
@@ -44,7 +55,7 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 	private double[] mTempTarget = new double[4];
 	
 	/** Chopper's navigation status */
-	private final AtomicInteger mNavStatus = new AtomicInteger(NAV_STATUSES - 1);
+	private final AtomicInteger mNavStatus = new AtomicInteger(NO_CONN);
 	
 	/** Holds all flight plans */
 	private Vector<NavData> mTravelPlans = new Vector<NavData>(); //Vector --> already thread-safe
@@ -53,6 +64,11 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 	private NavData mLowPower;
 	private NavData mFlightPath;
 	private NavData mOnMyOwn;
+	private NavData mFenced;
+	
+	/** Zones to stay inside of and out of; replaced whole when a new one arrives */
+	private volatile Geofence mFence = Geofence.fromString("");
+	private double[] mVelocity = new double[3];
 	
 	/** Handle for other chopper components */
 	private ChopperStatus mStatus;
@@ -62,6 +78,9 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 	
 	private NavTask mTask;
 	
+	/** Source of time for dead reckoning between GPS fixes */
+	private Clock mClock = Clock.SYSTEM;
+	
 	/**
 	 * Constructs a navigation object, initializes NavLists
 	 * @param status The ChopperStatusImpl from which to obtain location information. 
@@ -74,12 +93,14 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 		mLowPower = NavList.fromString("{ -1}");
 		mFlightPath = NavList.fromString("{ -2}");
 		mOnMyOwn = NavList.fromString("{ -3}");
+		mFenced = NavList.fromString("{ -4}");
 		
 		mTask = new NavTask(status);
 		
 		mTravelPlans.add(mLowPower);
 		mTravelPlans.add(mFlightPath);
 		mTravelPlans.add(mOnMyOwn);
+		mTravelPlans.add(mFenced);
 
 		mStatus = status;
 		
@@ -91,6 +112,8 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 		setTask(BASIC_AUTO, taskList);
 		setTask(NO_CONN, "{ VEL!No_Conn!0!0!-1!0!" + THREE_HRS_IN_MS + "!-1!-5 -6}");
 		setTask(LOW_POWER, "{ VEL!Low_Power!0!0!-1!0!"+ THREE_HRS_IN_MS + "!-1!-7 -8}");
+		setTask(FENCE_BREACH, "{ VEL!Fence_Hold!0!0!0!0!30000!-1!-9 VEL!Fence_Land!0!0!-1!0!" +
+				THREE_HRS_IN_MS + "!-1!-10 -11}");
 		//mNavStatus.set(BASIC_AUTO);
 		
 		
@@ -99,11 +122,27 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 	
 	
 	
+	/**
+	 * Sets the blob tracker that NavTracks follow.
+	 * @param tracker The tracker.
+	 */
+	public void setTracker(BlobTracker tracker) {
+		mTask.setTracker(tracker);
+	}
+	
+	/**
+	 * Sets the clock against which timed tasks are measured.
+	 * @param clock The new clock.
+	 */
+	public void setClock(Clock clock) {
+		mClock = clock;
+		mTask.setClock(clock);
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.haldean.chopper.pilot.Navigation#evalNextVector(double[])
 	 */
 	public void evalNextVector(double[] newNavTarget) {
-
 		/*Determine what the current task should be.  Copies to a local variable in case
 		 * 'status'	changes during execution of the method */
 		int thisStatus = mNavStatus.get();
@@ -113,6 +152,9 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 		if (mTask.isComplete(myList)) {
 			Log.i(TAG, "Nav is Hovering");
 			hover();
+			if (newNavTarget != null) {
+				getTarget(newNavTarget);
+			}
 			return;
 		}
 		mTask.getVelocity(myList, mTempTarget);
@@ -150,9 +192,41 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 		return myTasks;
 	}
 	
+	/**
+	 * Checks where the chopper is, dead reckoned from the last GPS fix, and
+	 * where it will be if it holds its course, against the geofence; on a
+	 * breach, switches to the FENCE_BREACH flight plan until told otherwise.
+	 * Running out of power takes precedence.
+	 * @see org.haldean.chopper.pilot.Navigation#checkFence()
+	 */
+	public boolean checkFence() {
+		Geofence fence = mFence;
+		int status = mNavStatus.get();
+		long fixTime = mStatus.getGpsTimeStamp();
+		if (fence.isEmpty() || status == LOW_POWER || status == FENCE_BREACH || fixTime == 0) {
+			return false;
+		}
+		// Dead reckoning further than the lookahead would guess more than it knows.
+		double since = (mClock.currentTimeMillis() - fixTime) / 1000.0;
+		since = Math.max(0, Math.min(FENCE_LOOKAHEAD, since));
+		double speed = mStatus.getGpsField(SPEED);
+		double bearing = Math.toRadians(mStatus.getGpsField(BEARING));
+		mVelocity[0] = speed * Math.sin(bearing);
+		mVelocity[1] = speed * Math.cos(bearing);
+		mVelocity[2] = mStatus.getGpsField(dALT);
+		Geofence.Zone breached = fence.check(mStatus.getGpsField(LAT), mStatus.getGpsField(LONG),
+				mStatus.getGpsField(ALTITUDE), mVelocity, since, FENCE_LOOKAHEAD, FENCE_STEPS);
+		if (breached == null || !mNavStatus.compareAndSet(status, FENCE_BREACH)) {
+			return false;
+		}
+		Log.w(TAG, "Nav breached geofence " + breached.getName());
+		updateReceivers("NAV:BREACH:" + breached.getName());
+		return true;
+	}
+	
 	/** Orders the chopper to remain in place */
 	private void hover() {
-		
+		mTask.stopTracking();
 		for (int i = 0; i < 3; i++) {
 			mTempTarget[i] = 0;
 		}
@@ -184,6 +258,9 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 				if (parts[2].equals("FLIGHTPLAN")) {
 					mNavStatus.set(new Integer(parts[3]));
 				}
+				if (parts[2].equals("GEOFENCE")) {
+					setFence(parts.length > 3 ? msg.split(":", 4)[3] : "");
+				}
 			}
 			if (parts[1].equals("GET")) {
 				if (parts[2].equals("AUTOTASKS")) {
@@ -194,6 +271,9 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 						}
 					}
 				}
+				if (parts[2].equals("GEOFENCE") && source != null) {
+					source.receiveMessage("NAV:GEOFENCE:" + mFence.toString(), this);
+				}
 			}
 		}
 		if (parts[0].equals("CSYS")) {
@@ -261,6 +341,27 @@ public class NavigationImpl implements Constants, Receivable, Navigation {
 		}
 	}
 	
+	/**
+	 * Replaces the geofence.
+	 * @param myFence The new zones, serialized; empty to remove the fence.
+	 */
+	private void setFence(String myFence) {
+		Geofence fence = null;
+		try {
+			fence = Geofence.fromString(myFence);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (fence != null) {
+			mFence = fence;
+			Log.i(TAG, "Nav set geofence of " + fence.size() + " zones");
+			updateReceivers("NAV:GEOFENCE:" + fence.toString());
+		}
+		else {
+			Log.e(TAG, "Nav received invalid geofence!");
+		}
+	}
+	
 	/**
 	 * Updates all receivers
 	 * @param str The message to send.
@@ -0,0 +1,226 @@
+package org.haldean.chopper.pilot;
+
+/**
+ * The four PID loops of Guidance, for roll, pitch, vertical speed and
+ * azimuth, and the mixing of their outputs into motor speeds.  Kept free
+ * of Android classes, and of threads, so that the simulator can fly the
+ * same loops on a desktop JVM; Guidance schedules them and handles messages.
+ *
+ * Not thread-safe, except for setTarget, which may be called from any thread.
+ */
+public class PidLoops implements Constants {
+
+	/** How many times per second the loops are meant to run; also the length of the integral window */
+	public static final int PIDREPS = 30;
+
+	/** Highest value of (motor speed)^2 in automatic modes */
+	public static final double MAX_AUTO_MOTOR = .67;
+
+	private SensorSource mStatus;
+
+	/** Stores orientation data persistently */
+	private double mAzimuth;
+	private double mPitchDeg;
+	private double mRollDeg;
+
+	/** Stores current PID error: proportional, integral and derivative, for each loop */
+	private double[][] mErrors = new double[4][3];
+
+	/** Manages integral error */
+	private int mIntegralIndex = 0;
+	private double[][] mIntegralErrors = new double[4][PIDREPS];
+
+	/** Timestamp of last evaluation */
+	private long mLastUpdate = 0;
+
+	private double[] mControlVars = new double[4];
+	private double[] mAngleTarget = new double[4];
+
+	/** If true, the vertical target is a throttle setting rather than a vertical speed */
+	private boolean mDirectThrottle = false;
+
+	/** Tuning parameters */
+	private double[][] mGain = new double[4][3];
+
+	/** Scratch space for step() */
+	private double[] mStepErrors = new double[4];
+
+	/**
+	 * @param status The source of orientation and vertical speed readings.
+	 */
+	public PidLoops(SensorSource status) {
+		if (status == null) {
+			throw new NullPointerException();
+		}
+		mStatus = status;
+
+		//Temporary: need real tuning values at some point. Crap.
+		for (int i = 0; i < 3; i++)
+			mGain[i][0] = .01;
+		//mGain[3][0] = .01;
+	}
+
+	/**
+	 * @param loop 0 to 3, for roll, pitch, vertical speed and azimuth.
+	 * @param term 0 to 2, for the proportional, integral and derivative gains.
+	 */
+	public double getGain(int loop, int term) {
+		return mGain[loop][term];
+	}
+
+	/**
+	 * Sets a gain, and restarts the outputs of the loops from zero.
+	 * @param loop 0 to 3, for roll, pitch, vertical speed and azimuth.
+	 * @param term 0 to 2, for the proportional, integral and derivative gains.
+	 * @param value The new gain.
+	 */
+	public void setGain(int loop, int term, double value) {
+		mGain[loop][term] = value;
+		resetControlVars();
+	}
+
+	/**
+	 * Sets the target of the loops.
+	 * @param target Roll and pitch in degrees, vertical speed in m/s (or a
+	 * throttle setting, see setDirectThrottle) and azimuth in degrees.
+	 */
+	public void setTarget(double[] target) {
+		synchronized (mAngleTarget) {
+			System.arraycopy(target, 0, mAngleTarget, 0, 4);
+		}
+	}
+
+	/**
+	 * @param direct If true, the vertical target of setTarget is used as a
+	 * throttle setting between 0 and 1, as in manual flight, instead of a
+	 * vertical speed.
+	 */
+	public void setDirectThrottle(boolean direct) {
+		mDirectThrottle = direct;
+	}
+
+	/**
+	 * @param loop 0 to 3, for roll, pitch, vertical speed and azimuth.
+	 * @return The proportional error of the loop at the last evaluation.
+	 */
+	public double getError(int loop) {
+		return mErrors[loop][0];
+	}
+
+	/**
+	 * @param values Receives the outputs of the four loops at the last evaluation.
+	 */
+	public void getControlVars(double[] values) {
+		System.arraycopy(mControlVars, 0, values, 0, 4);
+	}
+
+	public void resetControlVars() {
+		for (int i = 0; i < 4; i++) {
+			mControlVars[i] = 0;
+		}
+	}
+
+	/**
+	 * Runs one iteration of the loops.
+	 * @param now The current time, in ms.
+	 * @param motorSpeeds Receives the new North, South, East and West motor speeds.
+	 */
+	public void step(long now, double[] motorSpeeds) {
+		//Retrieve current orientation.
+		mAzimuth = mStatus.getReadingField(AZIMUTH);
+		mPitchDeg = mStatus.getReadingField(PITCH);
+		mRollDeg = -mStatus.getReadingField(ROLL);
+
+		double[] errors = mStepErrors;
+		synchronized (mAngleTarget) {
+			errors[0] = mAngleTarget[0] - mRollDeg;
+			errors[1] = mAngleTarget[1] - mPitchDeg;
+			errors[2] = mAngleTarget[2] - mStatus.getGpsField(dALT);
+			errors[3] = mAngleTarget[3] - mAzimuth;
+		}
+
+		//For azimuth, multiple possibilities exist for error, each equally valid; but only the error nearest zero makes practical sense.
+		if (errors[3] > 180.0)
+			errors[3] -= 360.0;
+		if (errors[3] < -180.0)
+			errors[3] += 360.0;
+
+		for (int i = 0; i < 4; i++) {
+			//Calculate proportional errors
+			double err = errors[i];
+
+			//Calculate derivative errors.
+			long timeInterval = now - mLastUpdate;
+			if (timeInterval != 0) {
+				mErrors[i][2] = (err - mErrors[i][0]) * 1000.0 / timeInterval;
+			} else {
+				mErrors[i][2] = 0.0;
+			}
+
+			//Mark proportional error
+			mErrors[i][0] = err;
+
+			//Update integral errors
+			mErrors[i][1] -= mIntegralErrors[i][mIntegralIndex];
+			mIntegralErrors[i][mIntegralIndex] = err;
+			mErrors[i][1] += err;
+			mIntegralIndex = ++mIntegralIndex % PIDREPS;
+
+			//Calculate changes in output
+			for (int j = 0; j < 3; j++) {
+				mControlVars[i] += mErrors[i][j] * mGain[i][j];
+			}
+		}
+		if (mDirectThrottle) {
+			synchronized (mAngleTarget) {
+				mControlVars[2] = mAngleTarget[2];
+			}
+		}
+		mLastUpdate = now;
+
+		// Constrain control vars:
+		mControlVars[0] = constrainValue(mControlVars[0], -1, 1);
+		mControlVars[1] = constrainValue(mControlVars[1], -1, 1);
+		mControlVars[2] = constrainValue(mControlVars[2], 0, 1);
+		mControlVars[3] = constrainValue(mControlVars[3], -2, 2);
+
+		controlVarsToMotorSpeeds(motorSpeeds);
+	}
+
+	private void controlVarsToMotorSpeeds(double[] motorSpeeds) {
+		double pitchrad = mPitchDeg * Math.PI / 180.0;
+		double rollrad = mRollDeg * Math.PI / 180.0;
+		double gradient = Math.sqrt(
+				Math.pow(Math.tan(rollrad), 2) +
+				Math.pow(Math.tan(pitchrad), 2)
+				);
+		double ascentRad = Math.atan(gradient);
+
+		double cosGrad = Math.cos(ascentRad);
+
+		double x = mControlVars[0];
+		double y = mControlVars[1];
+		double z;
+		if (cosGrad != 0) {
+			z = mControlVars[2] / cosGrad;
+		} else {
+			z = mControlVars[2]; // Chopper is vertical, we got other problems.
+		}
+		double t = mControlVars[3];
+
+		motorSpeeds[0] = Math.sqrt(constrainValue(t - 2*y + z, 0, MAX_AUTO_MOTOR));
+		motorSpeeds[1] = Math.sqrt(constrainValue(t + 2*y + z, 0, MAX_AUTO_MOTOR));
+		motorSpeeds[2] = Math.sqrt(constrainValue(-t - 2*x + z, 0, MAX_AUTO_MOTOR));
+		motorSpeeds[3] = Math.sqrt(constrainValue(-t + 2*x + z, 0, MAX_AUTO_MOTOR));
+	}
+
+	private static double constrainValue(double requested, double min, double max) {
+		if (requested > max) {
+			return max;
+		}
+		if (requested < min) {
+			return min;
+		}
+		return requested;
+	}
+}
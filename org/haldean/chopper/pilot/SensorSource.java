@@ -0,0 +1,23 @@
+package org.haldean.chopper.pilot;
+
+/**
+ * The readings the control loops need.  Kept free of Android classes so
+ * that the loops can also be flown by the simulator on a desktop JVM.
+ * @see org.haldean.chopper.sim.Simulator Simulator
+ */
+public interface SensorSource {
+
+	/**
+	 * Returns the value stored at the specified GPS index.  If its lock is unavailable, blocks until it is.
+	 * @param whichField The index of the desired GPS data.
+	 * @return The desired GPS data.
+	 */
+	public double getGpsField(int whichField);
+
+	/**
+	 * Returns the reading specified by the supplied index, if its lock is available.  Otherwise, throws an exception.
+	 * @param whichField The index of the desired reading.
+	 * @return The desired reading.
+	 */
+	public double getReadingField(int whichField);
+}
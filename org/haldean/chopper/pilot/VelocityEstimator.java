@@ -0,0 +1,83 @@
+package org.haldean.chopper.pilot;
+
+/**
+ * Estimates the chopper's horizontal velocity between GPS fixes.  The
+ * thrust of a chopper tilted by a roll or pitch angle accelerates it by
+ * g times the tangent of that angle, so the estimate is advanced from
+ * the orientation sensors on every call, and pulled toward the GPS
+ * velocity whenever there is a new fix.  Drag, wind and sensor bias
+ * show up as a steady difference from the GPS; it is learned as an
+ * acceleration bias, so that the estimate does not settle away from
+ * the GPS velocity while the chopper holds a tilt.
+ */
+public class VelocityEstimator implements Constants {
+	/** Fraction of the difference from a new GPS velocity taken at once */
+	public static final double GPS_WEIGHT = 0.5;
+
+	/** Fraction of the difference from a new GPS velocity, per second between fixes, added to the bias */
+	public static final double BIAS_WEIGHT = 0.1;
+
+	/** Longest step, in ms, over which the acceleration is integrated */
+	public static final long MAX_STEP = 500;
+
+	private static final double GRAVITY = 9.81;
+
+	private ChopperStatus mStatus;
+
+	/** Velocity east and north, in m/s */
+	private double[] mVelocity = new double[2];
+
+	/** Acceleration east and north not explained by the tilt, in m/s^2 */
+	private double[] mBias = new double[2];
+
+	private long mLastUpdate = 0;
+	private long mLastGpsTimeStamp = 0;
+
+	public VelocityEstimator(ChopperStatus status) {
+		mStatus = status;
+	}
+
+	/**
+	 * Advances the estimate.
+	 * @param now The current time, in ms.
+	 * @param velocity Receives the velocity east and north, in m/s.  Must be at least length 2.
+	 */
+	public void update(long now, double[] velocity) {
+		long dt = now - mLastUpdate;
+		if (mLastUpdate != 0 && dt > 0) {
+			double seconds = Math.min(dt, MAX_STEP) / 1000.0;
+			// Guidance reads roll with the opposite sign.
+			double right = GRAVITY * Math.tan(Math.toRadians(-mStatus.getReadingField(ROLL)));
+			double forward = GRAVITY * Math.tan(Math.toRadians(mStatus.getReadingField(PITCH)));
+			double azimuth = Math.toRadians(mStatus.getReadingField(AZIMUTH));
+			double sin = Math.sin(azimuth);
+			double cos = Math.cos(azimuth);
+			mVelocity[0] += (right * cos + forward * sin + mBias[0]) * seconds;
+			mVelocity[1] += (-right * sin + forward * cos + mBias[1]) * seconds;
+		}
+		mLastUpdate = now;
+
+		long gpsTimeStamp = mStatus.getGpsTimeStamp();
+		if (gpsTimeStamp != mLastGpsTimeStamp) {
+			double speed = mStatus.getGpsField(SPEED);
+			double bearing = Math.toRadians(mStatus.getGpsField(BEARING));
+			double east = speed * Math.sin(bearing) - mVelocity[0];
+			double north = speed * Math.cos(bearing) - mVelocity[1];
+			if (mLastGpsTimeStamp == 0) {
+				mVelocity[0] += east;
+				mVelocity[1] += north;
+			} else {
+				// Fixes closer together than MAX_STEP are treated as MAX_STEP apart, so that they cannot swing the bias.
+				double seconds = Math.max(gpsTimeStamp - mLastGpsTimeStamp, MAX_STEP) / 1000.0;
+				mVelocity[0] += GPS_WEIGHT * east;
+				mVelocity[1] += GPS_WEIGHT * north;
+				mBias[0] += BIAS_WEIGHT * east / seconds;
+				mBias[1] += BIAS_WEIGHT * north / seconds;
+			}
+			mLastGpsTimeStamp = gpsTimeStamp;
+		}
+
+		velocity[0] = mVelocity[0];
+		velocity[1] = mVelocity[1];
+	}
+}
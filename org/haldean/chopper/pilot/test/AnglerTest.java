@@ -1,22 +1,40 @@
 package org.haldean.chopper.pilot.test;
 
 import org.haldean.chopper.pilot.AnglerImpl;
+import org.haldean.chopper.pilot.Clock;
 import org.haldean.chopper.pilot.Constants;
+import org.haldean.chopper.sim.FlightModel;
 
 import android.test.AndroidTestCase;
 import android.util.Log;
 
-public class AnglerTest extends AndroidTestCase implements Constants {
+public class AnglerTest extends AndroidTestCase implements Clock, Constants {
 	public static final String TAG = "chopper.AnglerTest";
 	
+	/** Time between evaluations of the angle target, in ms */
+	private static final long STEP = 1000;
+	
+	/**
+	 * How far, in degrees, a target that has reached its limit may move
+	 * while the velocity estimate settles after a step in the GPS velocity
+	 */
+	private static final double SETTLED = 0.05;
+	
 	private MockChopperStatus mCs;
 	private MockNavigation mNav;
 	private AnglerImpl mAngler;
+	private long mTime;
 	
 	public void setUp() {
 		mCs = new MockChopperStatus();
 		mNav = new MockNavigation();
 		mAngler = new AnglerImpl(mCs, mNav);
+		mAngler.setClock(this);
+		mTime = 1;
+	}
+	
+	public long currentTimeMillis() {
+		return mTime;
 	}
 	public void testVerticalAndRotation() throws Exception {
 		double[] newNavData = new double[4];
@@ -273,16 +291,55 @@ public class AnglerTest extends AndroidTestCase implements Constants {
 		checkAngles(oldAngle, newAngle, finalAngle);
 	}
 	
+	public void testHoldsVelocityInSimulator() throws Exception {
+		// Facing north, east is to the right.
+		FlightModel model = holdVelocity(1, 0, 0);
+		assertEquals(1.0, model.getVelocity(FlightModel.EAST), 0.1);
+		assertEquals(0.0, model.getVelocity(FlightModel.NORTH), 0.1);
+		assertTrue(model.getAngle(FlightModel.ROLL) > 0);
+		
+		// Facing east, north is to the left.
+		model = holdVelocity(0, 1, 90);
+		assertEquals(0.0, model.getVelocity(FlightModel.EAST), 0.1);
+		assertEquals(1.0, model.getVelocity(FlightModel.NORTH), 0.1);
+		assertTrue(model.getAngle(FlightModel.ROLL) < 0);
+		
+		// Facing south-southwest, south is mostly ahead and a little to the left.
+		model = holdVelocity(0, -2, 200);
+		assertEquals(0.0, model.getVelocity(FlightModel.EAST), 0.1);
+		assertEquals(-2.0, model.getVelocity(FlightModel.NORTH), 0.1);
+		assertTrue(model.getAngle(FlightModel.PITCH) > 0);
+		assertTrue(model.getAngle(FlightModel.ROLL) < 0);
+	}
+	
+	/**
+	 * Flies the real Guidance and AnglerImpl in the simulator: takes off by
+	 * hand, then holds a velocity under autopilot with one GPS fix a second.
+	 * @return The model, 30 seconds after autopilot was engaged.
+	 */
+	private static FlightModel holdVelocity(double east, double north, double azimuth) {
+		SimulatedChopper chopper = new SimulatedChopper();
+		chopper.takeOff();
+		chopper.sendMessage("NAV:SET:AUTOTASK:" + NO_CONN + ":{ VEL!hold!" + east + "!" + north + "!0!" +
+				azimuth + "!60000!-1!-11 -12}");
+		chopper.sendMessage("GUID:AUTOPILOT");
+		chopper.step(30000);
+		return chopper.getModel();
+	}
+	
 	private void checkAngles(double[] oldAngle, double[] newAngle, double[] finalAngle) {
-		for (int j = 0; j < 20; j++) {
+		for (int j = 0; j < 200; j++) {
+			// A new GPS fix arrives with each evaluation.
+			mTime += STEP;
+			mCs.setGpsTimeStamp(mTime);
 			System.arraycopy(newAngle, 0, oldAngle, 0, 4);
 			mAngler.getAngleTarget(newAngle);
 			logArray("oldAngle", oldAngle);
 			logArray("newAngle", newAngle);
 			logArray("finalAngle", finalAngle);
 			for (int i = 0; i < finalAngle.length; i++) {
-				if (finalAngle[i] == oldAngle[i]) {
-					assertEquals(finalAngle[i], newAngle[i]);
+				if (Math.abs(finalAngle[i] - oldAngle[i]) <= SETTLED) {
+					assertEquals(finalAngle[i], newAngle[i], SETTLED);
 				} else if (finalAngle[i] > oldAngle[i]) {
 					assertTrue(newAngle[i] >= oldAngle[i]);
 					assertTrue(finalAngle[i] >= newAngle[i]);
@@ -0,0 +1,199 @@
+package org.haldean.chopper.pilot.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.haldean.chopper.nav.Geofence;
+import org.haldean.chopper.nav.LocalFrame;
+import org.haldean.chopper.pilot.NavigationImpl;
+import org.haldean.chopper.pilot.Receivable;
+
+import android.test.AndroidTestCase;
+
+public class GeofenceTest extends AndroidTestCase {
+	public static final String TAG = "chopper.GeofenceTest";
+
+	private static final double LAT = SimulatedChopper.ORIGIN_LAT;
+	private static final double LONG = SimulatedChopper.ORIGIN_LONG;
+	private static final double ALT = SimulatedChopper.ORIGIN_ALT;
+
+	private static final double PER_LAT = LocalFrame.metersPerDegreeLatitude(Math.toRadians(LAT));
+	private static final double PER_LONG = LocalFrame.metersPerDegreeLongitude(Math.toRadians(LAT));
+
+	/** A zone with vertices given east and north of the origin, in meters */
+	private static String zone(String name, String type, double floor, double ceiling, double... eastNorth) {
+		String str = "FENCE!" + name + "!" + type + "!" + (ALT + floor) + "!" + (ALT + ceiling);
+		for (int i = 0; i < eastNorth.length; i += 2) {
+			str += "!" + (LAT + eastNorth[i + 1] / PER_LAT) + "!" + (LONG + eastNorth[i] / PER_LONG);
+		}
+		return str;
+	}
+
+	private static Geofence.Zone check(Geofence fence, double east, double north, double alt) {
+		return fence.check(LAT + north / PER_LAT, LONG + east / PER_LONG, ALT + alt);
+	}
+
+	private static final String FIELD = zone("field", Geofence.KEEP_IN, -10, 50,
+			-100, -100, 100, -100, 100, 100, -100, 100);
+
+	/** A zone away from the origin */
+	private static final String AWAY = zone("away", Geofence.KEEP_IN, -10, 50,
+			200, 200, 300, 200, 300, 300, 200, 300);
+
+	public void testKeepIn() throws Exception {
+		Geofence fence = Geofence.fromString(FIELD);
+		assertTrue(check(fence, 0, 0, 10) == null);
+		assertTrue(check(fence, 99, -99, 10) == null);
+		assertEquals("field", check(fence, 101, 0, 10).getName());
+		assertEquals("field", check(fence, 0, -500, 10).getName());
+		// Above the ceiling
+		assertEquals("field", check(fence, 0, 0, 51).getName());
+	}
+
+	public void testConcave() throws Exception {
+		// A U open to the north
+		Geofence fence = Geofence.fromString(zone("u", Geofence.KEEP_IN, -10, 50,
+				-30, 0, 30, 0, 30, 30, 10, 30, 10, 10, -10, 10, -10, 30, -30, 30));
+		assertTrue(check(fence, -20, 20, 0) == null);
+		assertTrue(check(fence, 20, 20, 0) == null);
+		assertTrue(check(fence, 0, 5, 0) == null);
+		assertEquals("u", check(fence, 0, 20, 0).getName());
+	}
+
+	public void testObstacle() throws Exception {
+		Geofence fence = Geofence.fromString(FIELD + " " +
+				zone("tower", Geofence.KEEP_OUT, -10, 20, 10, 10, 20, 10, 20, 20, 10, 20));
+		assertEquals("tower", check(fence, 15, 15, 10).getName());
+		assertTrue(check(fence, 15, 15, 25) == null);
+		assertTrue(check(fence, 25, 15, 10) == null);
+		// Outside the field, the field is breached rather than the tower
+		assertEquals("field", check(fence, 150, 15, 10).getName());
+
+		// Without a zone to stay in, only obstacles are breached.
+		Geofence obstacles = Geofence.fromString(zone("tower", Geofence.KEEP_OUT, -10, 20,
+				10, 10, 20, 10, 20, 20, 10, 20));
+		assertTrue(check(obstacles, 1000, 1000, 0) == null);
+		assertEquals("tower", check(obstacles, 15, 15, 0).getName());
+	}
+
+	public void testLookahead() throws Exception {
+		Geofence fence = Geofence.fromString(FIELD);
+		double[] east = {2, 0, 0};
+		double lat = LAT;
+		assertTrue(fence.check(lat, LONG + 90 / PER_LONG, ALT, east, 3, 3) == null);
+		assertEquals("field", fence.check(lat, LONG + 95 / PER_LONG, ALT, east, 3, 3).getName());
+		double[] west = {-2, 0, 0};
+		assertTrue(fence.check(lat, LONG + 95 / PER_LONG, ALT, west, 3, 3) == null);
+	}
+
+	public void testSerialization() throws Exception {
+		Geofence fence = Geofence.fromString(FIELD + " " +
+				zone("tower", Geofence.KEEP_OUT, -10, 20, 10, 10, 20, 10, 20, 20, 10, 20));
+		Geofence copy = Geofence.fromString(fence.toString());
+		assertEquals(2, copy.size());
+		assertEquals(fence.toString(), copy.toString());
+		assertFalse(copy.getZone(1).isKeepIn());
+		assertTrue(Geofence.fromString("").isEmpty());
+		assertTrue(Geofence.fromString("").check(LAT, LONG, ALT) == null);
+	}
+
+	public void testMatchesBruteForce() throws Exception {
+		// A star with many jagged points, across several cells and bands
+		Random random = new Random(42);
+		int n = 500;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		double[] eastNorth = new double[2 * n];
+		for (int i = 0; i < n; i++) {
+			double angle = 2 * Math.PI * i / n;
+			double r = 100 + 300 * random.nextDouble();
+			xs[i] = eastNorth[2 * i] = r * Math.sin(angle);
+			ys[i] = eastNorth[2 * i + 1] = r * Math.cos(angle);
+		}
+		Geofence fence = Geofence.fromString(zone("star", Geofence.KEEP_OUT, -10, 50, eastNorth));
+		for (int k = 0; k < 20000; k++) {
+			double x = 900 * random.nextDouble() - 450;
+			double y = 900 * random.nextDouble() - 450;
+			boolean inside = false;
+			for (int i = 0, j = n - 1; i < n; j = i++) {
+				if ((ys[i] > y) != (ys[j] > y) && x < xs[i] + (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i])) {
+					inside = !inside;
+				}
+			}
+			// The fence's frame differs from this one by millimeters, which may decide points on the edges either way.
+			if (inside != (check(fence, x, y, 0) != null)) {
+				boolean nearEdge = false;
+				for (int i = 0, j = n - 1; i < n; j = i++) {
+					double dx = xs[i] - xs[j];
+					double dy = ys[i] - ys[j];
+					double t = Math.max(0, Math.min(1, ((x - xs[j]) * dx + (y - ys[j]) * dy) / (dx * dx + dy * dy)));
+					if (Math.hypot(xs[j] + t * dx - x, ys[j] + t * dy - y) < 0.01) {
+						nearEdge = true;
+					}
+				}
+				assertTrue(nearEdge);
+			}
+		}
+	}
+
+	public void testNavigationBreach() throws Exception {
+		SimulatedChopper chopper = new SimulatedChopper();
+		NavigationImpl nav = chopper.getNavigation();
+		final ArrayList<String> messages = new ArrayList<String>();
+		nav.registerReceiver(new Receivable() {
+			public void receiveMessage(String msg, Receivable source) {
+				messages.add(msg);
+			}
+		});
+		chopper.sendMessage("NAV:SET:AUTOPILOT");
+		chopper.sendMessage("NAV:SET:GEOFENCE:" + FIELD);
+		assertTrue(messages.contains("NAV:GEOFENCE:" + Geofence.fromString(FIELD).toString()));
+		chopper.step(1000);
+
+		double[] target = new double[4];
+		assertFalse(nav.checkFence());
+		assertFalse(messages.contains("NAV:BREACH:field"));
+
+		// A fence the chopper is already out of
+		chopper.sendMessage("NAV:SET:GEOFENCE:" + AWAY);
+		assertTrue(nav.checkFence());
+		assertFalse(nav.checkFence());
+		nav.evalNextVector(target);
+		assertTrue(messages.contains("NAV:BREACH:away"));
+		// Holding in place under the fallback plan
+		assertEquals(0.0, target[0], 1e-9);
+		assertEquals(0.0, target[1], 1e-9);
+		assertEquals(0.0, target[2], 1e-9);
+	}
+
+	public void testControlLoopCatchesBreach() throws Exception {
+		SimulatedChopper chopper = new SimulatedChopper();
+		final ArrayList<String> messages = new ArrayList<String>();
+		chopper.getNavigation().registerReceiver(new Receivable() {
+			public void receiveMessage(String msg, Receivable source) {
+				messages.add(msg);
+			}
+		});
+		// Navigation is evaluated once a second; the fence is checked on every iteration.
+		chopper.sendMessage("GUID:NAVRATE:1");
+		chopper.sendMessage("GUID:AUTOPILOT");
+		chopper.step(1000);
+		chopper.sendMessage("NAV:SET:GEOFENCE:" + AWAY);
+		chopper.step(SimulatedChopper.GUIDANCE_PERIOD);
+		assertTrue(messages.contains("NAV:BREACH:away"));
+
+		double[] target = new double[4];
+		chopper.getNavigation().getTarget(target);
+		assertEquals(0.0, target[0], 1e-9);
+		assertEquals(0.0, target[1], 1e-9);
+		assertEquals(0.0, target[2], 1e-9);
+	}
+
+	public void testDeadReckoning() throws Exception {
+		Geofence fence = Geofence.fromString(FIELD);
+		double[] east = {10, 0, 0};
+		// Flying east at 10 m/s from a fix 85 m east of the origin
+		assertTrue(fence.check(LAT, LONG + 85 / PER_LONG, ALT, east, 1.4, 0, 0) == null);
+		assertEquals("field", fence.check(LAT, LONG + 85 / PER_LONG, ALT, east, 1.6, 0, 0).getName());
+	}
+}
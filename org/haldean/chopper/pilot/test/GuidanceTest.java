@@ -1,6 +1,7 @@
 package org.haldean.chopper.pilot.test;
 
 import org.haldean.chopper.pilot.BluetoothOutput;
+import org.haldean.chopper.pilot.Clock;
 import org.haldean.chopper.pilot.Constants;
 import org.haldean.chopper.pilot.Guidance;
 
@@ -8,12 +9,13 @@ import android.os.Message;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
-public class GuidanceTest extends AndroidTestCase implements Constants {
+public class GuidanceTest extends AndroidTestCase implements Clock, Constants {
 	public static final String TAG = "chopper.GuidanceTest";
 	
 	private Guidance guid;
 	private MockChopperStatus mCs = new MockChopperStatus();
 	private MockAngler mAngler = new MockAngler();
+	private long mTime;
 	
 	public void setUp() throws Exception {
 		mCs.reset();
@@ -24,7 +26,12 @@ public class GuidanceTest extends AndroidTestCase implements Constants {
 								public void sendMessageToHandler(Message msg) {}
 							},
 							mAngler);
-		
+		mTime = 1;
+		guid.setClock(this);
+	}
+	
+	public long currentTimeMillis() {
+		return mTime;
 	}
 
 	public void tearDown() throws Exception {
@@ -241,6 +248,7 @@ public class GuidanceTest extends AndroidTestCase implements Constants {
 	private void checkAngles(double[] oldSpeed, double[] newSpeed, double[] finalSpeed) {
 		for (int j = 0; j < 160; j++) {
 			mCs.getMotorFields(oldSpeed);
+			mTime += 1000 / Guidance.PIDREPS;
 			guid.reviseMotorSpeed();
 			mCs.getMotorFields(newSpeed);
 			logArray("oldSpeed", oldSpeed);
@@ -261,6 +269,29 @@ public class GuidanceTest extends AndroidTestCase implements Constants {
 		assertArrayEquals(finalSpeed, newSpeed);
 	}
 	
+	public void testInvalidNavRate() throws Exception {
+		guid.receiveMessage("GUID:AUTOPILOT", null);
+		guid.receiveMessage("GUID:NAVRATE:5", null);
+		int evaluations = navEvaluationsPerSecond();
+		assertEquals(5, evaluations, 1);
+		
+		// Each is logged and ignored, leaving the rate as it was.
+		guid.receiveMessage("GUID:NAVRATE:0", null);
+		guid.receiveMessage("GUID:NAVRATE:-3", null);
+		guid.receiveMessage("GUID:NAVRATE:fast", null);
+		guid.receiveMessage("GUID:NAVRATE", null);
+		assertEquals(evaluations, navEvaluationsPerSecond());
+	}
+	
+	private int navEvaluationsPerSecond() {
+		int before = mAngler.getCalls();
+		for (int i = 0; i < Guidance.PIDREPS; i++) {
+			mTime += 1000 / Guidance.PIDREPS;
+			guid.reviseMotorSpeed();
+		}
+		return mAngler.getCalls() - before;
+	}
+	
 	private static void logArray(String id, double[] array) {
 		String output = id + ": ";
 		for (int i = 0; i < array.length; i++) {
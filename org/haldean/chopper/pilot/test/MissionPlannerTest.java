@@ -0,0 +1,185 @@
+package org.haldean.chopper.pilot.test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.haldean.chopper.nav.LocalFrame;
+import org.haldean.chopper.nav.NavDest;
+import org.haldean.chopper.server.nav.MissionPlanner;
+import org.haldean.chopper.server.nav.MissionPlanner.Mission;
+import org.haldean.chopper.sim.SimulatedSensors;
+
+/**
+ * Runs on any JVM: the planner only needs the nav classes.
+ */
+public class MissionPlannerTest extends TestCase {
+	public static final String TAG = "chopper.MissionPlannerTest";
+
+	private static final double LAT = SimulatedSensors.ORIGIN_LAT;
+	private static final double LONG = SimulatedSensors.ORIGIN_LONG;
+
+	/** Time allowed to plan a tour of 500 destinations, in ms; the planner gives itself 400 */
+	private static final long LARGE_TOUR_TIME = 2000;
+
+	private static final LocalFrame FRAME = new LocalFrame(LAT, LONG);
+
+	/** Destinations scattered over a square kilometer, the first at the origin */
+	private static List<NavDest> scatter(int n, long seed) {
+		Random random = new Random(seed);
+		ArrayList<NavDest> dests = new ArrayList<NavDest>();
+		dests.add(NavPlanTest.dest(0, 0, 10, 5, 3));
+		for (int i = 1; i < n; i++) {
+			dests.add(NavPlanTest.dest(1000 * random.nextDouble(), 1000 * random.nextDouble(), 10, 5, 3));
+		}
+		return dests;
+	}
+
+	/** The length of a flight through destinations in order, in meters */
+	private static double length(List<NavDest> dests) {
+		double length = 0;
+		for (int i = 1; i < dests.size(); i++) {
+			NavDest a = dests.get(i - 1);
+			NavDest b = dests.get(i);
+			length += Math.hypot(FRAME.toEast(b.getLongitude()) - FRAME.toEast(a.getLongitude()),
+					FRAME.toNorth(b.getLatitude()) - FRAME.toNorth(a.getLatitude()));
+		}
+		return length;
+	}
+
+	/** Checks that a tour starts at the first target and visits each exactly once */
+	private static void assertVisitsEach(List<NavDest> targets, List<NavDest> tour, boolean returnHome) {
+		assertSame(targets.get(0), tour.get(0));
+		int stops = returnHome ? tour.size() - 1 : tour.size();
+		assertEquals(targets.size(), stops);
+		if (returnHome) {
+			assertSame(targets.get(0), tour.get(tour.size() - 1));
+		}
+		IdentityHashMap<NavDest, Boolean> seen = new IdentityHashMap<NavDest, Boolean>();
+		for (NavDest d : tour.subList(0, stops)) {
+			assertNull(seen.put(d, Boolean.TRUE));
+		}
+		for (NavDest d : targets) {
+			assertTrue(seen.containsKey(d));
+		}
+	}
+
+	public void testTourBeatsInputOrder() throws Exception {
+		MissionPlanner planner = new MissionPlanner();
+		List<NavDest> targets = scatter(40, 1);
+		ArrayList<NavDest> closed = new ArrayList<NavDest>(targets);
+		closed.add(targets.get(0));
+
+		Mission mission = planner.planTour("tour", targets);
+		assertVisitsEach(targets, mission.getDestinations(), true);
+		assertEquals(length(mission.getDestinations()), mission.getDistance(), 1e-6);
+		assertTrue(mission.getDistance() < 0.5 * length(closed));
+
+		planner.setReturnHome(false);
+		Mission open = planner.planTour("open", targets);
+		assertVisitsEach(targets, open.getDestinations(), false);
+		assertTrue(open.getDistance() < 0.5 * length(targets));
+	}
+
+	public void testSmallOpenTour() throws Exception {
+		MissionPlanner planner = new MissionPlanner();
+		planner.setReturnHome(false);
+		ArrayList<NavDest> targets = new ArrayList<NavDest>();
+		targets.add(NavPlanTest.dest(0, 0, 10, 5, 3));
+		NavDest far = NavPlanTest.dest(0, 100, 10, 5, 3);
+		NavDest near = NavPlanTest.dest(0, 10, 10, 5, 3);
+		targets.add(far);
+		targets.add(near);
+
+		List<NavDest> tour = planner.planTour("small", targets).getDestinations();
+		assertVisitsEach(targets, tour, false);
+		assertSame(near, tour.get(1));
+		assertSame(far, tour.get(2));
+	}
+
+	public void testLargeTourTime() throws Exception {
+		MissionPlanner planner = new MissionPlanner();
+		List<NavDest> targets = scatter(500, 2);
+		ArrayList<NavDest> closed = new ArrayList<NavDest>(targets);
+		closed.add(targets.get(0));
+
+		long start = System.nanoTime();
+		Mission mission = planner.planTour("large", targets);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		assertTrue(elapsed < LARGE_TOUR_TIME);
+		assertVisitsEach(targets, mission.getDestinations(), true);
+		assertTrue(mission.getDistance() < 0.2 * length(closed));
+	}
+
+	/**
+	 * Sweeps an L-shaped area of 200 by 200 m, less its north-east quarter, with
+	 * lines 20 m apart: every point of the area must be within half a spacing of
+	 * the path, and no destination may be outside it.
+	 */
+	public void testCoverage() throws Exception {
+		double spacing = 20;
+		double[] east = { 0, 200, 200, 100, 100, 0 };
+		double[] north = { 0, 0, 100, 100, 200, 200 };
+		double[] lats = new double[east.length];
+		double[] lons = new double[east.length];
+		for (int i = 0; i < east.length; i++) {
+			lats[i] = FRAME.toLatitude(north[i]);
+			lons[i] = FRAME.toLongitude(east[i]);
+		}
+
+		MissionPlanner planner = new MissionPlanner();
+		planner.setReturnHome(false);
+		Mission mission = planner.planCoverage("survey", FRAME.toLatitude(-10), FRAME.toLongitude(-10),
+				lats, lons, spacing);
+		List<NavDest> dests = mission.getDestinations();
+		int n = dests.size();
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = FRAME.toEast(dests.get(i).getLongitude());
+			ys[i] = FRAME.toNorth(dests.get(i).getLatitude());
+			assertTrue(inside(east, north, xs[i], ys[i], 0.5));
+		}
+
+		for (double x = 1; x < 200; x += 2) {
+			for (double y = 1; y < 200; y += 2) {
+				if (!inside(east, north, x, y, 0)) {
+					continue;
+				}
+				double nearest = Double.MAX_VALUE;
+				for (int i = 1; i < n; i++) {
+					nearest = Math.min(nearest, distance(x, y, xs[i - 1], ys[i - 1], xs[i], ys[i]));
+				}
+				assertTrue(nearest <= spacing / 2 + 0.5);
+			}
+		}
+	}
+
+	/** @return True if a point is inside a polygon, or within a margin of its edges */
+	private static boolean inside(double[] xs, double[] ys, double x, double y, double margin) {
+		boolean inside = false;
+		for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+			if (distance(x, y, xs[j], ys[j], xs[i], ys[i]) <= margin) {
+				return true;
+			}
+			if ((ys[i] > y) != (ys[j] > y) &&
+					x < xs[j] + (xs[i] - xs[j]) * (y - ys[j]) / (ys[i] - ys[j])) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/** @return The distance from a point to a segment */
+	private static double distance(double x, double y, double x0, double y0, double x1, double y1) {
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		double t = dx == 0 && dy == 0 ? 0 : ((x - x0) * dx + (y - y0) * dy) / (dx * dx + dy * dy);
+		t = Math.max(0, Math.min(1, t));
+		return Math.hypot(x - (x0 + t * dx), y - (y0 + t * dy));
+	}
+}
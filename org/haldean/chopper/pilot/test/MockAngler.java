@@ -6,17 +6,25 @@ import org.haldean.chopper.pilot.Angler;
 
 public class MockAngler implements Angler {
 	private double[] angles = new double[4];
+	private int calls = 0;
 	
 	@Override
 	public void getAngleTarget(double[] target) {
+		calls++;
 		System.arraycopy(angles, 0, target, 0, 4);
 	}
 	
+	/** @return How many times getAngleTarget has been called since the last reset. */
+	public int getCalls() {
+		return calls;
+	}
+	
 	public void setAngleTarget(double[] target) {
 		System.arraycopy(target, 0, angles, 0, 4);
 	}
 	
 	public void reset() {
 		Arrays.fill(angles, 0.0);
+		calls = 0;
 	}
 }
@@ -11,6 +11,11 @@ public class MockNavigation implements Navigation {
 		System.arraycopy(navTarget, 0, newNavTarget, 0, 4);
 	}
 
+	@Override
+	public boolean checkFence() {
+		return false;
+	}
+
 	@Override
 	public void getTarget(double[] newNavTarget) {
 		System.arraycopy(navTarget, 0, newNavTarget, 0, 4);
@@ -0,0 +1,133 @@
+package org.haldean.chopper.pilot.test;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.haldean.chopper.nav.LocalFrame;
+import org.haldean.chopper.nav.NavData;
+import org.haldean.chopper.nav.NavDest;
+import org.haldean.chopper.nav.NavPlan;
+import org.haldean.chopper.sim.SimulatedSensors;
+
+/**
+ * Runs on any JVM: NavPlan uses no Android classes.
+ */
+public class NavPlanTest extends TestCase {
+	public static final String TAG = "chopper.NavPlanTest";
+
+	private static final double LAT = SimulatedSensors.ORIGIN_LAT;
+	private static final double LONG = SimulatedSensors.ORIGIN_LONG;
+	private static final double ALT = SimulatedSensors.ORIGIN_ALT;
+
+	private static final double PER_LAT = LocalFrame.metersPerDegreeLatitude(Math.toRadians(LAT));
+	private static final double PER_LONG = LocalFrame.metersPerDegreeLongitude(Math.toRadians(LAT));
+
+	/** A destination east and north of the origin of the simulator, in meters */
+	static NavDest dest(double east, double north, double alt, double velocity, double radius) {
+		return (NavDest) NavData.fromString("DEST!d!" + (ALT + alt) + "!" + (LONG + east / PER_LONG) + "!" +
+				(LAT + north / PER_LAT) + "!" + velocity + "!" + radius + "!1");
+	}
+
+	private static NavPlan plan(NavDest... dests) {
+		ArrayList<NavDest> list = new ArrayList<NavDest>();
+		for (NavDest d : dests) {
+			list.add(d);
+		}
+		return new NavPlan(LAT, LONG, ALT, 0, list);
+	}
+
+	private static double[] velocity(NavPlan plan, double east, double north, double alt) {
+		double[] target = new double[4];
+		plan.getVelocity(LAT + north / PER_LAT, LONG + east / PER_LONG, ALT + alt, target);
+		return target;
+	}
+
+	public void testDegreeLengths() throws Exception {
+		// Lengths of a degree at 45 degrees on the WGS84 ellipsoid
+		assertEquals(111132.1, LocalFrame.metersPerDegreeLatitude(Math.toRadians(45)), 0.5);
+		assertEquals(78847.0, LocalFrame.metersPerDegreeLongitude(Math.toRadians(45)), 0.5);
+	}
+
+	public void testSpeedProfile() throws Exception {
+		NavPlan plan = plan(dest(0, 100, 0, 2, 1));
+
+		double[] start = velocity(plan, 0, 0, 0);
+		assertEquals(NavPlan.MIN_SPEED, start[1], 1e-6);
+		assertEquals(0.0, start[0], 1e-6);
+		assertEquals(0.0, start[3], 1e-6);
+
+		double[] cruise = velocity(plan, 0, 50, 0);
+		assertEquals(2.0, cruise[1], 1e-6);
+
+		// Slowing to a stop at the last destination, and coming back if it is passed
+		double[] landing = velocity(plan, 0, 99, 0);
+		assertEquals(Math.sqrt(2 * NavPlan.ACCELERATION), landing[1], 1e-3);
+		double[] overshot = velocity(plan, 0, 102, 0);
+		assertTrue(overshot[1] < 0);
+	}
+
+	public void testCrossTrack() throws Exception {
+		NavPlan plan = plan(dest(0, 100, 0, 2, 1));
+		double[] right = velocity(plan, 3, 50, 0);
+		assertEquals(-3, plan.getCrossTrack(), 1e-3);
+		assertTrue(right[0] < 0);
+		double[] left = velocity(plan, -3, 50, 0);
+		assertEquals(-right[0], left[0], 1e-6);
+		assertTrue(Math.hypot(right[0], right[1]) <= 2 + 1e-9);
+	}
+
+	public void testClimbAlongLeg() throws Exception {
+		NavPlan plan = plan(dest(0, 100, 10, 2, 1));
+		double[] mid = velocity(plan, 0, 50, 5);
+		assertEquals(2.0 * 10 / 100, mid[2], 1e-6);
+		double[] low = velocity(plan, 0, 50, 3);
+		assertTrue(low[2] > mid[2]);
+	}
+
+	public void testTurnAnticipation() throws Exception {
+		NavDest corner = dest(0, 100, 0, 2, 1);
+		NavDest end = dest(100, 100, 0, 2, 1);
+		NavPlan plan = plan(corner, end);
+
+		// A right angle at 2 m/s is turned v^2 / a before the corner
+		double lead = 2.0 * 2.0 / NavPlan.TURN_ACCELERATION;
+		assertFalse(plan.isComplete(LAT + (100 - lead - 0.5) / PER_LAT, LONG, ALT));
+		assertTrue(plan.isComplete(LAT + (100 - lead + 0.5) / PER_LAT, LONG, ALT));
+
+		// Still at cruising speed there, since the turn can be made at it
+		double[] v = velocity(plan, 0, 100 - lead, 0);
+		assertEquals(2.0, v[1], 1e-6);
+
+		assertTrue(plan.select(end));
+		assertEquals(1, plan.getCurrentLeg());
+		assertFalse(plan.select(corner));
+		double[] turned = velocity(plan, 0, 100, 0);
+		assertEquals(90.0, turned[3], 1e-6);
+	}
+
+	public void testReversalStops() throws Exception {
+		NavPlan plan = plan(dest(0, 100, 0, 2, 1), dest(0, 0, 0, 2, 1));
+		// The chopper must stop at the first destination, so the leg is not left early
+		assertFalse(plan.isComplete(LAT + 98 / PER_LAT, LONG, ALT));
+		double[] v = velocity(plan, 0, 98, 0);
+		assertEquals(Math.sqrt(2 * NavPlan.ACCELERATION * 2), v[1], 1e-3);
+	}
+
+	public void testDuration() throws Exception {
+		// 2 m/s is reached in 4 s over 4 m, and lost the same way at the end.
+		NavPlan plan = plan(dest(0, 100, 0, 2, 1));
+		assertEquals(4 + 4 + 92 / 2.0, plan.getDuration(), 1e-3);
+
+		// Too short to reach cruising speed: halfway at sqrt(2 a d)
+		NavPlan hop = plan(dest(0, 2, 0, 2, 1));
+		double peak = Math.sqrt(2 * NavPlan.ACCELERATION * 1);
+		assertEquals(2 * peak / NavPlan.ACCELERATION, hop.getDuration(), 1e-3);
+
+		// Stopping at the first destination to come back costs more than going on.
+		NavPlan back = plan(dest(0, 100, 0, 2, 1), dest(0, 0, 0, 2, 1));
+		NavPlan on = plan(dest(0, 100, 0, 2, 1), dest(0, 200, 0, 2, 1));
+		assertEquals(2 * plan.getDuration(), back.getDuration(), 1e-3);
+		assertTrue(on.getDuration() < back.getDuration());
+	}
+}
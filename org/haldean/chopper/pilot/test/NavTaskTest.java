@@ -0,0 +1,60 @@
+package org.haldean.chopper.pilot.test;
+
+import org.haldean.chopper.nav.NavList;
+import org.haldean.chopper.nav.NavPlan;
+import org.haldean.chopper.pilot.NavTask;
+import org.haldean.chopper.sim.FlightModel;
+
+import android.test.AndroidTestCase;
+
+public class NavTaskTest extends AndroidTestCase {
+	public static final String TAG = "chopper.NavTaskTest";
+
+	/** North 20 m, then east 20 m, 12 m up, at 1 m/s */
+	private static final String ROUTE = "{ " + NavPlanTest.dest(0, 20, 12, 1, 2) + " " +
+			NavPlanTest.dest(20, 20, 12, 1, 2) + " -4}";
+
+	/** Time given to fly ROUTE and come to a stop, in ms */
+	private static final long ROUTE_TIME = 90000;
+
+	public void testNavTaskFollowsPlan() throws Exception {
+		SimulatedChopper chopper = new SimulatedChopper();
+		NavTask task = new NavTask(chopper);
+		NavList list = NavList.fromString(ROUTE);
+		double[] target = new double[4];
+
+		assertFalse(task.isComplete(list));
+		task.getVelocity(list, target);
+		assertEquals(0.0, target[0], 1e-6);
+		assertEquals(NavPlan.MIN_SPEED, target[1], 1e-6);
+		assertEquals(0.0, target[3], 1e-6);
+	}
+
+	/**
+	 * Flies ROUTE with the real Guidance, AnglerImpl and NavigationImpl,
+	 * with one GPS fix a second: the chopper must turn at the corner, then
+	 * stop and hover at the last destination.
+	 */
+	public void testFliesRouteInSimulator() throws Exception {
+		SimulatedChopper chopper = new SimulatedChopper();
+		chopper.takeOff();
+		chopper.sendMessage("NAV:SET:AUTOTASK:" + SimulatedChopper.NO_CONN + ":" + ROUTE);
+		chopper.sendMessage("GUID:AUTOPILOT");
+
+		FlightModel model = chopper.getModel();
+		double nearestCorner = Double.MAX_VALUE;
+		for (long t = 0; t < ROUTE_TIME; t += 1000) {
+			chopper.step(1000);
+			nearestCorner = Math.min(nearestCorner, Math.hypot(
+					model.getPosition(FlightModel.EAST), model.getPosition(FlightModel.NORTH) - 20));
+		}
+
+		assertTrue(nearestCorner < 3);
+		double miss = Math.hypot(model.getPosition(FlightModel.EAST) - 20,
+				model.getPosition(FlightModel.NORTH) - 20);
+		assertTrue(miss < 3);
+		assertEquals(0.0, model.getVelocity(FlightModel.EAST), 0.2);
+		assertEquals(0.0, model.getVelocity(FlightModel.NORTH), 0.2);
+		assertTrue(model.getPosition(FlightModel.UP) > 5);
+	}
+}
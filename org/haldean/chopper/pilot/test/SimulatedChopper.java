@@ -0,0 +1,253 @@
+package org.haldean.chopper.pilot.test;
+
+import java.util.LinkedList;
+
+import org.haldean.chopper.pilot.AnglerImpl;
+import org.haldean.chopper.pilot.BluetoothOutput;
+import org.haldean.chopper.pilot.ChopperStatus;
+import org.haldean.chopper.pilot.Constants;
+import org.haldean.chopper.pilot.Guidance;
+import org.haldean.chopper.pilot.NavigationImpl;
+import org.haldean.chopper.pilot.Receivable;
+import org.haldean.chopper.sim.Controller;
+import org.haldean.chopper.sim.FlightModel;
+import org.haldean.chopper.sim.SimulatedSensors;
+import org.haldean.chopper.sim.Simulator;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.Message;
+
+/**
+ * Flies the real Guidance, AnglerImpl and NavigationImpl in a Simulator.
+ * This class only adapts the simulator to the Android interfaces of the
+ * pilot: readings come from its SimulatedSensors, and the motor speeds
+ * Guidance sends to the motor controller are fed back into its model.
+ *
+ * May receive the same messages as Guidance and NavigationImpl; see sendMessage.
+ */
+public class SimulatedChopper implements ChopperStatus, BluetoothOutput, Constants {
+	/** Time between evaluations of Guidance, in ms */
+	public static final long GUIDANCE_PERIOD = Simulator.CONTROL_PERIOD;
+
+	/** Location of the start of each flight */
+	public static final double ORIGIN_LAT = SimulatedSensors.ORIGIN_LAT;
+	public static final double ORIGIN_LONG = SimulatedSensors.ORIGIN_LONG;
+	public static final double ORIGIN_ALT = SimulatedSensors.ORIGIN_ALT;
+
+	/** Gains that hold the simulated chopper steady: P, I and D for roll, pitch, vertical speed and azimuth */
+	public static final double STEADY_GAINS[][] = {
+		{0.0, 0.0, 2e-6},
+		{0.0, 0.0, 2e-6},
+		{3e-4, 0.0, 3e-4},
+		{0.0, 0.0, 2e-5}};
+
+	private Simulator mSim;
+	private SimulatedSensors mSensors;
+	private Guidance mGuidance;
+	private NavigationImpl mNav;
+	private AnglerImpl mAngler;
+
+	/** Evaluates Guidance while it is in manual or autopilot mode */
+	private Controller mGuidanceController = new Controller() {
+		public void step() {
+			mGuidance.step();
+		}
+	};
+
+	private double[] mMotorSpeed = new double[4];
+	private double[] mMotorPower = new double[4];
+
+	private LinkedList<Receivable> mRec = new LinkedList<Receivable>();
+
+	public SimulatedChopper() {
+		mSim = new Simulator();
+		mSensors = mSim.getSensors();
+		mNav = new NavigationImpl(this);
+		mNav.setClock(mSim);
+		mAngler = new AnglerImpl(this, mNav);
+		mAngler.setClock(mSim);
+		mGuidance = new Guidance(this, this, mAngler);
+		mGuidance.setClock(mSim);
+		mGuidance.setNavigation(mNav);
+	}
+
+	public Simulator getSimulator() {
+		return mSim;
+	}
+
+	public FlightModel getModel() {
+		return mSim.getModel();
+	}
+
+	public Guidance getGuidance() {
+		return mGuidance;
+	}
+
+	public NavigationImpl getNavigation() {
+		return mNav;
+	}
+
+	/**
+	 * Sets the time between GPS fixes.
+	 * @param period The period, in ms.
+	 */
+	public void setGpsPeriod(long period) {
+		mSim.setGpsPeriod(period);
+	}
+
+	/**
+	 * Delivers a message to Guidance and NavigationImpl, as Comm would.
+	 * @param msg The message, e.g. "GUID:AUTOPILOT" or "NAV:SET:AUTOTASK:1:{ ... }".
+	 */
+	public void sendMessage(String msg) {
+		String[] parts = msg.split(":");
+		if (parts[0].equals("GUID") && parts.length > 1) {
+			if (parts[1].equals("AUTOPILOT") || parts[1].equals("MANUAL")) {
+				mSim.setController(mGuidanceController);
+			}
+			if (parts[1].equals("DIRECT")) {
+				mSim.setController(null);
+			}
+		}
+		if (parts[0].equals("CSYS") && parts.length > 1 && parts[1].equals("NOCONN")) {
+			mSim.setController(mGuidanceController);
+		}
+		mGuidance.receiveMessage(msg, null);
+		mNav.receiveMessage(msg, null);
+	}
+
+	/**
+	 * Sets STEADY_GAINS, then climbs and hovers on a fixed throttle in
+	 * manual mode, as the chopper is flown before autopilot is engaged.
+	 */
+	public void takeOff() {
+		for (int loop = 0; loop < 4; loop++) {
+			for (int term = 0; term < 3; term++) {
+				sendMessage("GUID:PID:SET:" + loop + ":" + term + ":" + STEADY_GAINS[loop][term]);
+			}
+		}
+		sendMessage("GUID:MANUAL:0:0:0.5:0");
+		step(2000);
+		sendMessage("GUID:MANUAL:0:0:0.4:0");
+		step(3000);
+	}
+
+	/**
+	 * Advances the flight.
+	 * @param millis How much simulated time to run, in ms.
+	 */
+	public void step(long millis) {
+		mSim.step(millis);
+	}
+
+	/* BluetoothOutput */
+
+	@Override
+	public void run() {
+	}
+
+	@Override
+	public void sendMessageToHandler(Message msg) {
+		if (msg.what == SEND_MOTOR_SPEEDS) {
+			mSim.setMotorCommand((double[]) msg.obj);
+		}
+		msg.recycle();
+	}
+
+	/* ChopperStatus */
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public float getBatteryLevel() {
+		return 1.0f;
+	}
+
+	@Override
+	public String getGpsExtras() {
+		return "1.0:8:" + mSensors.getGpsTimeStamp();
+	}
+
+	@Override
+	public double getGpsField(int whichField) {
+		return mSensors.getGpsField(whichField);
+	}
+
+	@Override
+	public long getGpsTimeStamp() {
+		return mSensors.getGpsTimeStamp();
+	}
+
+	@Override
+	public Location getLastLocation() {
+		Location loc = new Location("simulator");
+		loc.setLatitude(mSensors.getGpsField(LAT));
+		loc.setLongitude(mSensors.getGpsField(LONG));
+		loc.setAltitude(mSensors.getGpsField(ALTITUDE));
+		loc.setBearing((float) mSensors.getGpsField(BEARING));
+		loc.setSpeed((float) mSensors.getGpsField(SPEED));
+		loc.setTime(mSensors.getGpsTimeStamp());
+		return loc;
+	}
+
+	@Override
+	public void getMotorFields(double[] myValues) {
+		System.arraycopy(mMotorSpeed, 0, myValues, 0, 4);
+	}
+
+	@Override
+	public void getMotorPowerFields(double[] myValues) {
+		System.arraycopy(mMotorPower, 0, myValues, 0, 4);
+	}
+
+	@Override
+	public double getReadingField(int whichField) {
+		return mSensors.getReadingField(whichField);
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int newaccuracy) {
+	}
+
+	@Override
+	public void onLocationChanged(Location loc) {
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+	}
+
+	@Override
+	public void registerReceiver(Receivable rec) {
+		synchronized (mRec) {
+			mRec.add(rec);
+		}
+	}
+
+	@Override
+	public void setMotorFields(double[] mySpeeds) {
+		System.arraycopy(mySpeeds, 0, mMotorSpeed, 0, 4);
+	}
+
+	@Override
+	public void setMotorPowerFields(double[] myPowers) {
+		System.arraycopy(myPowers, 0, mMotorPower, 0, 4);
+	}
+}
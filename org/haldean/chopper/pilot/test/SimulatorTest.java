@@ -0,0 +1,78 @@
+package org.haldean.chopper.pilot.test;
+
+import junit.framework.TestCase;
+
+import org.haldean.chopper.pilot.Angler;
+import org.haldean.chopper.sim.Controller;
+import org.haldean.chopper.sim.FlightModel;
+import org.haldean.chopper.sim.SimulatedGuidance;
+import org.haldean.chopper.sim.Simulator;
+
+/**
+ * Runs on any JVM: the simulator and the PID loops it flies use no Android classes.
+ */
+public class SimulatorTest extends TestCase {
+	public static final String TAG = "chopper.SimulatorTest";
+	
+	/** Climbs at 1 m/s, as the NavVel "VEL!climb!0!0!1!0" would */
+	private static final Angler CLIMB = new Angler() {
+		public void getAngleTarget(double[] target) {
+			target[0] = 0;
+			target[1] = 0;
+			target[2] = 1;
+			target[3] = 0;
+		}
+	};
+	
+	private Simulator fly(long millis) {
+		Simulator sim = new Simulator();
+		SimulatedGuidance guidance = new SimulatedGuidance(sim);
+		guidance.setAngler(CLIMB, SimulatedGuidance.DEFAULT_NAV_PERIOD);
+		sim.setController(guidance);
+		sim.step(millis);
+		return sim;
+	}
+	
+	public void testDeterministic() throws Exception {
+		FlightModel first = fly(15000).getModel();
+		FlightModel second = fly(15000).getModel();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(first.getPosition(i), second.getPosition(i), 0.0);
+			assertEquals(first.getVelocity(i), second.getVelocity(i), 0.0);
+			assertEquals(first.getAngle(i), second.getAngle(i), 0.0);
+		}
+	}
+	
+	public void testClimb() throws Exception {
+		FlightModel model = fly(10000).getModel();
+		assertTrue(model.getPosition(FlightModel.UP) > 2.0);
+		assertEquals(0.0, model.getAngle(FlightModel.ROLL), 1.0);
+		assertEquals(0.0, model.getAngle(FlightModel.PITCH), 1.0);
+	}
+	
+	public void testDirectMotors() throws Exception {
+		Simulator sim = new Simulator();
+		sim.setMotorCommand(new double[] {0, 0, 0, 0});
+		sim.step(2000);
+		assertEquals(0.0, sim.getModel().getPosition(FlightModel.UP), 0.0);
+		
+		// Full speed is 2.5 times the thrust needed to hover.
+		sim.setMotorCommand(new double[] {1, 1, 1, 1});
+		sim.step(2000);
+		assertTrue(sim.getModel().getPosition(FlightModel.UP) > 5.0);
+		assertEquals(0.0, sim.getModel().getAngle(FlightModel.ROLL), 1e-9);
+	}
+	
+	public void testControlRate() throws Exception {
+		final int[] count = new int[1];
+		Simulator sim = new Simulator();
+		sim.setController(new Controller() {
+			public void step() {
+				count[0]++;
+			}
+		});
+		sim.step(1000);
+		// One evaluation every CONTROL_PERIOD, including one at the start.
+		assertEquals(1000 / Simulator.CONTROL_PERIOD + 1, count[0], 1);
+	}
+}
@@ -1,23 +1,21 @@
 package org.haldean.chopper.server;
 
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.event.*;
-import java.util.LinkedList;
-
-import org.haldean.simplegraph.StreamingGraphComponent;
 
 /** A component to represent the different axes of acceleration 
  *  @author William Brown */
 public class AccelerationComponent extends JPanel {
     /* The graphs for each axis of acceleration */
-    private final StreamingGraphComponent xAccel;
-    private final StreamingGraphComponent yAccel;
-    private final StreamingGraphComponent zAccel;
+    private final GraphComponent xAccel;
+    private final GraphComponent yAccel;
+    private final GraphComponent zAccel;
     /* This plots the absolute magnitude of the acceleration */
-    private final StreamingGraphComponent magAccel;
+    private final GraphComponent magAccel;
     /* This plots a running average */
-    private final StreamingGraphComponent avgAccel;
+    private final GraphComponent avgAccel;
 
     /* These show the numeric values of each component */
     private JPanel statsPanel;
@@ -31,9 +29,9 @@ public class AccelerationComponent extends JPanel {
     private JPanel scalePanel;
     private JSlider scaleChooser;
     private final JLabel scaleLabel;
+    /* Zooms the graphs out to the whole flight */
+    private JCheckBox wholeFlight;
 
-    /* The points used for calculating the average magnitude */
-    private LinkedList<Double> points;
     /* The number of points to consider in the running average */
     private final int averagePointCount = 100;
     /* The default X-axis scale of the graphs */
@@ -47,13 +45,12 @@ public class AccelerationComponent extends JPanel {
 	super(new BorderLayout());
 	JPanel graphsPanel = new JPanel(new GridLayout(3,2));
 
-	points = new LinkedList<Double>();
-
-	xAccel = new StreamingGraphComponent(StyleProvider.graphFor("X"));
-	yAccel = new StreamingGraphComponent(StyleProvider.graphFor("Y"));
-	zAccel = new StreamingGraphComponent(StyleProvider.graphFor("Z"));
-	magAccel = new StreamingGraphComponent(StyleProvider.graphFor("Magnitude"));
-	avgAccel = new StreamingGraphComponent(StyleProvider.graphFor(averagePointCount + "-Sample Average"));
+	xAccel = new GraphComponent("X", "ACCEL:X");
+	yAccel = new GraphComponent("Y", "ACCEL:Y");
+	zAccel = new GraphComponent("Z", "ACCEL:Z");
+	magAccel = new GraphComponent("Magnitude", "ACCEL:MAGNITUDE");
+	avgAccel = new GraphComponent(averagePointCount + "-Sample Average",
+				      "ACCEL:AVERAGE");
 
 	xLabel = new JLabel();
 	yLabel = new JLabel();
@@ -79,8 +76,20 @@ public class AccelerationComponent extends JPanel {
 	    });
 	setScale(defaultScale);
 
+	wholeFlight = new JCheckBox("Whole flight");
+	wholeFlight.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    scaleChooser.setEnabled(!wholeFlight.isSelected());
+		    setScale(wholeFlight.isSelected() ?
+			     GraphComponent.ALL_SAMPLES : scaleChooser.getValue());
+		}
+	    });
+
 	scalePanel = new JPanel(new BorderLayout());
-	scalePanel.add(scaleLabel, BorderLayout.EAST);
+	JPanel zoomPanel = new JPanel(new BorderLayout());
+	zoomPanel.add(wholeFlight, BorderLayout.WEST);
+	zoomPanel.add(scaleLabel, BorderLayout.EAST);
+	scalePanel.add(zoomPanel, BorderLayout.EAST);
 	scalePanel.add(scaleChooser, BorderLayout.CENTER);
 
 	graphsPanel.add(xAccel);
@@ -107,7 +116,8 @@ public class AccelerationComponent extends JPanel {
 	zAccel.setSampleCount(s);
 	magAccel.setSampleCount(s);
 	avgAccel.setSampleCount(s);
-	scaleLabel.setText(s + " samples");
+	scaleLabel.setText(s == GraphComponent.ALL_SAMPLES ?
+			   "whole flight" : s + " samples");
     }
 
     /** Update the look and feel of this component */
@@ -124,57 +134,38 @@ public class AccelerationComponent extends JPanel {
 	    scalePanel.updateUI();
 	    scaleLabel.updateUI();
 	    scaleChooser.updateUI();
+	    wholeFlight.updateUI();
 	}
     }
 
-    /** Find the running average of the acceleration magnitude
-     *  @return The average over averagePointCount samples */
-    private double average() {
-	double sum = 0;
-	int i;
-	/* Don't allow changes to the list while calculating */
-	synchronized (points) {
-	    for (i=0; i<points.size(); i++)
-		sum += points.get(i);
-	}
-	return sum / i;
-    }
-
     /** Add a new acceleration data point 
      *  @param x The x-component of the acceleration
      *  @param y The y-component of the acceleration
      *  @param z The z-component of the acceleration */
-    public void setAcceleration(double x, double y, double z) {
+    public void setAcceleration(final double x, final double y, final double z) {
 	/* Magnitude is sqrt(x^2 + y^2 + z^2). What I would
 	 * give for a power operator. */
-	double mag = Math.sqrt(Math.pow(x, 2) +
+	final double mag = Math.sqrt(Math.pow(x, 2) +
 			       Math.pow(y, 2) +
 			       Math.pow(z, 2));
-	/* Add the magnitude to the average points */
-	points.add(mag);
-
-	/* This lock is necessary because multiple accelerations could
-	 * be added at the same time in weird cases. This makes sure
-	 * we don't delete too many. */
-	synchronized (points) {
-	    while (points.size() > averagePointCount)
-		points.removeFirst();
-	}
-	double avg = average();
-
-	xAccel.addValue(x);
-	yAccel.addValue(y);
-	zAccel.addValue(z);
-	magAccel.addValue(mag);
-	avgAccel.addValue(avg);
-
-	/* HTML is used to set the line label bold and the text plain */
-	xLabel.setText("<html><b>Fx</b>: " + x + " N</html>");
-	yLabel.setText("<html><b>Fy</b>: " + y + " N</html>");
-	zLabel.setText("<html><b>Fz</b>: " + z + " N</html>");
-	avgLabel.setText("<html><b>|Favg|</b>: " + avg + " N</html>");
-	deltaLabel.setText("<html><b>|Favg - F|</b>: " + (avg - mag) + " N</html>"); 
-
-	repaint();
+	xAccel.addPoint(x);
+	yAccel.addPoint(y);
+	zAccel.addPoint(z);
+	magAccel.addPoint(mag);
+	/* The running average comes from the magnitude history */
+	final double avg = magAccel.getSeries().mean(averagePointCount);
+	avgAccel.addPoint(avg);
+
+	/* Only the newest values are shown, once per frame */
+	RenderScheduler.update(this, new Runnable() {
+		public void run() {
+		    /* HTML is used to set the line label bold and the text plain */
+		    xLabel.setText("<html><b>Fx</b>: " + x + " N</html>");
+		    yLabel.setText("<html><b>Fy</b>: " + y + " N</html>");
+		    zLabel.setText("<html><b>Fz</b>: " + z + " N</html>");
+		    avgLabel.setText("<html><b>|Favg|</b>: " + avg + " N</html>");
+		    deltaLabel.setText("<html><b>|Favg - F|</b>: " + (avg - mag) + " N</html>"); 
+		}
+	    });
     }
 }
\ No newline at end of file
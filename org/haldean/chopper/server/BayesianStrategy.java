@@ -0,0 +1,266 @@
+package org.haldean.chopper.server;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Bayesian optimization. A Gaussian process is fit to the last
+ *  MAX_OBSERVATIONS scores, and to the best score ever seen, and each
+ *  new candidate is the point with the largest expected
+ *  improvement over the best score. Flights are expensive, so this
+ *  spends a lot of computation per candidate to need as few of them as
+ *  possible.
+ *
+ *  Candidates of a batch are chosen one at a time; each chosen candidate
+ *  is added to the model with its predicted score (the "kriging
+ *  believer") so that the rest of the batch looks elsewhere.
+ */
+public class BayesianStrategy implements TuningStrategy {
+    private static final int N = 3;
+    public static final int BATCH_SIZE = 4;
+    // Batches are random until this many scores are known.
+    private static final int MIN_OBSERVATIONS = 5;
+    // Scores kept in the model; fitting it is cubic in their number.
+    public static final int MAX_OBSERVATIONS = 100;
+    // Number of random points the acquisition function is evaluated at.
+    private static final int CANDIDATES = 500;
+    // Kernel length scale, in units of the search box.
+    private static final double LENGTH_SCALE = 0.2;
+    // Observation noise relative to the signal variance.
+    private static final double NOISE = 1e-2;
+    // Exploration margin for expected improvement.
+    private static final double XI = 0.01;
+
+    private double initRangeStart;
+    private double initRangeEnd;
+    private Random rn;
+    private NormalDistribution mNormal;
+
+    private ArrayList<double[]> mPoints;
+    private ArrayList<Double> mValues;
+
+    // Bounds of the search box in gain units; grows to include history.
+    private double mLow;
+    private double mHigh;
+
+    /**
+     *  @param initRangeStart The lower bound of the initial search box.
+     *  @param initRangeEnd The upper bound of the initial search box.
+     */
+    public BayesianStrategy(double initRangeStart, double initRangeEnd, Random rn) {
+	this.initRangeStart = initRangeStart;
+	this.initRangeEnd = initRangeEnd;
+	this.rn = rn;
+	mNormal = new NormalDistribution(0.0, 1.0);
+	mPoints = new ArrayList<double[]>();
+	mValues = new ArrayList<Double>();
+	mLow = initRangeStart;
+	mHigh = initRangeEnd;
+    }
+
+    public String describe() {
+	return "bayes batch_size " + BATCH_SIZE + " length_scale " + LENGTH_SCALE;
+    }
+
+    public void seed(Collection<PidExperiment> history) {
+	report(new ArrayList<PidExperiment>(history));
+    }
+
+    public void report(List<PidExperiment> results) {
+	for (PidExperiment exp : results) {
+	    double[] gains = new double[] {exp.getP(), exp.getI(), exp.getD()};
+	    for (double g : gains) {
+		mLow = Math.min(mLow, g);
+		mHigh = Math.max(mHigh, g);
+	    }
+	    mPoints.add(gains);
+	    // Scores span many orders of magnitude.
+	    mValues.add(Math.log1p(Math.min(exp.getScore(), PidExperiment.FAILED_SCORE)));
+	    if (mPoints.size() > MAX_OBSERVATIONS) forgetOldest();
+	}
+    }
+
+    /** Drop the oldest observation, unless it is the best, which is always kept. */
+    private void forgetOldest() {
+	int best = 0;
+	for (int k = 1; k < mValues.size(); k++) {
+	    if (mValues.get(k) < mValues.get(best)) best = k;
+	}
+	int oldest = best == 0 ? 1 : 0;
+	mPoints.remove(oldest);
+	mValues.remove(oldest);
+    }
+
+    public List<PidExperiment> nextBatch() {
+	ArrayList<PidExperiment> batch = new ArrayList<PidExperiment>();
+	if (mPoints.size() < MIN_OBSERVATIONS) {
+	    for (int k = 0; k < BATCH_SIZE; k++) {
+		batch.add(fromSearch(randomPoint()));
+	    }
+	    return batch;
+	}
+
+	ArrayList<double[]> xs = new ArrayList<double[]>();
+	ArrayList<Double> ys = new ArrayList<Double>();
+	for (int k = 0; k < mPoints.size(); k++) {
+	    xs.add(toSearch(mPoints.get(k)));
+	    ys.add(mValues.get(k));
+	}
+
+	for (int k = 0; k < BATCH_SIZE; k++) {
+	    Model model = new Model(xs, ys);
+	    double[] best = null;
+	    double bestEi = -1.0;
+	    for (int c = 0; c < CANDIDATES; c++) {
+		double[] x = c % 5 == 0 ? perturb(model.bestPoint) : randomPoint();
+		double ei = model.expectedImprovement(x);
+		if (ei > bestEi) {
+		    bestEi = ei;
+		    best = x;
+		}
+	    }
+	    batch.add(fromSearch(best));
+	    double believed = model.unstandardize(model.mean(best));
+	    xs.add(best);
+	    ys.add(believed);
+	}
+	return batch;
+    }
+
+    private double[] randomPoint() {
+	double[] x = new double[N];
+	for (int i = 0; i < N; i++) {
+	    x[i] = rn.nextDouble();
+	}
+	return x;
+    }
+
+    /** A nearby point, to refine the search around the best score. */
+    private double[] perturb(double[] x) {
+	double[] y = new double[N];
+	for (int i = 0; i < N; i++) {
+	    y[i] = Math.min(1.0, Math.max(0.0, x[i] + 0.05 * rn.nextGaussian()));
+	}
+	return y;
+    }
+
+    private double[] toSearch(double[] gains) {
+	double scale = mHigh - mLow;
+	double[] x = new double[N];
+	for (int i = 0; i < N; i++) {
+	    x[i] = (gains[i] - mLow) / scale;
+	}
+	return x;
+    }
+
+    private PidExperiment fromSearch(double[] x) {
+	double scale = mHigh - mLow;
+	return new PidExperiment(x[0] * scale + mLow,
+				 x[1] * scale + mLow,
+				 x[2] * scale + mLow);
+    }
+
+    private static double kernel(double[] a, double[] b) {
+	double sq = 0.0;
+	for (int i = 0; i < N; i++) {
+	    double d = a[i] - b[i];
+	    sq += d * d;
+	}
+	return Math.exp(-sq / (2.0 * LENGTH_SCALE * LENGTH_SCALE));
+    }
+
+    /** A Gaussian process posterior over standardized scores. */
+    private class Model {
+	private List<double[]> mX;
+	private DecompositionSolver mSolver;
+	private RealVector mAlpha;
+	private double mYMean;
+	private double mYStdev;
+	private double mBestY;
+	double[] bestPoint;
+
+	Model(List<double[]> xs, List<Double> ys) {
+	    mX = xs;
+	    int n = xs.size();
+
+	    double sum = 0.0;
+	    for (double y : ys) sum += y;
+	    mYMean = sum / n;
+	    double var = 0.0;
+	    for (double y : ys) var += (y - mYMean) * (y - mYMean);
+	    mYStdev = Math.sqrt(var / n);
+	    if (mYStdev == 0.0) mYStdev = 1.0;
+
+	    RealVector y = new ArrayRealVector(n);
+	    mBestY = Double.MAX_VALUE;
+	    for (int i = 0; i < n; i++) {
+		double v = (ys.get(i) - mYMean) / mYStdev;
+		y.setEntry(i, v);
+		if (v < mBestY) {
+		    mBestY = v;
+		    bestPoint = xs.get(i);
+		}
+	    }
+
+	    double jitter = NOISE;
+	    while (true) {
+		RealMatrix k = new Array2DRowRealMatrix(n, n);
+		for (int i = 0; i < n; i++) {
+		    for (int j = 0; j <= i; j++) {
+			double v = kernel(xs.get(i), xs.get(j));
+			if (i == j) v += jitter;
+			k.setEntry(i, j, v);
+			k.setEntry(j, i, v);
+		    }
+		}
+		try {
+		    mSolver = new CholeskyDecomposition(k).getSolver();
+		    break;
+		} catch (NonPositiveDefiniteMatrixException e) {
+		    // Duplicate points; smooth more.
+		    jitter *= 10.0;
+		}
+	    }
+	    mAlpha = mSolver.solve(y);
+	}
+
+	private RealVector covariances(double[] x) {
+	    RealVector k = new ArrayRealVector(mX.size());
+	    for (int i = 0; i < mX.size(); i++) {
+		k.setEntry(i, kernel(x, mX.get(i)));
+	    }
+	    return k;
+	}
+
+	double mean(double[] x) {
+	    return covariances(x).dotProduct(mAlpha);
+	}
+
+	double unstandardize(double y) {
+	    return y * mYStdev + mYMean;
+	}
+
+	double expectedImprovement(double[] x) {
+	    RealVector k = covariances(x);
+	    double mu = k.dotProduct(mAlpha);
+	    double var = 1.0 - k.dotProduct(mSolver.solve(k));
+	    if (var <= 1e-12) return 0.0;
+	    double sigma = Math.sqrt(var);
+	    // Scores are minimized.
+	    double improvement = mBestY - mu - XI;
+	    double z = improvement / sigma;
+	    return improvement * mNormal.cumulativeProbability(z) + sigma * mNormal.density(z);
+	}
+    }
+}
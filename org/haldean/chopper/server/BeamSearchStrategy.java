@@ -0,0 +1,144 @@
+package org.haldean.chopper.server;
+
+import org.apache.commons.math3.distribution.MultivariateNormalDistribution;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Stochastic beam search. The beam holds the best WIDTH experiments
+ *  seen so far. Each generation, SELECT_NUM experiments are drawn from
+ *  it with probability inversely proportional to their scores, and each
+ *  is expanded into EXPAND_NUM children by sampling a normal
+ *  distribution around it.
+ */
+public class BeamSearchStrategy implements TuningStrategy {
+    // StDev for expanding nodes.
+    private static final double expStdev = 2.0e-6;
+    // Number of nodes to select from fringe.
+    public static final int SELECT_NUM = 3;
+    // Number of children to expand from each selected node.
+    public static final int EXPAND_NUM = 3;
+    // Number of experiments kept in the fringe.
+    public static final int WIDTH = SELECT_NUM * EXPAND_NUM;
+
+    private double initRangeStart;
+    private double initRangeEnd;
+
+    private List<PidExperiment> mFringe;
+    private HashSet<PidExperiment> mHistory;
+    // Covariance matrix for expanding nodes.
+    private double[][] mExpCovar;
+    private Random rn;
+
+    /**
+     *  @param initRangeStart The lower bound of the uniform distribution
+     *  the first batch is drawn from.
+     *  @param initRangeEnd The upper bound of that distribution.
+     */
+    public BeamSearchStrategy(double initRangeStart, double initRangeEnd, Random rn) {
+	this.initRangeStart = initRangeStart;
+	this.initRangeEnd = initRangeEnd;
+	this.rn = rn;
+	mFringe = new ArrayList<PidExperiment>();
+	mHistory = new HashSet<PidExperiment>();
+
+	mExpCovar = new double[3][3];
+	for (int i = 0; i < 3; i++) {
+	    mExpCovar[i][i] = expStdev;
+	}
+    }
+
+    public String describe() {
+	return "beam select_num " + SELECT_NUM + " expand_num " + EXPAND_NUM;
+    }
+
+    /** The best earlier results become the first fringe. */
+    public void seed(Collection<PidExperiment> history) {
+	mFringe.clear();
+	report(new ArrayList<PidExperiment>(history));
+    }
+
+    public List<PidExperiment> nextBatch() {
+	ArrayList<PidExperiment> batch = new ArrayList<PidExperiment>();
+	if (mFringe.isEmpty()) {
+	    // Create list of PidExperiments
+	    double initRange = initRangeEnd - initRangeStart;
+	    for (int j = 0; j < WIDTH; j++) {
+		double p = rn.nextDouble() * initRange + initRangeStart;
+		double i = rn.nextDouble() * initRange + initRangeStart;
+		double d = rn.nextDouble() * initRange + initRangeStart;
+		batch.add(new PidExperiment(p, i, d));
+	    }
+	    return batch;
+	}
+
+	// stochastically choose the nodes to expand.
+	ArrayList<PidExperiment> candidates = new ArrayList<PidExperiment>(mFringe);
+	ArrayList<PidExperiment> nodesToExpand = new ArrayList<PidExperiment>();
+	for (int i = 0; i < SELECT_NUM && !candidates.isEmpty(); i++) {
+	    // the usual method of drawing a random element probabilistically,
+	    // weighted so that low (good) scores are the likeliest.
+	    double weightSum = 0.0;
+	    for (PidExperiment p : candidates) {
+		weightSum += weight(p);
+	    }
+	    double pos = rn.nextDouble() * weightSum;
+	    double runningSum = 0.0;
+	    for (int j = 0; j < candidates.size(); j++) {
+		runningSum += weight(candidates.get(j));
+		if (runningSum >= pos || j == candidates.size() - 1) {
+		    nodesToExpand.add(candidates.remove(j));  // To avoid duplicates.
+		    break;
+		}
+	    }
+	}
+
+	// Expand the selected nodes into new Fringe, checking against history.
+	for (PidExperiment parent : nodesToExpand) {
+	    double[] mean = new double[3];
+	    mean[0] = parent.getP();
+	    mean[1] = parent.getI();
+	    mean[2] = parent.getD();
+	    MultivariateNormalDistribution dist =
+		new MultivariateNormalDistribution(mean, mExpCovar);
+	    for (int i = 0; i < EXPAND_NUM; i++) {
+		double[] sample = dist.sample();
+		PidExperiment child = new PidExperiment(sample[0], sample[1], sample[2]);
+		while (mHistory.contains(child)) {
+		    // Extraordinarily unlikely under this implementation of expansion,
+		    // but we'll check anyway in case the expansion implementation changes.
+		    sample = dist.sample();
+		    child = new PidExperiment(sample[0], sample[1], sample[2]);
+		}
+		batch.add(child);
+	    }
+	}
+	return batch;
+    }
+
+    /**
+     *  Merge the results into the fringe, keeping the best WIDTH. Failed
+     *  experiments are remembered so they are not tried again, but never
+     *  become parents, so one bad batch cannot empty the beam.
+     */
+    public void report(List<PidExperiment> results) {
+	mHistory.addAll(results);
+	ArrayList<PidExperiment> merged = new ArrayList<PidExperiment>(mFringe);
+	for (PidExperiment exp : results) {
+	    if (exp.getScore() < PidExperiment.FAILED_SCORE && !merged.contains(exp)) {
+		merged.add(exp);
+	    }
+	}
+	Collections.sort(merged);
+	mFringe = new ArrayList<PidExperiment>(merged.subList(0, Math.min(WIDTH, merged.size())));
+    }
+
+    private static double weight(PidExperiment p) {
+	return 1.0 / (1.0 + p.getScore());
+    }
+}
@@ -0,0 +1,240 @@
+package org.haldean.chopper.server;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Covariance matrix adaptation (CMA-ES). Candidates are sampled from a
+ *  multivariate normal distribution whose mean, step size and shape are
+ *  learned from the best candidates of each batch, so that the search
+ *  stretches along directions that keep paying off. The search runs
+ *  in coordinates where the initial range is the unit cube, since the
+ *  gains themselves are tiny.
+ */
+public class CmaEsStrategy implements TuningStrategy {
+    private static final int N = 3;
+    // Candidates per batch: 4 + 3 ln(N).
+    public static final int LAMBDA = 7;
+    // Candidates used to move the mean.
+    public static final int MU = 3;
+    private static final double INITIAL_SIGMA = 0.3;
+
+    private double mOffset;
+    private double mScale;
+    private Random rn;
+
+    private double[] mWeights;
+    private double mMuEff;
+    private double mCc, mCs, mC1, mCmu, mDamps, mChiN;
+
+    private double[] mMean;
+    private double mSigma;
+    private double[] mPc;
+    private double[] mPs;
+    private double[][] mC;
+    private double[][] mB;
+    private double[] mD;
+    private int mGeneration;
+
+    /**
+     *  @param initRangeStart The gain that maps to 0 in search coordinates.
+     *  @param initRangeEnd The gain that maps to 1 in search coordinates.
+     */
+    public CmaEsStrategy(double initRangeStart, double initRangeEnd, Random rn) {
+	mOffset = initRangeStart;
+	mScale = initRangeEnd - initRangeStart;
+	this.rn = rn;
+
+	mWeights = new double[MU];
+	double sum = 0.0;
+	for (int i = 0; i < MU; i++) {
+	    mWeights[i] = Math.log(MU + 0.5) - Math.log(i + 1);
+	    sum += mWeights[i];
+	}
+	double sumSq = 0.0;
+	for (int i = 0; i < MU; i++) {
+	    mWeights[i] /= sum;
+	    sumSq += mWeights[i] * mWeights[i];
+	}
+	mMuEff = 1.0 / sumSq;
+
+	mCc = (4.0 + mMuEff / N) / (N + 4.0 + 2.0 * mMuEff / N);
+	mCs = (mMuEff + 2.0) / (N + mMuEff + 5.0);
+	mC1 = 2.0 / ((N + 1.3) * (N + 1.3) + mMuEff);
+	mCmu = Math.min(1.0 - mC1,
+			2.0 * (mMuEff - 2.0 + 1.0 / mMuEff) / ((N + 2.0) * (N + 2.0) + mMuEff));
+	mDamps = 1.0 + 2.0 * Math.max(0.0, Math.sqrt((mMuEff - 1.0) / (N + 1.0)) - 1.0) + mCs;
+	mChiN = Math.sqrt(N) * (1.0 - 1.0 / (4.0 * N) + 1.0 / (21.0 * N * N));
+
+	mMean = new double[] {0.5, 0.5, 0.5};
+	restart();
+    }
+
+    public String describe() {
+	return "cmaes lambda " + LAMBDA + " mu " + MU;
+    }
+
+    /** Centers the search on the best earlier result. */
+    public void seed(Collection<PidExperiment> history) {
+	if (history.isEmpty()) return;
+	PidExperiment best = Collections.min(history);
+	if (best.getScore() >= PidExperiment.FAILED_SCORE) return;
+	mMean = toSearch(best);
+	restart();
+    }
+
+    public List<PidExperiment> nextBatch() {
+	ArrayList<PidExperiment> batch = new ArrayList<PidExperiment>();
+	for (int k = 0; k < LAMBDA; k++) {
+	    double[] z = new double[N];
+	    for (int i = 0; i < N; i++) {
+		z[i] = mD[i] * rn.nextGaussian();
+	    }
+	    double[] x = new double[N];
+	    for (int i = 0; i < N; i++) {
+		double y = 0.0;
+		for (int j = 0; j < N; j++) {
+		    y += mB[i][j] * z[j];
+		}
+		x[i] = mMean[i] + mSigma * y;
+	    }
+	    batch.add(fromSearch(x));
+	}
+	return batch;
+    }
+
+    /**
+     *  Results are used as they were flown, which may differ from the
+     *  candidates if the tuner clamped them. Failed experiments are
+     *  dropped, so that they never pull the mean toward themselves.
+     */
+    public void report(List<PidExperiment> results) {
+	ArrayList<PidExperiment> scored = new ArrayList<PidExperiment>();
+	for (PidExperiment exp : results) {
+	    if (exp.getScore() < PidExperiment.FAILED_SCORE) scored.add(exp);
+	}
+	// Too few to recombine; sample this generation again.
+	if (scored.size() < MU) return;
+	Collections.sort(scored);
+	mGeneration++;
+
+	double[] oldMean = mMean;
+	double[][] steps = new double[MU][];
+	mMean = new double[N];
+	for (int k = 0; k < MU; k++) {
+	    double[] x = toSearch(scored.get(k));
+	    steps[k] = new double[N];
+	    for (int i = 0; i < N; i++) {
+		steps[k][i] = (x[i] - oldMean[i]) / mSigma;
+		mMean[i] += mWeights[k] * x[i];
+	    }
+	}
+
+	double[] meanStep = new double[N];
+	for (int i = 0; i < N; i++) {
+	    meanStep[i] = (mMean[i] - oldMean[i]) / mSigma;
+	}
+
+	// Step-size path, in the whitened coordinates of C^-1/2.
+	double[] whitened = invSqrtC(meanStep);
+	double psNorm = 0.0;
+	double csFactor = Math.sqrt(mCs * (2.0 - mCs) * mMuEff);
+	for (int i = 0; i < N; i++) {
+	    mPs[i] = (1.0 - mCs) * mPs[i] + csFactor * whitened[i];
+	    psNorm += mPs[i] * mPs[i];
+	}
+	psNorm = Math.sqrt(psNorm);
+	boolean hsig = psNorm / Math.sqrt(1.0 - Math.pow(1.0 - mCs, 2.0 * mGeneration)) / mChiN
+	    < 1.4 + 2.0 / (N + 1.0);
+
+	double ccFactor = Math.sqrt(mCc * (2.0 - mCc) * mMuEff);
+	for (int i = 0; i < N; i++) {
+	    mPc[i] = (1.0 - mCc) * mPc[i] + (hsig ? ccFactor * meanStep[i] : 0.0);
+	}
+
+	// Rank-one and rank-mu updates of the covariance.
+	double hsigCorrection = hsig ? 0.0 : mCc * (2.0 - mCc);
+	for (int i = 0; i < N; i++) {
+	    for (int j = 0; j < N; j++) {
+		double rankMu = 0.0;
+		for (int k = 0; k < MU; k++) {
+		    rankMu += mWeights[k] * steps[k][i] * steps[k][j];
+		}
+		mC[i][j] = (1.0 - mC1 - mCmu) * mC[i][j]
+		    + mC1 * (mPc[i] * mPc[j] + hsigCorrection * mC[i][j])
+		    + mCmu * rankMu;
+	    }
+	}
+
+	mSigma *= Math.exp((mCs / mDamps) * (psNorm / mChiN - 1.0));
+	decompose();
+    }
+
+    /** Reset the step size and shape around the current mean. */
+    private void restart() {
+	mSigma = INITIAL_SIGMA;
+	mPc = new double[N];
+	mPs = new double[N];
+	mC = new double[N][N];
+	for (int i = 0; i < N; i++) {
+	    mC[i][i] = 1.0;
+	}
+	mGeneration = 0;
+	decompose();
+    }
+
+    /** Recompute B and D so that C = B diag(D^2) B'. */
+    private void decompose() {
+	// Enforce symmetry against rounding.
+	for (int i = 0; i < N; i++) {
+	    for (int j = 0; j < i; j++) {
+		mC[i][j] = mC[j][i];
+	    }
+	}
+	EigenDecomposition eig = new EigenDecomposition(new Array2DRowRealMatrix(mC, true));
+	RealMatrix v = eig.getV();
+	double[] values = eig.getRealEigenvalues();
+	mB = v.getData();
+	mD = new double[N];
+	for (int i = 0; i < N; i++) {
+	    mD[i] = Math.sqrt(Math.max(values[i], 1e-20));
+	}
+    }
+
+    /** Compute B diag(1/D) B' v. */
+    private double[] invSqrtC(double[] v) {
+	double[] t = new double[N];
+	for (int j = 0; j < N; j++) {
+	    for (int i = 0; i < N; i++) {
+		t[j] += mB[i][j] * v[i];
+	    }
+	    t[j] /= mD[j];
+	}
+	double[] r = new double[N];
+	for (int i = 0; i < N; i++) {
+	    for (int j = 0; j < N; j++) {
+		r[i] += mB[i][j] * t[j];
+	    }
+	}
+	return r;
+    }
+
+    private double[] toSearch(PidExperiment exp) {
+	return new double[] {(exp.getP() - mOffset) / mScale,
+			     (exp.getI() - mOffset) / mScale,
+			     (exp.getD() - mOffset) / mScale};
+    }
+
+    private PidExperiment fromSearch(double[] x) {
+	return new PidExperiment(x[0] * mScale + mOffset,
+				 x[1] * mScale + mOffset,
+				 x[2] * mScale + mOffset);
+    }
+}
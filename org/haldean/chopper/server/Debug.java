@@ -2,26 +2,109 @@ package org.haldean.chopper.server;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /** 
  * A class to write debug information to an updatable,
  * and optionally to write it to standard error 
  *
+ * Logging never blocks the caller on a terminal or a file: log()
+ * places the message in a lock-free ring and a single writer thread
+ * formats it and sends it to standard error, the log file and the
+ * updatable. If the ring is full the message is dropped and counted.
+ *
+ * Every message has a level and a category. A message is only queued
+ * if its level is at least the level set for its category, or the
+ * default level if its category has none, so a disabled statement
+ * costs a map lookup. Formatting is also left to the writer thread:
+ * pass a format and arguments, or a Supplier, rather than building the
+ * string at the call site.
+ *
  * @author William Brown
  */
 public class Debug {
+    /** The severity of a message */
+    public enum Level {
+	TRACE, DEBUG, INFO, WARN, ERROR;
+
+	/** Parse a level name, ignoring case
+	 *  @throws IllegalArgumentException if the name is not a level */
+	public static Level parse(String name) {
+	    return valueOf(name.toUpperCase());
+	}
+    }
+
+    /** Builds a message on the writer thread, only if it is logged */
+    public interface Supplier {
+	public String get();
+    }
+
+    /** The category of messages logged without one */
+    public static final String GENERAL = "general";
+    /** The number of messages that can wait for the writer thread */
+    public static final int QUEUE_CAPACITY = 8192;
+
     /** 
      * Set to true to enable debugging, or false to supress 
      * output (defaults to false)
      */
-    private static boolean enable = false;
-    private static Updatable debugOut;
-    private static Writer writer;
+    private static volatile boolean enable = false;
+    private static volatile Updatable debugOut;
+    private static volatile Writer writer;
+
+    private static volatile Level defaultLevel = Level.INFO;
+    private static volatile HashMap<String, Level> categoryLevels =
+	new HashMap<String, Level>();
+
+    /* The ring: producers claim slots by advancing tail, and a slot's
+     * sequence number says whether it is free or holds a message */
+    private static final Entry[] ring = new Entry[QUEUE_CAPACITY];
+    private static final AtomicLongArray sequence = new AtomicLongArray(QUEUE_CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static Thread writerThread;
+    /* Set while the writer thread is parked waiting for a message */
+    private static volatile boolean writerWaiting = false;
+
+    static {
+	for (int i=0; i<QUEUE_CAPACITY; i++)
+	    sequence.set(i, i);
+
+	writerThread = new Thread() {
+		public void run() {
+		    drainForever();
+		}
+	    };
+	writerThread.setName("Debug writer");
+	writerThread.setDaemon(true);
+	writerThread.start();
+
+	/* Write out whatever is still queued when the server exits */
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    flush();
+		}
+	    });
+    }
 
     private Debug() {
 	;
     }
 
+    /**
+     * Set an Updatable to show logs in, such as a LogConsole.
+     */
+    public static void setUpdatable(Updatable u) {
+	debugOut = u;
+    }
+
     /**
      * Set the output stream to write logs to.
      */
@@ -36,23 +119,231 @@ public class Debug {
 	enable = e;
     }
 
+    /**
+     * Set the level of messages logged from categories that have no
+     * level of their own. Defaults to INFO.
+     */
+    public static void setLevel(Level level) {
+	defaultLevel = level;
+    }
+
+    /**
+     * Set the level of messages logged from one category.
+     */
+    public static synchronized void setLevel(String category, Level level) {
+	/* Copied so that readers never see the map change */
+	HashMap<String, Level> levels = new HashMap<String, Level>(categoryLevels);
+	levels.put(category, level);
+	categoryLevels = levels;
+    }
+
+    /**
+     * Set category levels from a string of the form
+     * "category:level,category:level", as given on the command line.
+     *
+     * @throws IllegalArgumentException if the string is malformed
+     */
+    public static void setLevels(String spec) {
+	for (String pair : spec.split(",")) {
+	    String[] parts = pair.split(":");
+	    if (parts.length != 2)
+		throw new IllegalArgumentException("Bad log category " + pair);
+	    setLevel(parts[0], Level.parse(parts[1]));
+	}
+    }
+
+    /**
+     * @return True if a message of this level and category would be logged.
+     */
+    public static boolean isEnabled(Level level, String category) {
+	Level threshold = categoryLevels.get(category);
+	if (threshold == null)
+	    threshold = defaultLevel;
+	return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * @return The number of messages dropped because the queue was full.
+     */
+    public static long getDropped() {
+	return dropped.get();
+    }
+
     /** 
      * Log a debug message
      *
      * @param s The message to debug
      */
     public static void log(String s) {
+	log(Level.INFO, GENERAL, s, (Object[]) null);
+    }
+
+    /**
+     * Log a message, formatting it on the writer thread.
+     *
+     * @param level The severity of the message
+     * @param category The part of the server the message is about
+     * @param format The message, or a format string if args are given
+     * @param args Arguments for String.format, or none
+     */
+    public static void log(Level level, String category, String format, Object... args) {
+	if (isEnabled(level, category))
+	    enqueue(new Entry(level, category, format, args, null));
+    }
+
+    /**
+     * Log a message, building it on the writer thread.
+     *
+     * @param level The severity of the message
+     * @param category The part of the server the message is about
+     * @param message Builds the message
+     */
+    public static void log(Level level, String category, Supplier message) {
+	if (isEnabled(level, category))
+	    enqueue(new Entry(level, category, null, null, message));
+    }
+
+    private static void enqueue(Entry e) {
+	while (true) {
+	    long pos = tail.get();
+	    int slot = (int) (pos % QUEUE_CAPACITY);
+	    long diff = sequence.get(slot) - pos;
+	    if (diff == 0) {
+		if (tail.compareAndSet(pos, pos + 1)) {
+		    ring[slot] = e;
+		    /* Publishes the entry to the writer thread */
+		    sequence.set(slot, pos + 1);
+		    if (writerWaiting)
+			LockSupport.unpark(writerThread);
+		    return;
+		}
+	    } else if (diff < 0) {
+		/* Full; never make the caller wait */
+		dropped.incrementAndGet();
+		return;
+	    }
+	    /* Another producer took the slot; try the next one */
+	}
+    }
+
+    /* Take the next message, or null if there is none. Only called
+     * with the Debug class lock held, so there is one consumer. */
+    private static Entry dequeue() {
+	int slot = (int) (head % QUEUE_CAPACITY);
+	if (sequence.get(slot) != head + 1)
+	    return null;
+	Entry e = ring[slot];
+	ring[slot] = null;
+	sequence.set(slot, head + QUEUE_CAPACITY);
+	head++;
+	return e;
+    }
+
+    /* Sleeps until a producer unparks it. The flag is set before the
+     * queue is checked again and producers check it after publishing,
+     * so one of the two always sees the other. */
+    private static void drainForever() {
+	while (true) {
+	    if (drain())
+		continue;
+	    writerWaiting = true;
+	    if (isEmpty())
+		LockSupport.park();
+	    writerWaiting = false;
+	}
+    }
+
+    private static synchronized boolean isEmpty() {
+	return sequence.get((int) (head % QUEUE_CAPACITY)) != head + 1;
+    }
+
+    /**
+     * Write out every queued message before returning.
+     */
+    public static void flush() {
+	drain();
+    }
+
+    /* Write everything queued; returns false if there was nothing */
+    private static synchronized boolean drain() {
+	Entry e = dequeue();
+	if (e == null)
+	    return false;
+
+	Writer w = writer;
+	Updatable u = debugOut;
+	for (; e != null; e = dequeue())
+	    write(e, w, u);
+
+	long lost = dropped.getAndSet(0);
+	if (lost > 0)
+	    write(new Entry(Level.WARN, GENERAL, "%d log messages dropped",
+			    new Object[] {lost}, null), w, u);
+
+	if (w != null) {
+	    try {
+		w.flush();
+	    } catch (IOException ex) {
+		System.err.println("Failed to write to debug log.");
+	    }
+	}
+	return true;
+    }
+
+    private static void write(Entry e, Writer w, Updatable u) {
+	String s = e.format();
 	/* Send it to standard error if enabled */
 	if (enable)
 	    System.err.println(s);
 	/* Send it to the updatable if set */
-	if (writer != null) {
+	if (u != null)
+	    u.update(s);
+	/* And to the log file, with the time and source */
+	if (w != null) {
 	    try {
-		writer.write(s + "\n");
-		writer.flush();
-	    } catch (IOException e) {
+		w.write(e.stamp() + " " + e.level + " " + e.category + ": " + s + "\n");
+	    } catch (IOException ex) {
 		System.err.println("Failed to write to debug log.");
 	    }
 	}
     }
-}
\ No newline at end of file
+
+    /** A queued message */
+    private static class Entry {
+	private static final SimpleDateFormat timeFormat =
+	    new SimpleDateFormat("HH:mm:ss.SSS");
+
+	final long time;
+	final Level level;
+	final String category;
+	final String format;
+	final Object[] args;
+	final Supplier supplier;
+
+	Entry(Level level, String category, String format, Object[] args, Supplier supplier) {
+	    this.time = System.currentTimeMillis();
+	    this.level = level;
+	    this.category = category;
+	    this.format = format;
+	    this.args = args;
+	    this.supplier = supplier;
+	}
+
+	String format() {
+	    try {
+		if (supplier != null)
+		    return supplier.get();
+		if (args == null || args.length == 0)
+		    return format;
+		return String.format(format, args);
+	    } catch (RuntimeException e) {
+		return "Unformattable log message " + format + ": " + e.toString();
+	    }
+	}
+
+	/* Only called on the writer thread, so the format is not shared */
+	String stamp() {
+	    return timeFormat.format(new Date(time));
+	}
+    }
+}
@@ -11,7 +11,8 @@ import gov.nasa.worldwind.geom.Position;
  *  the helicopter. Right now, it can only send the helicopter
  *  messages to tell it a target velocity or location, although
  *  eventually this will be the place where it creates lists of tasks
- *  for the helicopter to complete.
+ *  for the helicopter to complete. Commands go to the helicopter
+ *  whose Session is selected.
  *
  *  @author William Brown
  */
@@ -71,7 +72,7 @@ public class EnsignCrusher {
     public static void manualVelocity(double[] velocities) {
 	String command = navGoToManual + String.format(":%f:%f:%f", velocities[0],
 						       velocities[1], velocities[2]);
-	DataReceiver.sendToDefault(command + ":" + bearing);
+	SessionManager.sendToSelected(command + ":" + bearing);
     }	
 
     /**
@@ -104,8 +105,8 @@ public class EnsignCrusher {
 	for (int i=0; i<4; i++) {
 	    taskString += ":" + speeds[i];
 	}
-	//DataReceiver.sendToDefault(navGoToManual);
-	DataReceiver.sendToDefault(taskString);
+	//SessionManager.sendToSelected(navGoToManual);
+	SessionManager.sendToSelected(taskString);
     }
 
     public static void fullStop() {
@@ -121,14 +122,14 @@ public class EnsignCrusher {
      */
     public static void tunePid(int motor, int parameter, double value) {
 	String taskString = "GUID:PID:SET:" + motor + ":" + parameter + ":" + value;
-	DataReceiver.sendToDefault(taskString);
+	SessionManager.sendToSelected(taskString);
     }
 
     /**
      *  Ask the chopper to send us the current PID tuning parameters.
      */
     public static void requestPidValues() {
-	DataReceiver.sendToDefault("GUID:PID:GET");
+	SessionManager.sendToSelected("GUID:PID:GET");
     }
 
     /**
@@ -137,8 +138,8 @@ public class EnsignCrusher {
      *  @param task The task to issue.
      */
     public static void makeItSo(DrawNav task) {
-	DataReceiver.sendToDefault(navGoToAutomatic);
-	DataReceiver.sendToDefault("NAV:SET:AUTOTASK:1:" + task.toString());
+	SessionManager.sendToSelected(navGoToAutomatic);
+	SessionManager.sendToSelected("NAV:SET:AUTOTASK:1:" + task.toString());
 	Debug.log("Sent new navigation task: " + task.toString());
     }
 }
@@ -1,18 +1,42 @@
 package org.haldean.chopper.server;
 
-import java.util.LinkedList;
-import java.util.Iterator;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.*;
 
 /**
  *  A class which draws a graph based on a series of given result sets.
  *  The graph automatically scales along the Y axis and can be manually
  *  scaled along the X axis.
+ *
+ *  The samples are kept in a TimeSeries, which may be shared with
+ *  other components through the TimeSeriesStore; a graph created with
+ *  the name of a stored series follows the selected session. Painting reads
+ *  the series without locking it, so new samples never wait on a repaint,
+ *  and repaints are paced by the RenderScheduler. When more samples are
+ *  visible than there are pixels across, each pixel column is drawn as
+ *  the range of the samples it covers, read from the series' min/max
+ *  pyramid, so a graph zoomed out over a whole flight paints as fast
+ *  as one showing the last few samples. Zoomed out to ALL_SAMPLES, the
+ *  graph shows the whole flight, with the samples that have left the
+ *  series' ring drawn from its coarse history.
+ *
+ *  Hovering over the graph shows the value of the sample under the
+ *  mouse.
  *  @author William Brown
  */
 public class GraphComponent extends JComponent {
-    private LinkedList<Double> series;
+    /* The number of samples kept by a graph that is not given a series */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /** A sample count that shows every sample since the first */
+    public static final int ALL_SAMPLES = Integer.MAX_VALUE;
+
+    private volatile TimeSeries series;
+    /* The extremes of each pixel column, computed when painting */
+    private double[] columnMin;
+    private double[] columnMax;
+
     private double max = 1;
     private double min = -1;
     /* Area left at the top and bottom to ensure the
@@ -20,14 +44,15 @@ public class GraphComponent extends JComponent {
     private double margin = 1;
 
     private int sampleCount = 100;
-    /* The index of the first displayed item in the graph */
-    private int firstIndex = 0;
+    /* The X coordinate of the mouse, or -1 if it is not over the graph */
+    private int inspectX = -1;
 
-    private Color background = new Color(28, 25, 20);
-    private Color border = Color.darkGray;
-    private Color line = Color.white;
-    private Color axes = Color.lightGray;
-    private Font labelFont = new Font(Font.SANS_SERIF, Font.PLAIN, 10);
+    private Color background = StyleProvider.background();
+    private Color border = StyleProvider.foreground3();
+    private Color line = StyleProvider.foreground1();
+    private Color axes = StyleProvider.foreground2();
+    private Color inspector = StyleProvider.highValue();
+    private Font labelFont = StyleProvider.fontSmall();
 
     /* The graph's name is displayed on the X axis */
     private String name;
@@ -37,12 +62,69 @@ public class GraphComponent extends JComponent {
 	this(new String());
     }
 
-    /** Create a new GraphComponent
+    /** Create a new GraphComponent with its own series
      *  @param _name The name of the component */
     public GraphComponent(String _name) {
+	this(_name, new TimeSeries(DEFAULT_CAPACITY));
+    }
+
+    /** Create a new GraphComponent
+     *  @param _name The name of the component
+     *  @param _series The series to draw and to add points to */
+    public GraphComponent(String _name, TimeSeries _series) {
 	super();
 	name = _name;
-	series = new LinkedList<Double>();
+	series = _series;
+	columnMin = new double[0];
+	columnMax = new double[0];
+
+	addMouseMotionListener(new MouseMotionAdapter() {
+		public void mouseMoved(MouseEvent e) {
+		    inspectX = e.getX();
+		    repaint();
+		}
+	    });
+	addMouseListener(new MouseAdapter() {
+		public void mouseExited(MouseEvent e) {
+		    inspectX = -1;
+		    repaint();
+		}
+	    });
+    }
+
+    /** Create a new GraphComponent that draws a series of the selected
+     *  session from the TimeSeriesStore, and the same series of another
+     *  session whenever it is selected
+     *  @param _name The name of the component
+     *  @param seriesName The name of the series in the store */
+    public GraphComponent(String _name, final String seriesName) {
+	this(_name, TimeSeriesStore.get(seriesName));
+	SessionManager.getInstance().addListener(new SessionManager.Listener() {
+		public void sessionSelected(Session s) {
+		    setSeries(TimeSeriesStore.get(s.getId(), seriesName));
+		}
+	    });
+    }
+
+    /** Draw another series, such as that of another session, scaled to
+     *  the samples already in it
+     *  @param _series The series to draw and to add points to */
+    public void setSeries(TimeSeries _series) {
+	double[] low = new double[1];
+	double[] high = new double[1];
+	max = 1;
+	min = -1;
+	if (_series.decimate(0, _series.getCount(), 1, low, high) > 0) {
+	    max = Math.max(max, high[0] + margin);
+	    min = Math.min(min, low[0] - margin);
+	}
+	series = _series;
+	RenderScheduler.repaint(this);
+    }
+
+    /** @return The series drawn by this graph */
+    public TimeSeries getSeries() {
+	return series;
     }
 
     /** Manually set the maximum. Note that if a data point larger than this
@@ -71,31 +153,23 @@ public class GraphComponent extends JComponent {
 
     /** Set the scale along the X axis. 
      *  @param _sampleCount The number of samples shown along the X axis. The graph will
-     *                      automatically adjust to show the most recent _sampleCount samples. */
+     *                      automatically adjust to show the most recent _sampleCount samples,
+     *                      or every sample if this is ALL_SAMPLES. */
     public void setSampleCount(int _sampleCount) {
 	sampleCount = _sampleCount;
-	/* Figure out which index is the first one displayed
-	 * given the current graph scale */
-	firstIndex = Math.max(0, series.size() - sampleCount);
 	repaint();
     }
 
     /** Add a sample to the graph.
      *  @param p The Y-value of the sample to add */
     public void addPoint(double p) {
-	/* Create a lock on the series list */
-	synchronized (series) {
-	    series.add(new Double(p));
-	    /* Figure out which index is the first one displayed
-	     * given the current graph scale */
-	    firstIndex = Math.max(0, series.size() - sampleCount);
-	    /* Adjust the bounds if necessary */
-	    if (p > (max - margin))
-		max = p + margin;
-	    if (p < (min + margin))
-		min = p - margin;
-	}
-	repaint();
+	series.add(p);
+	/* Adjust the bounds if necessary */
+	if (p > (max - margin))
+	    max = p + margin;
+	if (p < (min + margin))
+	    min = p - margin;
+	RenderScheduler.repaint(this);
     }
 
     /** Convert a value to a canvas pixel location 
@@ -109,7 +183,18 @@ public class GraphComponent extends JComponent {
      *  @param x The time index
      *  @return The pixel X corresponding to that time index */
     public int pointToX(int x) {
-	return (int) (((float) x / (float) sampleCount) * getSize().getWidth());
+	return pointToX(x, visibleSamples());
+    }
+
+    private int pointToX(long x, long visible) {
+	return (int) (((double) x / (double) visible) * getSize().getWidth());
+    }
+
+    /** @return The number of samples the X axis spans */
+    private long visibleSamples() {
+	if (sampleCount == ALL_SAMPLES)
+	    return Math.max(1, series.getCount());
+	return sampleCount;
     }
 
     /** Paints the graph onto the provided graphics object
@@ -141,24 +226,55 @@ public class GraphComponent extends JComponent {
 	g2.setFont(labelFont);
 	g2.drawString(name, 1, y0 - 2);
 
+	/* Tick labels at the top and bottom of the scale */
+	g2.drawString(String.format("%.2f", max), 1, labelFont.getSize());
+	g2.drawString(String.format("%.2f", min), 1, height - 2);
+
+	/* The window is the newest samples, reduced to at most one
+	 * column per pixel */
+	long end = series.getCount();
+	long visible = (sampleCount == ALL_SAMPLES) ? Math.max(1, end) : sampleCount;
+	long begin = Math.max(0, end - visible);
+	if (columnMin.length < width) {
+	    columnMin = new double[width];
+	    columnMax = new double[width];
+	}
+	int columns = series.decimate(begin, end, width, columnMin, columnMax);
+	double perColumn = (columns > 0) ? (double) (end - begin) / columns : 1;
+
 	g2.setColor(line);
+	int lastX = 0, lastTop = 0, lastBottom = 0;
+	for (int c=0; c<columns; c++) {
+	    int x = pointToX(Math.round(c * perColumn), visible);
+	    int top = pointToY(columnMax[c]);
+	    int bottom = pointToY(columnMin[c]);
 
-	/* Create a lock on the series list so that the series
-	 * cannot be updated while we are drawing */
-	synchronized (series) {
-	    if (series.size() > 0) {
-		int lastY = pointToY(series.get(firstIndex));
-		int lastX = pointToX(0);
-
-		/* Loop through the points in X, connecting them as we go. */
-		for (int i=firstIndex; i<series.size() && i < (firstIndex + sampleCount); i++) {
-		    int y = pointToY(series.get(i));
-		    int x = pointToX(i - firstIndex);
-
-		    g2.drawLine(lastX, lastY, x, y);
-		    lastY = y;
-		    lastX = x;
-		}
+	    if (c == 0) {
+		g2.drawLine(x, top, x, bottom);
+	    } else if (top == bottom && lastTop == lastBottom) {
+		/* Single samples are joined like points on a line */
+		g2.drawLine(lastX, lastTop, x, top);
+	    } else {
+		/* Ranges are drawn as bars, stretched to meet the
+		 * previous bar so the trace stays connected */
+		g2.drawLine(x, Math.min(top, lastBottom), x, Math.max(bottom, lastTop));
+	    }
+	    lastX = x;
+	    lastTop = top;
+	    lastBottom = bottom;
+	}
+
+	/* Inspector: the value of the samples under the mouse */
+	if (inspectX >= 0 && width > 0) {
+	    int c = (int) ((double) inspectX * visible / width / perColumn);
+	    if (c < columns) {
+		int x = pointToX(Math.round(c * perColumn), visible);
+		String value = (columnMin[c] == columnMax[c]) ?
+		    String.format("%.3f", columnMin[c]) :
+		    String.format("%.3f to %.3f", columnMin[c], columnMax[c]);
+		g2.setColor(inspector);
+		g2.drawLine(x, 0, x, height);
+		g2.drawString(value, x + 3, labelFont.getSize() * 2);
 	    }
 	}
     }
@@ -0,0 +1,307 @@
+package org.haldean.chopper.server;
+
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *  Send a "heartbeat" message to a helicopter every second. This
+ *  tells the helicopter that we're receiving and have control of
+ *  it. It also receives responses from the chopper, and in this way
+ *  we can tell what the round-trip time is between here and the
+ *  chopper. Each Session has its own Heartbeat, and the pulses of all
+ *  of them are sent from the SessionManager's scheduler.
+ *
+ *  Round-trip times are measured with System.nanoTime and kept in a
+ *  LatencyHistogram covering the last one to two minutes, alongside
+ *  the fraction of pulses lost and the jitter between successive
+ *  round trips. Each reply is published as "PING:&lt;ms&gt;" and every
+ *  five seconds a summary is passed to the session's hooks as
+ *  "LINK:&lt;p50&gt;:&lt;p90&gt;:&lt;p99&gt;:&lt;max&gt;:&lt;loss&gt;:&lt;jitter&gt;:&lt;period&gt;",
+ *  times in milliseconds and loss as a fraction. The same numbers are
+ *  available from {@link Heartbeat#getStats}.
+ *
+ *  Pulses awaiting a reply are kept in a fixed table of PENDING
+ *  slots, and one that goes unanswered for longer than the loss
+ *  timeout is counted as lost and forgotten. When a pulse is lost the
+ *  period between pulses is halved, down to MIN_PERIOD, so that a
+ *  failing link is noticed quickly; it doubles again after every
+ *  RECOVERY replies in a row, up to the period set with setPeriod.
+ *
+ *  @author William Brown
+ */
+public class Heartbeat implements Runnable, Updatable {
+    /** The most pulses that can await a reply at once */
+    public static final int PENDING = 64;
+    /** The shortest adaptive period, in milliseconds */
+    public static final int MIN_PERIOD = 250;
+    /** Replies in a row needed before the period is lengthened */
+    public static final int RECOVERY = 8;
+    /** The shortest time a pulse is waited for, in milliseconds */
+    public static final long MIN_LOSS_TIMEOUT = 2000;
+    /* Statistics cover between one and two of these, in milliseconds */
+    private static final long WINDOW = 60000;
+    /* Milliseconds between LINK summaries */
+    private static final long REPORT_PERIOD = 5000;
+
+    private static final String PREFIX = "COMM:PULSE:";
+
+    private final Session session;
+    private ScheduledExecutorService timer;
+
+    /* Milliseconds between updates */
+    private int basePeriod = 1000;
+    private volatile int period = 1000;
+    private boolean adaptive = true;
+    private int lastMessageId = 0;
+
+    /* Pulses awaiting a reply, in the slot given by their id */
+    private final AtomicReferenceArray<Pulse> pending;
+
+    /* Statistics for the current and the previous window */
+    private LatencyHistogram current;
+    private LatencyHistogram previous;
+    private long[] answered = new long[2];
+    private long[] lost = new long[2];
+    private long windowStart;
+    private long lastReport;
+
+    /* Smoothed difference between successive round trips, in ms */
+    private double jitter = 0;
+    private double lastRoundTrip = -1;
+    private int consecutiveReplies = 0;
+
+    private static class Pulse {
+	final int id;
+	final long sent;
+
+	Pulse(int _id, long _sent) {
+	    id = _id;
+	    sent = _sent;
+	}
+    }
+
+    /**
+     *  A summary of the quality of the link.
+     */
+    public static class LinkStats {
+	/** Round-trip time percentiles and maximum, in milliseconds */
+	public final double p50, p90, p99, max;
+	/** The fraction of pulses that were never answered */
+	public final double loss;
+	/** The smoothed change between successive round trips, in milliseconds */
+	public final double jitter;
+	/** The current period between pulses, in milliseconds */
+	public final int period;
+	/** The number of round trips the percentiles are taken from */
+	public final long samples;
+
+	LinkStats(LatencyHistogram h, double _loss, double _jitter, int _period) {
+	    p50 = h.getValueAtPercentile(50) / 1000.0;
+	    p90 = h.getValueAtPercentile(90) / 1000.0;
+	    p99 = h.getValueAtPercentile(99) / 1000.0;
+	    max = h.getMax() / 1000.0;
+	    samples = h.getCount();
+	    loss = _loss;
+	    jitter = _jitter;
+	    period = _period;
+	}
+
+	public String toString() {
+	    return String.format(Locale.US, "%.1f:%.1f:%.1f:%.1f:%.3f:%.1f:%d",
+				 p50, p90, p99, max, loss, jitter, period);
+	}
+    }
+
+    /**
+     *  Create a heartbeat for a session. It does not beat until
+     *  started.
+     *
+     *  @param _session The session whose chopper is sent pulses
+     */
+    Heartbeat(Session _session) {
+	session = _session;
+	pending = new AtomicReferenceArray<Pulse>(PENDING);
+	current = new LatencyHistogram();
+	previous = new LatencyHistogram();
+	windowStart = lastReport = System.currentTimeMillis();
+    }
+
+    /**
+     *  Set the time delay between heartbeats. The default period is
+     *  one second. If the period is adaptive this is the longest it
+     *  will be.
+     *
+     *  @param newPeriod The number of milliseconds to wait between
+     *  heartbeat messages 
+     */
+    public void setPeriod(int newPeriod) {
+	basePeriod = newPeriod;
+	period = newPeriod;
+    }
+
+    /**
+     *  Choose whether the period shortens when pulses are lost. It
+     *  does by default.
+     */
+    public void setAdaptive(boolean _adaptive) {
+	adaptive = _adaptive;
+	if (! adaptive)
+	    period = basePeriod;
+    }
+
+    /**
+     *  @return The quality of the link over the last one to two minutes.
+     */
+    public synchronized LinkStats getStats() {
+	rollWindow();
+	LatencyHistogram h = new LatencyHistogram();
+	h.add(current);
+	h.add(previous);
+	long replies = answered[0] + answered[1];
+	long losses = lost[0] + lost[1];
+	double loss = (replies + losses == 0) ? 0 : (double) losses / (replies + losses);
+	return new LinkStats(h, loss, jitter, period);
+    }
+
+    /**
+     *  Starts the heart. Note that no pulse is sent while the session
+     *  is not connected, so this is safe to run at any time.
+     *
+     *  @param _timer The scheduler the pulses are sent from
+     */
+    void start(ScheduledExecutorService _timer) {
+	timer = _timer;
+	timer.schedule(this, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *  Send one pulse, and schedule the next. This is run by the
+     *  scheduler given to start and does not need to be called by an
+     *  API user.
+     */
+    public void run() {
+	try {
+	    expirePulses();
+
+	    if (session.isConnected()) {
+		int id = lastMessageId++;
+		Pulse old = pending.getAndSet(slot(id), new Pulse(id, System.nanoTime()));
+		if (old != null)
+		    pulseLost();
+		session.send(PREFIX + id);
+	    }
+
+	    long now = System.currentTimeMillis();
+	    if (now - lastReport >= REPORT_PERIOD) {
+		lastReport = now;
+		session.hook("LINK:" + getStats());
+	    }
+	} finally {
+	    /* The period may have changed since the last pulse */
+	    timer.schedule(this, period, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /**
+     *  Reads in a heartbeat response and calculates the last round trip time.
+     */
+    public void update(String message) {
+	if (! message.startsWith(PREFIX))
+	    return;
+
+	long received = System.nanoTime();
+	int id;
+	try {
+	    id = Integer.parseInt(message.substring(PREFIX.length()));
+	} catch (NumberFormatException e) {
+	    return;
+	}
+
+	/* A reply to a pulse already counted as lost finds its slot
+	 * empty or reused, and is ignored */
+	int slot = slot(id);
+	Pulse p = pending.get(slot);
+	if (p == null || p.id != id || ! pending.compareAndSet(slot, p, null))
+	    return;
+
+	long micros = (received - p.sent) / 1000;
+	pulseAnswered(micros);
+	session.deliver(String.format(Locale.US, "PING:%.2f", micros / 1000.0));
+    }
+
+    /* The slot of pending a pulse waits in; ids from the wire may be
+     * negative, as may ours once they wrap */
+    private static int slot(int id) {
+	return (id % PENDING + PENDING) % PENDING;
+    }
+
+    /* Forget the pulses that have waited longer than the loss timeout */
+    private void expirePulses() {
+	long timeout;
+	synchronized (this) {
+	    timeout = Math.max(MIN_LOSS_TIMEOUT,
+			       4 * Math.max(current.getValueAtPercentile(99),
+					    previous.getValueAtPercentile(99)) / 1000);
+	}
+
+	long now = System.nanoTime();
+	for (int i=0; i<PENDING; i++) {
+	    Pulse p = pending.get(i);
+	    if (p != null && (now - p.sent) / 1000000 > timeout && pending.compareAndSet(i, p, null))
+		pulseLost();
+	}
+    }
+
+    private synchronized void pulseAnswered(long micros) {
+	rollWindow();
+	current.record(micros);
+	answered[0]++;
+
+	/* Smoothed as in RFC 3550 */
+	double rtt = micros / 1000.0;
+	if (lastRoundTrip >= 0)
+	    jitter += (Math.abs(rtt - lastRoundTrip) - jitter) / 16;
+	lastRoundTrip = rtt;
+
+	if (adaptive && ++consecutiveReplies >= RECOVERY && period < basePeriod) {
+	    period = Math.min(basePeriod, period * 2);
+	    consecutiveReplies = 0;
+	}
+    }
+
+    private synchronized void pulseLost() {
+	rollWindow();
+	lost[0]++;
+	consecutiveReplies = 0;
+	if (adaptive && period > MIN_PERIOD) {
+	    period = Math.max(MIN_PERIOD, period / 2);
+	    Debug.log(Debug.Level.WARN, "net", "Heartbeat to %s lost; pulsing every %d ms",
+		      session.getId(), period);
+	}
+    }
+
+    /* Start a new window once the current one is WINDOW old */
+    private void rollWindow() {
+	long now = System.currentTimeMillis();
+	long elapsed = now - windowStart;
+	if (elapsed < WINDOW)
+	    return;
+	windowStart = now;
+
+	LatencyHistogram h = previous;
+	previous = current;
+	current = h;
+	current.reset();
+	answered[1] = answered[0];
+	lost[1] = lost[0];
+	answered[0] = lost[0] = 0;
+
+	/* Nothing happened in the window just ended */
+	if (elapsed >= 2 * WINDOW) {
+	    previous.reset();
+	    answered[1] = lost[1] = 0;
+	}
+    }
+}
@@ -66,6 +66,8 @@ public class ImageComponent extends JComponent {
 
 	    segmenter = Segmenter.getSegmenterForPoint(img, x, y);
 	    loc = segmenter.segment(img);
+	    /* The chopper's tracker follows the same blob */
+	    SessionManager.sendToSelected("IMAGE:" + segmenter.toString());
 
 	    repaint();
 	}
@@ -102,9 +102,9 @@ public class ImagePanel extends JPanel implements Updatable {
 
     /** Send the quality value to the image capture device */
     private void setQuality() {
-	DataReceiver.sendToDefault("IMAGE:SET:QUALITY:" + imageQuality.getValue());
+	SessionManager.sendToSelected("IMAGE:SET:QUALITY:" + imageQuality.getValue());
 	if (imageSizes.getItemCount() > 0)
-	    DataReceiver.sendToDefault(((ImageSizeEntry) imageSizes.getSelectedItem()).setSizeString());
+	    SessionManager.sendToSelected(((ImageSizeEntry) imageSizes.getSelectedItem()).setSizeString());
     }
 
     /** Set the image shown in the preview pane
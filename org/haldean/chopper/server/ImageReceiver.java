@@ -33,7 +33,8 @@ public class ImageReceiver implements Runnable {
    *
    * @param in The ObjectInputStream to read the image from
    * @param header The incoming image message 
-   * @param imageComp The ImageComponent to send the image to 
+   * @param imageComp The ImageComponent to send the image to, or
+   * null if the image is not to be shown
    * @param callback The callback to call after receipt
    * @throws IllegalArgumentException when the supplied header is not
    * a valid image receipt
@@ -62,7 +63,7 @@ public class ImageReceiver implements Runnable {
    */
   public void run() {
     /* Just because it's good to know */
-    Debug.log("Receiving image length " + len);
+    Debug.log(Debug.Level.DEBUG, "image", "Receiving image length %d", len);
     /* We read the image into this array */
     byte[] imageData = new byte[len];
 
@@ -72,7 +73,8 @@ public class ImageReceiver implements Runnable {
       BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
 	
       /* Set the image and the capture time of the component */
-      imageComp.setImage(image);
+      if (imageComp != null)
+	imageComp.setImage(image);
 
       /* Save the image to disk */
       if (imageStoreDirectory != null) {
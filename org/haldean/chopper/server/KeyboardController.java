@@ -109,7 +109,8 @@ public class KeyboardController extends UiController {
     }
 
     private void setVelocity(double[] velocities, double bearing) {
-	Debug.log("New velocity: " + Arrays.toString(velocities) + ", " + bearing);
+	Debug.log(Debug.Level.DEBUG, "input", "New velocity: %s, %f",
+		  Arrays.toString(velocities), bearing);
 	if (!dryRun) {
 	    EnsignCrusher.manualVelocity(velocities, bearing);
 	}
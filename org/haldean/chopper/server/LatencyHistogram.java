@@ -0,0 +1,99 @@
+package org.haldean.chopper.server;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram. Values are
+ * recorded in microseconds into log-linear buckets: below 128 each
+ * microsecond has its own bucket, and above that every power-of-two
+ * range is split into 64 buckets, so any value is known to within
+ * about 1.5%. Recording is O(1) and the counts take a fixed amount
+ * of memory however many values are recorded.
+ *
+ * Values above MAX_MICROS are recorded as MAX_MICROS. The histogram
+ * is not thread-safe.
+ */
+public class LatencyHistogram {
+    /** The largest value that can be recorded, a little over a minute */
+    public static final long MAX_MICROS = (1L << 26) - 1;
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = index(MAX_MICROS) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long max = 0;
+
+    /* The bucket holding a value: v itself below 2 * SUB_BUCKETS,
+     * and otherwise the top SUB_BUCKET_BITS + 1 bits of v offset by
+     * how far they were shifted */
+    private static int index(long v) {
+	if (v < 2 * SUB_BUCKETS)
+	    return (int) v;
+	int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+	return shift * SUB_BUCKETS + (int) (v >> shift);
+    }
+
+    /* The middle of the range of values that land in a bucket */
+    private static long valueAt(int index) {
+	if (index < 2 * SUB_BUCKETS)
+	    return index;
+	int shift = index / SUB_BUCKETS - 1;
+	long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	return lowest + (1L << shift) / 2;
+    }
+
+    /** Record a value.
+     *  @param micros The value in microseconds */
+    public void record(long micros) {
+	micros = Math.max(0, Math.min(MAX_MICROS, micros));
+	counts[index(micros)]++;
+	total++;
+	max = Math.max(max, micros);
+    }
+
+    /** Add all of the values recorded in another histogram to this one */
+    public void add(LatencyHistogram other) {
+	for (int i=0; i<BUCKETS; i++)
+	    counts[i] += other.counts[i];
+	total += other.total;
+	max = Math.max(max, other.max);
+    }
+
+    /** Forget every recorded value. */
+    public void reset() {
+	for (int i=0; i<BUCKETS; i++)
+	    counts[i] = 0;
+	total = 0;
+	max = 0;
+    }
+
+    /** @return The number of values recorded */
+    public long getCount() {
+	return total;
+    }
+
+    /** @return The largest value recorded, in microseconds */
+    public long getMax() {
+	return max;
+    }
+
+    /** Find the value below which a given fraction of the recorded
+     *  values fall.
+     *  @param percentile The percentile, from 0 to 100
+     *  @return The value in microseconds, or 0 if nothing has been
+     *  recorded */
+    public long getValueAtPercentile(double percentile) {
+	if (total == 0)
+	    return 0;
+	long rank = (long) Math.ceil(percentile / 100.0 * total);
+	rank = Math.max(1, Math.min(total, rank));
+
+	long seen = 0;
+	for (int i=0; i<BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.min(valueAt(i), max);
+	}
+	return max;
+    }
+}
@@ -0,0 +1,240 @@
+package org.haldean.chopper.server;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.*;
+
+/**
+ *  A scrolling log of messages that stays fast however long the
+ *  session runs. Lines are kept in a fixed-size ring, so the oldest are
+ *  dropped once it is full, and they are shown in a JList, which only
+ *  renders the rows that are on screen.
+ *
+ *  update() may be called from any thread and only queues the line;
+ *  queued lines are added to the ring on the event dispatch thread
+ *  once per frame by the RenderScheduler. The console can be filtered
+ *  by message prefix, the part of each line before the first colon;
+ *  lines whose prefix has no checkbox are shown or hidden together
+ *  under "Other".
+ */
+public class LogConsole extends JPanel implements Updatable {
+    /** The number of lines kept when no capacity is given */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private String name;
+
+    /* Lines waiting to be added on the EDT, and how many there are */
+    private ConcurrentLinkedQueue<String> pending;
+    private AtomicInteger pendingCount;
+    private final Runnable flush;
+
+    /* The ring of lines. Only touched on the EDT. */
+    private String[] lines;
+    private int mask;
+    private long lineCount = 0;
+
+    /* The indices of the lines that pass the filter, also a ring. The
+     * entries from viewStart to viewCount that still refer to kept
+     * lines are the rows of the list. */
+    private long[] view;
+    private long viewStart = 0;
+    private long viewCount = 0;
+
+    /* The prefixes with checkboxes, and those currently hidden */
+    private String[] prefixes;
+    private Set<String> hidden;
+    private boolean hideOther = false;
+
+    private LogModel model;
+    private JList list;
+    private JScrollPane scroll;
+    private JPanel controls;
+    private JCheckBox scrollLock;
+
+    /** Create a console with no filters
+     *  @param _name The name of the console */
+    public LogConsole(String _name) {
+	this(_name, new String[0], DEFAULT_CAPACITY);
+    }
+
+    /** Create a console
+     *  @param _name The name of the console
+     *  @param _prefixes The message prefixes to give filter checkboxes
+     *  @param capacity The number of lines to keep; rounded up to a power of two */
+    public LogConsole(String _name, String[] _prefixes, int capacity) {
+	super(new BorderLayout());
+	name = _name;
+	prefixes = _prefixes;
+
+	int c = 1;
+	while (c < capacity)
+	    c <<= 1;
+	lines = new String[c];
+	view = new long[c];
+	mask = c - 1;
+
+	pending = new ConcurrentLinkedQueue<String>();
+	pendingCount = new AtomicInteger();
+	hidden = new HashSet<String>();
+	flush = new Runnable() {
+		public void run() {
+		    flush();
+		}
+	    };
+
+	model = new LogModel();
+	list = new JList(model);
+	list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+	/* A prototype row means rows are never measured one by one */
+	StringBuilder prototype = new StringBuilder();
+	for (int i=0; i<160; i++)
+	    prototype.append('X');
+	list.setPrototypeCellValue(prototype.toString());
+	scroll = new JScrollPane(list);
+
+	/* This checkbox tells us whether we should have the console
+	 * automatically keep up with new input */
+	scrollLock = new JCheckBox("Scroll Lock", true);
+
+	controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+	controls.add(scrollLock);
+	for (String prefix : prefixes)
+	    controls.add(filterBox(prefix));
+	if (prefixes.length > 0)
+	    controls.add(filterBox(null));
+
+	add(scroll, BorderLayout.CENTER);
+	add(controls, BorderLayout.SOUTH);
+    }
+
+    /* A checkbox that shows or hides one prefix, or all others if null */
+    private JCheckBox filterBox(final String prefix) {
+	final JCheckBox box = new JCheckBox((prefix == null) ? "Other" : prefix, true);
+	box.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    if (prefix == null)
+			hideOther = ! box.isSelected();
+		    else if (box.isSelected())
+			hidden.remove(prefix);
+		    else
+			hidden.add(prefix);
+		    refilter();
+		}
+	    });
+	return box;
+    }
+
+    /** Used for TabPanes */
+    public String getName() {
+	return name;
+    }
+
+    /** Add a line to the console. Safe to call from any thread.
+     *  @param msg The line to add */
+    public void update(String msg) {
+	pending.add(msg);
+	/* Don't let the queue outgrow the ring if the EDT falls behind */
+	if (pendingCount.incrementAndGet() > lines.length) {
+	    if (pending.poll() != null)
+		pendingCount.decrementAndGet();
+	}
+	RenderScheduler.update(this, flush);
+    }
+
+    private boolean accepts(String line) {
+	int colon = line.indexOf(':');
+	String prefix = (colon < 0) ? line : line.substring(0, colon);
+	for (String p : prefixes)
+	    if (p.equals(prefix))
+		return ! hidden.contains(p);
+	return ! hideOther;
+    }
+
+    /* The index of the oldest line still kept */
+    private long firstLine() {
+	return Math.max(0, lineCount - lines.length);
+    }
+
+    /* Drop rows whose lines have been overwritten */
+    private void trimView() {
+	long first = firstLine();
+	while (viewStart < viewCount && view[(int) (viewStart & mask)] < first)
+	    viewStart++;
+    }
+
+    /* Move the queued lines into the ring; runs on the EDT */
+    private void flush() {
+	int oldSize = model.getSize();
+	long oldStart = viewStart;
+	long oldCount = viewCount;
+
+	String line;
+	while ((line = pending.poll()) != null) {
+	    pendingCount.decrementAndGet();
+	    lines[(int) (lineCount & mask)] = line;
+	    lineCount++;
+	    /* Trim first, so the new row never lands on a stale one */
+	    trimView();
+	    if (accepts(line)) {
+		view[(int) (viewCount & mask)] = lineCount - 1;
+		viewCount++;
+	    }
+	}
+
+	int removed = (int) Math.min(oldSize, viewStart - oldStart);
+	int added = (int) Math.min(viewCount - oldCount, model.getSize());
+	model.changed(removed, added);
+
+	if (scrollLock.isSelected() && model.getSize() > 0)
+	    list.ensureIndexIsVisible(model.getSize() - 1);
+    }
+
+    /* Rebuild the rows after the filter changes; runs on the EDT */
+    private void refilter() {
+	int oldSize = model.getSize();
+	viewStart = viewCount = 0;
+	for (long i=firstLine(); i<lineCount; i++) {
+	    if (accepts(lines[(int) (i & mask)])) {
+		view[(int) (viewCount & mask)] = i;
+		viewCount++;
+	    }
+	}
+	model.changed(oldSize, model.getSize());
+    }
+
+    /** Update the look and feel of this component */
+    public void updateUI() {
+	if (controls != null) {
+	    list.updateUI();
+	    scroll.updateUI();
+	    scroll.getVerticalScrollBar().updateUI();
+	    controls.updateUI();
+	    for (Component c : controls.getComponents())
+		((JComponent) c).updateUI();
+	}
+	super.updateUI();
+    }
+
+    /** Presents the visible rows to the JList */
+    private class LogModel extends AbstractListModel {
+	public int getSize() {
+	    return (int) (viewCount - viewStart);
+	}
+
+	public Object getElementAt(int index) {
+	    return lines[(int) (view[(int) ((viewStart + index) & mask)] & mask)];
+	}
+
+	/* Rows were dropped from the top and added at the bottom */
+	void changed(int removed, int added) {
+	    if (removed > 0)
+		fireIntervalRemoved(this, 0, removed - 1);
+	    if (added > 0)
+		fireIntervalAdded(this, getSize() - added, getSize() - 1);
+	}
+    }
+}
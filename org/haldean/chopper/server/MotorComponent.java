@@ -27,6 +27,12 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 
 	display = new MotorDisplay();
 	add(display, BorderLayout.CENTER);
+	/* The display shows the speeds of whichever chopper is selected */
+	SessionManager.getInstance().addListener(new SessionManager.Listener() {
+		public void sessionSelected(Session s) {
+		    RenderScheduler.repaint(display);
+		}
+	    });
 
 	controlPanel = new UpdateUiPanel(new GridLayout(2, 3, 10, 10));
 	for (Motor m : Motor.values()) {
@@ -63,6 +69,13 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 	return new String[] {"MOTORSPEED"};
     }
 
+    /** @return The history of the speed of a motor of the selected
+     *  session, shared through the TimeSeriesStore as
+     *  MOTORSPEED:&lt;motor&gt;. */
+    public static TimeSeries speedSeries(Motor m) {
+	return TimeSeriesStore.get("MOTORSPEED:" + m.toString());
+    }
+
     public void process(Message message) {
 	for (Motor m : Motor.values()) {
 	    int index = 0;
@@ -70,8 +83,10 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 	    if (m.equals(Motor.XPOS)) index = 2;
 	    if (m.equals(Motor.XNEG)) index = 3;
 	    double speed = new Double(message.getPart(index + 1));
-	    display.setMotorSpeed(m, speed);
+	    if (speed >= MOTOR_MIN && speed <= MOTOR_MAX)
+		speedSeries(m).add(speed);
 	}
+	RenderScheduler.repaint(display);
     }
 
     private void updateSpeeds() {
@@ -127,8 +142,6 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 
     private class MotorDisplay extends JComponent {
 	private final int motorRadius = 20;
-	private final int motorCount = 4;
-	private double[] motorSpeeds;
 
 	private Color highSpeedColor = StyleProvider.highValue();
 	private Color lowSpeedColor = StyleProvider.lowValue();
@@ -137,19 +150,12 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 	private Color labelColor = StyleProvider.background();
 
 	public MotorDisplay() {
-	    motorSpeeds = new double[motorCount];
 	    setPreferredSize(new Dimension(300, 300));
 	}
 
-	public void setMotorSpeed(Motor motor, double speed) {
-	    if (speed < MOTOR_MIN || speed > MOTOR_MAX)
-		return;
-	    motorSpeeds[motor.ordinal()] = speed;
-	    repaint();
-	}
-
 	private void motorCircle(Graphics2D g2, Motor m, int width, int height) {
 	    int x = 0, y = 0;
+	    double speed = speedSeries(m).last();
 	    switch (m) {
 	    case XPOS:
 		x = width - motorRadius * 2 - 30;
@@ -169,11 +175,11 @@ public class MotorComponent extends UpdateUiPanel implements MessageHook {
 		break;
 	    }
 
-	    g2.setColor(StyleProvider.forValue((MOTOR_MAX - motorSpeeds[m.ordinal()]) / MOTOR_MAX));
+	    g2.setColor(StyleProvider.forValue((MOTOR_MAX - speed) / MOTOR_MAX));
 	    g2.fillOval(x, y, motorRadius * 2, motorRadius * 2);
 
 	    g2.setColor(labelColor);
-	    String label = new Integer((int) (motorSpeeds[m.ordinal()] * 100)).toString();
+	    String label = new Integer((int) (speed * 100)).toString();
 	    g2.drawString(m.toString(), (int) (x + motorRadius - 3 - (4 * (m.toString().length() - 1))),
 			  y + (int) (1.2 * motorRadius) - 3);
 	    g2.drawString(label, (int) (x + motorRadius - 3 - (4 * (label.length() - 1))),
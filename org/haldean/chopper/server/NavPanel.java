@@ -3,24 +3,38 @@ package org.haldean.chopper.server;
 import gov.nasa.worldwind.geom.Position;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 
+import org.haldean.chopper.nav.NavDest;
+import org.haldean.chopper.server.nav.DrawNav;
 import org.haldean.chopper.server.nav.DrawNavDest;
+import org.haldean.chopper.server.nav.DrawNavList;
+import org.haldean.chopper.server.nav.MissionPlanner;
 import org.haldean.chopper.server.nav.NavGui;
 
 public class NavPanel extends UpdateUiPanel {
     private NavGui navGui;
+    private MissionPlanner planner;
+    /* True while a mission is being planned; only touched on the event thread */
+    private boolean planning = false;
 
     private JButton delete;
     private JButton copy;
     private JButton move;
     private JButton newList;
     private JButton execute;
+    private JButton plan;
 
     public NavPanel() {
 	super(new BorderLayout());
 
 	navGui = new NavGui();
+	planner = new MissionPlanner();
 	JScrollPane pane = new JScrollPane(navGui);
 
         add(pane, BorderLayout.CENTER);
@@ -33,6 +47,7 @@ public class NavPanel extends UpdateUiPanel {
 	move = new JButton("Move");
 	newList = new JButton("New List");
 	execute = new JButton("Execute");
+	plan = new JButton("Plan Tour");
         
 	NavPanelActionListener ml = new NavPanelActionListener();
         delete.addActionListener(ml);
@@ -40,13 +55,15 @@ public class NavPanel extends UpdateUiPanel {
         move.addActionListener(ml);
         newList.addActionListener(ml);
 	execute.addActionListener(ml);
+	plan.addActionListener(ml);
 
-        buttons.setLayout(new GridLayout(1, 5));
+        buttons.setLayout(new GridLayout(1, 6));
         buttons.add(delete);
         buttons.add(copy);
         buttons.add(move);
         buttons.add(newList);
 	buttons.add(execute);
+	buttons.add(plan);
     }
     
     private class NavPanelActionListener implements ActionListener {
@@ -62,6 +79,8 @@ public class NavPanel extends UpdateUiPanel {
 		navGui.insertNavList(listName.replaceAll(" ", "_"));
 	    } else if (e.getSource() == execute) {
 		navGui.makeItSo();
+	    } else if (e.getSource() == plan) {
+		planTour();
 	    }
 	}
     }
@@ -74,6 +93,97 @@ public class NavPanel extends UpdateUiPanel {
 						 velocity, targetRadius));
     }
 
+    /** Something to do with a planned mission, on the event thread */
+    public interface PlanListener {
+	public void planned(MissionPlanner.Mission _mission);
+    }
+
+    /** Plan a mission on a background thread, so that the map and the
+     *  panels keep painting while the planner searches, and hand it
+     *  back on the event thread. Missions are planned one at a time, so
+     *  the task may change the planner's settings before it plans.
+     *  @param _task Plans the mission, off the event thread
+     *  @param _listener Receives the mission on the event thread */
+    public void plan(final Callable<MissionPlanner.Mission> _task, final PlanListener _listener) {
+	if (planning) {
+	    JOptionPane.showMessageDialog(this, "Another mission is still being planned",
+					  "Error", JOptionPane.ERROR_MESSAGE);
+	    return;
+	}
+	planning = true;
+	plan.setEnabled(false);
+	new SwingWorker<MissionPlanner.Mission, Void>() {
+	    protected MissionPlanner.Mission doInBackground() throws Exception {
+		return _task.call();
+	    }
+
+	    protected void done() {
+		planning = false;
+		plan.setEnabled(true);
+		try {
+		    _listener.planned(get());
+		} catch (InterruptedException e) {
+		    Debug.log("Mission planning interrupted");
+		} catch (ExecutionException e) {
+		    if (e.getCause() instanceof IllegalArgumentException)
+			JOptionPane.showMessageDialog(NavPanel.this, e.getCause().getMessage(),
+						      "Error", JOptionPane.ERROR_MESSAGE);
+		    else
+			Debug.log("Mission planning failed: " + e.getCause());
+		}
+	    }
+	}.execute();
+    }
+
+    /** Reorder the selected list of destinations into the shortest tour
+     *  from its first one, and show what it should cost to fly */
+    private void planTour() {
+	final DrawNavList list = navGui.getSelectedTour();
+	if (list == null) {
+	    JOptionPane.showMessageDialog(this, "Select a list holding only destinations",
+					  "Error", JOptionPane.ERROR_MESSAGE);
+	    return;
+	}
+	/* Copies, since the list may be edited while the tour is planned */
+	final String name = list.getName();
+	final List<NavDest> dests = new ArrayList<NavDest>();
+	ListIterator<DrawNav> iterator = list.listIterator();
+	while (iterator.hasNext())
+	    dests.add(((DrawNavDest) iterator.next()).clone());
+
+	plan(new Callable<MissionPlanner.Mission>() {
+		public MissionPlanner.Mission call() throws InterruptedException {
+		    return planner.planTour(name, dests);
+		}
+	    }, new PlanListener() {
+		public void planned(MissionPlanner.Mission _mission) {
+		    navGui.setTour(list, _mission);
+		    showMission(_mission);
+		}
+	    });
+    }
+
+    /** Insert a planned mission at the selected slot
+     *  @param _mission The mission to insert */
+    public void insertMission(MissionPlanner.Mission _mission) {
+	if (navGui.insertMission(_mission))
+	    showMission(_mission);
+	else
+	    JOptionPane.showMessageDialog(this, "Select a slot for the mission",
+					  "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /** @return The planner that orders and sweeps missions */
+    public MissionPlanner getPlanner() {
+	return planner;
+    }
+
+    private void showMission(MissionPlanner.Mission _mission) {
+	JOptionPane.showMessageDialog(this, _mission.getSummary(), "Mission",
+				      _mission.isFeasible() ? JOptionPane.INFORMATION_MESSAGE
+				      : JOptionPane.WARNING_MESSAGE);
+    }
+
     public String getName() {
 	return "Navigation Tasks";
     }
@@ -178,7 +178,12 @@ public class OrientationComponent extends JPanel {
      *  @param o The current orientation of the chopper */
     public void setOrientation(Orientation o) {
 	angleBehavior.setAngle(o);
-	angleBehavior.processStimulus(null);
+	/* The scene graph is updated once per frame with the newest angle */
+	RenderScheduler.update(this, new Runnable() {
+		public void run() {
+		    angleBehavior.processStimulus(null);
+		}
+	    });
     }
 
     /** A Behavior class that allows the angle of the enclosed
@@ -1,9 +1,19 @@
 package org.haldean.chopper.server;
 
+import java.util.HashMap;
+
 import net.java.games.input.*;
 import javax.swing.*;
 
-/** A thread to take input from a game pad and cue various events in the UI 
+/** A thread to take input from a game pad and cue various events in the UI.
+ *
+ *  Input is read from the game pad's event queue, so only the
+ *  components that changed are looked at. In control mode the sticks
+ *  are run through a deadband and quantized, and a new manual command
+ *  is sent only when the quantized velocity or bearing changes. Small
+ *  changes are sent at most padrate times a second (an argument,
+ *  default 10); a change of LARGE_DELTA or more, or letting go of the
+ *  sticks, is sent straight away.
  *  @author William Brown */
 public class PadController extends UiController {
     private ServerHost ui;
@@ -14,37 +24,59 @@ public class PadController extends UiController {
 
     /* The array of buttons and the array index for each */
     private Component buttons[];
-    public final int BUTTON_A = 0;
-    public final int BUTTON_B = 1;
-    public final int BUTTON_X = 2;
-    public final int BUTTON_Y = 3;
-    public final int BUTTON_L = 4;
-    public final int BUTTON_R = 5;
-    public final int BUTTON_START = 6;
-    public final int BUTTON_XBOX = 7;
-    public final int BUTTON_BACK = 8;
-    public final int JOYSTICK_L = 9;
-    public final int JOYSTICK_R = 10;
-    public final int BUTTON_COUNT = 11;
+    public static final int BUTTON_A = 0;
+    public static final int BUTTON_B = 1;
+    public static final int BUTTON_X = 2;
+    public static final int BUTTON_Y = 3;
+    public static final int BUTTON_L = 4;
+    public static final int BUTTON_R = 5;
+    public static final int BUTTON_START = 6;
+    public static final int BUTTON_XBOX = 7;
+    public static final int BUTTON_BACK = 8;
+    public static final int JOYSTICK_L = 9;
+    public static final int JOYSTICK_R = 10;
+    public static final int BUTTON_COUNT = 11;
 
     /* The array of axes and the array index for each */
     private Component axes[];
     public float lastAxisValue[];
-    public final int AXIS_L_H = 0;
-    public final int AXIS_L_V = 1;
-    public final int AXIS_L_TRIGGER = 2;
-    public final int AXIS_R_H = 3;
-    public final int AXIS_R_V = 4;
-    public final int AXIS_R_TRIGGER = 5;
-    public final int D_PAD = 6;
-    public final int AXIS_COUNT = 7;
+    public static final int AXIS_L_H = 0;
+    public static final int AXIS_L_V = 1;
+    public static final int AXIS_L_TRIGGER = 2;
+    public static final int AXIS_R_H = 3;
+    public static final int AXIS_R_V = 4;
+    public static final int AXIS_R_TRIGGER = 5;
+    public static final int D_PAD = 6;
+    public static final int AXIS_COUNT = 7;
+
+    /* The array index for each component, for looking up events */
+    private HashMap<Component, Integer> buttonIndex;
+    private HashMap<Component, Integer> axisIndex;
+
+    /* Stick values closer to center than this are treated as zero */
+    public static final float DEADBAND = 0.2F;
+    /* Velocities are rounded to a multiple of this, in m/s */
+    public static final double VELOCITY_STEP = 0.1;
+    /* Bearings are rounded to a multiple of this, in degrees */
+    public static final double BEARING_STEP = 5.0;
+    /* A change in any velocity this large, in m/s, is sent at once */
+    public static final double LARGE_DELTA = 0.5;
+    /* The default maximum number of manual commands per second */
+    public static final int DEFAULT_RATE = 10;
+    /* How often the event queue is read, in ms */
+    private static final int EVENT_PERIOD = 10;
 
     private int lastButtonMask = 0;
+    private int buttonState = 0;
 
     private boolean globeMovement = true;
-    
-    private final double minDiff = 250; //ms
-    private long lastAxesUpdate;
+    private long lastGlobeUpdate;
+
+    /* The last manual command sent, and when */
+    private double[] sentVelocities;
+    private double sentBearing;
+    private long lastSent;
+    private long minInterval;
     
     private double theta = 0; //bearing
     
@@ -53,6 +85,14 @@ public class PadController extends UiController {
     public PadController(ServerHost _ui) {
 	ui = _ui;
 	sl = ui.statusLabel;
+
+	int rate = DEFAULT_RATE;
+	try {
+	    rate = new Integer(ServerCreator.getArgument("padrate"));
+	} catch (IllegalArgumentException e) {
+	    /* Default command rate. */
+	}
+	minInterval = 1000 / Math.max(1, rate);
 	
 	ControllerEnvironment env = ControllerEnvironment.getDefaultEnvironment();
 	Controller controllers[] = env.getControllers();
@@ -122,11 +162,20 @@ public class PadController extends UiController {
 		    axes[D_PAD] = c;
 	    } 
 	}
+
+	buttonIndex = new HashMap<Component, Integer>();
+	for (int i=0; i<BUTTON_COUNT; i++)
+	    if (buttons[i] != null)
+		buttonIndex.put(buttons[i], i);
+	axisIndex = new HashMap<Component, Integer>();
+	for (int i=0; i<AXIS_COUNT; i++)
+	    if (axes[i] != null)
+		axisIndex.put(axes[i], i);
     }
 
     /**
      * Enable or disable the pad controller. This will not stop it
-     * from polling the controller, but it will stop it from acting on
+     * from reading the controller, but it will stop it from acting on
      * any button or controller inputs.
      */
     public void setEnabled(boolean enabled) {
@@ -135,11 +184,7 @@ public class PadController extends UiController {
 
     /** Get an integer bitmask representing each of the buttons */
     private int buttonMask() {
-	int mask = 0;
-	for (int i=0; i<buttons.length; i++)
-	    if (buttons[i] != null && buttons[i].getPollData() == 1)
-		mask += (1 << i);
-	return mask;
+	return buttonState;
     }
 
     /** Check to see if a button is set in a bitmask 
@@ -158,25 +203,47 @@ public class PadController extends UiController {
     public boolean buttonIsSet(int button) {
 	return buttonIsSet(lastButtonMask, button);
     }
+
+    /** Read everything waiting in the event queue of the game pad */
+    private void readEvents(EventQueue queue, Event event) {
+	while (queue.getNextEvent(event)) {
+	    Component c = event.getComponent();
+	    float value = event.getValue();
+
+	    Integer i = axisIndex.get(c);
+	    if (i != null) {
+		lastAxisValue[i] = value;
+		continue;
+	    }
+
+	    i = buttonIndex.get(c);
+	    if (i != null) {
+		if (value == 1)
+		    buttonState |= (1 << i);
+		else
+		    buttonState &= ~(1 << i);
+	    }
+	}
+    }
     
     /** Perform an action based on the status of the buttons
      * 
      */
     private void buttonMaybeAction() {
-    	int currentMask = buttonMask();
-    	/* In Conrol Mode, B changes orientation */
-        if (!globeMovement && buttonIsSet(currentMask, BUTTON_B)) {
-        	double mX = getAxis(AXIS_L_H);
-        	double mY = -getAxis(AXIS_L_V);
-        	if ( Math.sqrt(mX * mX + mY * mY) > .7 ) { //only take measurements .7 radius out. Arbitrary. Magic Number. Deal.
-    	    	double angle = Math.atan2(mY, mX);
-    	    	angle = angle * 180.0 / Math.PI;
-    	    	angle = 90.0 - angle;
-    	    	if (angle < 0.0)
-    	    		angle += 360.0;
-    	    	theta = angle;
-        	}
-        }
+	int currentMask = buttonMask();
+	/* In Conrol Mode, B changes orientation */
+	if (!globeMovement && buttonIsSet(currentMask, BUTTON_B)) {
+	    double mX = getAxis(AXIS_L_H);
+	    double mY = -getAxis(AXIS_L_V);
+	    if ( Math.sqrt(mX * mX + mY * mY) > .7 ) { //only take measurements .7 radius out. Arbitrary. Magic Number. Deal.
+		double angle = Math.atan2(mY, mX);
+		angle = angle * 180.0 / Math.PI;
+		angle = 90.0 - angle;
+		if (angle < 0.0)
+		    angle += 360.0;
+		theta = angle;
+	    }
+	}
     }
 
     /** Perform an action based on the status of the buttons
@@ -230,63 +297,90 @@ public class PadController extends UiController {
      *  @param axis The index of the axis to check
      *  @return A number from -1 to 1 representing the value of the joystick */
     public float getAxis(int axis) {
-    float polled = axes[axis].getPollData();
-	if (Math.abs(polled) < 0.2)
+	float polled = lastAxisValue[axis];
+	if (Math.abs(polled) < DEADBAND)
 	    return 0;
-	else {
-		if (polled > 0)
-			return 1.25F * (polled - 0.2F);
-		else
-			return 1.25F * (polled + 0.2F);
+	else if (polled > 0)
+	    return (polled - DEADBAND) / (1 - DEADBAND);
+	else
+	    return (polled + DEADBAND) / (1 - DEADBAND);
     }
+
+    /** Round a value to the nearest multiple of a step */
+    private static double quantize(double value, double step) {
+	return Math.round(value / step) * step;
     }
 
     /** Trigger events based on the values of the axes */
-    private void axesAction(int mask) {
+    private void axesAction(int mask, long now) {
 	if (globeMovement) {
+	    /* The view moves a fixed amount per update, so keep the
+	     * original pace however often events are read */
+	    if (now - lastGlobeUpdate < POLL_PERIOD)
+		return;
+	    lastGlobeUpdate = now;
 	    float zoom = getAxis(AXIS_L_TRIGGER) - getAxis(AXIS_R_TRIGGER);
 	    ui.globeComponent.moveView(getAxis(AXIS_L_H), getAxis(AXIS_L_V), 
 				       zoom, getAxis(AXIS_R_V), getAxis(AXIS_R_H));
-	} else {
+	} else if (!buttonIsSet(mask, BUTTON_B)) {
+	    /* If B is set, we're taking bearing. Don't alter velocity. */
+	    //3.0 is the value of the maximum normal vector
+	    double adjustment = EnsignCrusher.MAX_VELOCITY / Math.sqrt(3.0);
 	    double[] vels = new double[3];
-	    
-	    if (!buttonIsSet(mask, BUTTON_B)) { //if it's set, we're taking bearing. don't alter velocity.
-		    vels[0] = getAxis(AXIS_L_H);
-		    vels[1] = -getAxis(AXIS_L_V);
-		    vels[2] = getAxis(AXIS_R_V);
-	    
-		
-		    boolean updateVec = false;
-		    if (System.currentTimeMillis() - lastAxesUpdate > minDiff) {
-			updateVec = true;
-		    }
-			
-		    if (updateVec) {
-			lastAxesUpdate = System.currentTimeMillis();
-			//3.0 is the value of the maximum normal vector
-			double adjustment = EnsignCrusher.MAX_VELOCITY / Math.sqrt(3.0);
-			for (double v : vels) {
-			    v *= adjustment;
-			}
-	
-			EnsignCrusher.manualVelocity(vels, theta);
-		    }
+	    vels[0] = quantize(getAxis(AXIS_L_H) * adjustment, VELOCITY_STEP);
+	    vels[1] = quantize(-getAxis(AXIS_L_V) * adjustment, VELOCITY_STEP);
+	    vels[2] = quantize(getAxis(AXIS_R_V) * adjustment, VELOCITY_STEP);
+	    double bearing = quantize(theta, BEARING_STEP) % 360;
+
+	    maybeSend(vels, bearing, now);
+	}
+    }
+
+    /** Send a manual command if it differs from the last one sent and
+     *  either the change is large or the rate limit allows it. A
+     *  change held back by the rate limit is sent on a later pass. */
+    private void maybeSend(double[] vels, double bearing, long now) {
+	double delta = 0;
+	boolean stop = true;
+	if (sentVelocities == null) {
+	    delta = Double.MAX_VALUE;
+	} else {
+	    for (int i=0; i<3; i++) {
+		delta = Math.max(delta, Math.abs(vels[i] - sentVelocities[i]));
+		stop &= vels[i] == 0;
 	    }
 	}
+
+	if (delta == 0 && bearing == sentBearing)
+	    return;
+	if (delta < LARGE_DELTA && ! stop && now - lastSent < minInterval)
+	    return;
+
+	Debug.log(Debug.Level.DEBUG, "input", "New velocity: %f, %f, %f, %f",
+		  vels[0], vels[1], vels[2], bearing);
+	EnsignCrusher.manualVelocity(vels, bearing);
+	sentVelocities = vels;
+	sentBearing = bearing;
+	lastSent = now;
     }
 
     /** Run the thread that takes input from the game pad. The thread
-     *  polls the game pad every 10ms */
+     *  reads the event queue of the game pad every 10ms */
     public void run() {
-	while (ctrl != null) {
-	    ctrl.poll();
+	if (ctrl == null)
+	    return;
+
+	EventQueue queue = ctrl.getEventQueue();
+	Event event = new Event();
+	while (ctrl.poll()) {
+	    readEvents(queue, event);
 
 	    int mask = buttonMask();
 	    int newButtons = (mask ^ lastButtonMask) & mask;
 	    lastButtonMask = mask;
 
 	    if (enabled) {
-		axesAction(mask);
+		axesAction(mask, System.currentTimeMillis());
 		if (newButtons != 0) {
 		    buttonAction(newButtons);
 		}
@@ -294,10 +388,11 @@ public class PadController extends UiController {
 	    }
 
 	    try {
-		Thread.sleep(POLL_PERIOD);
+		Thread.sleep(EVENT_PERIOD);
 	    } catch (Exception e) {
 		e.printStackTrace();
 	    }
 	}
+	Debug.log(Debug.Level.WARN, "input", "Lost the game pad");
     }
 }
@@ -4,9 +4,6 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.event.*;
-import java.util.LinkedList;
-
-import org.haldean.simplegraph.StreamingGraphComponent;
 
 /** 
  *  A component to display the PID errors from the tuning loops.
@@ -14,15 +11,17 @@ import org.haldean.simplegraph.StreamingGraphComponent;
  *  @author William Brown
  */
 public class PidErrorComponent extends JPanel implements Updatable {
-    private final StreamingGraphComponent loop1;
-    private final StreamingGraphComponent loop2;
-    private final StreamingGraphComponent loop3;
-    private final StreamingGraphComponent loop4;
+    private final GraphComponent loop1;
+    private final GraphComponent loop2;
+    private final GraphComponent loop3;
+    private final GraphComponent loop4;
 
     /* Components to choose the graph scale */
     private JPanel scalePanel;
     private JSlider scaleChooser;
     private final JLabel scaleLabel;
+    /* Zooms the graphs out to the whole flight */
+    private JCheckBox wholeFlight;
     /* The default X-axis scale of the graphs */
     private final int defaultScale = 300;
     private JButton pidButton;
@@ -31,10 +30,10 @@ public class PidErrorComponent extends JPanel implements Updatable {
 	super(new BorderLayout());
 	JPanel graphPanel = new JPanel(new GridLayout(2,2));
 
-	loop1 = new StreamingGraphComponent(StyleProvider.graphFor("Loop 1 Error"));
-	loop2 = new StreamingGraphComponent(StyleProvider.graphFor("Loop 2 Error"));
-	loop3 = new StreamingGraphComponent(StyleProvider.graphFor("Loop 3 Error"));
-	loop4 = new StreamingGraphComponent(StyleProvider.graphFor("Loop 4 Error"));
+	loop1 = new GraphComponent("Loop 1 Error", "GUID:ERROR:1");
+	loop2 = new GraphComponent("Loop 2 Error", "GUID:ERROR:2");
+	loop3 = new GraphComponent("Loop 3 Error", "GUID:ERROR:3");
+	loop4 = new GraphComponent("Loop 4 Error", "GUID:ERROR:4");
 
 	graphPanel.add(loop1);
 	graphPanel.add(loop2);
@@ -53,6 +52,15 @@ public class PidErrorComponent extends JPanel implements Updatable {
 	    });
 	setScale(defaultScale);
 
+	wholeFlight = new JCheckBox("Whole flight");
+	wholeFlight.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    scaleChooser.setEnabled(!wholeFlight.isSelected());
+		    setScale(wholeFlight.isSelected() ?
+			     GraphComponent.ALL_SAMPLES : scaleChooser.getValue());
+		}
+	    });
+
 	pidButton = new JButton("Change Tuning Parameters");
 	pidButton.addActionListener(new ActionListener() {
 		public void actionPerformed(ActionEvent e) {
@@ -61,7 +69,10 @@ public class PidErrorComponent extends JPanel implements Updatable {
 	    });
 
 	scalePanel = new JPanel(new BorderLayout());
-	scalePanel.add(scaleLabel, BorderLayout.EAST);
+	JPanel zoomPanel = new JPanel(new BorderLayout());
+	zoomPanel.add(wholeFlight, BorderLayout.WEST);
+	zoomPanel.add(scaleLabel, BorderLayout.EAST);
+	scalePanel.add(zoomPanel, BorderLayout.EAST);
 	scalePanel.add(scaleChooser, BorderLayout.CENTER);
 	scalePanel.add(pidButton, BorderLayout.WEST);
 
@@ -87,7 +98,8 @@ public class PidErrorComponent extends JPanel implements Updatable {
 	loop2.setSampleCount(s);
 	loop3.setSampleCount(s);
 	loop4.setSampleCount(s);
-	scaleLabel.setText(s + " samples");
+	scaleLabel.setText(s == GraphComponent.ALL_SAMPLES ?
+			   "whole flight" : s + " samples");
     }
 
     /** 
@@ -99,6 +111,7 @@ public class PidErrorComponent extends JPanel implements Updatable {
 	    scalePanel.updateUI();
 	    scaleLabel.updateUI();
 	    scaleChooser.updateUI();
+	    wholeFlight.updateUI();
 	    pidButton.updateUI();
 	}
     }
@@ -112,11 +125,10 @@ public class PidErrorComponent extends JPanel implements Updatable {
      *  @param l4 The error in Loop 4
      */
     public void setErrors(double l1, double l2, double l3, double l4) {
-	loop1.addValue(l1);
-	loop2.addValue(l2);
-	loop3.addValue(l3);
-	loop4.addValue(l4);
-	repaint();
+	loop1.addPoint(l1);
+	loop2.addPoint(l2);
+	loop3.addPoint(l3);
+	loop4.addPoint(l4);
     }
     
     public void update(String message) {
@@ -1,7 +1,5 @@
 package org.haldean.chopper.server;
 
-import java.util.ArrayList;
-
 /**
  * Note: this class has a natural ordering that is inconsistent with equals.
  */
@@ -9,21 +7,105 @@ public class PidExperiment implements Comparable<PidExperiment> {
     public static final long MAX_TIME_MILLIS = 10000;
     public static final double THRESHOLD_ANGLE = 20.0;
     public static final double THRESHOLD_MULTIPLIER = 10000;  // Exact value unimportant.
+    // Score given to experiments that never settle into a cycle.
+    public static final double FAILED_SCORE = Integer.MAX_VALUE;
+    // Errors within this band count as settled.
+    public static final double SETTLING_BAND = 1.0;
+    // An experiment is scored over this many full cycles.
+    private static final int CYCLES = 2;
+
+    /**
+     * The measures an experiment can be scored by. All of them are
+     * taken over the two full cycles after the first.
+     */
+    public static enum CostFunction {
+	/** Integrated absolute error, with errors past THRESHOLD_ANGLE
+	 *  weighted by THRESHOLD_MULTIPLIER. */
+	IAE,
+	/** Integrated absolute error weighted by time, in seconds since
+	 *  the start of the experiment. */
+	ITAE,
+	/** The largest absolute error. */
+	OVERSHOOT,
+	/** Seconds from the start of the experiment until the error
+	 *  last left SETTLING_BAND. */
+	SETTLING_TIME;
+
+	/**
+	 * @param name One of iae, itae, overshoot or settling.
+	 * @throws IllegalArgumentException if the name is unknown.
+	 */
+	public static CostFunction parse(String name) {
+	    if (name.equals("iae")) return IAE;
+	    if (name.equals("itae")) return ITAE;
+	    if (name.equals("overshoot")) return OVERSHOOT;
+	    if (name.equals("settling")) return SETTLING_TIME;
+	    throw new IllegalArgumentException("Unknown cost function " + name);
+	}
+    }
+
+    /* States of the zero crossing detector */
+    private static final int WAIT_POSITIVE_START = 0;
+    private static final int WAIT_NEGATIVE = 1;
+    private static final int WAIT_POSITIVE = 2;
 
     private double mP;
     private double mI;
     private double mD;
-    private ArrayList<Double> mErrors;
+    private CostFunction mCost;
+
+    // Everything below is updated online by addError, so that no
+    // samples have to be kept.
+    private int mSamples;
     private long mStartTime;
+    private long mLastTime;
+    private int mCrossingState;
+    // Index of the sample that starts each cycle.
+    private int mCycleStarts[];
+    private int mCycles;
+    private double mIae;
+    private double mItae;
+    private double mOvershoot;
+    private double mSettlingTime;
+
+    // Set when the score was loaded rather than measured.
+    private boolean mScoreKnown;
     private double mScore;
 
     public PidExperiment(double p, double i, double d) {
 	mP = p;
 	mI = i;
 	mD = d;
-	mErrors = new ArrayList<Double>();
-	mScore = -1;
+	mCost = CostFunction.IAE;
+	mCycleStarts = new int[CYCLES + 1];
 	mStartTime = 0;
+	mCrossingState = WAIT_POSITIVE_START;
+    }
+
+    /** Create an experiment whose score is already known. */
+    public PidExperiment(double p, double i, double d, double score) {
+	this(p, i, d);
+	mScoreKnown = true;
+	mScore = score;
+    }
+
+    /**
+     * Parse a line written by {@link #gnuplotLine}.
+     *
+     * @return The scored experiment, or null if the line is a comment
+     * or can't be parsed.
+     */
+    public static PidExperiment fromGnuplotLine(String line) {
+	line = line.trim();
+	if (line.length() == 0 || line.startsWith("#")) return null;
+	String parts[] = line.split("\\s+");
+	if (parts.length != 4) return null;
+	try {
+	    return new PidExperiment(new Double(parts[0]), new Double(parts[1]),
+				     new Double(parts[2]), new Double(parts[3]));
+	} catch (NumberFormatException e) {
+	    return null;
+	}
     }
 
     public double getP() {
@@ -38,105 +120,112 @@ public class PidExperiment implements Comparable<PidExperiment> {
 	return mD;
     }
 
+    public CostFunction getCostFunction() {
+	return mCost;
+    }
+
+    /** Choose the measure returned by getScore. The default is IAE. */
+    public void setCostFunction(CostFunction cost) {
+	mCost = cost;
+    }
+
     public void addError(double newError) {
-	if (mErrors.isEmpty()) {
-	    mStartTime = System.currentTimeMillis();
-	}
-	mErrors.add(newError);
+	addError(newError, System.currentTimeMillis());
     }
 
-    public boolean isDone() {
-	// True if time limit expired, or two full sin curves are complete.
-	if (isTimeUp()) return true;
+    /**
+     * Add an error sample taken at the given time. Runs in constant
+     * time and allocates nothing.
+     *
+     * @param newError The error of the loop being tuned.
+     * @param timeMillis The time of the sample, in milliseconds.
+     */
+    public void addError(double newError, long timeMillis) {
+	if (mSamples == 0) {
+	    mStartTime = timeMillis;
+	}
+	int index = mSamples++;
+	mLastTime = timeMillis;
+	if (mCycles > CYCLES) return;
 
-	int first = getNextCycle(0);
-	if (first == -1) return false;
+	switch (mCrossingState) {
+	case WAIT_POSITIVE_START:
+	    // Cycle a bit longer, to compensate for the weird start.
+	    if (newError > 0) mCrossingState = WAIT_NEGATIVE;
+	    break;
+	case WAIT_NEGATIVE:
+	    if (newError < 0) mCrossingState = WAIT_POSITIVE;
+	    break;
+	case WAIT_POSITIVE:
+	    if (newError > 0) {
+		mCycleStarts[mCycles++] = index;
+		mCrossingState = WAIT_NEGATIVE;
+	    }
+	    break;
+	}
 
-	int second = getNextCycle(first);
-	if (second == -1) return false;
+	// Score the samples from the first cycle start up to, but not
+	// including, the start of the third.
+	if (mCycles == 0 || mCycles > CYCLES) return;
+	double abs = Math.abs(newError);
+	if (newError < THRESHOLD_ANGLE) {
+	    mIae += abs;
+	} else {
+	    mIae += abs * THRESHOLD_MULTIPLIER;
+	}
+	double seconds = (timeMillis - mStartTime) / 1000.0;
+	mItae += abs * seconds;
+	if (abs > mOvershoot) mOvershoot = abs;
+	if (abs > SETTLING_BAND) mSettlingTime = seconds;
+    }
 
-	int third = getNextCycle(second);
-	if (third == -1) return false;
+    /**
+     * @param cycle 0 for the first cycle, 1 for the second, and so on.
+     * @return The index of the sample that started the cycle, or -1 if
+     * it hasn't started yet.
+     */
+    public int getCycleStart(int cycle) {
+	if (cycle >= mCycles) return -1;
+	return mCycleStarts[cycle];
+    }
 
-	return true;
+    private boolean isComplete() {
+	return mCycles > CYCLES;
+    }
+
+    public boolean isDone() {
+	// True if time limit expired, or two full sin curves are complete.
+	return isComplete() || isTimeUp();
     }
 
     public double getScore() {
-	// mScore saved once processed (lazy evaluation)
-	if (mScore != -1) return mScore;
+	if (mScoreKnown) return mScore;
 
 	// If we don't get to the start of a third cycle, this experiment
-	// was really bad. Return MAX_VALUE.
-	if (isTimeUp()) {
-	    mScore =  Integer.MAX_VALUE;
-	    return mScore;
-	}
-
-	int first = getNextCycle(0);
-	if (first == -1) {
-	    mScore = Integer.MAX_VALUE;
-	    return mScore;
-	}
-	int second = getNextCycle(first);
-	if (second == -1) {
-	    mScore = Integer.MAX_VALUE;
-	    return mScore;
-	}
-	int third = getNextCycle(second);
-	if (third == -1) {
-	    mScore = Integer.MAX_VALUE;
-	    return mScore;
-	}
-
-	double score = 0.0;
-	for (int i = first; i < third; i++) {
-	    if (mErrors.get(i) < THRESHOLD_ANGLE) {
-		score += Math.abs(mErrors.get(i));
-	    } else {
-		score += Math.abs(mErrors.get(i)) * THRESHOLD_MULTIPLIER;
-	    }
-	}
-	mScore = score;
-	return mScore;
-    }
+	// was really bad.
+	if (!isComplete()) return FAILED_SCORE;
 
-    private int getNextCycle(int fromPos) {
-	int truncateStart = fromPos;
-	if (fromPos == 0) {
-	    // Cycle a bit longer, to compensate for the weird start.
-	    if (truncateStart >= mErrors.size()) return -1;
-	    for (; mErrors.get(truncateStart) <= 0; truncateStart++) {
-		// If value at index is nonpositive, continue until positive.
-		if (truncateStart == mErrors.size() -1) return -1;
-	    }
-	}
-	int negativeIndex = truncateStart;
-	if (negativeIndex >= mErrors.size()) return -1;
-	for (; mErrors.get(negativeIndex) >= 0; negativeIndex++) {
-	    // If value at index nonnegative, continue until negative.
-	    if (negativeIndex == mErrors.size() - 1) return -1;
-	}
-	int cycleStart = negativeIndex;
-	if (cycleStart >= mErrors.size()) return -1;
-	for (; mErrors.get(cycleStart) <= 0; cycleStart++) {
-	    // If value at index is nonpositive, continue until positive.
-	    if (cycleStart == mErrors.size() - 1) return -1;
+	switch (mCost) {
+	case ITAE:
+	    return mItae;
+	case OVERSHOOT:
+	    return mOvershoot;
+	case SETTLING_TIME:
+	    return mSettlingTime;
+	default:
+	    return mIae;
 	}
-	return cycleStart;
     }
 
     private boolean isTimeUp() {
-	if (mStartTime == 0) return false;
-
-	if (System.currentTimeMillis() - mStartTime > MAX_TIME_MILLIS) {
-	    return true;
-	} else {
-	    return false;
-	}
+	if (mSamples == 0) return false;
+	return mLastTime - mStartTime > MAX_TIME_MILLIS;
     }
 
     /** Does not compare scores, only PID values. */
-    public boolean equals(PidExperiment other) {
+    public boolean equals(Object o) {
+	if (!(o instanceof PidExperiment)) return false;
+	PidExperiment other = (PidExperiment) o;
 	return (getP() == other.getP()) && (getI() == other.getI()) && (getD() == other.getD());
     }
 
@@ -164,8 +253,8 @@ public class PidExperiment implements Comparable<PidExperiment> {
 	pe.addError(-1);
 	pe.addError(1);
 	pe.addError(-1);
-	if (2 != pe.getNextCycle(0)) {
-	    System.out.println("TEST #1 FAILED. Expected 2, got " + pe.getNextCycle(0));
+	if (2 != pe.getCycleStart(0)) {
+	    System.out.println("TEST #1 FAILED. Expected 2, got " + pe.getCycleStart(0));
 	    System.exit(1);
 	}
 
@@ -175,8 +264,23 @@ public class PidExperiment implements Comparable<PidExperiment> {
 	pe.addError(-1);
 	pe.addError(1);
 	pe.addError(-1);
-	if (3 != pe.getNextCycle(0)) {
-	    System.out.println("TEST #2 FAILED. Expected 3, got " + pe.getNextCycle(0));
+	if (3 != pe.getCycleStart(0)) {
+	    System.out.println("TEST #2 FAILED. Expected 3, got " + pe.getCycleStart(0));
+	    System.exit(1);
+	}
+
+	pe = new PidExperiment(0.0, 0.0, 0.0);
+	double errors[] = {-1, 2, -2, 3, -3, 1, -1, 5};
+	for (int i = 0; i < errors.length; i++) {
+	    pe.addError(errors[i], i * 1000);
+	}
+	if (!pe.isDone() || 8.0 != pe.getScore()) {
+	    System.out.println("TEST #3 FAILED. Expected 8.0, got " + pe.getScore());
+	    System.exit(1);
+	}
+	pe.setCostFunction(CostFunction.OVERSHOOT);
+	if (3.0 != pe.getScore()) {
+	    System.out.println("TEST #4 FAILED. Expected 3.0, got " + pe.getScore());
 	    System.exit(1);
 	}
 
@@ -67,7 +67,7 @@ public class PidLogger implements MessageHook {
 		    }
 		    output.write("\n");
 		} else {
-		    Debug.log(message.message);
+		    Debug.log(Debug.Level.DEBUG, "pid", message.message);
 		    output.write(message.message + "\n");
 		}
 
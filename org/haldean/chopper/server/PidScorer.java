@@ -0,0 +1,20 @@
+package org.haldean.chopper.server;
+
+/**
+ *  Scores a set of PID values without flying them, usually by running
+ *  a simulation. Implementations must be safe to call from several
+ *  threads at once; the {@link PidTuner} scores a whole batch of
+ *  candidates in parallel.
+ */
+public interface PidScorer {
+    /**
+     *  @param axis The index of the loop being tuned.
+     *  @param p The proportional gain.
+     *  @param i The integral gain.
+     *  @param d The derivative gain.
+     *  @return The score of the experiment; lower is better. A score of
+     *  {@link PidExperiment#FAILED_SCORE} or more means the values
+     *  should not be tried in flight.
+     */
+    double score(int axis, double p, double i, double d);
+}
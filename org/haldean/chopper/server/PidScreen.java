@@ -0,0 +1,83 @@
+package org.haldean.chopper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  Scores whole batches of candidates with a {@link PidScorer}, on one
+ *  thread per processor, so that the {@link PidTuner} can weed out
+ *  hopeless candidates before they are flown.
+ */
+public class PidScreen {
+    private PidScorer mScorer;
+    private ExecutorService mPool;
+    // Runs whole screening jobs, which wait on mPool.
+    private ExecutorService mJobs;
+
+    public PidScreen(PidScorer scorer) {
+	mScorer = scorer;
+	mPool = Executors.newFixedThreadPool
+	    (Runtime.getRuntime().availableProcessors(), daemonFactory("PID Scorer"));
+	mJobs = Executors.newSingleThreadExecutor(daemonFactory("PID Screen"));
+    }
+
+    private static ThreadFactory daemonFactory(final String name) {
+	return new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    }
+
+    /**
+     *  Runs a job that screens candidates in the background, so that the
+     *  caller can carry on while it runs. Jobs run one at a time.
+     *
+     *  @param job The job, which may call {@link #score}.
+     *  @return The job's result, once it is done.
+     */
+    public <T> Future<T> submit(Callable<T> job) {
+	return mJobs.submit(job);
+    }
+
+    /**
+     *  @param axis The index of the loop being tuned.
+     *  @param batch The candidates to score.
+     *  @return Scored copies of the candidates, in the same order.
+     *  @throws ExecutionException if the scorer failed on any candidate.
+     */
+    public List<PidExperiment> score(final int axis, List<PidExperiment> batch)
+	throws InterruptedException, ExecutionException {
+	ArrayList<Callable<Double>> jobs = new ArrayList<Callable<Double>>();
+	for (final PidExperiment exp : batch) {
+	    jobs.add(new Callable<Double>() {
+		    public Double call() {
+			return mScorer.score(axis, exp.getP(), exp.getI(), exp.getD());
+		    }
+		});
+	}
+
+	List<Future<Double>> scores = mPool.invokeAll(jobs);
+	ArrayList<PidExperiment> results = new ArrayList<PidExperiment>();
+	for (int i = 0; i < batch.size(); i++) {
+	    PidExperiment exp = batch.get(i);
+	    results.add(new PidExperiment(exp.getP(), exp.getI(), exp.getD(),
+					  scores.get(i).get()));
+	}
+	return results;
+    }
+
+    /** Stops the scoring threads. */
+    public void shutdown() {
+	mJobs.shutdownNow();
+	mPool.shutdownNow();
+    }
+}
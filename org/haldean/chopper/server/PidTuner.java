@@ -1,19 +1,38 @@
 package org.haldean.chopper.server;
 
-import org.apache.commons.math3.distribution.MultivariateNormalDistribution;
-
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.PriorityQueue;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
-import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+/**
+ *  Tunes one PID loop in flight. Candidate gains come from a
+ *  {@link TuningStrategy}, chosen with the pidStrategy argument (beam,
+ *  cmaes or bayes), and experiments are scored by the cost function
+ *  chosen with pidCost (iae, itae, overshoot or settling). Every result
+ *  is appended to tuning_<axis>.txt, or tuning_<axis>_<cost>.txt for
+ *  costs other than iae, and the results already in that file are used to
+ *  seed the strategy, so a tuning session picks up where the last one
+ *  stopped. Each batch is screened in parallel by a
+ *  {@link SimulatedScorer} before flight, unless pidScreen=off, and
+ *  hopeless candidates are never flown. Screening runs in the
+ *  background; the chopper holds the last gains until it is done.
+ *  Gains are clamped to pidMin and pidMax, 0 and 0.1 by default,
+ *  before they are screened or flown.
+ */
 public class PidTuner implements Updatable {
     private static enum TuningAxis { DX, DY, DZ, DT };
     // Axis to tune. Either DX or DY.
@@ -21,29 +40,37 @@ public class PidTuner implements Updatable {
 
     // Search Parameters
 
-    // StDev for expanding nodes.
-    private static final double expStdev = 2.0e-6;
     // Uniform distribution for creating initial nodes
     private static final double initRangeStart = 0;
     private static final double initRangeEnd = 1.0e-4;
-    // Number of nodes to select from fringe.
-    private static final int SELECT_NUM = 3;
-    // Number of children to expand from each selected node.
-    private static final int EXPAND_NUM = 3;
     private static final int START_AFTER_N_CYCLES = 900;
+    // Number of times a batch may be rejected in simulation before it is
+    // flown anyway.
+    private static final int MAX_BATCH_ATTEMPTS = 10;
+    // Default bounds of every gain.
+    private static final double DEFAULT_MIN_GAIN = 0;
+    private static final double DEFAULT_MAX_GAIN = 0.1;
     private int currentCycle = 0;
 
     private static SimpleDateFormat dateFormat =
 	new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss");
 
-    private ArrayList<PidExperiment> mFringe;
-    private HashSet<PidExperiment> mHistory;
-    private int mFringeIndex;
-    // Covariance matrix for expanding nodes.
-    private double[][] mExpCovar;
-    private Random rn;
+    private TuningStrategy mStrategy;
+    private PidExperiment.CostFunction mCost;
+    // Candidates waiting to be flown.
+    private LinkedList<PidExperiment> mQueue;
+    // Flown candidates not yet reported to the strategy.
+    private ArrayList<PidExperiment> mResults;
+    private PidExperiment mCurrent;
+    // The next batch, while it is screened in the background.
+    private Future<List<PidExperiment>> mPending;
     private BufferedWriter output;
 
+    private double mMinGain = DEFAULT_MIN_GAIN;
+    private double mMaxGain = DEFAULT_MAX_GAIN;
+
+    private PidScreen mScreen;
+
     private boolean mEnabled = false;
 
     public PidTuner() {
@@ -63,123 +90,331 @@ public class PidTuner implements Updatable {
 	    // Default state; no tuning.
 	    return;
 	}
-	mFringe = new ArrayList<PidExperiment>();
-	mHistory = new HashSet<PidExperiment>();
-	mFringeIndex = 0;
-	rn = new Random();
+	if (!mEnabled) return;
+
+	mStrategy = createStrategy(new Random());
+	mCost = parseCost();
+	mMinGain = parseGain("pidMin", DEFAULT_MIN_GAIN);
+	mMaxGain = parseGain("pidMax", DEFAULT_MAX_GAIN);
+	if (mMinGain > mMaxGain) {
+	    Debug.log(Debug.Level.WARN, "pid", "pidMin is above pidMax; using " +
+		      DEFAULT_MIN_GAIN + " to " + DEFAULT_MAX_GAIN);
+	    mMinGain = DEFAULT_MIN_GAIN;
+	    mMaxGain = DEFAULT_MAX_GAIN;
+	}
+	mQueue = new LinkedList<PidExperiment>();
+	mResults = new ArrayList<PidExperiment>();
+
+	// Scores of different cost functions can't be compared, so each
+	// gets its own history.
+	String fileName = "tuning_" + mAxis +
+	    (mCost == PidExperiment.CostFunction.IAE ? "" : "_" + mCost) + ".txt";
+	List<PidExperiment> history = readHistory(fileName);
+	mStrategy.seed(history);
 	try {
-	    output = new BufferedWriter(new FileWriter("tuning_" + mAxis + ".txt", true));
+	    output = new BufferedWriter(new FileWriter(fileName, true));
 	    output.write("# "+ dateFormat.format(new Date()));
 	    output.newLine();
-	    output.write("# tuning " + mAxis + " select_num " + SELECT_NUM + " expand_num " +
-			 EXPAND_NUM);
+	    output.write("# tuning " + mAxis + " cost " + mCost + " " + mStrategy.describe() +
+			 " resumed_from " + history.size());
 	    output.newLine();
+	    output.flush();
 	} catch (IOException e) {
-	    Debug.log("WARNING: PID TUNING LOGGING FAILED.");
+	    Debug.log(Debug.Level.WARN, "pid", "PID tuning logging failed");
 	    e.printStackTrace();
 	}
-	mExpCovar = new double[3][3];
-	for (int i = 0; i < 3; i++) {
-	    for (int j = 0; j < 3; j++) {
-		if (i == j) {
-		    mExpCovar[i][j] = expStdev;
-		} else {
-		    mExpCovar[i][j] = 0.0;
-		}
-	    }
-	}
 
-	// Create list of PidExperiments
-	double initRange = initRangeEnd - initRangeStart;
-	for (int j = 0; j < SELECT_NUM * EXPAND_NUM; j++) {
-	    double p = rn.nextDouble() * initRange + initRangeStart;
-	    double i = rn.nextDouble() * initRange + initRangeStart;
-	    double d = rn.nextDouble() * initRange + initRangeStart;
-	    mFringe.add(new PidExperiment(p, i, d));
+	boolean screen = true;
+	try {
+	    screen = !ServerCreator.getArgument("pidScreen").equals("off");
+	} catch (IllegalArgumentException e) {
+	    // Screen by default.
 	}
+	if (screen) setScorer(new SimulatedScorer(mCost));
+
 	System.out.println("setting pid to 0");
 	EnsignCrusher.tunePid(mAxis.ordinal(), 0, 0.0);
 	EnsignCrusher.tunePid(mAxis.ordinal(), 1, 0.0);
 	EnsignCrusher.tunePid(mAxis.ordinal(), 2, 0.0);
     }
 
+    private static TuningStrategy createStrategy(Random rn) {
+	String name = "beam";
+	try {
+	    name = ServerCreator.getArgument("pidStrategy");
+	} catch (IllegalArgumentException e) {
+	    // Default strategy.
+	}
+	if (name.equals("cmaes")) {
+	    return new CmaEsStrategy(initRangeStart, initRangeEnd, rn);
+	} else if (name.equals("bayes")) {
+	    return new BayesianStrategy(initRangeStart, initRangeEnd, rn);
+	} else {
+	    if (!name.equals("beam"))
+		Debug.log("Unknown PID tuning strategy " + name + "; using beam");
+	    return new BeamSearchStrategy(initRangeStart, initRangeEnd, rn);
+	}
+    }
+
+    private static PidExperiment.CostFunction parseCost() {
+	String name;
+	try {
+	    name = ServerCreator.getArgument("pidCost");
+	} catch (IllegalArgumentException e) {
+	    // Default cost function.
+	    return PidExperiment.CostFunction.IAE;
+	}
+	try {
+	    return PidExperiment.CostFunction.parse(name);
+	} catch (IllegalArgumentException e) {
+	    Debug.log("Unknown PID cost function " + name + "; using iae");
+	    return PidExperiment.CostFunction.IAE;
+	}
+    }
+
+    /**
+     *  @return The gain given by the named argument, or the default if
+     *  it is missing or bad.
+     */
+    private static double parseGain(String name, double defaultGain) {
+	String value;
+	try {
+	    value = ServerCreator.getArgument(name);
+	} catch (IllegalArgumentException e) {
+	    return defaultGain;
+	}
+	try {
+	    return Double.parseDouble(value);
+	} catch (NumberFormatException e) {
+	    Debug.log(Debug.Level.WARN, "pid",
+		      "Bad " + name + " " + value + "; using " + defaultGain);
+	    return defaultGain;
+	}
+    }
+
+    /** Read the flight results of earlier sessions from the tuning log. */
+    private static List<PidExperiment> readHistory(String fileName) {
+	ArrayList<PidExperiment> history = new ArrayList<PidExperiment>();
+	File file = new File(fileName);
+	if (!file.exists()) return history;
+	try {
+	    BufferedReader in = new BufferedReader(new FileReader(file));
+	    try {
+		String line;
+		while ((line = in.readLine()) != null) {
+		    PidExperiment exp = PidExperiment.fromGnuplotLine(line);
+		    if (exp != null) history.add(exp);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    Debug.log(Debug.Level.WARN, "pid", "Could not read PID tuning history");
+	    e.printStackTrace();
+	}
+	return history;
+    }
+
+    /**
+     *  Screen candidates with the given scorer before they are flown.
+     *  Scoring runs on one thread per processor.
+     *
+     *  @param scorer The scorer, or null to fly every candidate.
+     */
+    public synchronized void setScorer(PidScorer scorer) {
+	if (mScreen != null) mScreen.shutdown();
+	mScreen = scorer == null ? null : new PidScreen(scorer);
+    }
+
     public void update(String message) {
 	if (!mEnabled) return;
 	if (!message.startsWith("GUID:ERROR")) return;
 	currentCycle++;
 	if (currentCycle < START_AFTER_N_CYCLES) return;
+	if (mPending != null) {
+	    // The chopper holds the last gains until the next batch is ready.
+	    if (!mPending.isDone()) return;
+	    takePendingBatch();
+	    startNextExperiment();
+	    return;
+	}
+	if (mCurrent == null) {
+	    // Errors start counting from the next cycle, once the chopper
+	    // has the new values.
+	    startNextExperiment();
+	    return;
+	}
 	// retrieve error for my axis
 	String parts[] = message.split(":");
-	Double error = new Double(parts[2 + mAxis.ordinal()]);
+	double error = Double.parseDouble(parts[2 + mAxis.ordinal()]);
 	// Add error to current PidE
-	PidExperiment currentExp = mFringe.get(mFringeIndex);
-	currentExp.addError(error);
+	mCurrent.addError(error);
 	// If PidE not done, return;
-	if (!currentExp.isDone()) return;
-	// PidE done: record result, increment index
-	try {
-	    if (output != null) {
-		output.write(currentExp.gnuplotLine());
-		output.newLine();
-		output.flush();
+	if (!mCurrent.isDone()) return;
+	// PidE done: record result
+	log(mCurrent.gnuplotLine());
+	mResults.add(mCurrent);
+	System.out.println("New experiment, cycle " + currentCycle);
+	startNextExperiment();
+    }
+
+    /**
+     *  Take the next candidate off the queue and send its values. If the
+     *  queue is empty, the next batch is planned instead, in the
+     *  background if it is to be screened, and mCurrent is left null
+     *  until it is ready.
+     */
+    private void startNextExperiment() {
+	mCurrent = null;
+	if (mQueue.isEmpty()) {
+	    // Batch done: report it and ask for the next.
+	    final List<PidExperiment> results = new ArrayList<PidExperiment>(mResults);
+	    mResults.clear();
+	    Callable<List<PidExperiment>> plan = new Callable<List<PidExperiment>>() {
+		public List<PidExperiment> call() {
+		    return planBatch(results);
+		}
+	    };
+
+	    PidScreen screen;
+	    synchronized (this) {
+		screen = mScreen;
 	    }
-	} catch (IOException e) {
-	    Debug.log("WARNING: PID TUNING LOGGING FAILED");
+	    if (screen != null) {
+		// Screening runs simulations; keep them off the dispatch
+		// thread, which delivers this chopper's other messages.
+		mPending = screen.submit(plan);
+		return;
+	    }
+	    try {
+		mQueue.addAll(plan.call());
+	    } catch (Exception e) {
+		Debug.log("PID tuning: planning the next batch failed");
+		e.printStackTrace();
+	    }
+	    // Try again next cycle if nothing survived.
+	    if (mQueue.isEmpty()) return;
+	}
+	mCurrent = mQueue.removeFirst();
+	mCurrent.setCostFunction(mCost);
+	EnsignCrusher.tunePid(mAxis.ordinal(), 0, mCurrent.getP());
+	EnsignCrusher.tunePid(mAxis.ordinal(), 1, mCurrent.getI());
+	EnsignCrusher.tunePid(mAxis.ordinal(), 2, mCurrent.getD());
+    }
+
+    /** Queue the batch planned in the background. */
+    private void takePendingBatch() {
+	Future<List<PidExperiment>> pending = mPending;
+	mPending = null;
+	try {
+	    mQueue.addAll(pending.get());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (CancellationException e) {
+	    Debug.log("PID tuning: screening was cancelled");
+	} catch (ExecutionException e) {
+	    Debug.log("PID tuning: planning the next batch failed");
 	    e.printStackTrace();
 	}
-	System.out.println("New experiment, cycle " + currentCycle);
-	mFringeIndex++;
-	// If index <= mFringe.size(), send new PID values, return;
-	if (mFringeIndex < mFringe.size()) {
-	    PidExperiment newExp = mFringe.get(mFringeIndex);
-	    EnsignCrusher.tunePid(mAxis.ordinal(), 0, newExp.getP());
-	    EnsignCrusher.tunePid(mAxis.ordinal(), 1, newExp.getI());
-	    EnsignCrusher.tunePid(mAxis.ordinal(), 2, newExp.getD());
-	    return;
+    }
+
+    /**
+     *  Report the results of the last batch to the strategy, then ask it
+     *  for batches until one survives screening. While this runs, nothing
+     *  else uses the strategy.
+     *
+     *  @param results The flight results of the last batch.
+     *  @return The candidates to fly next.
+     */
+    private List<PidExperiment> planBatch(List<PidExperiment> results) {
+	if (!results.isEmpty()) mStrategy.report(results);
+	for (int attempt = 1; ; attempt++) {
+	    List<PidExperiment> batch = clamp(mStrategy.nextBatch());
+	    if (attempt >= MAX_BATCH_ATTEMPTS) {
+		Debug.log("PID tuning: simulation rejected " + attempt +
+			  " batches; flying the last one unscreened");
+		return batch;
+	    }
+	    List<PidExperiment> accepted = screen(batch);
+	    if (!accepted.isEmpty()) return accepted;
+	}
+    }
+
+    /**
+     *  Score a batch in simulation. Rejected candidates are reported to
+     *  the strategy straight away and logged as comments, so that they
+     *  are never mistaken for flight results.
+     *
+     *  @return The candidates worth flying.
+     */
+    private List<PidExperiment> screen(List<PidExperiment> batch) {
+	PidScreen screen;
+	synchronized (this) {
+	    screen = mScreen;
 	}
-	// Fringe done: copy into history.
-	mHistory.addAll(mFringe);
-	mFringeIndex = 0;
-
-	// stochastically choose the nodes to expand.
-	ArrayList<PidExperiment> nodesToExpand = new ArrayList<PidExperiment>();
-	for (int i = 0; i < SELECT_NUM; i++) {
-	    // the usual method of drawing a random element probabilistically.
-	    double scoreSum = 0.0;
-	    for (PidExperiment p : mFringe) {
-		scoreSum += p.getScore();
+	if (screen == null) return batch;
+
+	List<PidExperiment> scored;
+	try {
+	    scored = screen.score(mAxis.ordinal(), batch);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return batch;
+	} catch (ExecutionException e) {
+	    Debug.log("PID tuning: simulation failed, flying unscreened");
+	    e.printStackTrace();
+	    return batch;
+	}
+
+	ArrayList<PidExperiment> accepted = new ArrayList<PidExperiment>();
+	ArrayList<PidExperiment> rejected = new ArrayList<PidExperiment>();
+	for (int i = 0; i < batch.size(); i++) {
+	    PidExperiment result = scored.get(i);
+	    if (result.getScore() >= PidExperiment.FAILED_SCORE) {
+		rejected.add(result);
+		log("# sim " + result.gnuplotLine());
+	    } else {
+		accepted.add(batch.get(i));
 	    }
-	    double pos = rn.nextDouble() * scoreSum;
-	    double runningSum = 0.0;
-	    for (int j = 0; j < mFringe.size(); j++) {
-		runningSum += mFringe.get(j).getScore();
-		if (runningSum >= pos) {
-		    nodesToExpand.add(mFringe.get(j));
-		    mFringe.remove(mFringe.get(j));  // To avoid duplicates.
-		    break;
-		}
+	}
+
+	if (!rejected.isEmpty()) mStrategy.report(rejected);
+	return accepted;
+    }
+
+    /**
+     *  Clamp every gain of a batch to pidMin and pidMax, so that no
+     *  strategy can fly negative or huge values.
+     */
+    private List<PidExperiment> clamp(List<PidExperiment> batch) {
+	ArrayList<PidExperiment> clamped = new ArrayList<PidExperiment>();
+	for (PidExperiment exp : batch) {
+	    double p = clamp(exp.getP());
+	    double i = clamp(exp.getI());
+	    double d = clamp(exp.getD());
+	    if (p == exp.getP() && i == exp.getI() && d == exp.getD()) {
+		clamped.add(exp);
+	    } else {
+		clamped.add(new PidExperiment(p, i, d));
 	    }
 	}
-	// Expand the selected nodes into new Fringe, checking against history.
-	mFringe.clear();
-	for (PidExperiment parent : nodesToExpand) {
-	    double[] mean = new double[3];
-	    mean[0] = parent.getP();
-	    mean[1] = parent.getI();
-	    mean[2] = parent.getD();
-	    MultivariateNormalDistribution dist =
-		new MultivariateNormalDistribution(mean, mExpCovar);
-	    for (int i = 0; i < EXPAND_NUM; i++) {
-		double[] sample = dist.sample();
-		PidExperiment child = new PidExperiment(sample[0], sample[1], sample[2]);
-		while (mHistory.contains(child)) {
-		    // Extraordinarily unlikely under this implementation of expansion,
-		    // but we'll check anyway in case the expansion implementation changes.
-		    sample = dist.sample();
-		    child = new PidExperiment(sample[0], sample[1], sample[2]);
-		}
-		mFringe.add(child);
+	return clamped;
+    }
+
+    private double clamp(double gain) {
+	return Math.max(mMinGain, Math.min(mMaxGain, gain));
+    }
+
+    private synchronized void log(String line) {
+	try {
+	    if (output != null) {
+		output.write(line);
+		output.newLine();
+		output.flush();
 	    }
+	} catch (IOException e) {
+	    Debug.log(Debug.Level.WARN, "pid", "PID tuning logging failed");
+	    e.printStackTrace();
 	}
     }
 }
@@ -0,0 +1,809 @@
+package org.haldean.chopper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A relay between the chopper and any number of ground stations, in
+ * place of the pair of ncat brokers in broker/broker.sh. It listens on
+ * the text port and the image port above it, and runs in a single
+ * thread on one selector.
+ *
+ * Every line received on the text port is sent to every other text
+ * connection, as the broker did, and written to the flight log. Each
+ * connection has its own queues, so a slow reader falls behind alone
+ * instead of holding up everyone else. Lines that are sent many times
+ * a second (sensor readings, GPS fixes and Guidance errors) go into a
+ * queue of at most queue lines, and when it is full the policy decides
+ * what happens: the oldest queued reading is dropped, the new one is
+ * dropped, or the connection is closed. Every other line is a command
+ * or a reply, and is never dropped.
+ *
+ * Images are relayed a frame at a time. The chopper announces each
+ * frame with "IMAGE:&lt;length&gt;:&lt;time&gt;" on the text port and writes it
+ * through an ObjectOutputStream on the image port; the relay takes the
+ * frame out of the stream's block data records and writes it to each
+ * ground station through a stream of its own, with the announcement on
+ * that ground station's text connection. A ground station that already
+ * has frames frames waiting skips the new one, announcement and all,
+ * so its image stream is never left out of step.
+ *
+ * A ground station pairs its image connection with its text connection
+ * by sending the same "RELAY:PAIR:&lt;token&gt;" line first on each. The
+ * relay keeps these lines to itself. Stations behind one NAT, or on one
+ * host, come from the same address, so the token is what tells them
+ * apart. Until a connection sends its token, or if it never does, it
+ * is paired with the latest unpaired connection on the other port from
+ * the same address, which is enough for one station per address.
+ *
+ * Arguments are given as key=value pairs, like those of ServerCreator:
+ * <pre>
+ *   port       Text port; images use the next port up (default 7000)
+ *   log        Flight log to write text traffic to, or "none"
+ *              (default ~/logs/YYMMDD-HHMMSS.txt, as broker.sh;
+ *              the directory is created if it is missing)
+ *   queue      Readings queued for each connection (default 1024)
+ *   frames     Frames queued for each ground station (default 2)
+ *   policy     oldest, newest or disconnect (default oldest)
+ *   stats      Seconds between throughput reports (default 5)
+ * </pre>
+ */
+public class Relay {
+    /** What to do with a reading for a connection whose queue is full */
+    public enum Policy {
+	/** Drop the oldest queued reading to make room */
+	OLDEST,
+	/** Drop the new reading */
+	NEWEST,
+	/** Close the connection */
+	DISCONNECT
+    }
+
+    /** Lines longer than this are dropped */
+    public static final int MAX_LINE = 65536;
+    /** Frames longer than this are dropped */
+    public static final int MAX_FRAME = 8 << 20;
+    /** A connection with this many commands waiting is closed */
+    public static final int MAX_COMMANDS = 4096;
+    /** Lines waiting to be written to the flight log */
+    public static final int LOG_QUEUE = 65536;
+    /** The line a ground station starts each connection with */
+    public static final String PAIR_PREFIX = "RELAY:PAIR:";
+
+    /* Readings, which may be dropped for a slow connection */
+    private static final String[] READINGS = {
+	"ORIENT:", "ACCEL:", "FLUX:", "TEMPERATURE:", "BATTERY:", "MOTORSPEED:",
+	"MOTORPOWER:", "LIGHT:", "PROXIMITY:", "PRESSURE:", "GPS:", "GUID:ERROR:"
+    };
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    /* The start of every ObjectOutputStream, and its block data tags */
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final int TC_BLOCKDATA = 0x77;
+    private static final int TC_BLOCKDATALONG = 0x7A;
+    private static final int TC_RESET = 0x79;
+
+    private int port;
+    private int queueLength;
+    private int frameQueueLength;
+    private Policy policy;
+    private long statsPeriod;
+
+    private Selector selector;
+    private ArrayList<Client> textClients;
+    private ArrayList<Client> imageClients;
+    private ByteBuffer readBuffer;
+    /* Copies of the client lists to fan out over, since sending to a
+     * client can close it and remove it from its list */
+    private Client[] textTargets = new Client[16];
+    private Client[] imageTargets = new Client[16];
+
+    /* Frames being put together from the image source */
+    private Client imageSource;
+    private Client headerSource;
+    private ArrayDeque<Announcement> announcements;
+    private byte[] assembly;
+    private int assembled;
+
+    private FlightLog log;
+
+    /* Statistics since the last report */
+    private long linesIn;
+    private long linesOut;
+    private long linesDropped;
+    private long bytesIn;
+    private long bytesOut;
+    private long framesIn;
+    private long framesOut;
+    private long framesDropped;
+    private int deepestQueue;
+    private long lastReport;
+
+    /* An IMAGE line and the length of the frame it announces */
+    private static class Announcement {
+	final int length;
+	final byte[] line;
+
+	Announcement(int _length, byte[] _line) {
+	    length = _length;
+	    line = _line;
+	}
+    }
+
+    /* One connection, on either port */
+    private class Client {
+	final SocketChannel channel;
+	final SelectionKey key;
+	final boolean image;
+	final InetAddress address;
+
+	/* The text or image connection from the same ground station, and
+	 * the token it was paired by, if any */
+	Client pair;
+	String token;
+
+	/* Set while an image connection is reading its pairing line */
+	boolean greeting = false;
+	long received = 0;
+
+	/* Partial line read from a text connection */
+	byte[] line = new byte[256];
+	int lineLength = 0;
+	boolean overlong = false;
+
+	/* Parsing an ObjectOutputStream, if this is the image source */
+	int headerLeft = STREAM_HEADER.length;
+	int recordLeft = 0;
+	byte[] tag = new byte[5];
+	int tagLength = 0;
+	boolean corrupt = false;
+
+	/* What is waiting to be written. Commands and frames are never
+	 * dropped from their queues; readings may be. */
+	ByteBuffer current;
+	ArrayDeque<ByteBuffer> commands = new ArrayDeque<ByteBuffer>();
+	ArrayDeque<ByteBuffer> readings = new ArrayDeque<ByteBuffer>();
+	long dropped = 0;
+	boolean closed = false;
+
+	Client(SocketChannel _channel, boolean _image) throws IOException {
+	    channel = _channel;
+	    image = _image;
+	    address = channel.socket().getInetAddress();
+	    channel.configureBlocking(false);
+	    key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	boolean idle() {
+	    return current == null && commands.isEmpty() && readings.isEmpty();
+	}
+
+	int queued() {
+	    return commands.size() + readings.size();
+	}
+
+	public String toString() {
+	    return (image ? "image " : "text ") + channel.socket().getRemoteSocketAddress();
+	}
+    }
+
+    /* Writes the flight log from its own thread, so that a slow disk
+     * never holds up the relay */
+    private static class FlightLog extends Thread {
+	private final BlockingQueue<byte[]> queue;
+	private final OutputStream out;
+	private volatile long dropped = 0;
+
+	FlightLog(String path) throws IOException {
+	    super("Flight log");
+	    setDaemon(true);
+	    queue = new ArrayBlockingQueue<byte[]>(LOG_QUEUE);
+	    out = new BufferedOutputStream(new FileOutputStream(path, true), 65536);
+	}
+
+	void write(byte[] line) {
+	    if (! queue.offer(line))
+		dropped++;
+	}
+
+	long getDropped() {
+	    return dropped;
+	}
+
+	public void run() {
+	    try {
+		while (true) {
+		    byte[] line = queue.take();
+		    out.write(line);
+		    if (queue.isEmpty())
+			out.flush();
+		}
+	    } catch (InterruptedException e) {
+		/* Exiting */
+	    } catch (IOException e) {
+		System.out.println("Unable to write the flight log: " + e.toString());
+	    }
+	}
+    }
+
+    /** Create a relay from command line arguments.
+     *  @param arguments Map from argument name to value
+     *  @throws IOException if the flight log cannot be opened */
+    public Relay(HashMap<String, String> arguments) throws IOException {
+	port = (int) getNumber(arguments, "port", 7000);
+	queueLength = (int) getNumber(arguments, "queue", 1024);
+	frameQueueLength = (int) getNumber(arguments, "frames", 2);
+	statsPeriod = (long) (getNumber(arguments, "stats", 5) * 1000);
+	policy = arguments.containsKey("policy") ?
+	    Policy.valueOf(arguments.get("policy").toUpperCase()) : Policy.OLDEST;
+
+	String logPath = arguments.get("log");
+	boolean defaultLog = logPath == null;
+	if (defaultLog)
+	    logPath = System.getProperty("user.home") + "/logs/" +
+		new SimpleDateFormat("yyMMdd-HHmmss").format(new Date()) + ".txt";
+	if (! logPath.equals("none")) {
+	    File parent = new File(logPath).getAbsoluteFile().getParentFile();
+	    if (parent != null)
+		parent.mkdirs();
+	    try {
+		log = new FlightLog(logPath);
+		log.start();
+		System.out.println("Logging to " + logPath);
+	    } catch (IOException e) {
+		/* Only a log that was asked for is worth refusing to run */
+		if (! defaultLog)
+		    throw e;
+		System.out.println("Unable to open " + logPath + ", not logging: " + e.getMessage());
+	    }
+	}
+
+	textClients = new ArrayList<Client>();
+	imageClients = new ArrayList<Client>();
+	announcements = new ArrayDeque<Announcement>();
+	assembly = new byte[65536];
+	readBuffer = ByteBuffer.allocate(65536);
+    }
+
+    private static double getNumber(HashMap<String, String> arguments,
+				    String name, double defaultValue) {
+	if (! arguments.containsKey(name))
+	    return defaultValue;
+	return new Double(arguments.get(name));
+    }
+
+    /** Listen for connections and relay between them until the
+     *  process is killed.
+     *  @throws IOException if either port cannot be opened */
+    public void run() throws IOException {
+	selector = Selector.open();
+	listen(port, false);
+	listen(port + 1, true);
+	System.out.println("Relaying text on " + port + " and images on " + (port + 1));
+
+	lastReport = System.currentTimeMillis();
+	while (true) {
+	    long wait = Math.max(1, lastReport + statsPeriod - System.currentTimeMillis());
+	    selector.select(wait);
+
+	    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+	    while (keys.hasNext()) {
+		SelectionKey key = keys.next();
+		keys.remove();
+		if (! key.isValid())
+		    continue;
+
+		if (key.isAcceptable()) {
+		    accept(key);
+		    continue;
+		}
+
+		Client c = (Client) key.attachment();
+		try {
+		    if (key.isReadable())
+			read(c);
+		    if (! c.closed && key.isValid() && key.isWritable())
+			flush(c);
+		} catch (IOException e) {
+		    close(c, e.getMessage());
+		}
+	    }
+
+	    if (System.currentTimeMillis() - lastReport >= statsPeriod)
+		report();
+	}
+    }
+
+    private void listen(int listenPort, boolean image) throws IOException {
+	ServerSocketChannel server = ServerSocketChannel.open();
+	server.socket().setReuseAddress(true);
+	server.socket().bind(new InetSocketAddress(listenPort));
+	server.configureBlocking(false);
+	server.register(selector, SelectionKey.OP_ACCEPT, image);
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+	SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+	if (channel == null)
+	    return;
+	channel.socket().setTcpNoDelay(true);
+	boolean image = (Boolean) key.attachment();
+	Client c = new Client(channel, image);
+
+	if (image) {
+	    imageClients.add(c);
+	    /* Each ground station gets an image stream of its own */
+	    enqueue(c, ByteBuffer.wrap(STREAM_HEADER), true);
+	} else {
+	    textClients.add(c);
+	}
+	pairByAddress(c);
+	System.out.println("Connected " + c + (c.pair != null ? ", paired with " + c.pair : ""));
+    }
+
+    /* Pair a new connection with the most recent unpaired connection
+     * on the other port from the same address that has sent no token */
+    private void pairByAddress(Client c) {
+	ArrayList<Client> others = c.image ? textClients : imageClients;
+	for (int i=others.size()-1; i>=0; i--) {
+	    Client other = others.get(i);
+	    if (other.pair == null && ! other.closed && other.token == null &&
+		other.address.equals(c.address)) {
+		other.pair = c;
+		c.pair = other;
+		return;
+	    }
+	}
+    }
+
+    /* Pair a connection with the unpaired connection on the other port
+     * that sent the same token */
+    private void pair(Client c, String token) {
+	if (c.token != null)
+	    return;
+	c.token = token;
+	/* The token overrides a pairing by address */
+	unpair(c);
+	ArrayList<Client> others = c.image ? textClients : imageClients;
+	for (int i=others.size()-1; i>=0; i--) {
+	    Client other = others.get(i);
+	    if (other.pair == null && ! other.closed && token.equals(other.token)) {
+		other.pair = c;
+		c.pair = other;
+		System.out.println("Paired " + c + " with " + other);
+		return;
+	    }
+	}
+    }
+
+    private void unpair(Client c) {
+	if (c.pair != null) {
+	    c.pair.pair = null;
+	    c.pair = null;
+	}
+    }
+
+    /* The token in a RELAY:PAIR:<token> line, or null */
+    private static String pairingToken(byte[] line) {
+	String s = new String(line, ASCII).trim();
+	if (! s.startsWith(PAIR_PREFIX) || s.length() == PAIR_PREFIX.length())
+	    return null;
+	return s.substring(PAIR_PREFIX.length());
+    }
+
+    private void close(Client c, String reason) {
+	if (c.closed)
+	    return;
+	c.closed = true;
+	c.key.cancel();
+	try {
+	    c.channel.close();
+	} catch (IOException e) {
+	    /* Closed anyway */
+	}
+
+	(c.image ? imageClients : textClients).remove(c);
+	unpair(c);
+	if (c == imageSource) {
+	    imageSource = null;
+	    announcements.clear();
+	    assembled = 0;
+	}
+	if (c == headerSource)
+	    headerSource = null;
+
+	System.out.println("Disconnected " + c + (reason != null ? ": " + reason : "") +
+			   (c.dropped > 0 ? ", " + c.dropped + " dropped" : ""));
+    }
+
+    private void read(Client c) throws IOException {
+	readBuffer.clear();
+	int n = c.channel.read(readBuffer);
+	if (n < 0) {
+	    close(c, null);
+	    return;
+	}
+	bytesIn += n;
+	readBuffer.flip();
+
+	/* The chopper's image stream starts with a stream header, and a
+	 * ground station's image connection with its pairing line */
+	if (c.image && c.received == 0 && readBuffer.get(0) == PAIR_PREFIX.charAt(0))
+	    c.greeting = true;
+	c.received += n;
+	if (c.greeting) {
+	    readGreeting(c, readBuffer);
+	    if (c.closed || ! readBuffer.hasRemaining())
+		return;
+	}
+
+	if (c.image)
+	    readImage(c, readBuffer);
+	else
+	    readText(c, readBuffer);
+    }
+
+    /* Read the pairing line of an image connection */
+    private void readGreeting(Client c, ByteBuffer buffer) {
+	while (buffer.hasRemaining() && c.greeting) {
+	    byte b = buffer.get();
+	    if (b == '\n') {
+		c.greeting = false;
+		String token = pairingToken(copy(c.line, c.lineLength));
+		c.lineLength = 0;
+		if (token != null)
+		    pair(c, token);
+	    } else if (c.lineLength == c.line.length) {
+		close(c, "unrecognized greeting");
+	    } else {
+		c.line[c.lineLength++] = b;
+	    }
+	}
+    }
+
+    /* Split text into lines, keeping the newline on each */
+    private void readText(Client c, ByteBuffer buffer) {
+	while (buffer.hasRemaining()) {
+	    byte b = buffer.get();
+	    if (! c.overlong) {
+		if (c.lineLength == c.line.length) {
+		    if (c.line.length >= MAX_LINE) {
+			c.overlong = true;
+		    } else {
+			byte[] grown = new byte[Math.min(MAX_LINE, c.line.length * 2)];
+			System.arraycopy(c.line, 0, grown, 0, c.lineLength);
+			c.line = grown;
+		    }
+		}
+		if (! c.overlong)
+		    c.line[c.lineLength++] = b;
+	    }
+
+	    if (b == '\n') {
+		if (c.overlong)
+		    linesDropped++;
+		else
+		    line(c, copy(c.line, c.lineLength));
+		c.lineLength = 0;
+		c.overlong = false;
+	    }
+	}
+    }
+
+    private static byte[] copy(byte[] a, int length) {
+	byte[] b = new byte[length];
+	System.arraycopy(a, 0, b, 0, length);
+	return b;
+    }
+
+    private void line(Client from, byte[] line) {
+	if (from.token == null) {
+	    String token = pairingToken(line);
+	    if (token != null) {
+		pair(from, token);
+		return;
+	    }
+	}
+
+	linesIn++;
+	if (log != null)
+	    log.write(line);
+
+	int length = announcedLength(line);
+	if (length >= 0) {
+	    /* Sent to each ground station with its frame */
+	    headerSource = from;
+	    announcements.add(new Announcement(length, line));
+	    assemble();
+	    return;
+	}
+
+	boolean reading = isReading(line);
+	textTargets = textClients.toArray(textTargets);
+	for (Client c : textTargets) {
+	    if (c == null)
+		break;
+	    if (c != from)
+		enqueue(c, ByteBuffer.wrap(line), ! reading);
+	}
+    }
+
+    /* The length in an IMAGE:<length>:<time> line, or -1 */
+    private static int announcedLength(byte[] line) {
+	String s = new String(line, ASCII).trim();
+	if (! s.startsWith("IMAGE:"))
+	    return -1;
+	String[] parts = s.split(":");
+	if (parts.length != 3)
+	    return -1;
+	try {
+	    Long.parseLong(parts[2]);
+	    int length = Integer.parseInt(parts[1]);
+	    return (length >= 0 && length <= MAX_FRAME) ? length : -1;
+	} catch (NumberFormatException e) {
+	    return -1;
+	}
+    }
+
+    private static boolean isReading(byte[] line) {
+	for (String prefix : READINGS) {
+	    if (line.length < prefix.length())
+		continue;
+	    boolean match = true;
+	    for (int i=0; i<prefix.length() && match; i++)
+		match = line[i] == prefix.charAt(i);
+	    if (match)
+		return true;
+	}
+	return false;
+    }
+
+    /* Take frame data out of the block data records of an
+     * ObjectOutputStream */
+    private void readImage(Client c, ByteBuffer buffer) {
+	if (c != imageSource) {
+	    /* The chopper is the only one that writes images; if it has
+	     * reconnected, start over with the new stream */
+	    if (imageSource != null)
+		System.out.println("Image source is now " + c);
+	    imageSource = c;
+	    announcements.clear();
+	    assembled = 0;
+	    if (c.pair != null)
+		headerSource = c.pair;
+	}
+
+	while (buffer.hasRemaining() && ! c.corrupt) {
+	    if (c.headerLeft > 0) {
+		byte b = buffer.get();
+		if (b != STREAM_HEADER[STREAM_HEADER.length - c.headerLeft])
+		    corrupt(c);
+		c.headerLeft--;
+	    } else if (c.recordLeft > 0) {
+		int n = Math.min(c.recordLeft, buffer.remaining());
+		append(buffer, n);
+		c.recordLeft -= n;
+		if (c.recordLeft == 0)
+		    assemble();
+	    } else {
+		c.tag[c.tagLength++] = buffer.get();
+		int tagCode = c.tag[0] & 0xFF;
+		int needed;
+		if (tagCode == TC_BLOCKDATA)
+		    needed = 2;
+		else if (tagCode == TC_BLOCKDATALONG)
+		    needed = 5;
+		else if (tagCode == TC_RESET)
+		    needed = 1;
+		else {
+		    corrupt(c);
+		    break;
+		}
+
+		if (c.tagLength == needed) {
+		    if (tagCode == TC_BLOCKDATA)
+			c.recordLeft = c.tag[1] & 0xFF;
+		    else if (tagCode == TC_BLOCKDATALONG)
+			c.recordLeft = ByteBuffer.wrap(c.tag, 1, 4).getInt();
+		    c.tagLength = 0;
+		}
+	    }
+	}
+    }
+
+    private void corrupt(Client c) {
+	c.corrupt = true;
+	announcements.clear();
+	assembled = 0;
+	System.out.println("Unrecognized image stream from " + c + "; ignoring it");
+    }
+
+    private void append(ByteBuffer buffer, int n) {
+	if (assembled + n > MAX_FRAME) {
+	    /* More data than any announced frame; the announcements must
+	     * have been lost */
+	    assembled = 0;
+	    if (n > MAX_FRAME) {
+		buffer.position(buffer.position() + n);
+		return;
+	    }
+	}
+	if (assembled + n > assembly.length) {
+	    byte[] grown = new byte[Math.min(MAX_FRAME, Math.max(assembly.length * 2, assembled + n))];
+	    System.arraycopy(assembly, 0, grown, 0, assembled);
+	    assembly = grown;
+	}
+	buffer.get(assembly, assembled, n);
+	assembled += n;
+    }
+
+    /* Send every frame that has been both announced and received */
+    private void assemble() {
+	while (! announcements.isEmpty() && assembled >= announcements.peek().length) {
+	    Announcement a = announcements.poll();
+	    framesIn++;
+
+	    /* One long block data record holding the whole frame, which
+	     * ObjectInputStream.readFully reads as the pilot's did */
+	    ByteBuffer frame = ByteBuffer.allocate(5 + a.length);
+	    frame.put((byte) TC_BLOCKDATALONG);
+	    frame.putInt(a.length);
+	    frame.put(assembly, 0, a.length);
+	    frame.flip();
+	    assembled -= a.length;
+	    System.arraycopy(assembly, a.length, assembly, 0, assembled);
+
+	    imageTargets = imageClients.toArray(imageTargets);
+	    for (Client c : imageTargets) {
+		if (c == null)
+		    break;
+		Client text = c.pair;
+		if (c == imageSource || c.closed)
+		    continue;
+		if (text == null || text == headerSource || c.commands.size() >= frameQueueLength) {
+		    /* Without its announcement the ground station would
+		     * not know to read it; with a full queue it is too far
+		     * behind to want it */
+		    c.dropped++;
+		    framesDropped++;
+		    continue;
+		}
+		enqueue(c, frame.duplicate(), true);
+		if (c.closed)
+		    continue;
+		enqueue(text, ByteBuffer.wrap(a.line), true);
+		framesOut++;
+	    }
+	}
+    }
+
+    /* Queue a buffer for a connection, applying the drop policy to
+     * readings */
+    private void enqueue(Client c, ByteBuffer buffer, boolean command) {
+	if (c.closed)
+	    return;
+
+	if (command) {
+	    if (c.commands.size() >= MAX_COMMANDS) {
+		close(c, "too far behind");
+		return;
+	    }
+	    c.commands.add(buffer);
+	} else {
+	    if (c.readings.size() >= queueLength) {
+		linesDropped++;
+		c.dropped++;
+		if (policy == Policy.NEWEST)
+		    return;
+		if (policy == Policy.DISCONNECT) {
+		    close(c, "too far behind");
+		    return;
+		}
+		c.readings.poll();
+	    }
+	    c.readings.add(buffer);
+	}
+
+	deepestQueue = Math.max(deepestQueue, c.queued());
+	if (c.current == null)
+	    flush(c);
+    }
+
+    /* Write as much as the socket will take, and wait for it to be
+     * writable if anything is left */
+    private void flush(Client c) {
+	try {
+	    while (true) {
+		if (c.current == null) {
+		    c.current = c.commands.poll();
+		    if (c.current == null)
+			c.current = c.readings.poll();
+		    if (c.current == null)
+			break;
+		}
+
+		int n = c.channel.write(c.current);
+		bytesOut += n;
+		if (c.current.hasRemaining())
+		    break;
+		if (! c.image)
+		    linesOut++;
+		c.current = null;
+	    }
+	} catch (IOException e) {
+	    close(c, e.getMessage());
+	    return;
+	}
+
+	int ops = SelectionKey.OP_READ | (c.idle() ? 0 : SelectionKey.OP_WRITE);
+	if (c.key.interestOps() != ops)
+	    c.key.interestOps(ops);
+    }
+
+    private void report() {
+	long now = System.currentTimeMillis();
+	double seconds = Math.max(1, now - lastReport) / 1000.0;
+	lastReport = now;
+
+	StringBuilder s = new StringBuilder();
+	s.append(String.format("%d text, %d image clients; %.0f lines/s in, %.0f lines/s out",
+			       textClients.size(), imageClients.size(),
+			       linesIn / seconds, linesOut / seconds));
+	s.append(String.format(", %.1f kB/s in, %.1f kB/s out",
+			       bytesIn / seconds / 1024, bytesOut / seconds / 1024));
+	s.append(String.format(", %.1f frames/s in, %.1f frames/s out", framesIn / seconds, framesOut / seconds));
+	s.append(", deepest queue " + deepestQueue);
+	if (linesDropped > 0)
+	    s.append(", " + linesDropped + " lines dropped");
+	if (framesDropped > 0)
+	    s.append(", " + framesDropped + " frames skipped");
+	if (log != null && log.getDropped() > 0)
+	    s.append(", " + log.getDropped() + " lines missing from the log");
+	System.out.println(s.toString());
+
+	linesIn = linesOut = linesDropped = 0;
+	bytesIn = bytesOut = 0;
+	framesIn = framesOut = framesDropped = 0;
+	deepestQueue = 0;
+    }
+
+    /** Run the relay.
+     *  @param args key=value arguments; see the class documentation */
+    public static void main(String args[]) {
+	HashMap<String, String> arguments = new HashMap<String, String>();
+	for (String arg : args) {
+	    if (arg.length() > 0) {
+		String[] argparts = arg.split("=", 2);
+		String value = argparts.length == 2 ? argparts[1] : null;
+		arguments.put(argparts[0], value);
+	    }
+	}
+
+	try {
+	    new Relay(arguments).run();
+	} catch (IOException e) {
+	    System.out.println("Unable to start the relay: " + e.toString());
+	    System.exit(1);
+	}
+    }
+}
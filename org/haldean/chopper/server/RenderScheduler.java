@@ -0,0 +1,189 @@
+package org.haldean.chopper.server;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.Timer;
+
+/**
+ *  Paces the updates the telemetry components make to the screen.
+ *  Components receive data on the SessionManager's worker
+ *  threads, often faster than the screen refreshes; instead of
+ *  repainting on every sample they mark themselves dirty here, and
+ *  once per frame the scheduler repaints each dirty component on the
+ *  event dispatch thread. However many samples arrived in between,
+ *  the component paints once, with the newest state.
+ *
+ *  Work other than repainting, such as updating a label or a Java3D
+ *  scene graph, can be posted under a key; only the most recent
+ *  update posted under each key is run.
+ *
+ *  The frame rate can be set with the fps argument to ServerCreator
+ *  and defaults to 30. Every few seconds the scheduler logs the frame
+ *  rate, how many requests were coalesced, and how busy the event
+ *  dispatch thread was.
+ */
+public class RenderScheduler implements ActionListener {
+    /** The frame rate used when none is given */
+    public static final int DEFAULT_FPS = 30;
+    /** Milliseconds between utilization reports */
+    public static final int REPORT_PERIOD = 5000;
+
+    private static RenderScheduler instance;
+
+    private Set<Component> dirty;
+    private Map<Object, Runnable> updates;
+    private Timer timer;
+    private TimingEventQueue eventQueue;
+
+    /* Statistics since the last report */
+    private AtomicLong requests;
+    private long frames = 0;
+    private long repaints = 0;
+    private long lastReport;
+    private long lastBusy = 0;
+    private double utilization = 0;
+
+    /**
+     *  Get the scheduler, starting it if it is not running yet.
+     *
+     *  @return The RenderScheduler instance
+     */
+    public static synchronized RenderScheduler getInstance() {
+	if (instance == null)
+	    instance = new RenderScheduler();
+	return instance;
+    }
+
+    private RenderScheduler() {
+	dirty = Collections.newSetFromMap(new ConcurrentHashMap<Component, Boolean>());
+	updates = new ConcurrentHashMap<Object, Runnable>();
+	requests = new AtomicLong();
+
+	int fps = DEFAULT_FPS;
+	try {
+	    fps = new Integer(ServerCreator.getArgument("fps"));
+	} catch (IllegalArgumentException e) {
+	    /* Default frame rate. */
+	}
+
+	eventQueue = new TimingEventQueue();
+	Toolkit.getDefaultToolkit().getSystemEventQueue().push(eventQueue);
+
+	lastReport = System.currentTimeMillis();
+	timer = new Timer(1000 / Math.max(1, fps), this);
+	timer.setCoalesce(true);
+	timer.start();
+    }
+
+    /**
+     *  Repaint a component on the next frame. Safe to call from any
+     *  thread.
+     *
+     *  @param c The component to repaint
+     */
+    public static void repaint(Component c) {
+	RenderScheduler r = getInstance();
+	r.requests.incrementAndGet();
+	r.dirty.add(c);
+    }
+
+    /**
+     *  Run an update on the event dispatch thread on the next frame,
+     *  replacing any update posted under the same key that has not
+     *  run yet. Safe to call from any thread.
+     *
+     *  @param key Identifies the state being updated, usually the
+     *  component that owns it
+     *  @param update The update to run
+     */
+    public static void update(Object key, Runnable update) {
+	RenderScheduler r = getInstance();
+	r.requests.incrementAndGet();
+	r.updates.put(key, update);
+    }
+
+    /**
+     *  Set the maximum number of frames drawn per second.
+     *
+     *  @param fps The frame rate; rates below 1 are taken as 1
+     */
+    public void setFrameRate(int fps) {
+	timer.setDelay(1000 / Math.max(1, fps));
+    }
+
+    /**
+     *  @return The fraction of time the event dispatch thread spent
+     *  handling events over the last report period.
+     */
+    public double getUtilization() {
+	return utilization;
+    }
+
+    /**
+     *  Draw a frame. This is called by the timer on the event
+     *  dispatch thread.
+     */
+    public void actionPerformed(ActionEvent e) {
+	for (Object key : updates.keySet()) {
+	    Runnable update = updates.remove(key);
+	    if (update != null)
+		update.run();
+	}
+
+	Iterator<Component> i = dirty.iterator();
+	while (i.hasNext()) {
+	    Component c = i.next();
+	    i.remove();
+	    c.repaint();
+	    repaints++;
+	}
+	frames++;
+
+	long now = System.currentTimeMillis();
+	if (now - lastReport >= REPORT_PERIOD)
+	    report(now);
+    }
+
+    private void report(long now) {
+	long busy = eventQueue.getBusyNanos();
+	double seconds = (now - lastReport) / 1000.0;
+	utilization = (busy - lastBusy) / (seconds * 1e9);
+
+	Debug.log(Debug.Level.DEBUG, "render",
+		  "Render: %.1f fps, %d requests in %d repaints, EDT %.0f%% busy",
+		  frames / seconds, requests.getAndSet(0), repaints, utilization * 100);
+
+	frames = 0;
+	repaints = 0;
+	lastBusy = busy;
+	lastReport = now;
+    }
+
+    /** Measures how long the event dispatch thread spends on each event */
+    private class TimingEventQueue extends EventQueue {
+	private volatile long busy = 0;
+
+	protected void dispatchEvent(AWTEvent event) {
+	    long start = System.nanoTime();
+	    try {
+		super.dispatchEvent(event);
+	    } finally {
+		busy += System.nanoTime() - start;
+	    }
+	}
+
+	public long getBusyNanos() {
+	    return busy;
+	}
+    }
+}
@@ -1,23 +1,25 @@
 package org.haldean.chopper.server;
 
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.event.*;
 
-import org.haldean.simplegraph.StreamingGraphComponent;
-
 /** A component to display graphs of on-board sensors 
  *  @author William Brown */
 public class SensorComponent extends JPanel {
     /* Graphs and labels to display magnetic flux and temperature */
-    private final StreamingGraphComponent flux;
-    private final StreamingGraphComponent temp;
-    private final StreamingGraphComponent ping;
+    private final GraphComponent flux;
+    private final GraphComponent temp;
+    private final GraphComponent ping;
+    private final JLabel linkLabel;
 
     /* Components for choosing graph scale */
     private JPanel scalePanel;
     private JSlider scaleChooser;
     private final JLabel scaleLabel;
+    /* Zooms the graphs out to the whole flight */
+    private JCheckBox wholeFlight;
 
     /* The default X-axis scale */
     private final int defaultScale = 300;
@@ -30,9 +32,10 @@ public class SensorComponent extends JPanel {
 	super(new BorderLayout());
 	JPanel graphsPanel = new JPanel(new GridLayout(3,1));
 
-	flux = new StreamingGraphComponent(StyleProvider.graphFor("Flux"));
-	temp = new StreamingGraphComponent(StyleProvider.graphFor("Internal Temperature"));
-	ping = new StreamingGraphComponent(StyleProvider.graphFor("Round-Trip Network Latency"));
+	flux = new GraphComponent("Flux", "FLUX");
+	temp = new GraphComponent("Internal Temperature", "TEMPERATURE");
+	ping = new GraphComponent("Round-Trip Network Latency", "PING");
+	linkLabel = new JLabel();
 
 	scaleChooser = new JSlider(25, 500, defaultScale);
 	scaleLabel = new JLabel(scaleChooser.getValue() + " samples");
@@ -44,9 +47,22 @@ public class SensorComponent extends JPanel {
 	    });
 	setScale(defaultScale);
 
+	wholeFlight = new JCheckBox("Whole flight");
+	wholeFlight.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    scaleChooser.setEnabled(!wholeFlight.isSelected());
+		    setScale(wholeFlight.isSelected() ?
+			     GraphComponent.ALL_SAMPLES : scaleChooser.getValue());
+		}
+	    });
+
 	scalePanel = new JPanel(new BorderLayout());
-	scalePanel.add(scaleLabel, BorderLayout.EAST);
+	JPanel zoomPanel = new JPanel(new BorderLayout());
+	zoomPanel.add(wholeFlight, BorderLayout.WEST);
+	zoomPanel.add(scaleLabel, BorderLayout.EAST);
+	scalePanel.add(zoomPanel, BorderLayout.EAST);
 	scalePanel.add(scaleChooser, BorderLayout.CENTER);
+	scalePanel.add(linkLabel, BorderLayout.WEST);
 
 	graphsPanel.add(flux);
 	graphsPanel.add(temp);
@@ -66,7 +82,9 @@ public class SensorComponent extends JPanel {
     public void setScale(int s) {
 	flux.setSampleCount(s);
 	temp.setSampleCount(s);
-	scaleLabel.setText(s + " samples");
+	ping.setSampleCount(s);
+	scaleLabel.setText(s == GraphComponent.ALL_SAMPLES ?
+			   "whole flight" : s + " samples");
     }
 
     /** Update the look and feel of the component */
@@ -77,30 +95,48 @@ public class SensorComponent extends JPanel {
 	    scalePanel.updateUI();
 	    scaleLabel.updateUI();
 	    scaleChooser.updateUI();
+	    wholeFlight.updateUI();
+	    linkLabel.updateUI();
 	}
     }
 
     /** Add a new magnetic flux datapoint
      *  @param _f The flux in microtesla */
     public void setFlux(double _f) {
-	flux.addValue(_f);
-	repaint();
+	flux.addPoint(_f);
     }
 
     /** Add a new internal temperature datapoint
      *  @param _t The internal temperature of the phone in degrees Celcius */
     public void setTemperature(double _t) {
-	temp.addValue(_t);
-	repaint();
+	temp.addPoint(_t);
     }
 
     /**
      *  Add a new round-trip ping datapoint
      *
-     *  @param newPing The most recent round trip time.
+     *  @param newPing The most recent round trip time, in milliseconds.
      */
-    public void setPing(int newPing) {
-	ping.addValue(newPing);
-	repaint();
+    public void setPing(double newPing) {
+	ping.addPoint(newPing);
+    }
+
+    /**
+     *  Show a summary of the quality of the link.
+     *
+     *  @param p50 The median round trip time, in milliseconds.
+     *  @param p99 The 99th percentile round trip time, in milliseconds.
+     *  @param loss The fraction of heartbeats lost.
+     *  @param jitter The jitter in the round trip time, in milliseconds.
+     */
+    public void setLinkStats(double p50, double p99, double loss, double jitter) {
+	final String text = String.format("<html><b>RTT</b> %.0f / %.0f ms  " +
+					  "<b>Loss</b> %.1f%%  <b>Jitter</b> %.1f ms</html>",
+					  p50, p99, 100 * loss, jitter);
+	RenderScheduler.update(linkLabel, new Runnable() {
+		public void run() {
+		    linkLabel.setText(text);
+		}
+	    });
     }
 }
\ No newline at end of file
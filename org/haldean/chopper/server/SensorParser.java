@@ -3,7 +3,7 @@ package org.haldean.chopper.server;
 import gov.nasa.worldwind.geom.*;
 
 /** 
- *  This takes the sensor messages from the DataReceiver and parses
+ *  This takes the sensor messages from the selected Session and parses
  *  it, notifying the appropriate components with the new data 
  *
  *  @author William Brown 
@@ -40,7 +40,7 @@ public class SensorParser implements MessageHook {
     }
 
     public String[] processablePrefixes() {
-	return new String[] {"GPS", "ORIENT", "ACCEL", "FLUX", "TEMPERATURE", "PING"};
+	return new String[] {"GPS", "ORIENT", "ACCEL", "FLUX", "TEMPERATURE", "PING", "LINK"};
     }
 
     /** Set the notified NASA World Wind globe component 
@@ -115,6 +115,13 @@ public class SensorParser implements MessageHook {
 	    sensors.setTemperature(new Double(message.getPart(1)));
 
 	else if (message.getPart(0).equals("PING"))
-	    sensors.setPing(new Integer(message.getPart(1)));
+	    sensors.setPing(new Double(message.getPart(1)));
+
+	/* Link summaries are LINK:p50:p90:p99:max:loss:jitter:period */
+	else if (message.getPart(0).equals("LINK"))
+	    sensors.setLinkStats(new Double(message.getPart(1)),
+				 new Double(message.getPart(3)),
+				 new Double(message.getPart(5)),
+				 new Double(message.getPart(6)));
     }
 }
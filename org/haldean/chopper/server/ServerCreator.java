@@ -41,7 +41,7 @@ public class ServerCreator {
     }
 
     public static String getArgument(String argumentName) throws IllegalArgumentException {
-	if (! arguments.containsKey(argumentName)) {
+	if (arguments == null || ! arguments.containsKey(argumentName)) {
 	    throw new IllegalArgumentException(argumentName +
 					       " was not specified on the command line.");
 	}
@@ -49,6 +49,28 @@ public class ServerCreator {
 	return arguments.get(argumentName);
     }
 
+    /** Create a session for each chopper. The choppers are listed
+     *  as "vehicles=name@host:port,name@host:port,..." where the port
+     *  is optional and defaults to the port argument, and the image
+     *  port is always the one after the data port. Without that
+     *  argument there is one chopper, on the host and port given. */
+    private static void addSessions() {
+	SessionManager sessions = SessionManager.getInstance();
+	if (! arguments.containsKey("vehicles")) {
+	    sessions.add(getUri(), getUri(), getDataPort(), getImagePort(), enableHeartbeat);
+	    return;
+	}
+
+	for (String vehicle : getArgument("vehicles").split(",")) {
+	    String[] nameParts = vehicle.split("@", 2);
+	    if (nameParts.length != 2)
+		throw new IllegalArgumentException("Vehicles are given as name@host:port, not " + vehicle);
+	    String[] hostParts = nameParts[1].split(":", 2);
+	    int port = hostParts.length == 2 ? new Integer(hostParts[1]) : dataPort;
+	    sessions.add(nameParts[0], hostParts[0], port, port + 1, enableHeartbeat);
+	}
+    }
+
     /** Run the chopper host
      *  @param args -d enables printing debug information to the command line,
      *  and -h followed by a hostname specifies the hostname to connect to
@@ -65,6 +87,11 @@ public class ServerCreator {
 	    }
 	}
 
+	if (arguments.containsKey("loglevel"))
+	    Debug.setLevel(Debug.Level.parse(getArgument("loglevel")));
+	if (arguments.containsKey("logcategories"))
+	    Debug.setLevels(getArgument("logcategories"));
+
 	if (arguments.containsKey("debug")) {
 	    Debug.setEnabled(true);
 	    if (arguments.containsKey("debuglog")) {
@@ -81,7 +108,7 @@ public class ServerCreator {
 	imagePort = dataPort + 1;
 	enableHeartbeat = !arguments.containsKey("heartless");
 
-	DataReceiver.getInstance().initialize(getUri(), getDataPort(), getImagePort());
+	addSessions();
 
 	serverHost = new ServerHost();
 	serverHost.osInit();
@@ -19,8 +19,8 @@ public class ServerHost extends JFrame {
 
     /* All sorts of components */
     /** The object responsible for receiving and sending
-     *  data to and from the chopper */
-    final DataReceiver dataReceiver;
+     *  data to and from the choppers */
+    final SessionManager sessions;
     /** The component that displays the globe with tracking
      *  data and location selection */
     final WorldWindComponent globeComponent;
@@ -36,9 +36,10 @@ public class ServerHost extends JFrame {
      *  loops on the chopper. */
     final PidErrorComponent pidComponent;
     final PidTuner pidTuner;
-    /** An Updatable that receives all messages from the chopper
-     *  @see EchoUpdatable */
-    final Updatable status;
+    /** A console that shows all messages from the chopper */
+    final LogConsole status;
+    /** A console that shows debugging output */
+    final LogConsole debugConsole;
     /** The component responsible for displaying sensor
      *  data that isn't displayed by one of the other components */
     final SensorComponent sensorComponent;
@@ -72,7 +73,7 @@ public class ServerHost extends JFrame {
 
 	/* Create all the necessary components so we can feed them
 	 * into each other */
-	dataReceiver = DataReceiver.getInstance();
+	sessions = SessionManager.getInstance();
 
 	globeComponent = new WorldWindComponent();
 	orientationComponent = new OrientationComponent();
@@ -81,12 +82,15 @@ public class ServerHost extends JFrame {
 	pidComponent = new PidErrorComponent();
 	pidTuner = new PidTuner();
 	sensorComponent = new SensorComponent();
-	status = new EchoUpdatable();
+	status = new LogConsole("Messages", new String[] {"GUID", "NAV", "IMAGE", "SYS"},
+				LogConsole.DEFAULT_CAPACITY);
+	debugConsole = new LogConsole("Debug");
+	Debug.setUpdatable(debugConsole);
 	motorComponent = new MotorComponent();
 	navPanel = new NavPanel();
 
 	statusLabel = new StatusLabel();
-	dataReceiver.setStatusLabel(statusLabel);
+	sessions.setStatusLabel(statusLabel);
 
 	/* Create the sensor parser and tell it where to
 	 * find all of the appropriate components */
@@ -96,20 +100,16 @@ public class ServerHost extends JFrame {
 	sp.setAccelerationComponent(accelerationComponent);
 	sp.setSensorComponent(sensorComponent);
 
-	/* Tie the PID error visualization to the DataReceiver */
-	dataReceiver.tie(pidComponent);
-	dataReceiver.tie(PidTuningComponent.getInstance());
-	dataReceiver.tieImage(imagePanel);
+	/* Tie the PID error visualization to the selected chopper */
+	sessions.tie(pidComponent);
+	sessions.tie(PidTuningComponent.getInstance());
+	sessions.tieImage(imagePanel);
 
-	dataReceiver.tie(pidTuner);
+	sessions.tie(pidTuner);
+	sessions.tie(status);
 
-	MessageHookManager.addHook(motorComponent);
-	MessageHookManager.addHook(sp);
-
-	if (ServerCreator.getHeartbeatEnabled()) {
-	    /* Tie the heartbeat to the DataReceiver */
-	    dataReceiver.tie(HeartbeatThread.revive());
-	}
+	sessions.addHook(motorComponent);
+	sessions.addHook(sp);
 
 	leftTabPanes = new LinkedList<JComponent>();
 	rightTabPanes = new LinkedList<JComponent>();
@@ -125,6 +125,8 @@ public class ServerHost extends JFrame {
 	rightTabPanes.add(sensorComponent);
 	rightTabPanes.add(pidComponent);
 	rightTabPanes.add(navPanel);
+	rightTabPanes.add(status);
+	rightTabPanes.add(debugConsole);
 
 	pads = new ArrayList<UiController>();
 	pads.add(new PadController(this));
@@ -145,8 +147,8 @@ public class ServerHost extends JFrame {
 
     /** Start accepting data */
     public void accept() {
-	/* Start the DataReceiver thread */
-	(new Thread(dataReceiver)).start();
+	/* Connect to every chopper */
+	sessions.startAll();
     }
 
     /** Initialize operating system specific stuff */
@@ -194,45 +196,76 @@ public class ServerHost extends JFrame {
 
 	/* The status bar */
 	JPanel statusPanel = new JPanel(new FlowLayout());
-	statusPanel.add(new JLabel(ServerCreator.getServer()));
+	final JLabel serverLabel = new JLabel(sessions.getSelected().getServer());
+	statusPanel.add(serverLabel);
+
+	/* With more than one chopper, choose which one the UI shows */
+	final List<Session> all = sessions.getSessions();
+	if (all.size() > 1) {
+	    final JComboBox sessionChooser = new JComboBox(all.toArray());
+	    sessionChooser.setSelectedItem(sessions.getSelected());
+	    sessionChooser.addActionListener(new ActionListener() {
+		    public void actionPerformed(ActionEvent e) {
+			Session s = (Session) sessionChooser.getSelectedItem();
+			if (s != sessions.getSelected())
+			    sessions.select(s.getId());
+		    }
+		});
+	    statusPanel.add(sessionChooser);
+	}
 
 	/* The disconnect button */
 	final JButton disconnectButton = new JButton("Disconnect");
 	statusPanel.add(disconnectButton);
 	disconnectButton.addActionListener(new ActionListener() {
-		private boolean connected = true;
 		public void actionPerformed(ActionEvent e) {
-		    /* If connected, stop the DataReceiver and switch the
-		     * text of the button. If not connected, restart the
-		     * DataReceiver thread */
-		    if (connected) {
-			dataReceiver.stop();
-			connected = false;
+		    /* If connected, stop the selected session and switch
+		     * the text of the button. If not connected, start it
+		     * again */
+		    Session s = sessions.getSelected();
+		    if (! s.isStopped()) {
+			s.stop();
 			disconnectButton.setText("Connect");
 		    } else {
-			(new Thread(dataReceiver)).start();
-			connected = true;
+			s.start();
 			disconnectButton.setText("Disconnect");
 		    }
 		}
 	    });
 
+	sessions.addListener(new SessionManager.Listener() {
+		public void sessionSelected(final Session s) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			    public void run() {
+				serverLabel.setText(s.getServer());
+				disconnectButton.setText(s.isStopped() ? "Connect" : "Disconnect");
+			    }
+			});
+		}
+	    });
+
 	/* The quit button */
 	JButton quitButton = new JButton("Quit");
 	statusPanel.add(quitButton);
 	quitButton.addActionListener(new ActionListener() {
 		public void actionPerformed(ActionEvent e) {
-		    /* Tell the DataReceiver to suck it and sleep until
-		     * it does */
-		    dataReceiver.die();
-		    try {
-			while (dataReceiver.isConnected())
-			    Thread.sleep(200);
-		    } catch (InterruptedException ex) {
-			;
-		    }
-		    /* Exit without error */
-		    System.exit(0);
+		    /* Tell the choppers to suck it and wait until they
+		     * do, off the event thread so the UI keeps painting */
+		    ((JButton) e.getSource()).setEnabled(false);
+		    sessions.dieAll();
+		    Thread quitter = new Thread("Quit") {
+			    public void run() {
+				try {
+				    while (sessions.isAnyConnected())
+					Thread.sleep(200);
+				} catch (InterruptedException ex) {
+				    ;
+				}
+				/* Exit without error */
+				System.exit(0);
+			    }
+			};
+		    quitter.start();
 		}
 	    });
 
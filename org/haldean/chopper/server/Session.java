@@ -0,0 +1,667 @@
+package org.haldean.chopper.server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  The connection to one chopper and everything that belongs to it:
+ *  the text and image sockets, the hooks and objects that are given
+ *  each message, the heartbeat that watches the link, and the channel
+ *  commands are sent down.
+ *
+ *  A session has no threads of its own. Its text socket is
+ *  non-blocking and is read and written by the SessionManager's I/O
+ *  thread, incoming messages are dispatched in order on the manager's
+ *  workers, and its timers run on the manager's scheduler, so one
+ *  ground station can fly dozens of choppers with a handful of
+ *  threads. Images are the exception: each announced frame is read
+ *  through a blocking ObjectInputStream on a thread of the manager's
+ *  image reader pool, so every session that is receiving a frame
+ *  holds one of those threads until the frame has arrived. Both
+ *  sockets are still connected without blocking, on the I/O thread.
+ *
+ *  The session opens both connections with the same pairing line, so
+ *  that a Relay can tell which image connection is whose even when
+ *  several ground stations share an address.
+ *
+ *  Every message goes to the session's own hooks and tied objects.
+ *  Messages from the selected session also go to those bound to the
+ *  SessionManager, which is how the UI follows whichever chopper is
+ *  selected.
+ */
+public class Session {
+    /** Milliseconds without a message before the chopper is considered lost */
+    public static final long TIMEOUT = 5000;
+    /** Milliseconds to wait before reconnecting */
+    public static final long RECONNECT_DELAY = 5000;
+    /** Lines longer than this are dropped */
+    public static final int MAX_LINE = 65536;
+    /* Messages dispatched in one pass before the worker is given up */
+    private static final int BATCH = 256;
+
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final String id;
+    private final String host;
+    private final int dataPort;
+    private final int imgPort;
+    private final SessionManager manager;
+
+    /* The text connection, touched only by the I/O thread */
+    private SocketChannel channel;
+    private SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private boolean overlong = false;
+    private ByteBuffer current;
+    /* The Relay's pairing line for the current connections */
+    private byte[] greeting;
+
+    /* Lines waiting to be written */
+    private final ConcurrentLinkedQueue<ByteBuffer> outgoing;
+    private final AtomicBoolean flushScheduled;
+    private final Runnable flusher;
+
+    /* The image connection, and its key while it connects */
+    private SelectionKey imgKey;
+    private Socket imgConnection;
+    private ObjectInputStream image;
+
+    /* Messages waiting to be dispatched */
+    private final ConcurrentLinkedQueue<Envelope> inbox;
+    private final AtomicBoolean dispatching;
+    private final Runnable dispatcher;
+
+    private final CopyOnWriteArrayList<Updatable> tied;
+    private final CopyOnWriteArrayList<Hook> hooks;
+    private Heartbeat heartbeat;
+
+    private volatile boolean connected = false;
+    private volatile boolean receiving = false;
+    private volatile boolean stopped = true;
+    private volatile boolean closing = false;
+    private volatile long lastReceived;
+
+    /* A message, and whether it came from the chopper or is on its
+     * way there */
+    private static class Envelope {
+	final String message;
+	final boolean incoming;
+
+	Envelope(String _message, boolean _incoming) {
+	    message = _message;
+	    incoming = _incoming;
+	}
+    }
+
+    /** A MessageHook and the prefixes it asked for when it was added */
+    static class Hook {
+	final MessageHook hook;
+	final String[] prefixes;
+
+	Hook(MessageHook _hook) {
+	    hook = _hook;
+	    prefixes = _hook.processablePrefixes();
+	}
+    }
+
+    /** Give a message to each hook that wants it. */
+    static void runHooks(List<Hook> hooks, Message m) {
+	for (Hook h : hooks) {
+	    for (String prefix : h.prefixes) {
+		if (m.prefixMatches(prefix)) {
+		    try {
+			h.hook.process(m);
+		    } catch (RuntimeException e) {
+			Debug.log(Debug.Level.WARN, "net", "Hook failed on %s: %s", m.message, e);
+		    }
+		}
+	    }
+	}
+    }
+
+    /** Give a message to each tied object. */
+    static void runUpdates(List<Updatable> tied, String msg) {
+	for (Updatable u : tied) {
+	    try {
+		u.update(msg);
+	    } catch (RuntimeException e) {
+		Debug.log(Debug.Level.WARN, "net", "%s failed on %s: %s",
+			  u.getClass().getSimpleName(), msg, e);
+	    }
+	}
+    }
+
+    /** Create a session. Sessions are created by the SessionManager.
+     *  @param _id The name of the chopper
+     *  @param _host The host to connect to
+     *  @param _dataPort The port to connect to for textual data
+     *  @param _imgPort The port to connect to for images
+     *  @param _manager The manager whose threads this session uses */
+    Session(String _id, String _host, int _dataPort, int _imgPort, SessionManager _manager) {
+	id = _id;
+	host = _host;
+	dataPort = _dataPort;
+	imgPort = _imgPort;
+	manager = _manager;
+
+	outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+	flushScheduled = new AtomicBoolean(false);
+	flusher = new Runnable() {
+		public void run() {
+		    flushScheduled.set(false);
+		    flush();
+		}
+	    };
+
+	inbox = new ConcurrentLinkedQueue<Envelope>();
+	dispatching = new AtomicBoolean(false);
+	dispatcher = new Runnable() {
+		public void run() {
+		    dispatch();
+		}
+	    };
+
+	tied = new CopyOnWriteArrayList<Updatable>();
+	hooks = new CopyOnWriteArrayList<Hook>();
+    }
+
+    /** @return The name of the chopper */
+    public String getId() {
+	return id;
+    }
+
+    /** @return The host and text port this session connects to */
+    public String getServer() {
+	return host + ":" + dataPort;
+    }
+
+    /** @return True if connected to the chopper, false if not */
+    public boolean isConnected() {
+	return connected;
+    }
+
+    /** @return True if messages are arriving from the chopper */
+    public boolean isReceiving() {
+	return receiving;
+    }
+
+    /** @return True if the session has been stopped or not yet started */
+    public boolean isStopped() {
+	return stopped;
+    }
+
+    /** @return The heartbeat of this session, or null if it has none */
+    public Heartbeat getHeartbeat() {
+	return heartbeat;
+    }
+
+    /** Send heartbeats to this chopper and watch its replies. */
+    void enableHeartbeat() {
+	if (heartbeat == null) {
+	    heartbeat = new Heartbeat(this);
+	    tie(heartbeat);
+	    heartbeat.start(manager.getTimer());
+	}
+    }
+
+    /** Tie an object to this session.
+     *  @param u Object to update on incoming data */
+    public void tie(Updatable u) {
+	tied.add(u);
+    }
+
+    /** Give a hook the messages of this session.
+     *  @param hook The hook to add */
+    public void addHook(MessageHook hook) {
+	hooks.add(new Hook(hook));
+    }
+
+    public String toString() {
+	return id;
+    }
+
+    /** Connect, and keep reconnecting whenever the connection is
+     *  lost, until stopped. */
+    public void start() {
+	stopped = false;
+	closing = false;
+	manager.io(new Runnable() {
+		public void run() {
+		    open();
+		}
+	    });
+    }
+
+    /** Break the connection to the chopper. */
+    public void stop() {
+	stopped = true;
+	manager.io(new Runnable() {
+		public void run() {
+		    disconnect(null);
+		}
+	    });
+    }
+
+    /** Tell the chopper the ground station is going away, and close
+     *  the connection once that has been sent. */
+    public void die() {
+	send("SERVER:CLOSING");
+	stopped = true;
+	closing = true;
+	manager.io(flusher);
+    }
+
+    /** Send a line to the chopper.
+     *  @param s The string to send to the chopper */
+    public void send(String s) {
+	if (! connected)
+	    return;
+	hook(s);
+	outgoing.add(ByteBuffer.wrap((s + "\n").getBytes(CHARSET)));
+	if (flushScheduled.compareAndSet(false, true))
+	    manager.io(flusher);
+    }
+
+    /** Pass a message to everything tied to this session, as if it
+     *  had come from the chopper.
+     *  @param msg The message */
+    public void deliver(String msg) {
+	enqueue(new Envelope(msg, true));
+    }
+
+    /** Pass a message to the hooks only.
+     *  @param msg The message */
+    public void hook(String msg) {
+	enqueue(new Envelope(msg, false));
+    }
+
+    private void enqueue(Envelope e) {
+	inbox.add(e);
+	if (dispatching.compareAndSet(false, true))
+	    manager.execute(dispatcher);
+    }
+
+    /* Runs on a worker. Only one worker dispatches for a session at a
+     * time, so messages are seen in the order they arrived. */
+    private void dispatch() {
+	try {
+	    for (int i=0; i<BATCH; i++) {
+		Envelope e = inbox.poll();
+		if (e == null)
+		    break;
+		try {
+		    process(e);
+		} catch (RuntimeException x) {
+		    Debug.log(Debug.Level.WARN, "net", "Unable to dispatch %s: %s", e.message, x);
+		}
+	    }
+	} finally {
+	    /* Whatever went wrong, later messages must still be
+	     * dispatched */
+	    dispatching.set(false);
+	}
+	if (! inbox.isEmpty() && dispatching.compareAndSet(false, true))
+	    manager.execute(dispatcher);
+    }
+
+    private void process(Envelope e) {
+	String msg = e.message;
+	boolean selected = manager.isSelected(this);
+	Message m = new Message(msg);
+	runHooks(hooks, m);
+	if (selected)
+	    runHooks(manager.getHooks(), m);
+	if (! e.incoming)
+	    return;
+
+	/* If this message means there's an incoming image,
+	 * get ready to receive it. */
+	if (msg.startsWith("SYS"))
+	    Debug.log(Debug.Level.DEBUG, "net", "MSG %s %s", id, msg);
+	if (msg.startsWith("IMAGE"))
+	    receiveImage(msg, selected);
+
+	runUpdates(tied, msg);
+	if (selected)
+	    runUpdates(manager.getTied(), msg);
+
+	if (! msg.startsWith("SYS")) {
+	    lastReceived = System.currentTimeMillis();
+	    if (! receiving) {
+		receiving = true;
+		onReceiving();
+	    }
+	}
+    }
+
+    private void onReceiving() {
+	send("IMAGE:AVAILABLESIZES");
+	send("IMAGE:GETPARAMS");
+	send("IMAGE:SETUP");
+	Debug.log(Debug.Level.DEBUG, "net", "Receiving from %s", id);
+    }
+
+    /** Called by the manager's scheduler to notice a silent chopper. */
+    void checkTimeout(long now) {
+	if (! receiving || now - lastReceived < TIMEOUT)
+	    return;
+	receiving = false;
+	Debug.log("Chopper " + id + " Timed Out");
+	deliver("SYS:RECEIVING:NO");
+
+	/* The image stream may be in the middle of a frame that will
+	 * never finish, so start it again */
+	manager.io(new Runnable() {
+		public void run() {
+		    reopenImage();
+		}
+	    });
+    }
+
+    /** Create a task to receive an incoming image.
+     *
+     *  @param msg The image incoming message. This is necessary
+     *             because it contains the length of the image to be
+     *             received
+     *  @param selected True if the image should be shown */
+    private void receiveImage(String msg, boolean selected) {
+	ObjectInputStream in;
+	try {
+	    synchronized (this) {
+		/* Create a new ObjectInputStream if it doesn't already exist. */
+		if (image == null && imgConnection != null) {
+		    image = new ObjectInputStream(imgConnection.getInputStream());
+		    Debug.log(Debug.Level.DEBUG, "image", "Created a new ObjectInputStream for %s", id);
+		}
+		in = image;
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return;
+	}
+	if (in == null)
+	    return;
+
+	/* Create a new ImageReceiver that transmits a string to the
+	 * phone when it is done receiving. This will cue the phone to
+	 * send the next image */
+	try {
+	    ImageReceiver r = new ImageReceiver(in, msg, selected ? manager.getImagePanel() : null,
+						new Callback() {
+						    public void completed() {
+							send("IMAGE:RECEIVED");
+						    }
+						});
+	    manager.readImage(r);
+	} catch (IllegalArgumentException e) {
+	    ;
+	}
+    }
+
+    private void setConnected(boolean _connected) {
+	connected = _connected;
+	manager.connectionChanged(this);
+    }
+
+    /* Everything below runs on the manager's I/O thread */
+
+    /** Open the text connection. */
+    void open() {
+	if (stopped || channel != null)
+	    return;
+	Debug.log("Connecting to " + id + " on " + host + " ports " + dataPort + " and " + imgPort);
+	greeting = (Relay.PAIR_PREFIX + UUID.randomUUID() + "\n").getBytes(CHARSET);
+	try {
+	    channel = SocketChannel.open();
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    channel.connect(new InetSocketAddress(host, dataPort));
+	    key = channel.register(manager.getSelector(), SelectionKey.OP_CONNECT, this);
+	} catch (IOException e) {
+	    disconnect("Error initializing sockets: " + e.toString());
+	}
+    }
+
+    /** Close the image connection and connect it again, leaving the
+     *  text connection alone. */
+    private void reopenImage() {
+	if (channel == null || imgKey != null)
+	    return;
+	synchronized (this) {
+	    if (imgConnection == null)
+		return;
+	    Debug.log("Closing image sockets for " + id);
+	    try {
+		if (image != null)
+		    image.close();
+		imgConnection.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    image = null;
+	    imgConnection = null;
+	}
+	connectImage();
+    }
+
+    /* Start connecting the image socket; finishConnect completes it */
+    private void connectImage() {
+	try {
+	    SocketChannel img = SocketChannel.open();
+	    img.configureBlocking(false);
+	    img.connect(new InetSocketAddress(host, imgPort));
+	    imgKey = img.register(manager.getSelector(), SelectionKey.OP_CONNECT, this);
+	} catch (IOException e) {
+	    disconnect("Error initializing sockets: " + e.toString());
+	}
+    }
+
+    /** Finish connecting a socket. Once the text socket is
+     *  connected the image socket is, and once both are the
+     *  chopper is greeted.
+     *  @param k The key of the socket that is ready */
+    void finishConnect(SelectionKey k) {
+	final SocketChannel c = (SocketChannel) k.channel();
+	try {
+	    if (! c.finishConnect())
+		return;
+	    if (k == key) {
+		key.interestOps(0);
+		connectImage();
+		return;
+	    }
+	} catch (IOException e) {
+	    disconnect("Error initializing sockets: " + e.toString());
+	    return;
+	}
+
+	/* Images are read with blocking streams, which the channel
+	 * allows once the selector has let go of it */
+	imgKey.cancel();
+	imgKey = null;
+	final SocketChannel connecting = channel;
+	manager.io(new Runnable() {
+		public void run() {
+		    imageConnected(connecting, c);
+		}
+	    });
+    }
+
+    private void imageConnected(SocketChannel connecting, SocketChannel img) {
+	if (channel != connecting) {
+	    /* Stopped or reconnected while the image socket connected */
+	    try {
+		img.close();
+	    } catch (IOException e) {
+		/* Not needed anyway */
+	    }
+	    return;
+	}
+
+	try {
+	    /* A few bytes on a new connection always fit in its buffer */
+	    ByteBuffer hello = ByteBuffer.wrap(greeting);
+	    img.write(hello);
+	    if (hello.hasRemaining())
+		throw new IOException("Unable to send the pairing line");
+	    img.configureBlocking(true);
+	} catch (IOException e) {
+	    disconnect("Error initializing sockets: " + e.toString());
+	    return;
+	}
+	synchronized (this) {
+	    imgConnection = img.socket();
+	    image = null;
+	}
+	if (connected) {
+	    /* Only the image socket was reopened */
+	    Debug.log("Reconnected image socket for " + id);
+	    return;
+	}
+	key.interestOps(SelectionKey.OP_READ);
+	Debug.log("Connected to " + id);
+	outgoing.add(ByteBuffer.wrap(greeting));
+	setConnected(true);
+	/* Send a line to the server telling it we've connected */
+	send("SERVER:HELLO");
+    }
+
+    /** Read what has arrived and split it into lines. */
+    void read() {
+	int n;
+	try {
+	    readBuffer.clear();
+	    n = channel.read(readBuffer);
+	} catch (IOException e) {
+	    disconnect("Disconnected: " + e.toString());
+	    return;
+	}
+	if (n < 0) {
+	    disconnect("Disconnected");
+	    return;
+	}
+
+	readBuffer.flip();
+	while (readBuffer.hasRemaining()) {
+	    byte b = readBuffer.get();
+	    if (b == '\n') {
+		if (! overlong) {
+		    int end = lineLength;
+		    if (end > 0 && line[end - 1] == '\r')
+			end--;
+		    deliver(new String(line, 0, end, CHARSET));
+		}
+		lineLength = 0;
+		overlong = false;
+	    } else if (! overlong) {
+		if (lineLength == line.length) {
+		    if (line.length >= MAX_LINE) {
+			overlong = true;
+			continue;
+		    }
+		    byte[] grown = new byte[line.length * 2];
+		    System.arraycopy(line, 0, grown, 0, lineLength);
+		    line = grown;
+		}
+		line[lineLength++] = b;
+	    }
+	}
+    }
+
+    /** Write as much as the socket will take. */
+    void flush() {
+	if (channel == null || key == null || ! connected) {
+	    outgoing.clear();
+	    if (closing)
+		disconnect(null);
+	    return;
+	}
+
+	try {
+	    while (true) {
+		if (current == null)
+		    current = outgoing.poll();
+		if (current == null)
+		    break;
+		channel.write(current);
+		if (current.hasRemaining())
+		    break;
+		current = null;
+	    }
+	} catch (IOException e) {
+	    disconnect("Disconnected: " + e.toString());
+	    return;
+	}
+
+	if (current == null && closing) {
+	    disconnect(null);
+	    return;
+	}
+	key.interestOps(SelectionKey.OP_READ | (current != null ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /** Close both connections, and try again later unless stopped.
+     *  @param reason Why, for the log, or null if asked to */
+    void disconnect(String reason) {
+	if (key != null)
+	    key.cancel();
+	try {
+	    if (imgKey != null)
+		imgKey.channel().close();
+	    if (channel != null)
+		channel.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	channel = null;
+	key = null;
+	imgKey = null;
+	current = null;
+	outgoing.clear();
+	lineLength = 0;
+	overlong = false;
+
+	synchronized (this) {
+	    try {
+		if (imgConnection != null)
+		    imgConnection.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    imgConnection = null;
+	    image = null;
+	}
+
+	if (connected)
+	    setConnected(false);
+	if (reason != null)
+	    Debug.log(id + ": " + reason);
+
+	if (! stopped) {
+	    /* If connecting fails, wait before trying again */
+	    manager.schedule(new Runnable() {
+		    public void run() {
+			manager.io(new Runnable() {
+				public void run() {
+				    open();
+				}
+			    });
+		    }
+		}, RECONNECT_DELAY);
+	}
+    }
+}
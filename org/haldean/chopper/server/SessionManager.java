@@ -0,0 +1,335 @@
+package org.haldean.chopper.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Keeps a Session for each chopper the ground station talks to, and
+ *  the threads they all share: one I/O thread that reads and writes
+ *  every text socket through a Selector, a pool of workers that
+ *  dispatch incoming messages, a pool that reads images, and a
+ *  scheduler for heartbeats, receive timeouts and reconnects. The
+ *  number of threads does not grow with the number of choppers.
+ *
+ *  One session is selected at a time. Objects tied and hooks added
+ *  here -- the UI, for the most part -- receive the messages of the
+ *  selected session only, and sendToSelected commands it.
+ */
+public class SessionManager {
+    private static SessionManager instance;
+
+    /** Milliseconds between checks for choppers that have gone quiet */
+    public static final long TIMEOUT_CHECK_PERIOD = 500;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> ioTasks;
+    private final ExecutorService workers;
+    private final ExecutorService imageReaders;
+    private final ScheduledExecutorService timer;
+
+    private final LinkedHashMap<String, Session> sessions;
+    private volatile Session selected;
+
+    /* Bound to whichever session is selected */
+    private final CopyOnWriteArrayList<Updatable> tied;
+    private final CopyOnWriteArrayList<Session.Hook> hooks;
+    private volatile ImagePanel imagePanel;
+    private volatile StatusLabel statusLabel;
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+    /**
+     *  Notified when another session is selected.
+     */
+    public interface Listener {
+	/** @param session The newly selected session */
+	public void sessionSelected(Session session);
+    }
+
+    /** Get the SessionManager, starting its threads if this is the first call. */
+    public static synchronized SessionManager getInstance() {
+	if (instance == null)
+	    instance = new SessionManager();
+	return instance;
+    }
+
+    private SessionManager() {
+	try {
+	    selector = Selector.open();
+	} catch (IOException e) {
+	    throw new IllegalStateException("Unable to open a selector: " + e.toString());
+	}
+	ioTasks = new ConcurrentLinkedQueue<Runnable>();
+	workers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+					       threadFactory("Session Worker"));
+	imageReaders = Executors.newCachedThreadPool(threadFactory("Image Reader"));
+	timer = Executors.newSingleThreadScheduledExecutor(threadFactory("Session Timer"));
+
+	sessions = new LinkedHashMap<String, Session>();
+	tied = new CopyOnWriteArrayList<Updatable>();
+	hooks = new CopyOnWriteArrayList<Session.Hook>();
+	listeners = new CopyOnWriteArrayList<Listener>();
+
+	/* Log PID tunings of the selected chopper */
+	addHook(new PidLogger());
+
+	timer.scheduleAtFixedRate(new Runnable() {
+		public void run() {
+		    long now = System.currentTimeMillis();
+		    for (Session s : getSessions())
+			s.checkTimeout(now);
+		}
+	    }, TIMEOUT_CHECK_PERIOD, TIMEOUT_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+
+	Thread io = new Thread(new Runnable() {
+		public void run() {
+		    loop();
+		}
+	    }, "Session I/O");
+	io.setDaemon(true);
+	io.start();
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+	return new ThreadFactory() {
+	    private final AtomicInteger count = new AtomicInteger();
+
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + " " + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    }
+
+    /**
+     *  Add a session for a chopper. The first session added is
+     *  selected. The session is not connected until started.
+     *
+     *  @param id The name of the chopper, which must be unique
+     *  @param host The host to connect to
+     *  @param dataPort The port to connect to for textual data
+     *  @param imgPort The port to connect to for images
+     *  @param heartbeat True to send the chopper heartbeats
+     *  @return The new session
+     */
+    public Session add(String id, String host, int dataPort, int imgPort, boolean heartbeat) {
+	Session s = new Session(id, host, dataPort, imgPort, this);
+	synchronized (sessions) {
+	    if (sessions.containsKey(id))
+		throw new IllegalArgumentException("There is already a session named " + id);
+	    sessions.put(id, s);
+	}
+	if (heartbeat)
+	    s.enableHeartbeat();
+	if (selected == null)
+	    select(id);
+	return s;
+    }
+
+    /** @return The session with the given name, or null if there is none */
+    public Session get(String id) {
+	synchronized (sessions) {
+	    return sessions.get(id);
+	}
+    }
+
+    /** @return Every session, in the order they were added */
+    public List<Session> getSessions() {
+	synchronized (sessions) {
+	    return new ArrayList<Session>(sessions.values());
+	}
+    }
+
+    /** @return The selected session, or null if there are none */
+    public Session getSelected() {
+	return selected;
+    }
+
+    /** @return True if the session is the selected one */
+    public boolean isSelected(Session s) {
+	return s == selected;
+    }
+
+    /**
+     *  Bind the UI to another session.
+     *
+     *  @param id The name of the session to select
+     */
+    public void select(String id) {
+	Session s = get(id);
+	if (s == null)
+	    throw new IllegalArgumentException("There is no session named " + id);
+	selected = s;
+	Debug.log("Selected " + id);
+
+	StatusLabel sl = statusLabel;
+	if (sl != null) {
+	    sl.setConnected(s.isConnected());
+	    sl.setReceiving(s.isReceiving());
+	}
+	for (Listener l : listeners)
+	    l.sessionSelected(s);
+    }
+
+    /** @param l A listener to notify when another session is selected */
+    public void addListener(Listener l) {
+	listeners.add(l);
+    }
+
+    /** Connect every session. */
+    public void startAll() {
+	for (Session s : getSessions())
+	    s.start();
+    }
+
+    /** Tell every chopper the ground station is closing, and disconnect. */
+    public void dieAll() {
+	for (Session s : getSessions())
+	    s.die();
+    }
+
+    /** @return True if any session is connected */
+    public boolean isAnyConnected() {
+	for (Session s : getSessions())
+	    if (s.isConnected())
+		return true;
+	return false;
+    }
+
+    /** Tie an object to the selected session.
+     *  @param u Object to update on incoming data */
+    public void tie(Updatable u) {
+	tied.add(u);
+    }
+
+    /** Give a hook the messages of the selected session.
+     *  @param hook The hook to add */
+    public void addHook(MessageHook hook) {
+	hooks.add(new Session.Hook(hook));
+    }
+
+    /** Show the images of the selected session on an ImagePanel.
+     *  @param i The ImagePanel to draw on */
+    public void tieImage(ImagePanel i) {
+	imagePanel = i;
+	tie(i);
+    }
+
+    /** Show the state of the selected session on a status label.
+     *  @param sl The status label */
+    public void setStatusLabel(StatusLabel sl) {
+	statusLabel = sl;
+	tie(sl);
+    }
+
+    /** Send a command to the selected chopper.
+     *  @param s The string to send */
+    public static void sendToSelected(String s) {
+	Session session = getInstance().getSelected();
+	if (session != null)
+	    session.send(s);
+    }
+
+    /* For Session */
+
+    List<Updatable> getTied() {
+	return tied;
+    }
+
+    List<Session.Hook> getHooks() {
+	return hooks;
+    }
+
+    ImagePanel getImagePanel() {
+	return imagePanel;
+    }
+
+    Selector getSelector() {
+	return selector;
+    }
+
+    ScheduledExecutorService getTimer() {
+	return timer;
+    }
+
+    void connectionChanged(Session s) {
+	StatusLabel sl = statusLabel;
+	if (sl != null && s == selected)
+	    sl.setConnected(s.isConnected());
+    }
+
+    /** Run a task on the I/O thread. */
+    void io(Runnable task) {
+	ioTasks.add(task);
+	selector.wakeup();
+    }
+
+    /** Run a task on a worker. */
+    void execute(Runnable task) {
+	workers.execute(task);
+    }
+
+    /** Run a task that may block on an image socket. */
+    void readImage(Runnable task) {
+	imageReaders.execute(task);
+    }
+
+    /** Run a task on a worker after a delay. */
+    void schedule(final Runnable task, long delay) {
+	timer.schedule(new Runnable() {
+		public void run() {
+		    workers.execute(task);
+		}
+	    }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void loop() {
+	while (true) {
+	    try {
+		selector.select();
+	    } catch (IOException e) {
+		Debug.log(Debug.Level.WARN, "net", "Select failed: %s", e);
+		continue;
+	    }
+
+	    Runnable task;
+	    while ((task = ioTasks.poll()) != null) {
+		try {
+		    task.run();
+		} catch (RuntimeException e) {
+		    Debug.log(Debug.Level.WARN, "net", "I/O task failed: %s", e);
+		}
+	    }
+
+	    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+	    while (keys.hasNext()) {
+		SelectionKey key = keys.next();
+		keys.remove();
+		Session s = (Session) key.attachment();
+		try {
+		    if (key.isValid() && key.isConnectable())
+			s.finishConnect(key);
+		    if (key.isValid() && key.isReadable())
+			s.read();
+		    if (key.isValid() && key.isWritable())
+			s.flush();
+		} catch (RuntimeException e) {
+		    Debug.log(Debug.Level.WARN, "net", "I/O on %s failed: %s", s.getId(), e);
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,96 @@
+package org.haldean.chopper.server;
+
+import org.haldean.chopper.pilot.PidLoops;
+import org.haldean.chopper.sim.Controller;
+import org.haldean.chopper.sim.FlightModel;
+import org.haldean.chopper.sim.SimulatedGuidance;
+import org.haldean.chopper.sim.Simulator;
+
+/**
+ *  Scores PID values by flying them in the headless simulator with the
+ *  chopper's own PID loops. The chopper takes off on a fixed throttle,
+ *  as it is flown while tuning, and settles into a hover; then the
+ *  target of the loop being tuned is swung back and forth while its
+ *  error is scored exactly as a flight would be. Crashing, or tilting
+ *  past MAX_TILT, fails the experiment. Each call builds its own
+ *  simulation, so any number of threads may score at once.
+ */
+public class SimulatedScorer implements PidScorer {
+    // Time spent climbing, then hovering, before the experiment starts.
+    private static final long CLIMB_MILLIS = 2000;
+    private static final long SETTLE_MILLIS = 3000;
+    // Throttle settings; the simulated chopper hovers at 0.4.
+    private static final double CLIMB_THROTTLE = 0.5;
+    private static final double HOVER_THROTTLE = 0.4;
+    // Gains that hold the loops not being tuned steady: P, I and D for
+    // roll, pitch, vertical speed and azimuth.
+    private static final double HOLD_GAINS[][] = {
+	{0.01, 0.0, 0.03},
+	{0.01, 0.0, 0.03},
+	{0.01, 0.0, 0.0},
+	{0.0, 0.0, 0.0}};
+    // Period of the swing of the target.
+    private static final long SWING_PERIOD_MILLIS = 2000;
+    // Amplitude of the swing, per loop: roll and pitch in degrees,
+    // vertical speed in m/s and azimuth in degrees.
+    private static final double AMPLITUDE[] = {5.0, 5.0, 0.5, 10.0};
+    // Tilting further than this, in degrees, counts as a crash.
+    private static final double MAX_TILT = 60.0;
+
+    private PidExperiment.CostFunction mCost;
+
+    public SimulatedScorer(PidExperiment.CostFunction cost) {
+	mCost = cost;
+    }
+
+    public double score(final int axis, double p, double i, double d) {
+	final Simulator sim = new Simulator();
+	final SimulatedGuidance guidance = new SimulatedGuidance(sim);
+	final PidLoops loops = guidance.getLoops();
+	for (int loop = 0; loop < 4; loop++) {
+	    for (int term = 0; term < 3; term++) {
+		loops.setGain(loop, term, HOLD_GAINS[loop][term]);
+	    }
+	}
+	loops.setGain(axis, 0, p);
+	loops.setGain(axis, 1, i);
+	loops.setGain(axis, 2, d);
+
+	// Vertical speed can only be tuned with its loop closed.
+	final double target[] = new double[4];
+	loops.setDirectThrottle(axis != 2);
+	target[2] = axis != 2 ? CLIMB_THROTTLE : 0.0;
+	guidance.setTarget(target);
+	sim.setController(guidance);
+	sim.step(CLIMB_MILLIS);
+	target[2] = axis != 2 ? HOVER_THROTTLE : 0.0;
+	guidance.setTarget(target);
+	sim.step(SETTLE_MILLIS);
+	if (crashed(sim.getModel())) return PidExperiment.FAILED_SCORE;
+
+	final PidExperiment exp = new PidExperiment(p, i, d);
+	exp.setCostFunction(mCost);
+	final long start = sim.currentTimeMillis();
+	sim.setController(new Controller() {
+		public void step() {
+		    long t = sim.currentTimeMillis() - start;
+		    target[axis] = AMPLITUDE[axis] *
+			Math.sin(2 * Math.PI * t / SWING_PERIOD_MILLIS);
+		    guidance.setTarget(target);
+		    guidance.step();
+		    exp.addError(loops.getError(axis), sim.currentTimeMillis());
+		}
+	    });
+	while (!exp.isDone()) {
+	    sim.step(Simulator.CONTROL_PERIOD);
+	    if (crashed(sim.getModel())) return PidExperiment.FAILED_SCORE;
+	}
+	return exp.getScore();
+    }
+
+    private static boolean crashed(FlightModel model) {
+	return model.getPosition(FlightModel.UP) <= 0 ||
+	    Math.abs(model.getAngle(FlightModel.ROLL)) > MAX_TILT ||
+	    Math.abs(model.getAngle(FlightModel.PITCH)) > MAX_TILT;
+    }
+}
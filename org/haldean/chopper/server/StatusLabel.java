@@ -111,7 +111,10 @@ public class StatusLabel extends JPanel implements Updatable {
 	if (s.equals("SYS:RECEIVING:NO"))
 	    setReceiving(false);
 	else {
-	    setReceiving(true);
+	    /* Every message passes through here, so only touch the
+	     * label when the state actually changes */
+	    if (! isReceiving)
+		setReceiving(true);
 	    if (s.startsWith("BATTERY")) {
 		String parts[] = s.split(":");
 		setBattery(new Double(parts[1]));
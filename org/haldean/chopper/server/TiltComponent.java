@@ -31,7 +31,7 @@ public class TiltComponent extends JComponent {
      *  @param _tilt An object representing its current orientation */
     public void setTilt(Orientation _tilt) {
 	tilt = _tilt;
-	repaint();
+	RenderScheduler.repaint(this);
     }
 
     /** The canvas is split into four quadrants. 
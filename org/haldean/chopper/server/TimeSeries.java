@@ -0,0 +1,330 @@
+package org.haldean.chopper.server;
+
+/**
+ * A fixed-size history of timestamped samples, stored in primitive
+ * arrays used as a ring. Appending is O(1) and never allocates, and
+ * once the ring is full each new sample replaces the oldest, so a
+ * series uses the same memory an hour into a flight as it did at the
+ * start.
+ *
+ * Writers are serialized with each other, but readers take no lock
+ * at all: snapshot() copies the most recent samples into arrays owned
+ * by the caller, so a graph can paint from its copy while new samples
+ * keep arriving. A reader that is lapped by the writer during the
+ * copy drops the samples that were overwritten rather than return
+ * torn data.
+ *
+ * Alongside the samples the series keeps a pyramid of minima and
+ * maxima: level 0 summarizes blocks of FANOUT samples, level 1 blocks
+ * of FANOUT^2, and so on. decimate() uses it to reduce any range of
+ * the history, however long, to a fixed number of min/max columns by
+ * reading at most a few blocks per column, so drawing or scrubbing
+ * through a whole flight costs the same as drawing the last second.
+ * Samples are identified by their index, counting from the first
+ * sample ever added.
+ *
+ * The ring only holds the most recent samples, so the series also
+ * keeps the whole history at a coarser resolution: HISTORY_BLOCKS
+ * blocks of minima and maxima, starting from the first sample. When
+ * they are all used, neighbouring blocks are merged in pairs and each
+ * block covers twice as many samples as before. decimate() reads
+ * samples that have left the ring from these blocks, so a graph of
+ * the whole flight still starts at takeoff. The blocks are read under
+ * the series' lock, which holds up a writer for at most one pass over
+ * the columns.
+ */
+public class TimeSeries {
+    private final double[] values;
+    private final long[] times;
+    private final int capacity;
+    private final int mask;
+
+    /** The number of blocks of one pyramid level in each block of the next */
+    public static final int FANOUT = 4;
+    private static final int FANOUT_BITS = 2;
+
+    /* levelMin[j] and levelMax[j] are rings of the extremes of blocks
+     * of FANOUT^(j+1) samples */
+    private final double[][] levelMin;
+    private final double[][] levelMax;
+
+    /** The number of blocks the whole history is kept in */
+    public static final int HISTORY_BLOCKS = 4096;
+
+    /* historyMin[b] and historyMax[b] are the extremes of samples
+     * b << historyShift up to (b + 1) << historyShift; guarded by this */
+    private final double[] historyMin = new double[HISTORY_BLOCKS];
+    private final double[] historyMax = new double[HISTORY_BLOCKS];
+    private int historyShift = 0;
+
+    /* The number of appends begun and completed. Samples with
+     * indices below started - capacity may have been overwritten. */
+    private volatile long started = 0;
+    private volatile long count = 0;
+    /* Written by readers only to order their reads; see snapshot() */
+    private volatile int fence = 0;
+
+    /** Create a new series.
+     *  @param minimumCapacity The number of samples to keep. This is
+     *  rounded up to a power of two. */
+    public TimeSeries(int minimumCapacity) {
+	int c = 1;
+	while (c < minimumCapacity)
+	    c <<= 1;
+	capacity = c;
+	mask = c - 1;
+	values = new double[c];
+	times = new long[c];
+
+	/* Each level is a ring of at least FANOUT blocks */
+	int levels = 0;
+	while ((c >> (FANOUT_BITS * (levels + 1))) >= FANOUT)
+	    levels++;
+	levelMin = new double[levels][];
+	levelMax = new double[levels][];
+	for (int j=0; j<levels; j++) {
+	    levelMin[j] = new double[c >> (FANOUT_BITS * (j + 1))];
+	    levelMax[j] = new double[c >> (FANOUT_BITS * (j + 1))];
+	}
+    }
+
+    /** @return The maximum number of samples kept. */
+    public int capacity() {
+	return capacity;
+    }
+
+    /** @return The number of samples currently kept. */
+    public int size() {
+	return (int) Math.min(count, capacity);
+    }
+
+    /** @return The number of samples added since the series was
+     *  created, including those that have since been dropped. This
+     *  is one more than the index of the newest sample. */
+    public long getCount() {
+	return count;
+    }
+
+    /** @return The index of the oldest sample still kept. */
+    public long firstIndex() {
+	return Math.max(0, count - capacity);
+    }
+
+    /** Add a sample taken now.
+     *  @param value The sample */
+    public void add(double value) {
+	add(System.currentTimeMillis(), value);
+    }
+
+    /** Add a sample.
+     *  @param time The time of the sample, in milliseconds since the epoch
+     *  @param value The sample */
+    public synchronized void add(long time, double value) {
+	long n = count;
+	started = n + 1;
+	/* Reading started back, a volatile read after the volatile
+	 * write, keeps the stores below from being reordered ahead of
+	 * it, so a reader that sees any of them also sees started */
+	int slot = (int) ((started - 1) & mask);
+	values[slot] = value;
+	times[slot] = time;
+
+	for (int j=0; j<levelMin.length; j++) {
+	    int shift = FANOUT_BITS * (j + 1);
+	    int block = (int) ((n >> shift) & (levelMin[j].length - 1));
+	    /* The first sample of a block replaces what was there */
+	    if ((n & ((1L << shift) - 1)) == 0) {
+		levelMin[j][block] = value;
+		levelMax[j][block] = value;
+	    } else {
+		if (value < levelMin[j][block])
+		    levelMin[j][block] = value;
+		if (value > levelMax[j][block])
+		    levelMax[j][block] = value;
+	    }
+	}
+
+	if ((n >> historyShift) == HISTORY_BLOCKS)
+	    mergeHistory();
+	int block = (int) (n >> historyShift);
+	if ((n & ((1L << historyShift) - 1)) == 0) {
+	    historyMin[block] = value;
+	    historyMax[block] = value;
+	} else {
+	    if (value < historyMin[block])
+		historyMin[block] = value;
+	    if (value > historyMax[block])
+		historyMax[block] = value;
+	}
+	count = n + 1;
+    }
+
+    /** Halve the resolution of the history to make room for more. */
+    private void mergeHistory() {
+	for (int b=0; b<HISTORY_BLOCKS/2; b++) {
+	    historyMin[b] = Math.min(historyMin[2*b], historyMin[2*b + 1]);
+	    historyMax[b] = Math.max(historyMax[2*b], historyMax[2*b + 1]);
+	}
+	historyShift++;
+    }
+
+    /** @return The most recent sample, or 0 if there are none. */
+    public double last() {
+	long n = count;
+	if (n == 0) return 0;
+	return values[(int) ((n - 1) & mask)];
+    }
+
+    /** @return The time of the most recent sample, or 0 if there are none. */
+    public long lastTime() {
+	long n = count;
+	if (n == 0) return 0;
+	return times[(int) ((n - 1) & mask)];
+    }
+
+    /** Copy the most recent samples, oldest first.
+     *
+     *  @param n The maximum number of samples to copy
+     *  @param valueTarget Array of length at least n to copy the values into
+     *  @param timeTarget Array of length at least n to copy the times
+     *  into, or null if the times are not needed
+     *  @return The number of samples copied */
+    public int snapshot(int n, double[] valueTarget, long[] timeTarget) {
+	long end = count;
+	long begin = Math.max(0, end - Math.min(n, capacity));
+	int copied = (int) (end - begin);
+	int first = (int) (begin & mask);
+	int split = Math.min(copied, capacity - first);
+
+	System.arraycopy(values, first, valueTarget, 0, split);
+	System.arraycopy(values, 0, valueTarget, split, copied - split);
+	if (timeTarget != null) {
+	    System.arraycopy(times, first, timeTarget, 0, split);
+	    System.arraycopy(times, 0, timeTarget, split, copied - split);
+	}
+
+	/* Drop anything the writer may have overwritten while we
+	 * copied. The volatile write keeps the copies above from being
+	 * reordered past the volatile read of started below. */
+	fence = copied;
+	long lost = (started - capacity) - begin;
+	if (lost > 0) {
+	    if (lost >= copied)
+		return 0;
+	    int keep = copied - (int) lost;
+	    System.arraycopy(valueTarget, (int) lost, valueTarget, 0, keep);
+	    if (timeTarget != null)
+		System.arraycopy(timeTarget, (int) lost, timeTarget, 0, keep);
+	    copied = keep;
+	}
+	return copied;
+    }
+
+    /** Average the most recent samples without copying them.
+     *  @param n The number of samples to average over
+     *  @return The mean of the last n samples, or of all of them if
+     *  there are fewer than n, or 0 if there are none */
+    public double mean(int n) {
+	long end = count;
+	long begin = Math.max(0, end - Math.min(n, capacity));
+	if (end == begin) return 0;
+
+	double sum = 0;
+	for (long i=begin; i<end; i++)
+	    sum += values[(int) (i & mask)];
+	return sum / (end - begin);
+    }
+
+    /** Reduce a range of the history to columns, each holding the
+     *  smallest and largest sample in its share of the range. If
+     *  there are fewer samples than columns, each column holds one
+     *  sample. The cost depends on the number of columns and not on
+     *  the length of the range, so long ranges are summarized from the
+     *  pyramid, and samples that have left the ring from the coarse
+     *  history; a column's extremes may then include a few samples
+     *  from just outside its share.
+     *
+     *  @param begin The index of the first sample in the range
+     *  @param end One more than the index of the last sample in the range
+     *  @param columns The maximum number of columns
+     *  @param minTarget Array of length at least columns to write the minima into
+     *  @param maxTarget Array of length at least columns to write the maxima into
+     *  @return The number of columns written */
+    public int decimate(long begin, long end, int columns,
+			double[] minTarget, double[] maxTarget) {
+	long newest = count;
+	begin = Math.max(begin, 0);
+	end = Math.min(end, newest);
+	if (end <= begin || columns <= 0)
+	    return 0;
+
+	long span = end - begin;
+	if (span < columns)
+	    columns = (int) span;
+	double perColumn = (double) span / columns;
+
+	/* Columns that start before the ring are read from the history */
+	int c = 0;
+	if (begin < firstIndex()) {
+	    synchronized (this) {
+		long kept = firstIndex();
+		for (; c<columns; c++) {
+		    long from = begin + (long) (c * perColumn);
+		    long to = Math.max(from + 1, begin + (long) ((c + 1) * perColumn));
+		    if (from >= kept)
+			break;
+		    double lo = Double.POSITIVE_INFINITY;
+		    double hi = Double.NEGATIVE_INFINITY;
+		    for (long b=from >> historyShift; b<=(to - 1) >> historyShift; b++) {
+			if (historyMin[(int) b] < lo) lo = historyMin[(int) b];
+			if (historyMax[(int) b] > hi) hi = historyMax[(int) b];
+		    }
+		    minTarget[c] = lo;
+		    maxTarget[c] = hi;
+		}
+	    }
+	}
+
+	/* Use the coarsest level whose blocks still fit in a column */
+	int level = -1;
+	while (level + 1 < levelMin.length &&
+	       (1L << (FANOUT_BITS * (level + 2))) <= perColumn)
+	    level++;
+
+	for (; c<columns; c++) {
+	    long from = begin + (long) (c * perColumn);
+	    long to = Math.max(from + 1, begin + (long) ((c + 1) * perColumn));
+	    double lo = Double.POSITIVE_INFINITY;
+	    double hi = Double.NEGATIVE_INFINITY;
+
+	    if (level < 0) {
+		for (long i=from; i<to; i++) {
+		    double v = values[(int) (i & mask)];
+		    if (v < lo) lo = v;
+		    if (v > hi) hi = v;
+		}
+	    } else {
+		int shift = FANOUT_BITS * (level + 1);
+		int blocks = levelMin[level].length;
+		/* The oldest block's slot may have been reused by the
+		 * newest one; read any of the range it covered directly */
+		long first = Math.max(from >> shift, ((newest - 1) >> shift) - blocks + 1);
+		long last = (to - 1) >> shift;
+		for (long i=from; i<Math.min(to, first << shift); i++) {
+		    double v = values[(int) (i & mask)];
+		    if (v < lo) lo = v;
+		    if (v > hi) hi = v;
+		}
+		for (long b=first; b<=last; b++) {
+		    int slot = (int) (b & (blocks - 1));
+		    if (levelMin[level][slot] < lo) lo = levelMin[level][slot];
+		    if (levelMax[level][slot] > hi) hi = levelMax[level][slot];
+		}
+	    }
+
+	    minTarget[c] = lo;
+	    maxTarget[c] = hi;
+	}
+	return columns;
+    }
+}
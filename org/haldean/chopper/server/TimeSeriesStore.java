@@ -0,0 +1,76 @@
+package org.haldean.chopper.server;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The ground station's telemetry history. Each quantity a chopper
+ * reports is kept in a named TimeSeries that is created the first time
+ * it is asked for, so that the component that records a quantity and
+ * every component that displays it share one copy of the data.
+ *
+ * Every session has series of its own, so that switching choppers
+ * never joins two vehicles' data into one trace. Components record
+ * the messages of the selected session, and so use its series; a
+ * GraphComponent created with the name of a series follows the
+ * selection to the same series of the newly selected session.
+ *
+ * Names follow the message that carries the data, e.g. "ACCEL:X" or
+ * "GUID:ERROR:1".
+ */
+public class TimeSeriesStore {
+    /** The number of recent samples kept of each quantity at full
+     *  resolution; older samples stay in the series' coarse history */
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    /* The series of each session, by session id */
+    private static HashMap<String, HashMap<String, TimeSeries>> sessions =
+	new HashMap<String, HashMap<String, TimeSeries>>();
+
+    private TimeSeriesStore() {
+	;
+    }
+
+    /** Get a series of the selected session, creating it if it does
+     *  not yet exist.
+     *  @param name The name of the series
+     *  @return The series */
+    public static TimeSeries get(String name) {
+	return get(selectedId(), name);
+    }
+
+    /** Get a series of a session, creating it if it does not yet exist.
+     *  @param session The id of the session
+     *  @param name The name of the series
+     *  @return The series */
+    public static synchronized TimeSeries get(String session, String name) {
+	HashMap<String, TimeSeries> series = sessions.get(session);
+	if (series == null) {
+	    series = new HashMap<String, TimeSeries>();
+	    sessions.put(session, series);
+	}
+	TimeSeries s = series.get(name);
+	if (s == null) {
+	    s = new TimeSeries(DEFAULT_CAPACITY);
+	    series.put(name, s);
+	}
+	return s;
+    }
+
+    /** @return The names of every series of the selected session
+     *  created so far. */
+    public static synchronized Set<String> names() {
+	HashMap<String, TimeSeries> series = sessions.get(selectedId());
+	if (series == null)
+	    return new TreeSet<String>();
+	return new TreeSet<String>(series.keySet());
+    }
+
+    /* The id of the selected session, or the empty string before there
+     * is one */
+    private static String selectedId() {
+	Session s = SessionManager.getInstance().getSelected();
+	return s == null ? "" : s.getId();
+    }
+}
@@ -0,0 +1,261 @@
+package org.haldean.chopper.server;
+
+import java.awt.Color;
+import java.util.ArrayList;
+
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.layers.RenderableLayer;
+import gov.nasa.worldwind.render.Polyline;
+
+/**
+ *  A layer that draws the path the chopper has flown, at a cost that
+ *  does not grow with the length of the flight.
+ *
+ *  GPS fixes are simplified as they arrive. Fixes closer than
+ *  MIN_SPACING to the previous one are ignored, and the rest collect
+ *  in a window behind the last vertex of the path. As long as a
+ *  straight line from that vertex to the newest fix passes within
+ *  TOLERANCE of every fix in the window, nothing is added; when it no
+ *  longer does, the window is reduced with Douglas-Peucker and the
+ *  surviving fixes become vertices. The vertices are kept in primitive
+ *  arrays and drawn as a series of polylines of CHUNK_SIZE vertices
+ *  each. Only the last polyline, which also runs to the newest fix,
+ *  is ever rebuilt; the others never change once they are full.
+ */
+public class TrackLayer extends RenderableLayer {
+    /** The number of vertices in each polyline */
+    public static final int CHUNK_SIZE = 256;
+    /** The farthest a fix may be from the drawn path, in meters */
+    public static final double TOLERANCE = 2.0;
+    /** Fixes closer than this to the previous fix are ignored, in meters */
+    public static final double MIN_SPACING = 0.5;
+    /** The most fixes held back before some are made vertices */
+    public static final int WINDOW = 64;
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    /* The vertices of the path */
+    private double[] lats;
+    private double[] lons;
+    private double[] alts;
+    private int count = 0;
+
+    /* The fixes since the last vertex; the first is that vertex */
+    private double[] windowLat;
+    private double[] windowLon;
+    private double[] windowAlt;
+    private int windowCount = 0;
+    private boolean[] keep;
+
+    /* The polyline being extended, and the vertex it starts at */
+    private Polyline tail;
+    private int tailStart = 0;
+    private long fixes = 0;
+
+    private Color color;
+    private double width;
+
+    /** Create a new, empty track
+     *  @param _color The color of the path
+     *  @param _width The width of the path, in pixels */
+    public TrackLayer(Color _color, double _width) {
+	color = _color;
+	width = _width;
+	lats = new double[CHUNK_SIZE];
+	lons = new double[CHUNK_SIZE];
+	alts = new double[CHUNK_SIZE];
+	windowLat = new double[WINDOW];
+	windowLon = new double[WINDOW];
+	windowAlt = new double[WINDOW];
+	keep = new boolean[WINDOW];
+	tail = newChunk();
+    }
+
+    /** @return The number of fixes added */
+    public synchronized long getFixCount() {
+	return fixes;
+    }
+
+    /** @return The number of vertices in the drawn path */
+    public synchronized int getVertexCount() {
+	return count;
+    }
+
+    /** Forget the path flown so far. */
+    public synchronized void clear() {
+	removeAllRenderables();
+	count = 0;
+	windowCount = 0;
+	tailStart = 0;
+	fixes = 0;
+	tail = newChunk();
+    }
+
+    /** Extend the path to a new fix.
+     *  @param p The position of the chopper */
+    public synchronized void add(Position p) {
+	double lat = p.getLatitude().getDegrees();
+	double lon = p.getLongitude().getDegrees();
+	double alt = p.getElevation();
+	fixes++;
+
+	if (count == 0) {
+	    commit(lat, lon, alt);
+	    windowCount = 0;
+	    addToWindow(lat, lon, alt);
+	    rebuildTail();
+	    return;
+	}
+
+	int last = windowCount - 1;
+	if (distance(windowLat[last], windowLon[last], windowAlt[last], lat, lon, alt) < MIN_SPACING)
+	    return;
+
+	addToWindow(lat, lon, alt);
+	if (windowCount == WINDOW) {
+	    /* Keep the window short, so each fix costs the same */
+	    simplifyWindow(windowCount - 1);
+	} else if (windowCount > 2 && ! straight()) {
+	    /* The newest fix bends the path; everything before it is
+	     * settled */
+	    simplifyWindow(windowCount - 2);
+	}
+	rebuildTail();
+    }
+
+    private void addToWindow(double lat, double lon, double alt) {
+	windowLat[windowCount] = lat;
+	windowLon[windowCount] = lon;
+	windowAlt[windowCount] = alt;
+	windowCount++;
+    }
+
+    /* True if the line from the first fix in the window to the last
+     * passes within TOLERANCE of all of the others */
+    private boolean straight() {
+	int last = windowCount - 1;
+	for (int i=1; i<last; i++)
+	    if (offset(i, 0, last) > TOLERANCE)
+		return false;
+	return true;
+    }
+
+    /* Douglas-Peucker over the window up to and including end, which
+     * becomes a vertex and the start of the new window */
+    private void simplifyWindow(int end) {
+	for (int i=0; i<=end; i++)
+	    keep[i] = false;
+	keep[0] = keep[end] = true;
+	markSplits(0, end);
+
+	/* The first fix in the window is already a vertex */
+	for (int i=1; i<=end; i++)
+	    if (keep[i])
+		commit(windowLat[i], windowLon[i], windowAlt[i]);
+
+	int remaining = windowCount - end;
+	System.arraycopy(windowLat, end, windowLat, 0, remaining);
+	System.arraycopy(windowLon, end, windowLon, 0, remaining);
+	System.arraycopy(windowAlt, end, windowAlt, 0, remaining);
+	windowCount = remaining;
+    }
+
+    private void markSplits(int from, int to) {
+	double worst = TOLERANCE;
+	int split = -1;
+	for (int i=from+1; i<to; i++) {
+	    double d = offset(i, from, to);
+	    if (d > worst) {
+		worst = d;
+		split = i;
+	    }
+	}
+	if (split >= 0) {
+	    keep[split] = true;
+	    markSplits(from, split);
+	    markSplits(split, to);
+	}
+    }
+
+    /* Add a vertex, starting a new polyline when the tail is full */
+    private void commit(double lat, double lon, double alt) {
+	if (count == lats.length) {
+	    lats = grow(lats);
+	    lons = grow(lons);
+	    alts = grow(alts);
+	}
+	lats[count] = lat;
+	lons[count] = lon;
+	alts[count] = alt;
+	count++;
+
+	if (count - tailStart == CHUNK_SIZE) {
+	    /* This one is finished; the next starts where it ends */
+	    tail.setPositions(positions(tailStart, count, false));
+	    tail = newChunk();
+	    tailStart = count - 1;
+	}
+    }
+
+    private void rebuildTail() {
+	tail.setPositions(positions(tailStart, count, windowCount > 1));
+    }
+
+    /* The vertices from start to end, and the newest fix if asked */
+    private ArrayList<Position> positions(int start, int end, boolean withNewest) {
+	ArrayList<Position> list = new ArrayList<Position>(end - start + 1);
+	for (int i=start; i<end; i++)
+	    list.add(Position.fromDegrees(lats[i], lons[i], alts[i]));
+	if (withNewest) {
+	    int n = windowCount - 1;
+	    list.add(Position.fromDegrees(windowLat[n], windowLon[n], windowAlt[n]));
+	}
+	return list;
+    }
+
+    private Polyline newChunk() {
+	Polyline line = new Polyline();
+	line.setColor(color);
+	line.setLineWidth(width);
+	/* The line is ugly without this */
+	line.setAntiAliasHint(Polyline.ANTIALIAS_NICEST);
+	addRenderable(line);
+	return line;
+    }
+
+    private static double[] grow(double[] a) {
+	double[] b = new double[a.length * 2];
+	System.arraycopy(a, 0, b, 0, a.length);
+	return b;
+    }
+
+    /* The distance in meters between two positions, treating the
+     * ground as flat over the short distances between fixes */
+    private static double distance(double lat1, double lon1, double alt1,
+				   double lat2, double lon2, double alt2) {
+	double north = (lat2 - lat1) * METERS_PER_DEGREE;
+	double east = (lon2 - lon1) * METERS_PER_DEGREE * Math.cos(Math.toRadians(lat1));
+	double up = alt2 - alt1;
+	return Math.sqrt(north * north + east * east + up * up);
+    }
+
+    /* The distance in meters from window fix i to the segment between
+     * window fixes a and b */
+    private double offset(int i, int a, int b) {
+	double scale = METERS_PER_DEGREE * Math.cos(Math.toRadians(windowLat[a]));
+	double bx = (windowLon[b] - windowLon[a]) * scale;
+	double by = (windowLat[b] - windowLat[a]) * METERS_PER_DEGREE;
+	double bz = windowAlt[b] - windowAlt[a];
+	double px = (windowLon[i] - windowLon[a]) * scale;
+	double py = (windowLat[i] - windowLat[a]) * METERS_PER_DEGREE;
+	double pz = windowAlt[i] - windowAlt[a];
+
+	double length = bx * bx + by * by + bz * bz;
+	double t = (length == 0) ? 0 : (px * bx + py * by + pz * bz) / length;
+	t = Math.max(0, Math.min(1, t));
+	double dx = px - t * bx;
+	double dy = py - t * by;
+	double dz = pz - t * bz;
+	return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,40 @@
+package org.haldean.chopper.server;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ *  A search strategy used by the {@link PidTuner} to pick which
+ *  P, I and D values to try next. Strategies are driven in batches:
+ *  the tuner asks for a batch of candidates, scores every one of
+ *  them (in flight or in simulation), and reports the scored batch
+ *  back before asking for the next one. Lower scores are better.
+ */
+public interface TuningStrategy {
+    /**
+     *  Load results from earlier tuning sessions, so that a search
+     *  can pick up where the last one stopped.
+     *
+     *  @param history Experiments whose scores are already known.
+     */
+    void seed(Collection<PidExperiment> history);
+
+    /**
+     *  @return The next candidates to score. Never empty.
+     */
+    List<PidExperiment> nextBatch();
+
+    /**
+     *  Report the scores of a batch of candidates.
+     *
+     *  @param results Scored experiments. These are usually the
+     *  candidates of the last batch, but strategies must accept any
+     *  scored experiment.
+     */
+    void report(List<PidExperiment> results);
+
+    /**
+     *  @return A short description, used in the tuning log.
+     */
+    String describe();
+}
@@ -0,0 +1,542 @@
+package org.haldean.chopper.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * A stand-in for the chopper that speaks the same protocol as the
+ * pilot's Comm, so that the ground station can be run and load-tested
+ * without a phone. It connects to the broker on the text and image
+ * ports, streams status reports, GPS fixes and Guidance errors from a
+ * synthetic flight, sends generated JPEG frames whenever the ground
+ * station acknowledges the last one, and answers COMM:PULSE, IMAGE and
+ * NAV requests the way the pilot does.
+ *
+ * Arguments are given as key=value pairs, like those of ServerCreator:
+ * <pre>
+ *   host       Broker to connect to (required)
+ *   port       Text port; images use the next port up (default 7000)
+ *   scale      Multiplier applied to every rate below (default 1)
+ *   status     Status reports per second (default 1000/350, as StatusReporter)
+ *   gps        GPS fixes per second (default 1000/350)
+ *   guid       GUID:ERROR reports per second (default 30, as Guidance)
+ *   fps        Upper bound on frames per second; 0 disables images (default 10)
+ *   size       Frame size, as WIDTHxHEIGHT (default 320x240)
+ *   quality    JPEG quality, 1 to 100 (default 50)
+ *   duration   Seconds to run before exiting; 0 runs until disconnected (default 0)
+ *   stats      Seconds between throughput reports (default 5)
+ * </pre>
+ * Each report gives the achieved and target message rates and the time
+ * the ground station took to acknowledge each frame, which is the
+ * latency of the whole image path through ServerHost.
+ */
+public class VirtualPilot {
+    /** Frames that are not acknowledged within this many ms are
+     *  counted as lost, and the next frame is sent anyway */
+    public static final long FRAME_TIMEOUT = 5000;
+
+    /* The synthetic flight: a circle around the origin with a slow
+     * climb and descent */
+    private static final double ORIGIN_LAT = 40.8075;
+    private static final double ORIGIN_LONG = -73.9619;
+    private static final double ORIGIN_ALT = 30.0;
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double RADIUS = 20.0;
+    private static final double LAP_SECONDS = 60.0;
+    private static final double CLIMB = 2.0;
+    private static final double CLIMB_SECONDS = 20.0;
+    private static final double GRAVITY = 9.81;
+    private static final double HOVER = 0.4;
+
+    private static final String[] AVAILABLE_SIZES = {"176:144", "320:240", "480:320", "640:480"};
+
+    private String host;
+    private int port;
+    private double scale;
+    private double statusRate;
+    private double gpsRate;
+    private double guidRate;
+    private double fps;
+    private int width;
+    private int height;
+    private int quality;
+    private long duration;
+    private long statsPeriod;
+
+    private Socket textSocket;
+    private Socket imageSocket;
+    private PrintWriter textOut;
+    private ObjectOutputStream imageOut;
+
+    private ScheduledExecutorService telemetry;
+    private ScheduledExecutorService frames;
+    private ScheduledFuture<?> frameTimeout;
+    private long start;
+    private long lastReport;
+    private Random random;
+
+    private ArrayList<String> tasks;
+
+    /* Statistics since the last report */
+    private AtomicLong messagesSent;
+    private AtomicLong messagesReceived;
+    private AtomicLong bytesSent;
+    private AtomicLong framesSent;
+    private AtomicLong framesLost;
+    private AtomicLong pulses;
+    private long frameSentTime;
+    private long frameLatencyTotal;
+    private long frameLatencyMax;
+    private int framesAcknowledged;
+
+    /** Create a virtual pilot from command line arguments.
+     *  @param arguments Map from argument name to value
+     *  @throws IllegalArgumentException if host was not given */
+    public VirtualPilot(HashMap<String, String> arguments) {
+	if (! arguments.containsKey("host"))
+	    throw new IllegalArgumentException("host was not specified on the command line.");
+	host = arguments.get("host");
+	port = (int) getNumber(arguments, "port", 7000);
+	scale = getNumber(arguments, "scale", 1);
+	statusRate = getNumber(arguments, "status", 1000.0 / 350);
+	gpsRate = getNumber(arguments, "gps", 1000.0 / 350);
+	guidRate = getNumber(arguments, "guid", 30);
+	fps = getNumber(arguments, "fps", 10);
+	quality = (int) getNumber(arguments, "quality", 50);
+	duration = (long) (getNumber(arguments, "duration", 0) * 1000);
+	statsPeriod = (long) (getNumber(arguments, "stats", 5) * 1000);
+
+	String size = arguments.containsKey("size") ? arguments.get("size") : "320x240";
+	String[] dims = size.split("x");
+	width = new Integer(dims[0]);
+	height = new Integer(dims[1]);
+
+	random = new Random();
+	tasks = new ArrayList<String>();
+	messagesSent = new AtomicLong();
+	messagesReceived = new AtomicLong();
+	bytesSent = new AtomicLong();
+	framesSent = new AtomicLong();
+	framesLost = new AtomicLong();
+	pulses = new AtomicLong();
+    }
+
+    private static double getNumber(HashMap<String, String> arguments,
+				    String name, double defaultValue) {
+	if (! arguments.containsKey(name))
+	    return defaultValue;
+	return new Double(arguments.get(name));
+    }
+
+    /** Connect to the broker and fly until the connection drops or the
+     *  duration runs out.
+     *  @throws IOException if the text connection cannot be made */
+    public void run() throws IOException {
+	textSocket = new Socket(host, port);
+	textOut = new PrintWriter(textSocket.getOutputStream());
+	BufferedReader in = new BufferedReader(new InputStreamReader(textSocket.getInputStream()));
+	start = System.currentTimeMillis();
+	lastReport = start;
+	System.out.println("Connected to " + host + ":" + port + " at " + scale + "x nominal rate");
+
+	telemetry = Executors.newScheduledThreadPool(3);
+	frames = Executors.newSingleThreadScheduledExecutor();
+	schedule(new Runnable() {
+		public void run() {
+		    sendStatus();
+		}
+	    }, statusRate);
+	schedule(new Runnable() {
+		public void run() {
+		    sendGps();
+		}
+	    }, gpsRate);
+	schedule(new Runnable() {
+		public void run() {
+		    sendGuidanceError();
+		}
+	    }, guidRate);
+	telemetry.scheduleAtFixedRate(new Runnable() {
+		public void run() {
+		    report();
+		}
+	    }, statsPeriod, statsPeriod, TimeUnit.MILLISECONDS);
+
+	if (duration > 0) {
+	    telemetry.schedule(new Runnable() {
+		    public void run() {
+			close();
+		    }
+		}, duration, TimeUnit.MILLISECONDS);
+	}
+
+	try {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		messagesReceived.incrementAndGet();
+		receive(line);
+	    }
+	} catch (IOException e) {
+	    /* Closed by close(), or the broker went away */
+	}
+
+	close();
+	report();
+    }
+
+    /** Disconnect and stop all streams. */
+    public synchronized void close() {
+	telemetry.shutdownNow();
+	frames.shutdownNow();
+	try {
+	    textSocket.close();
+	    if (imageSocket != null)
+		imageSocket.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    private void schedule(Runnable task, double rate) {
+	if (rate <= 0) return;
+	long period = Math.max(1, (long) (1000000 / (rate * scale)));
+	telemetry.scheduleAtFixedRate(task, 0, period, TimeUnit.MICROSECONDS);
+    }
+
+    /** Send a line to the ground station, as Comm.sendMessage does.
+     *  @param message The line to send */
+    private void send(String message) {
+	synchronized (textOut) {
+	    textOut.println(message);
+	    textOut.flush();
+	}
+	messagesSent.incrementAndGet();
+	bytesSent.addAndGet(message.length() + 1);
+    }
+
+    /** Handle a line from the ground station.
+     *  @param message The received line */
+    private void receive(String message) {
+	String[] parts = message.split(":");
+	if (parts.length < 2) return;
+
+	if (parts[0].equals("COMM") && parts[1].equals("PULSE")) {
+	    pulses.incrementAndGet();
+	    send(message);
+	}
+
+	else if (parts[0].equals("IMAGE")) {
+	    if (parts[1].equals("SETUP"))
+		connectImages();
+	    else if (parts[1].equals("RECEIVED"))
+		frameReceived();
+	    else if (parts[1].equals("AVAILABLESIZES"))
+		for (String size : AVAILABLE_SIZES)
+		    send("IMAGE:AVAILABLESIZE:" + size);
+	    else if (parts[1].equals("GETPARAMS")) {
+		send("IMAGE:FRAMESIZE:" + width + ":" + height);
+		send("IMAGE:FRAMEQUALITY:" + quality);
+	    }
+	    else if (parts[1].equals("SET") && parts.length > 3) {
+		if (parts[2].equals("QUALITY")) {
+		    int q = new Integer(parts[3]);
+		    if (q > 0 && q <= 100)
+			quality = q;
+		    else
+			send("IMAGE:REQUEST:DENIED");
+		} else if (parts[2].equals("SIZE") && parts.length > 4) {
+		    width = new Integer(parts[3]);
+		    height = new Integer(parts[4]);
+		}
+	    }
+	}
+
+	else if (parts[0].equals("NAV") && parts.length > 2) {
+	    if (parts[1].equals("SET")) {
+		if (parts[2].equals("AUTOPILOT")) {
+		    send("GUID:ABSVEC");
+		    send("GUID:AUTOMATIC");
+		} else if (parts[2].equals("AUTOTASK") && parts.length > 4) {
+		    int index = new Integer(parts[3]);
+		    /* The serialized task may itself contain colons */
+		    String task = message.split(":", 5)[4];
+		    synchronized (tasks) {
+			while (tasks.size() <= index)
+			    tasks.add("");
+			tasks.set(index, task);
+		    }
+		    send("NAV:AUTOTASK:" + index + ":" + task);
+		} else if (parts[2].equals("GEOFENCE")) {
+		    /* Confirmed as the chopper would, though not enforced */
+		    String[] fence = message.split(":", 4);
+		    send("NAV:GEOFENCE:" + (fence.length > 3 ? fence[3] : ""));
+		}
+	    } else if (parts[1].equals("GET") && parts[2].equals("AUTOTASKS")) {
+		synchronized (tasks) {
+		    for (int i=0; i<tasks.size(); i++)
+			send("NAV:AUTOTASK:" + i + ":" + tasks.get(i));
+		}
+	    }
+	}
+    }
+
+    /* Seconds since the flight started */
+    private double elapsed() {
+	return (System.currentTimeMillis() - start) / 1000.0;
+    }
+
+    private double noise(double amplitude) {
+	return amplitude * random.nextGaussian();
+    }
+
+    /** Send the readings StatusReporter sends, apart from GPS. */
+    private void sendStatus() {
+	double t = elapsed();
+	double omega = 2 * Math.PI / LAP_SECONDS;
+	double speed = RADIUS * omega;
+	double azimuth = Math.toDegrees(omega * t + Math.PI / 2) % 360;
+	double roll = Math.toDegrees(Math.atan(speed * omega / GRAVITY));
+	double pitch = 3 + 2 * Math.sin(2 * Math.PI * t / CLIMB_SECONDS);
+
+	send("ORIENT:" + (azimuth + noise(0.5)) + ":" +
+	     (pitch + noise(0.5)) + ":" + (roll + noise(0.5)));
+	send("ACCEL:" + (GRAVITY * Math.tan(Math.toRadians(roll)) + noise(0.1)) + ":" +
+	     (GRAVITY * Math.tan(Math.toRadians(pitch)) + noise(0.1)) + ":" +
+	     (GRAVITY + noise(0.1)));
+	send("FLUX:" + (20 * Math.cos(Math.toRadians(azimuth))) + ":" +
+	     (-20 * Math.sin(Math.toRadians(azimuth))) + ":-40.0");
+	send("MOTORSPEED:" + (HOVER + noise(0.01)) + ":" + (HOVER + noise(0.01)) + ":" +
+	     (HOVER + noise(0.01)) + ":" + (HOVER + noise(0.01)));
+	send("TEMPERATURE:" + (25 + noise(0.1)));
+	send("BATTERY:" + Math.max(0, 1 - t / 1200));
+    }
+
+    /** Send a GPS fix in the format of StatusReporter. */
+    private void sendGps() {
+	double t = elapsed();
+	double theta = 2 * Math.PI * t / LAP_SECONDS;
+	double climbOmega = 2 * Math.PI / CLIMB_SECONDS;
+	double east = RADIUS * Math.sin(theta);
+	double north = RADIUS * Math.cos(theta);
+	double alt = ORIGIN_ALT + CLIMB * Math.sin(climbOmega * t);
+	double dalt = CLIMB * climbOmega * Math.cos(climbOmega * t);
+	double bearing = Math.toDegrees(theta + Math.PI / 2) % 360;
+	double lat = ORIGIN_LAT + north / METERS_PER_DEGREE;
+	double lon = ORIGIN_LONG + east /
+	    (METERS_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LAT)));
+
+	send("GPS:" + alt + ":" + bearing + ":" + lon + ":" + lat + ":" +
+	     (RADIUS * 2 * Math.PI / LAP_SECONDS) + ":" + dalt + ":" +
+	     "5.0:8:" + System.currentTimeMillis());
+    }
+
+    /** Send the four Guidance errors, as Guidance does on every loop. */
+    private void sendGuidanceError() {
+	double t = elapsed();
+	send("GUID:ERROR:" + (0.5 * Math.sin(t) + noise(0.05)) + ":" +
+	     (0.5 * Math.cos(t) + noise(0.05)) + ":" +
+	     (0.2 * Math.sin(2 * Math.PI * t / CLIMB_SECONDS) + noise(0.02)) + ":" +
+	     noise(1.0));
+    }
+
+    /** Open the image connection when the ground station asks for it,
+     *  and send the first frame. */
+    private synchronized void connectImages() {
+	if (fps <= 0 || imageSocket != null) return;
+	try {
+	    imageSocket = new Socket(host, port + 1);
+	    imageOut = new ObjectOutputStream(imageSocket.getOutputStream());
+	    imageOut.flush();
+	} catch (IOException e) {
+	    System.out.println("Unable to open image connection: " + e.toString());
+	    imageSocket = null;
+	    return;
+	}
+	scheduleFrame(0);
+    }
+
+    private void scheduleFrame(long delay) {
+	try {
+	    frames.schedule(new Runnable() {
+		    public void run() {
+			sendFrame();
+		    }
+		}, delay, TimeUnit.MILLISECONDS);
+	} catch (RejectedExecutionException e) {
+	    /* Shutting down */
+	}
+    }
+
+    /** The ground station has read the last frame; schedule the next
+     *  one no sooner than the frame rate allows. */
+    private synchronized void frameReceived() {
+	if (frameTimeout == null) return;
+	frameTimeout.cancel(false);
+	frameTimeout = null;
+
+	long now = System.currentTimeMillis();
+	long latency = now - frameSentTime;
+	frameLatencyTotal += latency;
+	frameLatencyMax = Math.max(frameLatencyMax, latency);
+	framesAcknowledged++;
+
+	long period = (long) (1000 / (fps * scale));
+	scheduleFrame(Math.max(0, frameSentTime + period - now));
+    }
+
+    private synchronized void frameLost() {
+	if (frameTimeout == null) return;
+	frameTimeout = null;
+	framesLost.incrementAndGet();
+	scheduleFrame(0);
+    }
+
+    /** Encode and send a frame, announcing it on the text connection
+     *  first as TransmitPicture does. */
+    private void sendFrame() {
+	byte[] jpeg;
+	try {
+	    jpeg = makeFrame();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    return;
+	}
+
+	synchronized (this) {
+	    frameSentTime = System.currentTimeMillis();
+	    send("IMAGE:" + jpeg.length + ":" + frameSentTime);
+	    try {
+		imageOut.write(jpeg);
+		imageOut.flush();
+	    } catch (IOException e) {
+		System.out.println("Image connection lost: " + e.toString());
+		return;
+	    }
+	    framesSent.incrementAndGet();
+	    bytesSent.addAndGet(jpeg.length);
+	    frameTimeout = frames.schedule(new Runnable() {
+		    public void run() {
+			frameLost();
+		    }
+		}, FRAME_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /** Draw a frame: a sky gradient with a red blob that circles the
+     *  center, so that the blob tracker has something to follow.
+     *  @return The frame as a JPEG */
+    private byte[] makeFrame() throws IOException {
+	int w = width;
+	int h = height;
+	BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+	Graphics2D g = image.createGraphics();
+	for (int y=0; y<h; y++) {
+	    int shade = 255 * y / h;
+	    g.setColor(new Color(shade / 2, shade / 2 + 64, 255 - shade / 2));
+	    g.drawLine(0, y, w, y);
+	}
+
+	double theta = 2 * Math.PI * elapsed() / 10;
+	int r = Math.min(w, h) / 10;
+	int x = (int) (w / 2 + w / 4 * Math.cos(theta));
+	int y = (int) (h / 2 + h / 4 * Math.sin(theta));
+	g.setColor(Color.RED);
+	g.fillOval(x - r, y - r, 2 * r, 2 * r);
+	g.setColor(Color.WHITE);
+	g.drawString(Long.toString(System.currentTimeMillis()), 4, h - 4);
+	g.dispose();
+
+	ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+	ImageWriteParam param = writer.getDefaultWriteParam();
+	param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+	param.setCompressionQuality(quality / 100f);
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+	writer.setOutput(out);
+	writer.write(null, new IIOImage(image, null, null), param);
+	writer.dispose();
+	out.close();
+	return bytes.toByteArray();
+    }
+
+    /** Print the rates achieved since the last report. */
+    private void report() {
+	long sent = messagesSent.getAndSet(0);
+	long received = messagesReceived.getAndSet(0);
+	long bytes = bytesSent.getAndSet(0);
+	long sentFrames = framesSent.getAndSet(0);
+	long lost = framesLost.getAndSet(0);
+	long pulseCount = pulses.getAndSet(0);
+
+	long acknowledged;
+	long latencyTotal;
+	long latencyMax;
+	synchronized (this) {
+	    acknowledged = framesAcknowledged;
+	    latencyTotal = frameLatencyTotal;
+	    latencyMax = frameLatencyMax;
+	    framesAcknowledged = 0;
+	    frameLatencyTotal = 0;
+	    frameLatencyMax = 0;
+	}
+
+	long now = System.currentTimeMillis();
+	double seconds = Math.max(1, now - lastReport) / 1000.0;
+	lastReport = now;
+	double target = scale * (6 * statusRate + gpsRate + guidRate);
+	StringBuilder s = new StringBuilder();
+	s.append(String.format("%.0f msg/s (target %.0f), %.1f kB/s, %d received",
+			       sent / seconds, target, bytes / seconds / 1024, received));
+	s.append(String.format(", %.1f frames/s", sentFrames / seconds));
+	if (acknowledged > 0)
+	    s.append(String.format(", frame ack %d ms avg %d ms max",
+				   latencyTotal / acknowledged, latencyMax));
+	if (lost > 0)
+	    s.append(", " + lost + " frames lost");
+	s.append(", " + pulseCount + " pulses");
+	System.out.println(s.toString());
+    }
+
+    /** Run a virtual pilot.
+     *  @param args key=value arguments; see the class documentation */
+    public static void main(String args[]) {
+	HashMap<String, String> arguments = new HashMap<String, String>();
+	for (String arg : args) {
+	    if (arg.length() > 0) {
+		String[] argparts = arg.split("=", 2);
+		String value = argparts.length == 2 ? argparts[1] : null;
+		arguments.put(argparts[0], value);
+	    }
+	}
+
+	try {
+	    new VirtualPilot(arguments).run();
+	} catch (IOException e) {
+	    System.out.println("Unable to connect: " + e.toString());
+	    System.exit(1);
+	}
+    }
+}
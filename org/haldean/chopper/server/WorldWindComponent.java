@@ -7,6 +7,7 @@ import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /* World Wind imports. */
 import gov.nasa.worldwind.*;
@@ -26,20 +27,24 @@ import gov.nasa.worldwind.layers.*;
 import gov.nasa.worldwind.layers.placename.*;
 import gov.nasa.worldwind.layers.Earth.*;
 
+import org.haldean.chopper.nav.Geofence;
+import org.haldean.chopper.server.nav.MissionPlanner;
+
 /** A component that shows a globe with the chopper's path, along with
- *  some basic following and location-setting controls 
+ *  some basic following and location-setting controls, and lets
+ *  geofences be drawn and sent to the chopper
  *  @author William Brown */
 public class WorldWindComponent extends UpdateUiPanel {
     /* The WorldWind component. */
     private final WorldWindowGLCanvas wwd;
     
-    /* The locations and the line connecting them */
-    private java.util.List<Position> locs;
-    private Polyline pathLine;
+    /* The path the chopper has flown */
+    private TrackLayer track;
     private SurfaceCircle chopperTargetInner;
     private SurfaceCircle chopperTargetOuter;
     private final SurfaceCircle clickLocation;
     private Position targetPosition;
+    private Position lastPosition;
 
     /* Used to have the component follow the last position
      * of the chopper */
@@ -53,6 +58,17 @@ public class WorldWindComponent extends UpdateUiPanel {
     private JLabel positionLabel;
     private JButton gotoButton;
 
+    /* Zones drawn on the globe, which are sent to the chopper as
+     * its geofence, and the one being drawn, if any */
+    private final SurfaceShapeLayer fenceLayer;
+    private final ArrayList<Geofence.Zone> fences;
+    private ArrayList<LatLon> fenceVertices;
+    private SurfacePolygon drawingFence;
+    private JComboBox fenceType;
+    private JTextField fenceCeiling;
+    private JButton fenceButton;
+    private JLabel fenceLabel;
+
     private final int maxMovePixels = 15;
 
     /** Create a new WorldWindComponent */
@@ -69,7 +85,16 @@ public class WorldWindComponent extends UpdateUiPanel {
 	wwd.addMouseListener(new MouseAdapter() {
 		public void mouseClicked(MouseEvent e) {
 		    /* Button 3 is the right click button */
-		    if (e.getButton() == MouseEvent.BUTTON3) {
+		    if (e.getButton() == MouseEvent.BUTTON3 && fenceVertices != null) {
+			/* While drawing a fence, right clicks add its vertices */
+			Position vertex =
+			    wwd.getView().computePositionFromScreenPoint(e.getX(), e.getY());
+			if (vertex != null) {
+			    fenceVertices.add(vertex);
+			    drawingFence.setLocations(fenceVertices);
+			    wwd.redraw();
+			}
+		    } else if (e.getButton() == MouseEvent.BUTTON3) {
 			/* clickPosition now holds the position under the mouse cursor */
 			targetPosition = 
 			    wwd.getView().computePositionFromScreenPoint(e.getX(), e.getY());
@@ -88,11 +113,6 @@ public class WorldWindComponent extends UpdateUiPanel {
 	/* Add wwd to the panel */
 	add(wwd, BorderLayout.CENTER);
 
-	/* This list will hold the points in our path */
-	locs = new LinkedList<Position>();
-	/* And this is the line created by connecting those points */
-	pathLine = new Polyline(locs);
-
 	/* These are the attributes for the displayed SurfaceCircles */
 	ShapeAttributes attributes = new BasicShapeAttributes();
 	attributes.setDrawInterior(false);
@@ -111,15 +131,11 @@ public class WorldWindComponent extends UpdateUiPanel {
 	clickLocation = new SurfaceCircle(attributes);
 	clickLocation.setRadius(10);
 
-	/* Set the path color to a slightly-transparent red */
-	pathLine.setColor(new Color(255, 0, 0, 200));
-	pathLine.setLineWidth(2);
-	/* The line is ugly without this */
-	pathLine.setAntiAliasHint(Polyline.ANTIALIAS_NICEST);
+	/* The path is drawn in a slightly-transparent red */
+	track = new TrackLayer(new Color(255, 0, 0, 200), 2);
 
-	/* Create a layer for the polyline and add it to the layer list. */
-	RenderableLayer polyLayer = new RenderableLayer();
-	polyLayer.addRenderable(pathLine);
+	fences = new ArrayList<Geofence.Zone>();
+	fenceLayer = new SurfaceShapeLayer();
 
 	SurfaceShapeLayer shapeLayer = new SurfaceShapeLayer();
 	shapeLayer.addRenderable(chopperTargetInner);
@@ -135,7 +151,8 @@ public class WorldWindComponent extends UpdateUiPanel {
 	/* Add high-quality city satellite imagery. Thanks Microsoft! */
 	layers.add(new MSVirtualEarthLayer(MSVirtualEarthLayer.LAYER_HYBRID));
 	/* Add chopper location and path layers */
-	layers.add(polyLayer);
+	layers.add(track);
+	layers.add(fenceLayer);
 	layers.add(shapeLayer);
 
 	add(createStatusPane(), BorderLayout.SOUTH);
@@ -181,16 +198,44 @@ public class WorldWindComponent extends UpdateUiPanel {
 
 	positionLabel = new JLabel();
 
+	/* Fences are drawn by pressing the fence button, right
+	 * clicking on each vertex, and pressing it again. Areas to
+	 * survey are drawn the same way */
+	fenceType = new JComboBox(new String[] {"Keep In", "Keep Out", "Survey"});
+	fenceCeiling = new JTextField(new Double(followAltitude).toString());
+	fenceButton = new JButton("Draw Fence");
+	fenceButton.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+		    if (fenceVertices == null)
+			startFence();
+		    else
+			finishFence();
+		}
+	    });
+	JButton clearFences = new JButton("Clear Fences");
+	clearFences.addActionListener(new ActionListener() {
+		public void actionPerformed(ActionEvent event) {
+		    clearFences();
+		}
+	    });
+	fenceLabel = new JLabel("No fence");
+
 	/* Status pane holds everything that is not the globe */
-	statusPane = new JPanel(new GridLayout(2,4));
+	statusPane = new JPanel(new GridLayout(2,7));
 	statusPane.add(follow);
 	statusPane.add(new JLabel("Velocity"));
 	statusPane.add(new JLabel("Target Radius"));
 	statusPane.add(positionLabel);
+	statusPane.add(new JLabel("Fence Ceiling"));
+	statusPane.add(fenceType);
+	statusPane.add(clearFences);
 	statusPane.add(altField);
 	statusPane.add(velocity);
 	statusPane.add(radius);
 	statusPane.add(gotoButton);
+	statusPane.add(fenceCeiling);
+	statusPane.add(fenceButton);
+	statusPane.add(fenceLabel);
 
 	return statusPane;
     }
@@ -233,10 +278,10 @@ public class WorldWindComponent extends UpdateUiPanel {
     /** Add a waypoint, and optionally follow if the box is checked 
      *  @param _w The position to append to the path */
     public void addWaypoint(Position _w) {
-	/* Requires a lock on locs or World Wind gets mad */
-	synchronized (locs) {
-	    locs.add(_w);
-	    pathLine.setPositions(locs);
+	/* Requires a lock on the track or World Wind gets mad */
+	synchronized (track) {
+	    track.add(_w);
+	    lastPosition = _w;
 	    chopperTargetInner.setCenter(_w);
 	    chopperTargetOuter.setCenter(_w);
 	}
@@ -266,6 +311,131 @@ public class WorldWindComponent extends UpdateUiPanel {
 	}
     }
 
+    /** The attributes of a drawn fence
+     *  @param _keepIn Whether the fence is one to keep inside of */
+    private static ShapeAttributes fenceAttributes(boolean _keepIn) {
+	Color color = _keepIn ? Color.CYAN : Color.ORANGE;
+	ShapeAttributes attributes = new BasicShapeAttributes();
+	attributes.setDrawInterior(true);
+	attributes.setInteriorMaterial(new Material(color));
+	attributes.setInteriorOpacity(0.15);
+	attributes.setDrawOutline(true);
+	attributes.setOutlineMaterial(new Material(color));
+	attributes.setOutlineOpacity(0.9);
+	attributes.setOutlineWidth(2);
+	return attributes;
+    }
+
+    /** Start drawing a fence; right clicks add its vertices until
+     *  finishFence is called */
+    private void startFence() {
+	fenceVertices = new ArrayList<LatLon>();
+	drawingFence = new SurfacePolygon(fenceAttributes(fenceType.getSelectedIndex() != 1));
+	fenceLayer.addRenderable(drawingFence);
+	fenceButton.setText("Finish Fence");
+    }
+
+    /** Finish the fence being drawn and send all of the fences to
+     *  the chopper. Fences with fewer than three vertices are dropped. */
+    private void finishFence() {
+	ArrayList<LatLon> vertices = fenceVertices;
+	fenceVertices = null;
+	fenceButton.setText("Draw Fence");
+
+	if (fenceType.getSelectedIndex() == 2) {
+	    fenceLayer.removeRenderable(drawingFence);
+	    wwd.redraw();
+	    planSurvey(vertices);
+	    return;
+	}
+
+	double ceiling;
+	try {
+	    ceiling = new Double(fenceCeiling.getText());
+	} catch (NumberFormatException e) {
+	    ceiling = Double.NaN;
+	}
+	if (vertices.size() < 3 || Double.isNaN(ceiling)) {
+	    fenceLayer.removeRenderable(drawingFence);
+	    wwd.redraw();
+	    JOptionPane.
+		showMessageDialog(this, "A fence needs at least three vertices and a numeric ceiling",
+				  "Error", JOptionPane.ERROR_MESSAGE);
+	    return;
+	}
+
+	double[] lats = new double[vertices.size()];
+	double[] lons = new double[vertices.size()];
+	for (int i=0; i<lats.length; i++) {
+	    lats[i] = vertices.get(i).getLatitude().getDegrees();
+	    lons[i] = vertices.get(i).getLongitude().getDegrees();
+	}
+	fences.add(new Geofence.Zone("fence" + (fences.size() + 1), fenceType.getSelectedIndex() == 0,
+				     Double.NEGATIVE_INFINITY, ceiling, lats, lons));
+	sendFences();
+    }
+
+    /** Plan a sweep over an area and insert it into the navigation
+     *  tasks. Lines are flown at the follow altitude, and the sweep
+     *  starts from the chopper's last position
+     *  @param _vertices The vertices of the area */
+    private void planSurvey(ArrayList<LatLon> _vertices) {
+	final NavPanel navPanel = ServerCreator.getServerHost().navPanel;
+	try {
+	    if (_vertices.size() < 3)
+		throw new IllegalArgumentException("An area needs at least three vertices");
+	    final double spacing = new Double(ServerCreator.getServerHost().
+					      getInput("Distance between survey lines, in meters:"));
+	    final double sweepVelocity = new Double(velocity.getText());
+	    final double sweepRadius = new Double(radius.getText());
+	    final double sweepAltitude = followAltitude;
+	    final double[] lats = new double[_vertices.size()];
+	    final double[] lons = new double[_vertices.size()];
+	    for (int i=0; i<lats.length; i++) {
+		lats[i] = _vertices.get(i).getLatitude().getDegrees();
+		lons[i] = _vertices.get(i).getLongitude().getDegrees();
+	    }
+	    final LatLon start = lastPosition == null ? _vertices.get(0) : lastPosition;
+
+	    final MissionPlanner planner = navPanel.getPlanner();
+	    navPanel.plan(new Callable<MissionPlanner.Mission>() {
+		    public MissionPlanner.Mission call() throws InterruptedException {
+			planner.setSweep(sweepAltitude, sweepVelocity, sweepRadius);
+			return planner.planCoverage("Survey", start.getLatitude().getDegrees(),
+						    start.getLongitude().getDegrees(),
+						    lats, lons, spacing);
+		    }
+		}, new NavPanel.PlanListener() {
+		    public void planned(MissionPlanner.Mission _mission) {
+			navPanel.insertMission(_mission);
+		    }
+		});
+	} catch (NumberFormatException e) {
+	    JOptionPane.
+		showMessageDialog(this, "Spacing, velocity and radius must be floating point numbers",
+				  "Error", JOptionPane.ERROR_MESSAGE);
+	} catch (IllegalArgumentException e) {
+	    JOptionPane.
+		showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+	}
+    }
+
+    /** Remove all of the fences, here and on the chopper */
+    private void clearFences() {
+	fenceVertices = null;
+	fenceButton.setText("Draw Fence");
+	fences.clear();
+	fenceLayer.removeAllRenderables();
+	wwd.redraw();
+	sendFences();
+    }
+
+    /** Send the fences to the chopper, replacing the ones it had */
+    private void sendFences() {
+	fenceLabel.setText(fences.isEmpty() ? "No fence" : fences.size() + " zones");
+	SessionManager.sendToSelected("NAV:SET:GEOFENCE:" + new Geofence(fences).toString());
+    }
+
     /** Test code that simulates a flight in which the chopper 
      *  takes off from Nussbaum and fly West */
     public static void main(String args[]) {
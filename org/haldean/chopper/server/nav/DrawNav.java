@@ -12,7 +12,8 @@ public interface DrawNav extends Cloneable {
     public static final Font globalFont = new Font("Helvetica", Font.PLAIN, FONTSIZE);
     
 	public String toString();
-    public void drawMe(Graphics2D g2, int xpos, int ypos, int xSize, Vector<DrawNav> registry);
+    public int layout(int ypos, DrawNavList parent, RowIndex rows);
+    public void drawMe(Graphics2D g2, int xpos, int xSize, int block);
     public void setSelected(boolean k);
     public void setHighlighted(boolean k);
     public int[][] getYRange();
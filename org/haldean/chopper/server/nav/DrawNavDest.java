@@ -35,7 +35,10 @@ public class DrawNavDest extends NavDest implements DrawNav {
      * Clones the DrawNavDest
      */
     public DrawNavDest clone() {
-        return DrawNavDest.taskFor(name, mData[0], mData[1], mData[2], mData[3], mData[4]);
+        DrawNavDest n = new DrawNavDest();
+        n.name = name;
+        n.mData = mData.clone();
+        return n;
     }
     
     /**
@@ -63,17 +66,29 @@ public class DrawNavDest extends NavDest implements DrawNav {
     }
     
     /**
-     * Draws the task.
+     * Lays the task out.
+     * @param ypos The y-coordinate at which to start the task.
+     * @param parent The list holding the task, or null.
+     * @param rows The rows of the column, to which to add this task.
+     * @return The y-coordinate at which the task ends.
+     */
+    public int layout(int ypos, DrawNavList parent, RowIndex rows) {
+        yRange[0][0] = ypos;
+        yRange[0][1] = ypos + 5 * FONTSIZE;
+        rows.add(this, 0, parent);
+        return yRange[0][1];
+    }
+    
+    /**
+     * Draws the task where it was last laid out.
      * @param g2 The object to which to draw the task.
      * @param xpos The x-coordinate at which to start drawing the task.
-     * @param ypos The y-coordinate at which to start drawing the task.
      * @param xSize The permissible width of the task.
-     * @param registry The registry of currently drawn NavDatas, to which to add this task.
+     * @param block Unused; the task has one block.
      */
-    public void drawMe (Graphics2D g2, int xpos, int ypos, int xSize, Vector<DrawNav> registry) {
-        int myHeight = 5 * FONTSIZE;
-        yRange[0][0] = ypos;
-        yRange[0][1] = ypos + myHeight;
+    public void drawMe (Graphics2D g2, int xpos, int xSize, int block) {
+        int ypos = yRange[0][0];
+        int myHeight = yRange[0][1] - ypos;
         
         if (selected) {
             g2.setColor(StyleProvider.foreground());
@@ -95,8 +110,6 @@ public class DrawNavDest extends NavDest implements DrawNav {
         g2.setColor(selected ? StyleProvider.background() : StyleProvider.foreground2());
         g2.drawString(String.format("Alt: %.3f", getAltitude()), xpos + 3, 3 + ypos + 3 * FONTSIZE);
         g2.drawString(String.format("Position: (%.3f, %.3f)", getLongitude(), getLatitude()), xpos + 3, 3 + ypos + 2 * FONTSIZE);
-        
-        registry.add(this);
     }
     
     /**
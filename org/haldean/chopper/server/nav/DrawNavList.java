@@ -4,7 +4,6 @@ import java.awt.*;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Stack;
-import java.util.Vector;
 
 import org.haldean.chopper.server.StyleProvider;
 import org.haldean.chopper.nav.*;
@@ -26,6 +25,9 @@ public class DrawNavList extends NavList implements DrawNav {
      */
     private int yRange[][] = new int[2][2];
     
+    /* Where the first block of each item ends, as last laid out, to find slots by */
+    private int childEnds[] = new int[0];
+    
     /**
      * Constructs the list.
      */
@@ -68,6 +70,14 @@ public class DrawNavList extends NavList implements DrawNav {
         mList.remove(nav);
     }
     
+    public String getName() {
+        return name;
+    }
+    
+    public void clear() {
+        mList.clear();
+    }
+    
     public DrawNav get(int i) {
         return mList.get(i);
     }
@@ -77,24 +87,26 @@ public class DrawNavList extends NavList implements DrawNav {
     }
     
     /**
-     * Clones the list.
+     * Clones the list and, recursively, all its elements.
      */
     public DrawNavList clone() {
-        System.out.println(toString());
-        DrawNavList newList = fromString(toString());
-        System.out.println(newList);
+        DrawNavList newList = new DrawNavList(name);
+        newList.expanded = expanded;
+        ListIterator<DrawNav> iterator = mList.listIterator();
+        while (iterator.hasNext()) {
+            newList.mList.add(iterator.next().clone());
+        }
         return newList;
     }
     
     public String toString() {
-		String me = new String();
-		me = me.concat(" {");
+		StringBuilder me = new StringBuilder(" {");
 		ListIterator<DrawNav> iterator = mList.listIterator();
 		while (iterator.hasNext()) {
-			me = me.concat(" ").concat(iterator.next().toString());
+			me.append(" ").append(iterator.next().toString());
 		}
-		me = me.concat(" " + name + "}");
-		return me;
+		me.append(" ").append(name).append("}");
+		return me.toString();
 	}
     
     public static DrawNavList fromString(String str) {
@@ -124,6 +136,10 @@ public class DrawNavList extends NavList implements DrawNav {
         expanded = !expanded;
     }
     
+    public boolean isExpanded() {
+        return expanded;
+    }
+    
     /**
      * Obtains the 2D array of the y-values the object occupied when last drawn to screen.
      * yRange[0][0] is the start point, and yRange[0][1] is the end point.
@@ -134,56 +150,99 @@ public class DrawNavList extends NavList implements DrawNav {
     }
     
     /**
-     * Draws the list and, recursively, all its elements.
-     *
-     * @param g2 The object to which to draw the list.
-     * @param xpos The x-coordinate at which to start drawing the list.
-     * @param ypos The y-coordinate at which to start drawing the list.
-     * @param xSize The permissible width of the list.
-     * @param registry The registry of currently drawn NavDatas, to which to add this list.
+     * Lays the list and, recursively, all its elements out.
+     * @param ypos The y-coordinate at which to start the list.
+     * @param parent The list holding this one, or null.
+     * @param rows The rows of the column, to which to add the list and its elements.
+     * @return The y-coordinate at which the list ends.
      */
-    public void drawMe (Graphics2D g2, int xpos, int ypos, int xSize, Vector<DrawNav> registry) {
+    public int layout(int ypos, DrawNavList parent, RowIndex rows) {
         //list-start block:
         yRange[0][0] = ypos;
         yRange[0][1] = ypos + 2 * FONTSIZE;
         
-        if (highlighted) {
-            g2.setColor(StyleProvider.foreground3());
-            g2.fillRect(xpos, yRange[0][0], xSize, yRange[0][1] - yRange[0][0]);
-        }
-        
-        if (selected) {
-            g2.setColor(StyleProvider.foreground());
-            g2.fillRect(xpos, yRange[0][0], xSize, yRange[0][1] - yRange[0][0]);
-        }
-        
-            
-        g2.setColor(selected ? StyleProvider.background() : StyleProvider.foreground());
-        if (name == null)
-            System.out.println("null name");
-        g2.drawString(name.replaceAll("_", " ") + " List", xpos, yRange[0][0] + FONTSIZE);
-        
-        
         //if expanded, reassigned later, when the actual end of last block in the list is known.
         yRange[1][0] = yRange[0][0];
         yRange[1][1] = yRange[0][1];
         
-        registry.add(this);
+        rows.add(this, 0, parent);
         
-        //Draw the lists' objects
         if (expanded) {
+            if (childEnds.length != mList.size())
+                childEnds = new int[mList.size()];
+            int lastY = yRange[0][1];
+            int i = 0;
             ListIterator<DrawNav> i1 = mList.listIterator();
-            while (i1.hasNext()) { //iterate through each object
-                int lastY = getDeepestY(registry); //find the position of the previous task
-                i1.next().drawMe(g2, xpos, lastY + BUFFER, xSize, registry); //draw this item there.
+            while (i1.hasNext()) { //lay each object out below the previous one
+                DrawNav nav = i1.next();
+                lastY = nav.layout(lastY + BUFFER, this, rows);
+                childEnds[i++] = nav.getYRange()[0][1];
             }
             
-            //Draw the list-end block:
-            int lastY = getDeepestY(registry);
-            
+            //list-end block:
             yRange[1][0] = lastY + BUFFER;
             yRange[1][1] = lastY + BUFFER + 2 * FONTSIZE;
+            rows.add(this, 1, parent);
+        }
+        else {
+            childEnds = new int[0];
+        }
+        return yRange[1][1];
+    }
+    
+    /**
+     * Finds the slot in the list to which a y-value corresponds, as last laid out.
+     * @param y The y-value.
+     * @return The number of elements whose first block ends above it.
+     */
+    public int slotAt(int y) {
+        int low = 0;
+        int high = childEnds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (childEnds[mid] < y)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+    
+    /**
+     * Draws one block of the list where it was last laid out; its elements draw themselves.
+     *
+     * @param g2 The object to which to draw the list.
+     * @param xpos The x-coordinate at which to start drawing the list.
+     * @param xSize The permissible width of the list.
+     * @param block 0 for the list-start block, 1 for the list-end block.
+     */
+    public void drawMe (Graphics2D g2, int xpos, int xSize, int block) {
+        int ypos = yRange[0][0];
+        if (block == 0) {
+            if (highlighted) {
+                g2.setColor(StyleProvider.foreground3());
+                g2.fillRect(xpos, yRange[0][0], xSize, yRange[0][1] - yRange[0][0]);
+            }
             
+            if (selected) {
+                g2.setColor(StyleProvider.foreground());
+                g2.fillRect(xpos, yRange[0][0], xSize, yRange[0][1] - yRange[0][0]);
+            }
+            
+            g2.setColor(selected ? StyleProvider.background() : StyleProvider.foreground());
+            g2.drawString(name.replaceAll("_", " ") + " List", xpos, yRange[0][0] + FONTSIZE);
+            
+	    /* Top marker */
+	    g2.setColor(StyleProvider.foreground());
+	    g2.drawLine(xpos - 2, ypos - 2, xpos + xSize + 2, ypos - 2);
+	    g2.drawLine(xpos - 2, ypos + TICK_LENGTH, xpos - 2, ypos - 2);
+	    g2.drawLine(xpos + xSize + 2, ypos + TICK_LENGTH, xpos + xSize + 2, ypos - 2);
+            
+            //a collapsed list ends in its start block
+            if (expanded)
+                return;
+        }
+        else {
             if (highlighted) {
                 g2.setColor(StyleProvider.foreground3());
                 g2.fillRect(xpos, yRange[1][0], xSize, yRange[1][1] - yRange[1][0]);
@@ -194,31 +253,10 @@ public class DrawNavList extends NavList implements DrawNav {
             }
         }
 	
-	/* Top marker */
-	g2.setColor(StyleProvider.foreground());
-	g2.drawLine(xpos - 2, ypos - 2, xpos + xSize + 2, ypos - 2);
-	g2.drawLine(xpos - 2, ypos + TICK_LENGTH, xpos - 2, ypos - 2);
-	g2.drawLine(xpos + xSize + 2, ypos + TICK_LENGTH, xpos + xSize + 2, ypos - 2);
-
 	/* Bottom marker */
+	g2.setColor(StyleProvider.foreground());
 	g2.drawLine(xpos - 2, yRange[1][1] + 1, xpos + xSize + 2, yRange[1][1] + 1);
 	g2.drawLine(xpos - 2, yRange[1][1] - TICK_LENGTH, xpos - 2, yRange[1][1] + 1);
 	g2.drawLine(xpos + xSize + 2, yRange[1][1] - TICK_LENGTH, xpos + xSize + 2, yRange[1][1] + 1);
     }
-    
-    /**
-     * Returns the end-position of the deepest task in the supplied registry.
-     * @param registry The registry to examine.
-     * @return The y-position of the deepest task.
-     */
-    private static int getDeepestY(Vector<DrawNav> registry) {
-        int maxY = 0;
-        for (int i = 0; i < registry.size(); i++) {
-            int[][] mRange = registry.get(i).getYRange();
-            for (int j = 0; j < mRange.length; j++) {
-                maxY = Math.max(maxY, mRange[j][1]);
-            }
-        }
-        return maxY;
-    }
 }
@@ -33,7 +33,10 @@ public class DrawNavVel extends NavVel implements DrawNav {
      * Clones the DrawNavVel
      */
     public DrawNavVel clone() {
-        return DrawNavVel.taskFor(getVelocity(), getTime());
+        DrawNavVel n = new DrawNavVel();
+        n.name = name;
+        n.mData = mData.clone();
+        return n;
     }
     
     /**
@@ -61,17 +64,29 @@ public class DrawNavVel extends NavVel implements DrawNav {
     }
     
     /**
-     * Draws the task.
+     * Lays the task out.
+     * @param ypos The y-coordinate at which to start the task.
+     * @param parent The list holding the task, or null.
+     * @param rows The rows of the column, to which to add this task.
+     * @return The y-coordinate at which the task ends.
+     */
+    public int layout(int ypos, DrawNavList parent, RowIndex rows) {
+        yRange[0][0] = ypos;
+        yRange[0][1] = ypos + 5 * FONTSIZE;
+        rows.add(this, 0, parent);
+        return yRange[0][1];
+    }
+    
+    /**
+     * Draws the task where it was last laid out.
      * @param g2 The object to which to draw the task.
      * @param xpos The x-coordinate at which to start drawing the task.
-     * @param ypos The y-coordinate at which to start drawing the task.
      * @param xSize The permissible width of the task.
-     * @param registry The registry of currently drawn NavDatas, to which to add this task.
+     * @param block Unused; the task has one block.
      */
-    public void drawMe (Graphics2D g2, int xpos, int ypos, int xSize, Vector<DrawNav> registry) {
-        int myHeight = 5 * FONTSIZE;
-        yRange[0][0] = ypos;
-        yRange[0][1] = ypos + myHeight;
+    public void drawMe (Graphics2D g2, int xpos, int xSize, int block) {
+        int ypos = yRange[0][0];
+        int myHeight = yRange[0][1] - ypos;
 
         if (highlighted) {
             g2.setColor(Color.CYAN);
@@ -98,8 +113,6 @@ public class DrawNavVel extends NavVel implements DrawNav {
         
         g2.setColor(Color.RED);
         g2.drawRect(xpos, ypos, xSize, myHeight);
-
-        registry.add(this);
     }
     
     /**
@@ -0,0 +1,575 @@
+package org.haldean.chopper.server.nav;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.haldean.chopper.nav.LocalFrame;
+import org.haldean.chopper.nav.NavData;
+import org.haldean.chopper.nav.NavDest;
+import org.haldean.chopper.nav.NavPlan;
+import org.haldean.chopper.server.EnsignCrusher;
+
+/**
+ * Plans missions on the ground before they are sent to the chopper: the shortest
+ * tour through a set of destinations, or a lawnmower sweep covering an area.
+ * Searches run in parallel on every core, and each plan comes with the flight
+ * time and battery it should take.
+ */
+public class MissionPlanner {
+    /** Default flight time on a full battery, in seconds */
+    public static final double ENDURANCE = 900;
+    /** Fraction of the battery a mission should leave unused */
+    public static final double RESERVE = 0.2;
+
+    /* Time allowed to improve a tour, in milliseconds */
+    private static final long TIME_LIMIT = 400;
+    /* Tours started in parallel; the first is built nearest neighbor first,
+     * the rest pick randomly among the closest few */
+    private static final int STARTS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int CANDIDATES = 3;
+    /* Longest run of destinations moved at once when improving a tour */
+    private static final int SEGMENT = 3;
+    /* Degrees between the sweep directions tried, besides those of the area's edges */
+    private static final double SWEEP_STEP = 15;
+    private static final int MAX_LINES = 2000;
+    private static final double EPSILON = 1e-9;
+
+    private static final ExecutorService pool =
+	Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "Mission Planner");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    private double altitude = 100;
+    private double velocity = EnsignCrusher.VELOCITY;
+    private double radius = 10;
+    private double endurance = ENDURANCE;
+    private boolean returnHome = true;
+
+    /**
+     * Sets the destinations of sweeps.
+     * @param altitude The altitude at which to sweep areas, in meters.
+     * @param velocity The velocity at which to sweep areas, in m/s.
+     * @param radius The radius of the destinations of a sweep, in meters.
+     */
+    public void setSweep(double altitude, double velocity, double radius) {
+	this.altitude = altitude;
+	this.velocity = velocity;
+	this.radius = radius;
+    }
+
+    /**
+     * Sets the flight time of a full battery, against which missions are measured.
+     * @param seconds The flight time, in seconds.
+     */
+    public void setEndurance(double seconds) {
+	endurance = seconds;
+    }
+
+    /**
+     * Determines whether missions end back where they start.
+     * @param k True to return to the start.
+     */
+    public void setReturnHome(boolean k) {
+	returnHome = k;
+    }
+
+    /**
+     * Finds a short tour through a set of destinations, starting from the first.
+     * Others at the start itself, like the way home of an earlier tour, are dropped.
+     * @param name The name of the mission.
+     * @param targets The destinations; the chopper is at or near the first.
+     * @return The mission, which visits each destination once.
+     */
+    public Mission planTour(String name, List<? extends NavDest> targets) throws InterruptedException {
+	if (targets.isEmpty()) {
+	    throw new IllegalArgumentException("A tour needs a destination to start from");
+	}
+	NavDest start = targets.get(0);
+	ArrayList<NavDest> dests = new ArrayList<NavDest>(targets.size());
+	dests.add(start);
+	for (NavDest d : targets.subList(1, targets.size())) {
+	    if (d.getLatitude() != start.getLatitude() || d.getLongitude() != start.getLongitude() ||
+		d.getAltitude() != start.getAltitude()) {
+		dests.add(d);
+	    }
+	}
+	int m = dests.size();
+	double[] xs = new double[m];
+	double[] ys = new double[m];
+	double[] zs = new double[m];
+	LocalFrame frame = new LocalFrame(start.getLatitude(), start.getLongitude());
+	for (int i = 0; i < m; i++) {
+	    NavDest d = dests.get(i);
+	    xs[i] = frame.toEast(d.getLongitude());
+	    ys[i] = frame.toNorth(d.getLatitude());
+	    zs[i] = d.getAltitude();
+	}
+
+	/* An open tour ends at a node, fixed last, which is no distance from any other */
+	final int n = returnHome ? m : m + 1;
+	final double[][] dist = new double[n][n];
+	for (int i = 0; i < m; i++) {
+	    for (int j = 0; j < i; j++) {
+		double d = Math.sqrt((xs[i] - xs[j]) * (xs[i] - xs[j]) + (ys[i] - ys[j]) * (ys[i] - ys[j]) +
+				     (zs[i] - zs[j]) * (zs[i] - zs[j]));
+		dist[i][j] = d;
+		dist[j][i] = d;
+	    }
+	}
+	final int last = returnHome ? n - 1 : n - 2;
+
+	int[] best = new int[n];
+	for (int i = 0; i < n; i++) {
+	    best[i] = i;
+	}
+	/* Two destinations after the start can already be flown in the wrong order */
+	if (m > 2) {
+	    final long deadline = System.nanoTime() + TIME_LIMIT * 1000000L;
+	    List<Callable<int[]>> searches = new ArrayList<Callable<int[]>>(STARTS);
+	    for (int k = 0; k < STARTS; k++) {
+		final int seed = k;
+		searches.add(new Callable<int[]>() {
+			public int[] call() {
+			    int[] tour = construct(dist, n, last, seed);
+			    improve(dist, tour, last, deadline);
+			    return tour;
+			}
+		    });
+	    }
+	    double bestLength = Double.POSITIVE_INFINITY;
+	    for (Future<int[]> f : pool.invokeAll(searches)) {
+		int[] tour = get(f);
+		double length = length(dist, tour);
+		if (length < bestLength - EPSILON) {
+		    best = tour;
+		    bestLength = length;
+		}
+	    }
+	}
+
+	ArrayList<NavDest> ordered = new ArrayList<NavDest>(m + 1);
+	for (int i = 0; i < n; i++) {
+	    if (best[i] < m) {
+		ordered.add(dests.get(best[i]));
+	    }
+	}
+	if (returnHome && m > 1) {
+	    ordered.add(start);
+	}
+	return new Mission(name, ordered, endurance);
+    }
+
+    /**
+     * Plans a lawnmower sweep over an area: parallel lines across it, each flown
+     * end to end.  Every direction along the area's edges, and every SWEEP_STEP
+     * degrees, is tried, and the quickest flight kept; turning at the end of each
+     * line costs a stop, so this favors fewer, longer lines.
+     * @param name The name of the mission.
+     * @param lat The latitude the chopper starts from, in degrees.
+     * @param lon The longitude the chopper starts from, in degrees.
+     * @param lats The latitudes of the area's vertices, in degrees.
+     * @param lons The longitudes of the area's vertices, in degrees.
+     * @param spacing The distance between lines, in meters.
+     * @return The mission.
+     */
+    public Mission planCoverage(String name, double lat, double lon, double[] lats, double[] lons,
+				double spacing) throws InterruptedException {
+	final int n = lats.length;
+	if (n < 3 || lons.length != n) {
+	    throw new IllegalArgumentException("An area needs at least three vertices");
+	}
+	if (!(spacing > 0)) {
+	    throw new IllegalArgumentException("The spacing between lines must be positive");
+	}
+	final LocalFrame frame = new LocalFrame(lat, lon);
+	final double[] xs = new double[n];
+	final double[] ys = new double[n];
+	TreeSet<Double> angles = new TreeSet<Double>();
+	for (int i = 0; i < n; i++) {
+	    xs[i] = frame.toEast(lons[i]);
+	    ys[i] = frame.toNorth(lats[i]);
+	}
+	for (int i = 0, j = n - 1; i < n; j = i++) {
+	    double angle = Math.toDegrees(Math.atan2(ys[i] - ys[j], xs[i] - xs[j]));
+	    angles.add(Math.round((angle + 360) % 180 * 1000) / 1000.0);
+	}
+	for (double angle = 0; angle < 180; angle += SWEEP_STEP) {
+	    angles.add(angle);
+	}
+
+	final String missionName = name;
+	final double startLat = lat;
+	final double startLon = lon;
+	final double space = spacing;
+	List<Callable<Mission>> sweeps = new ArrayList<Callable<Mission>>(angles.size());
+	for (final double angle : angles) {
+	    sweeps.add(new Callable<Mission>() {
+		    public Mission call() {
+			double[] path = sweep(xs, ys, Math.toRadians(angle), space);
+			if (path == null) {
+			    return null;
+			}
+			ArrayList<NavDest> dests = new ArrayList<NavDest>(path.length / 2 + 1);
+			for (int i = 0; i < path.length; i += 2) {
+			    dests.add(dest("s" + (i / 2 + 1), frame.toLatitude(path[i + 1]),
+					   frame.toLongitude(path[i])));
+			}
+			if (returnHome) {
+			    dests.add(dest("home", startLat, startLon));
+			}
+			return new Mission(missionName, dests, endurance);
+		    }
+		});
+	}
+	Mission best = null;
+	for (Future<Mission> f : pool.invokeAll(sweeps)) {
+	    Mission mission = get(f);
+	    if (mission != null && (best == null || mission.getDuration() < best.getDuration() - EPSILON)) {
+		best = mission;
+	    }
+	}
+	if (best == null) {
+	    throw new IllegalArgumentException("The spacing is too small for the area");
+	}
+	return best;
+    }
+
+    private NavDest dest(String name, double lat, double lon) {
+	return (NavDest) NavData.fromString("DEST!" + name + "!" + altitude + "!" + lon + "!" + lat + "!" +
+					    velocity + "!" + radius + "!0");
+    }
+
+    private static <T> T get(Future<T> f) throws InterruptedException {
+	try {
+	    return f.get();
+	} catch (java.util.concurrent.ExecutionException e) {
+	    throw new RuntimeException(e.getCause());
+	}
+    }
+
+    /**
+     * Builds a tour nearest neighbor first, with the start and any open end fixed.
+     * @param seed Zero to always take the nearest; otherwise seeds a random choice
+     * among the CANDIDATES nearest.
+     */
+    private static int[] construct(double[][] dist, int n, int last, int seed) {
+	int[] tour = new int[n];
+	boolean[] visited = new boolean[n];
+	Random random = new Random(seed);
+	int[] nearest = new int[CANDIDATES];
+	tour[0] = 0;
+	visited[0] = true;
+	for (int i = last + 1; i < n; i++) {
+	    tour[i] = i;
+	    visited[i] = true;
+	}
+	for (int i = 1; i <= last; i++) {
+	    double[] from = dist[tour[i - 1]];
+	    int found = 0;
+	    for (int j = 0; j < n; j++) {
+		if (visited[j]) {
+		    continue;
+		}
+		/* Insert j into the sorted candidates */
+		int k = Math.min(found, CANDIDATES - 1);
+		if (found == CANDIDATES && from[j] >= from[nearest[k]]) {
+		    continue;
+		}
+		while (k > 0 && from[nearest[k - 1]] > from[j]) {
+		    nearest[k] = nearest[k - 1];
+		    k--;
+		}
+		nearest[k] = j;
+		found = Math.min(found + 1, CANDIDATES);
+	    }
+	    int next = nearest[seed == 0 ? 0 : random.nextInt(found)];
+	    tour[i] = next;
+	    visited[next] = true;
+	}
+	return tour;
+    }
+
+    /**
+     * Improves a tour in place by 2-opt and Or-opt moves until neither shortens it,
+     * or the deadline passes.  Positions 0 and after last are not moved.
+     */
+    private static void improve(double[][] dist, int[] tour, int last, long deadline) {
+	int n = tour.length;
+	boolean improved = true;
+	while (improved && System.nanoTime() < deadline) {
+	    improved = false;
+
+	    /* 2-opt: reverse tour[i+1..j] when crossing edges are uncrossed */
+	    for (int i = 0; i < last - 1; i++) {
+		int a = tour[i];
+		for (int j = i + 2; j <= last; j++) {
+		    int b = tour[i + 1];
+		    int c = tour[j];
+		    int d = tour[(j + 1) % n];
+		    if (dist[a][c] + dist[b][d] < dist[a][b] + dist[c][d] - EPSILON) {
+			reverse(tour, i + 1, j);
+			improved = true;
+		    }
+		}
+		if ((i & 15) == 0 && System.nanoTime() >= deadline) {
+		    return;
+		}
+	    }
+
+	    /* Or-opt: move a run of up to SEGMENT destinations elsewhere, either way round */
+	    for (int len = 1; len <= SEGMENT; len++) {
+		for (int i = 1; i + len - 1 <= last; i++) {
+		    int p = tour[i - 1];
+		    int s = tour[i];
+		    int e = tour[i + len - 1];
+		    int q = tour[(i + len) % n];
+		    double gain = dist[p][s] + dist[e][q] - dist[p][q];
+		    if (gain <= EPSILON) {
+			continue;
+		    }
+		    int bestK = -1;
+		    boolean reversed = false;
+		    double bestCost = gain - EPSILON;
+		    for (int k = 0; k <= last; k++) {
+			if (k >= i - 1 && k <= i + len - 1) {
+			    continue;
+			}
+			int u = tour[k];
+			int v = tour[(k + 1) % n];
+			double forward = dist[u][s] + dist[e][v] - dist[u][v];
+			double backward = dist[u][e] + dist[s][v] - dist[u][v];
+			if (forward < bestCost) {
+			    bestCost = forward;
+			    bestK = k;
+			    reversed = false;
+			}
+			if (backward < bestCost) {
+			    bestCost = backward;
+			    bestK = k;
+			    reversed = true;
+			}
+		    }
+		    if (bestK >= 0) {
+			move(tour, i, len, bestK, reversed);
+			improved = true;
+		    }
+		}
+		if (System.nanoTime() >= deadline) {
+		    return;
+		}
+	    }
+	}
+    }
+
+    private static void reverse(int[] tour, int i, int j) {
+	while (i < j) {
+	    int t = tour[i];
+	    tour[i++] = tour[j];
+	    tour[j--] = t;
+	}
+    }
+
+    /* Moves tour[i..i+len-1] to follow the destination now at k */
+    private static void move(int[] tour, int i, int len, int k, boolean reversed) {
+	int[] segment = Arrays.copyOfRange(tour, i, i + len);
+	if (reversed) {
+	    reverse(segment, 0, len - 1);
+	}
+	if (k < i) {
+	    System.arraycopy(tour, k + 1, tour, k + 1 + len, i - k - 1);
+	    System.arraycopy(segment, 0, tour, k + 1, len);
+	}
+	else {
+	    System.arraycopy(tour, i + len, tour, i, k - i - len + 1);
+	    System.arraycopy(segment, 0, tour, k - len + 1, len);
+	}
+    }
+
+    private static double length(double[][] dist, int[] tour) {
+	double length = 0;
+	for (int i = 0; i < tour.length; i++) {
+	    length += dist[tour[i]][tour[(i + 1) % tour.length]];
+	}
+	return length;
+    }
+
+    /**
+     * Sweeps an area in one direction.
+     * @param xs The vertices' distances east of the start, in meters.
+     * @param ys The vertices' distances north of the start, in meters.
+     * @param angle The direction of the lines, in radians counterclockwise from east.
+     * @param spacing The distance between lines, in meters.
+     * @return The end points of the lines as east, north pairs in the order they
+     * are flown, or null if there would be more than MAX_LINES lines.
+     */
+    private static double[] sweep(double[] xs, double[] ys, double angle, double spacing) {
+	int n = xs.length;
+	double cos = Math.cos(angle);
+	double sin = Math.sin(angle);
+	/* a runs along the lines, b across them */
+	double[] as = new double[n];
+	double[] bs = new double[n];
+	double low = Double.POSITIVE_INFINITY;
+	double high = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < n; i++) {
+	    as[i] = xs[i] * cos + ys[i] * sin;
+	    bs[i] = ys[i] * cos - xs[i] * sin;
+	    low = Math.min(low, bs[i]);
+	    high = Math.max(high, bs[i]);
+	}
+	int lines = Math.max(1, (int) Math.ceil((high - low) / spacing));
+	if (lines > MAX_LINES) {
+	    return null;
+	}
+	double first = (low + high) / 2 - (lines - 1) * spacing / 2;
+
+	/* Pieces of each line inside the area, as a1, a2, b */
+	ArrayList<double[]> pieces = new ArrayList<double[]>();
+	double[] crossings = new double[n];
+	for (int l = 0; l < lines; l++) {
+	    double b = first + l * spacing;
+	    int count = 0;
+	    for (int i = 0, j = n - 1; i < n; j = i++) {
+		if ((bs[i] > b) != (bs[j] > b)) {
+		    crossings[count++] = as[j] + (as[i] - as[j]) * (b - bs[j]) / (bs[i] - bs[j]);
+		}
+	    }
+	    Arrays.sort(crossings, 0, count);
+	    for (int k = 0; k + 1 < count; k += 2) {
+		pieces.add(new double[] {crossings[k], crossings[k + 1], b});
+	    }
+	}
+
+	/* Fly to the nearest end of a piece not yet flown, then along it */
+	double[] path = new double[4 * pieces.size()];
+	boolean[] flown = new boolean[pieces.size()];
+	double x = 0;
+	double y = 0;
+	for (int p = 0; p < pieces.size(); p++) {
+	    int next = -1;
+	    boolean fromStart = true;
+	    double nearest = Double.POSITIVE_INFINITY;
+	    for (int k = 0; k < pieces.size(); k++) {
+		if (flown[k]) {
+		    continue;
+		}
+		double[] piece = pieces.get(k);
+		for (int end = 0; end < 2; end++) {
+		    double ex = piece[end] * cos - piece[2] * sin;
+		    double ey = piece[end] * sin + piece[2] * cos;
+		    double d = Math.hypot(ex - x, ey - y);
+		    if (d < nearest) {
+			nearest = d;
+			next = k;
+			fromStart = end == 0;
+		    }
+		}
+	    }
+	    flown[next] = true;
+	    double[] piece = pieces.get(next);
+	    double a1 = fromStart ? piece[0] : piece[1];
+	    double a2 = fromStart ? piece[1] : piece[0];
+	    path[4 * p] = a1 * cos - piece[2] * sin;
+	    path[4 * p + 1] = a1 * sin + piece[2] * cos;
+	    path[4 * p + 2] = x = a2 * cos - piece[2] * sin;
+	    path[4 * p + 3] = y = a2 * sin + piece[2] * cos;
+	}
+	return path;
+    }
+
+    /**
+     * A planned mission: its destinations in order, and what flying them should cost.
+     */
+    public static class Mission {
+	private final String name;
+	private final List<NavDest> dests;
+	private final double distance;
+	private final double duration;
+	private final double endurance;
+
+	private Mission(String name, List<NavDest> dests, double endurance) {
+	    this.name = name;
+	    this.dests = dests;
+	    this.endurance = endurance;
+	    NavDest start = dests.get(0);
+	    LocalFrame frame = new LocalFrame(start.getLatitude(), start.getLongitude());
+	    double d = 0;
+	    for (int i = 1; i < dests.size(); i++) {
+		NavDest a = dests.get(i - 1);
+		NavDest b = dests.get(i);
+		double dx = frame.toEast(b.getLongitude()) - frame.toEast(a.getLongitude());
+		double dy = frame.toNorth(b.getLatitude()) - frame.toNorth(a.getLatitude());
+		double dz = b.getAltitude() - a.getAltitude();
+		d += Math.sqrt(dx * dx + dy * dy + dz * dz);
+	    }
+	    distance = d;
+	    duration = new NavPlan(start.getLatitude(), start.getLongitude(), start.getAltitude(), 0,
+				   dests).getDuration();
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	/** @return The destinations, in the order they are flown. */
+	public List<NavDest> getDestinations() {
+	    return dests;
+	}
+
+	/** @return The length of the flight, in meters. */
+	public double getDistance() {
+	    return distance;
+	}
+
+	/** @return The time the flight should take, in seconds. */
+	public double getDuration() {
+	    return duration;
+	}
+
+	/** @return The fraction of a full battery the flight should use. */
+	public double getBatteryUse() {
+	    return duration / endurance;
+	}
+
+	/** @return True if the flight leaves at least RESERVE of the battery. */
+	public boolean isFeasible() {
+	    return getBatteryUse() <= 1 - RESERVE;
+	}
+
+	/** @return A line describing the mission, for the operator. */
+	public String getSummary() {
+	    long seconds = Math.round(duration);
+	    return String.format(Locale.US, "%s: %d destinations, %.0f m, %d:%02d, %.0f%% of battery%s",
+				 name, dests.size(), distance, seconds / 60, seconds % 60,
+				 100 * getBatteryUse(), isFeasible() ? "" : " (too long)");
+	}
+
+	/**
+	 * Serializes the mission as a NavList, with coordinates rounded to about a
+	 * centimeter so that long missions stay short on the wire.
+	 */
+	public String toString() {
+	    StringBuilder me = new StringBuilder("{");
+	    for (int i = 0; i < dests.size(); i++) {
+		NavDest d = dests.get(i);
+		me.append(String.format(Locale.US, " DEST!%s!%.2f!%.7f!%.7f!%.2f!%.2f!%d", d.getName(),
+					d.getAltitude(), d.getLongitude(), d.getLatitude(),
+					d.getVelocity(), d.getRadius(), i + 1));
+	    }
+	    return me.append(" ").append(name).append("}").toString();
+	}
+    }
+}
@@ -6,6 +6,7 @@ import java.util.*;
 import javax.swing.*;
 import javax.swing.event.*;
 
+import org.haldean.chopper.nav.NavDest;
 import org.haldean.chopper.server.EnsignCrusher;
 import org.haldean.chopper.server.StyleProvider;
 
@@ -38,8 +39,14 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
     /* Stores the NavLists */
     private Vector<DrawNavList> travelPlans = new Vector<DrawNavList>(PLANS);
     
-    /* Registry of all items and their positions in the component */
-    private Vector<Vector<DrawNav>> registry = new Vector<Vector<DrawNav>>(travelPlans.size());
+    /* Registry of all items and their positions in the component, by column, as last laid out */
+    private Vector<RowIndex> registry = new Vector<RowIndex>(travelPlans.size());
+    private boolean laidOut = false;
+    private int deepestY = 0;
+    
+    /* Columns of the highlighted and selected DrawNavs */
+    private int highlightedCol = 0;
+    private int selectedCol = 0;
     
     /**
      * Constructs the Component, initializes the core NavLists and the registry of DrawNavs
@@ -51,7 +58,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         travelPlans.add(DrawNavList.fromString("{ Name3}"));
         System.out.println(0 + " " + travelPlans.get(0));
         for (int i = 0; i < travelPlans.size(); i++) {
-            registry.add(new Vector<DrawNav>());
+            registry.add(new RowIndex());
         }
 
         addMouseMotionListener(this);
@@ -64,6 +71,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
     private void clearHighlighted() {
         if (highlighted != null) {
             highlighted.setHighlighted(false);
+            repaintTask(highlighted, highlightedCol);
             highlighted = null;
         }            
     }
@@ -74,6 +82,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
     private void clearSelected() {
         if (selected != null) {
             selected.setSelected(false);
+            repaintTask(selected, selectedCol);
             selected = null;
             taskParent = null;
         }
@@ -87,8 +96,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
             return;
         DrawNav copyMe = selected.clone();
         selParList.add(selListSlot, copyMe);
-        repaint();
-        revalidate();
+        relayout();
     }
 
     /**
@@ -111,8 +119,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         selected = null;
         taskParent = null;
         selParList = null;
-        repaint();
-        revalidate();
+        relayout();
     }
     
     /**
@@ -123,8 +130,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
             return;
         copySelection();
         deleteSelection();
-        repaint();
-        revalidate();
+        relayout();
     }
     
     /**
@@ -148,8 +154,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         if ((i >= travelPlans.size()) || (i < 0))
             return;
         travelPlans.set(i, DrawNavList.fromString(str));
-        repaint();
-        revalidate();
+        relayout();
     }
     
     /**
@@ -162,8 +167,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         if (dest == null)
             System.out.println("null dest");
         selParList.add(selListSlot, dest.clone());
-        repaint();
-        revalidate();
+        relayout();
     }
     
     /**
@@ -174,8 +178,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         if (selParList == null)
             return;
         selParList.add(selListSlot, vel.clone());
-        repaint();
-        revalidate();
+        relayout();
     }
     
     /**
@@ -188,12 +191,112 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
             return;
         }
         selParList.add(selListSlot, DrawNavList.fromString("{ " + name + "}"));
+        relayout();
+    }
+    
+    /**
+     * @return The selected DrawNavList, if it holds only destinations, or null.
+     */
+    public DrawNavList getSelectedTour() {
+        if (!(selected instanceof DrawNavList))
+            return null;
+        DrawNavList list = (DrawNavList) selected;
+        ListIterator<DrawNav> iterator = list.listIterator();
+        if (!iterator.hasNext())
+            return null;
+        while (iterator.hasNext()) {
+            if (!(iterator.next() instanceof DrawNavDest))
+                return null;
+        }
+        return list;
+    }
+    
+    /**
+     * Replaces the destinations of a list with those of a tour planned from it, in order.
+     * @param list The list, which need no longer be selected.
+     * @param mission The planned tour.
+     */
+    public void setTour(DrawNavList list, MissionPlanner.Mission mission) {
+        list.clear();
+        int i = 0;
+        for (NavDest dest : mission.getDestinations()) {
+            list.add(i++, ((DrawNavDest) dest).clone());
+        }
+        relayout();
+    }
+    
+    /**
+     * If a slot is selected, inserts a planned mission at the slot as a DrawNavList.
+     * @param mission The mission to insert.
+     * @return True if the mission was inserted.
+     */
+    public boolean insertMission(MissionPlanner.Mission mission) {
+        if (selParList == null)
+            return false;
+        selParList.add(selListSlot, DrawNavList.fromString(mission.toString()));
+        relayout();
+        return true;
+    }
+    
+    /**
+     * Marks the layout as stale after the structure of the lists changes, and repaints.
+     */
+    private void relayout() {
+        laidOut = false;
         repaint();
         revalidate();
     }
     
     /**
-     * Paints the component
+     * Lays every list out again, if the structure has changed since it last was.
+     */
+    private void ensureLayout() {
+        if (laidOut)
+            return;
+        deepestY = 0;
+        for (int i = 0; i < travelPlans.size(); i++) {
+            registry.get(i).clear();
+            deepestY = Math.max(deepestY, travelPlans.get(i).layout(BUFFER, null, registry.get(i)));
+        }
+        laidOut = true;
+    }
+    
+    /**
+     * Repaints the blocks of a DrawNav, and nothing else.
+     * @param nav The DrawNav to repaint.
+     * @param col The column it is in.
+     */
+    private void repaintTask(DrawNav nav, int col) {
+        int[][] yRange = nav.getYRange();
+        for (int j = 0; j < yRange.length; j++) {
+            repaint(col * xSize + BUFFER - 3, yRange[j][0] - 3, xSize - 2 * BUFFER + 7, yRange[j][1] - yRange[j][0] + 7);
+        }
+    }
+    
+    /**
+     * Finds where the bar marking a slot is drawn.
+     * @param list The list holding the slot.
+     * @param slot The index of the slot in the list.
+     * @param col The column the list is in.
+     * @return The bounds of the bar.
+     */
+    private Rectangle slotBounds(DrawNavList list, int slot, int col) {
+        int yPos;
+        int[][] yRange;
+        if (slot == 0) {
+            yRange = list.getYRange();
+            yPos = yRange[0][1];
+        }
+        else {
+            yRange = list.get(slot - 1).getYRange();
+            yPos = yRange[yRange.length - 1][1];
+        }
+        yPos += .375 * DrawNav.BUFFER;
+        return new Rectangle(col * xSize + BUFFER, yPos, xSize - 2 * BUFFER, (int) (.25 * DrawNav.BUFFER));
+    }
+    
+    /**
+     * Paints the part of the component within the clip
      * @param g The supplied graphics object
      */
     public void paint(Graphics g) {
@@ -201,55 +304,42 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         Graphics2D g2 = (Graphics2D) g;
 	
 	Dimension size = getSize();
+	Rectangle clip = g2.getClipBounds();
+	if (clip == null)
+	    clip = new Rectangle(size);
 
 	g2.setColor(StyleProvider.background());
-	g2.fillRect(0, 0, (int) size.getWidth(), (int) size.getHeight());
+	g2.fillRect(clip.x, clip.y, clip.width, clip.height);
 
 	xSize = (int) (size.getWidth() / travelPlans.size()) - 3 * (int) BUFFER;
+        ensureLayout();
 
         for (int i = 0; i < travelPlans.size(); i++) {
-            //clear the registry
-            registry.get(i).removeAllElements();
-            //recursively draw each element in the list
-            travelPlans.get(i).drawMe(g2, i * xSize + BUFFER, BUFFER, xSize - 2 * BUFFER, registry.get(i));
+            //draw the blocks that reach into the clip, markers included
+            RowIndex rows = registry.get(i);
+            for (int j = rows.below(clip.y - 3); j < rows.size() && rows.getTop(j) <= clip.y + clip.height + 3; j++) {
+                rows.getTask(j).drawMe(g2, i * xSize + BUFFER, xSize - 2 * BUFFER, rows.getBlock(j));
+            }
         }
         
         //draw highlighted slot, if one exists:
         if (parentList != null) {
-            int yPos;
-            int[][] yRange;
-            if (listSlot == 0) {
-                yRange = parentList.getYRange();
-                yPos = yRange[0][1];
-            }
-            else {
-                yRange = parentList.get(listSlot - 1).getYRange();
-                yPos = yRange[yRange.length - 1][1];
-            }
-            yPos += .375 * DrawNav.BUFFER;
             g2.setColor(StyleProvider.foreground3());
-            g2.fillRect(slotCol * xSize + BUFFER, yPos, xSize - 2 * BUFFER, (int) (.25 * DrawNav.BUFFER));
+            g2.fill(slotBounds(parentList, listSlot, slotCol));
         }
         
         //draw selected slot, if one exists:
         if (selParList != null) {
-            int yPos;
-            int[][] yRange;
-            if (selListSlot == 0) {
-                yRange = selParList.getYRange();
-                yPos = yRange[0][1];
-            }
-            else {
-                yRange = selParList.get(selListSlot - 1).getYRange();
-                yPos = yRange[yRange.length - 1][1];
-            }
-            yPos += .375 * DrawNav.BUFFER;
             g2.setColor(StyleProvider.foreground2());
-            g2.fillRect(selSlotCol * xSize + BUFFER, yPos, xSize - 2 * BUFFER, (int) (.25 * DrawNav.BUFFER));
+            g2.fill(slotBounds(selParList, selListSlot, selSlotCol));
         }
         
         //Update the size, so the containing JScrollPane doesn't flip out.
-        setPreferredSize(new Dimension(PLANS * xSize, getDeepestY() + BUFFER));
+        Dimension preferred = new Dimension(PLANS * xSize, deepestY + BUFFER);
+        if (!preferred.equals(getPreferredSize())) {
+            setPreferredSize(preferred);
+            revalidate();
+        }
     }
     
     /**
@@ -261,66 +351,91 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         if (e.getClickCount() == 2) {
             if ((myTask != null) && (myTask instanceof DrawNavList)) {
                 ((DrawNavList) myTask).switchExpanded();
-                repaint();
-                revalidate();
+                relayout();
             }
             return;
         }
         else if (myTask == null) {
             DrawNavList newList = findParentList(e.getX(), e.getY());
             if ((selParList == newList) && (selListSlot == listSlot)) {
+                repaintSlot(selParList, selListSlot, selSlotCol);
                 selParList = null;
-                repaint();
                 return;
             }
             else if (newList != null) {
+                repaintSlot(selParList, selListSlot, selSlotCol);
                 selParList = newList;
-                selListSlot = findSlotInList(parentList, e.getY());
+                selListSlot = findSlotInList(newList, e.getY());
                 selSlotCol = e.getX() / xSize;
-                repaint();
+                repaintSlot(selParList, selListSlot, selSlotCol);
                 return;
             }
         }
         else if (myTask == selected) {
             clearSelected();
-            repaint();
             return;
         }
         else {
             //new task selected:
             clearSelected();
             selected = myTask;
+            selectedCol = e.getX() / xSize;
             taskParent = findParentList(e.getX(), e.getY());
             myTask.setSelected(true);
-            repaint();
+            repaintTask(myTask, selectedCol);
             return;
         }
     }
     
     /**
-     * Tracks the cursor to highlight the appropriate object.
+     * Tracks the cursor to highlight the appropriate object.  Only what changes is repainted.
      * @param e The MouseEvent to process.
      */
     public void mouseMoved(MouseEvent e) {
         DrawNav myTask = findTask(e.getX(), e.getY());
-        clearHighlighted();
         if (myTask == null) {
-            parentList = findParentList(e.getX(), e.getY());
-            if (parentList != null) {
-                listSlot = findSlotInList(parentList, e.getY());
-                slotCol = e.getX() / xSize;
+            DrawNavList newParent = findParentList(e.getX(), e.getY());
+            int newSlot = listSlot;
+            int newCol = slotCol;
+            if (newParent != null) {
+                newSlot = findSlotInList(newParent, e.getY());
+                newCol = e.getX() / xSize;
             }
-            repaint();
+            if (highlighted == null && newParent == parentList && newSlot == listSlot && newCol == slotCol)
+                return;
+            clearHighlighted();
+            repaintSlot(parentList, listSlot, slotCol);
+            parentList = newParent;
+            listSlot = newSlot;
+            slotCol = newCol;
+            repaintSlot(parentList, listSlot, slotCol);
             return;
         }
         else {
+            if (myTask == highlighted)
+                return;
+            clearHighlighted();
+            repaintSlot(parentList, listSlot, slotCol);
             parentList = null;
             highlighted = myTask;
+            highlightedCol = e.getX() / xSize;
             myTask.setHighlighted(true);
-            repaint();
+            repaintTask(myTask, highlightedCol);
         }
     }
     
+    /**
+     * Repaints the bar marking a slot, if there is one.
+     * @param list The list holding the slot, or null.
+     * @param slot The index of the slot in the list.
+     * @param col The column the list is in.
+     */
+    private void repaintSlot(DrawNavList list, int slot, int col) {
+        if (list == null || !laidOut)
+            return;
+        repaint(slotBounds(list, slot, col));
+    }
+    
     /**
      * Unused.  Implemented to override abstract method.
      * @param e The MouseEvent to ignore.
@@ -368,39 +483,15 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
      * @return The containing DrawNav.
      */
     private DrawNav findTask (int mX, int mY) {
-        Vector<DrawNav> myList = getColRegistry(mX, mY);
-        if (myList == null)
+        RowIndex rows = getColRegistry(mX, mY);
+        if (rows == null)
             return null;
-        for (int i = 0; i < myList.size(); i++) {
-            int[][] yRange = myList.get(i).getYRange();
-            for (int j = 0; j < yRange.length; j++) {
-                if ((mY > yRange[j][0]) && (mY < yRange[j][1]))
-                    return myList.get(i);
-            }
-        }
+        int i = rows.above(mY);
+        if ((i >= 0) && (mY > rows.getTop(i)) && (mY < rows.getBottom(i)))
+            return rows.getTask(i);
         return null;
     }
     
-    /**
-     * Examines the registry, returns the lower-bound Y-value of the lowest DrawNav.
-     * Used to resize the component as necessary.
-     * @return The deepest y-value.
-     */
-    private int getDeepestY() {
-        ListIterator<Vector<DrawNav>> i1 = registry.listIterator();
-        int maxY = 0;
-        while (i1.hasNext()) {
-            Vector<DrawNav> mReg = i1.next();
-            for (int i = 0; i < mReg.size(); i++) {
-                int[][] mRange = mReg.get(i).getYRange();
-                for (int j = 0; j < mRange.length; j++) {
-                    maxY = Math.max(maxY, mRange[j][1]);
-                }
-            }
-        }
-        return maxY;
-    }
-    
     /**
      * Finds the nearest DrawNavList that countains the given point, if any. May return null.
      * @param mx The x coordinate of the point to examine.
@@ -408,24 +499,18 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
      * @return The containing DrawNavList.
      */
     private DrawNavList findParentList(int mX, int mY) {
-        Vector<DrawNav> myList = getColRegistry(mX, mY);
-        if (myList == null)
+        RowIndex rows = getColRegistry(mX, mY);
+        if (rows == null)
             return null;
-        DrawNavList myParent = null;
-        for (int i = 0; i < myList.size(); i++) {
-            if (myList.get(i) instanceof DrawNavList) {
-                    int[][] yRange = myList.get(i).getYRange();
-                if ( (yRange[0][1] < mY) && (yRange[1][0] > mY) ) {
-                    if (myParent == null)
-                        myParent = (DrawNavList) myList.get(i);
-                    else {
-                        if (yRange[0][1] > myParent.getYRange()[0][1])
-                            myParent = (DrawNavList) myList.get(i);
-                    }
-                }
-            }
-        }
-        return myParent;
+        int i = rows.above(mY);
+        if (i < 0)
+            return null;
+        //just below the start block of an expanded list is inside it
+        DrawNav task = rows.getTask(i);
+        if ((mY > rows.getBottom(i)) && (rows.getBlock(i) == 0) &&
+            (task instanceof DrawNavList) && ((DrawNavList) task).isExpanded())
+            return (DrawNavList) task;
+        return rows.getParent(i);
     }
     
     /**
@@ -435,14 +520,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
      * @return The index in the list.
      */
     private int findSlotInList(DrawNavList parent, int mY) {
-        ListIterator<DrawNav> i1 = parent.listIterator();
-        int prevElts = 0;
-        while (i1.hasNext()) {
-            int[][] yRange = i1.next().getYRange();
-            if (yRange[0][1] < mY)
-                prevElts++;
-        }
-        return prevElts;
+        return parent.slotAt(mY);
     }
     
     /**
@@ -451,7 +529,9 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
      * @param mY The y-value of the point to examine.
      * @return The appropriate column's registry.
      */
-    private Vector<DrawNav> getColRegistry(int mX, int mY) {
+    private RowIndex getColRegistry(int mX, int mY) {
+        if (xSize <= 0)
+            return null;
         int mXr = mX % xSize;
         if (mXr < BUFFER)
             return null;
@@ -460,6 +540,7 @@ public class NavGui extends JComponent implements MouseListener, MouseMotionList
         int col = (int) mX / xSize;
         if (col >= registry.size())
             return null;
+        ensureLayout();
         return registry.get(col);
     }
 }
@@ -0,0 +1,116 @@
+package org.haldean.chopper.server.nav;
+
+import java.util.Arrays;
+
+/**
+ * The blocks of one column of the NavGui, as laid out, top to bottom.  Blocks never
+ * overlap, so the one under a point is found by binary search.
+ */
+class RowIndex {
+    private int[] tops = new int[16];
+    private int[] bottoms = new int[16];
+    private DrawNav[] tasks = new DrawNav[16];
+    private DrawNavList[] parents = new DrawNavList[16];
+    private int[] blocks = new int[16];
+    private int size = 0;
+
+    /**
+     * Empties the index, before the column is laid out again.
+     */
+    public void clear() {
+	Arrays.fill(tasks, 0, size, null);
+	Arrays.fill(parents, 0, size, null);
+	size = 0;
+    }
+
+    /**
+     * Appends a block, which must start below the last one.
+     * @param task The DrawNav drawn in the block.
+     * @param block The index of the block in the DrawNav's y-range.
+     * @param parent The list holding the DrawNav, or null.
+     */
+    public void add(DrawNav task, int block, DrawNavList parent) {
+	if (size == tops.length) {
+	    int capacity = 2 * size;
+	    tops = Arrays.copyOf(tops, capacity);
+	    bottoms = Arrays.copyOf(bottoms, capacity);
+	    tasks = Arrays.copyOf(tasks, capacity);
+	    parents = Arrays.copyOf(parents, capacity);
+	    blocks = Arrays.copyOf(blocks, capacity);
+	}
+	int[] range = task.getYRange()[block];
+	tops[size] = range[0];
+	bottoms[size] = range[1];
+	tasks[size] = task;
+	parents[size] = parent;
+	blocks[size] = block;
+	size++;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Finds the last block starting at or above a y-value.
+     * @param y The y-value.
+     * @return The index of the block, or -1 if there is none.
+     */
+    public int above(int y) {
+	int low = 0;
+	int high = size - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    if (tops[mid] <= y)
+		low = mid + 1;
+	    else
+		high = mid - 1;
+	}
+	return high;
+    }
+
+    /**
+     * Finds the first block ending at or below a y-value.
+     * @param y The y-value.
+     * @return The index of the block; size() if there is none.
+     */
+    public int below(int y) {
+	int low = 0;
+	int high = size - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    if (bottoms[mid] < y)
+		low = mid + 1;
+	    else
+		high = mid - 1;
+	}
+	return low;
+    }
+
+    public int getTop(int i) {
+	return tops[i];
+    }
+
+    public int getBottom(int i) {
+	return bottoms[i];
+    }
+
+    public DrawNav getTask(int i) {
+	return tasks[i];
+    }
+
+    public DrawNavList getParent(int i) {
+	return parents[i];
+    }
+
+    public int getBlock(int i) {
+	return blocks[i];
+    }
+
+    /**
+     * @return The y-value at which the column ends.
+     */
+    public int getBottom() {
+	return size == 0 ? 0 : bottoms[size - 1];
+    }
+}
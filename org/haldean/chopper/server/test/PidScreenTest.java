@@ -0,0 +1,78 @@
+package org.haldean.chopper.server.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.haldean.chopper.server.PidExperiment;
+import org.haldean.chopper.server.PidScreen;
+import org.haldean.chopper.server.SimulatedScorer;
+
+public class PidScreenTest extends TestCase {
+    private static final int ROLL = 0;
+
+    private SimulatedScorer scorer;
+    private PidScreen screen;
+
+    public void setUp() {
+	scorer = new SimulatedScorer(PidExperiment.CostFunction.IAE);
+	screen = new PidScreen(scorer);
+    }
+
+    public void tearDown() {
+	screen.shutdown();
+    }
+
+    public void testScreensBatch() throws Exception {
+	List<PidExperiment> batch = new ArrayList<PidExperiment>();
+	// Damped enough to track the swing.
+	batch.add(new PidExperiment(0.01, 0.0, 0.03));
+	// No damping: the roll loop of Guidance only integrates P.
+	batch.add(new PidExperiment(0.01, 0.0, 0.0));
+	// Wrong sign.
+	batch.add(new PidExperiment(-0.01, 0.0, 0.0));
+	batch.add(new PidExperiment(0.0, 0.0, 0.1));
+
+	List<PidExperiment> results = screen.score(ROLL, batch);
+	assertEquals(batch.size(), results.size());
+	for (int i = 0; i < batch.size(); i++) {
+	    assertEquals(batch.get(i), results.get(i));
+	}
+	assertTrue(results.get(0).getScore() < PidExperiment.FAILED_SCORE);
+	assertTrue(results.get(1).getScore() >= PidExperiment.FAILED_SCORE);
+	assertTrue(results.get(2).getScore() >= PidExperiment.FAILED_SCORE);
+	assertTrue(results.get(3).getScore() < PidExperiment.FAILED_SCORE);
+    }
+
+    public void testMatchesSerialScores() throws Exception {
+	List<PidExperiment> batch = new ArrayList<PidExperiment>();
+	for (int i = 0; i < 16; i++) {
+	    batch.add(new PidExperiment(0.002 * i, 0.0, 0.01 + 0.005 * i));
+	}
+	List<PidExperiment> results = screen.score(ROLL, batch);
+	for (int i = 0; i < batch.size(); i++) {
+	    PidExperiment exp = batch.get(i);
+	    assertEquals(scorer.score(ROLL, exp.getP(), exp.getI(), exp.getD()),
+			 results.get(i).getScore(), 0.0);
+	}
+    }
+
+    public void testScoresInBackground() throws Exception {
+	final List<PidExperiment> batch = new ArrayList<PidExperiment>();
+	batch.add(new PidExperiment(0.01, 0.0, 0.03));
+	batch.add(new PidExperiment(-0.01, 0.0, 0.0));
+	// A job waits on the scoring threads without holding one up.
+	Future<List<PidExperiment>> job = screen.submit(new Callable<List<PidExperiment>>() {
+		public List<PidExperiment> call() throws Exception {
+		    return screen.score(ROLL, batch);
+		}
+	    });
+	List<PidExperiment> results = job.get(30, TimeUnit.SECONDS);
+	assertTrue(results.get(0).getScore() < PidExperiment.FAILED_SCORE);
+	assertTrue(results.get(1).getScore() >= PidExperiment.FAILED_SCORE);
+    }
+}
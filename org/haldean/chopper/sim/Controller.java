@@ -0,0 +1,9 @@
+package org.haldean.chopper.sim;
+
+/**
+ * Flies a Simulator: evaluated once per control period, it reads the
+ * simulated sensors and sets the motor commands.
+ */
+public interface Controller {
+	public void step();
+}
@@ -0,0 +1,55 @@
+package org.haldean.chopper.sim;
+
+/**
+ * The physics of a simulated chopper.  Motors are in the order Guidance
+ * uses: North, South, East, West.
+ *
+ * Positions are in meters east, north and up of the starting point.
+ * Angles follow the conventions of Guidance: positive roll accelerates the
+ * chopper to its right, positive pitch accelerates it forward, and azimuth
+ * is measured clockwise from north.
+ */
+public interface FlightModel {
+	/* Indices of the axes */
+	public static final int EAST = 0;
+	public static final int NORTH = 1;
+	public static final int UP = 2;
+	public static final int ROLL = 0;
+	public static final int PITCH = 1;
+	public static final int YAW = 2;
+
+	/**
+	 * Puts the chopper back on the ground at the origin, facing north, motors off.
+	 */
+	public void reset();
+
+	/**
+	 * Sets the commanded motor speeds.
+	 * @param speeds North, South, East and West speeds, between 0 and 1.
+	 */
+	public void setMotorCommand(double[] speeds);
+
+	/**
+	 * Advances the model.
+	 * @param dt The time step, in seconds.
+	 */
+	public void step(double dt);
+
+	/** @return Position east, north and up of the start, in m. */
+	public double getPosition(int axis);
+
+	/** @return Velocity east, north and up, in m/s. */
+	public double getVelocity(int axis);
+
+	/** @return Roll, pitch or azimuth, in degrees; azimuth is between 0 and 360. */
+	public double getAngle(int axis);
+
+	/** @return Specific force to the right, forward or up, in m/s^2. */
+	public double getAcceleration(int axis);
+
+	/** @return Horizontal speed, in m/s. */
+	public double getGroundSpeed();
+
+	/** @return Direction of travel, in degrees clockwise from north. */
+	public double getBearing();
+}
@@ -0,0 +1,186 @@
+package org.haldean.chopper.sim;
+
+/**
+ * Rigid-body model of the chopper, stepped as fast as the host allows.
+ * Thrust is proportional to the square of the motor speed, and each motor
+ * follows its command with a first-order lag.
+ */
+public class QuadrotorModel implements FlightModel {
+	public static final double GRAVITY = 9.81;
+
+	/** Mass, in kg */
+	public static final double MASS = 1.0;
+	/** Distance from the center to each motor, in m */
+	public static final double ARM = 0.25;
+	/** Moments of inertia about the roll, pitch and yaw axes, in kg m^2 */
+	public static final double I_ROLL = 0.02;
+	public static final double I_PITCH = 0.02;
+	public static final double I_YAW = 0.04;
+	/** Thrust of one motor at full speed, in N; hover takes 40% of full power */
+	public static final double MAX_THRUST = MASS * GRAVITY / 4 / 0.4;
+	/** Yaw torque per N of thrust, in m */
+	public static final double YAW_TORQUE = 0.05;
+	/** Time constant of the motors, in s */
+	public static final double MOTOR_LAG = 0.05;
+	/** Linear drag, in 1/s */
+	public static final double DRAG = 0.3;
+	/** Rotational damping, in 1/s */
+	public static final double ANGULAR_DRAG = 1.0;
+
+	private double[] mPosition = new double[3];
+	private double[] mVelocity = new double[3];
+	/** Roll, pitch and azimuth, in radians */
+	private double[] mAngle = new double[3];
+	private double[] mAngularVelocity = new double[3];
+
+	/** Commanded motor speeds, between 0 and 1 */
+	private double[] mCommand = new double[4];
+	/** Actual motor speeds */
+	private double[] mMotor = new double[4];
+	private double[] mThrust = new double[4];
+
+	/** Specific force along the chopper's own axes (right, forward, up) */
+	private double[] mAccel = new double[3];
+
+	/* Scratch space for step() */
+	private static final double[] INERTIA = {I_ROLL, I_PITCH, I_YAW};
+	private double[] mTorque = new double[3];
+	private double[] mWorldAccel = new double[3];
+
+	public QuadrotorModel() {
+		reset();
+	}
+
+	public void reset() {
+		for (int i = 0; i < 3; i++) {
+			mPosition[i] = 0;
+			mVelocity[i] = 0;
+			mAngle[i] = 0;
+			mAngularVelocity[i] = 0;
+			mAccel[i] = 0;
+		}
+		mAccel[UP] = GRAVITY;
+		for (int i = 0; i < 4; i++) {
+			mCommand[i] = 0;
+			mMotor[i] = 0;
+			mThrust[i] = 0;
+		}
+	}
+
+	public void setMotorCommand(double[] speeds) {
+		for (int i = 0; i < 4; i++) {
+			mCommand[i] = Math.max(0, Math.min(1, speeds[i]));
+		}
+	}
+
+	/**
+	 * Sets the attitude directly, for starting a flight in an unusual state.
+	 * @param roll In degrees
+	 * @param pitch In degrees
+	 * @param azimuth In degrees
+	 */
+	public void setAttitude(double roll, double pitch, double azimuth) {
+		mAngle[ROLL] = Math.toRadians(roll);
+		mAngle[PITCH] = Math.toRadians(pitch);
+		mAngle[YAW] = Math.toRadians(azimuth);
+	}
+
+	/**
+	 * @param dt The time step, in seconds.  Should be no more than a few ms.
+	 */
+	public void step(double dt) {
+		double total = 0;
+		for (int i = 0; i < 4; i++) {
+			mMotor[i] += (mCommand[i] - mMotor[i]) * Math.min(1, dt / MOTOR_LAG);
+			mThrust[i] = MAX_THRUST * mMotor[i] * mMotor[i];
+			total += mThrust[i];
+		}
+
+		// Torques: West lifts the left side (rolls right), South lifts the
+		// tail (pitches forward), and the North-South pair spins clockwise.
+		mTorque[ROLL] = ARM * (mThrust[3] - mThrust[2]);
+		mTorque[PITCH] = ARM * (mThrust[1] - mThrust[0]);
+		mTorque[YAW] = YAW_TORQUE * (mThrust[0] + mThrust[1] - mThrust[2] - mThrust[3]);
+		for (int i = 0; i < 3; i++) {
+			double alpha = mTorque[i] / INERTIA[i] - ANGULAR_DRAG * mAngularVelocity[i];
+			mAngularVelocity[i] += alpha * dt;
+			mAngle[i] += mAngularVelocity[i] * dt;
+		}
+		mAngle[YAW] = wrap(mAngle[YAW]);
+
+		// Thrust tilted by roll and pitch, in the chopper's own frame.
+		double perMass = total / MASS;
+		double right = perMass * Math.sin(mAngle[ROLL]);
+		double forward = perMass * Math.sin(mAngle[PITCH]);
+		double up = perMass * Math.cos(mAngle[ROLL]) * Math.cos(mAngle[PITCH]);
+		mAccel[0] = right;
+		mAccel[1] = forward;
+		mAccel[UP] = up;
+
+		double sinAz = Math.sin(mAngle[YAW]);
+		double cosAz = Math.cos(mAngle[YAW]);
+		mWorldAccel[EAST] = right * cosAz + forward * sinAz - DRAG * mVelocity[EAST];
+		mWorldAccel[NORTH] = -right * sinAz + forward * cosAz - DRAG * mVelocity[NORTH];
+		mWorldAccel[UP] = up - GRAVITY - DRAG * mVelocity[UP];
+		for (int i = 0; i < 3; i++) {
+			mVelocity[i] += mWorldAccel[i] * dt;
+			mPosition[i] += mVelocity[i] * dt;
+		}
+
+		// The ground holds the chopper level until it has the thrust to lift off.
+		if (mPosition[UP] <= 0) {
+			mPosition[UP] = 0;
+			if (mVelocity[UP] < 0) {
+				mVelocity[UP] = 0;
+			}
+			mVelocity[EAST] = 0;
+			mVelocity[NORTH] = 0;
+			if (up <= GRAVITY) {
+				mAccel[UP] = GRAVITY;
+				mAngle[ROLL] = mAngle[PITCH] = 0;
+				for (int i = 0; i < 3; i++) {
+					mAngularVelocity[i] = 0;
+				}
+			}
+		}
+	}
+
+	private static double wrap(double angle) {
+		while (angle < 0) {
+			angle += 2 * Math.PI;
+		}
+		while (angle >= 2 * Math.PI) {
+			angle -= 2 * Math.PI;
+		}
+		return angle;
+	}
+
+	public double getPosition(int axis) {
+		return mPosition[axis];
+	}
+
+	public double getVelocity(int axis) {
+		return mVelocity[axis];
+	}
+
+	public double getAngle(int axis) {
+		return Math.toDegrees(mAngle[axis]);
+	}
+
+	public double getAcceleration(int axis) {
+		return mAccel[axis];
+	}
+
+	public double getGroundSpeed() {
+		return Math.sqrt(mVelocity[EAST] * mVelocity[EAST] +
+						 mVelocity[NORTH] * mVelocity[NORTH]);
+	}
+
+	public double getBearing() {
+		double bearing = Math.toDegrees(Math.atan2(mVelocity[EAST], mVelocity[NORTH]));
+		if (bearing < 0) {
+			bearing += 360;
+		}
+		return bearing;
+	}
+}
@@ -0,0 +1,64 @@
+package org.haldean.chopper.sim;
+
+import org.haldean.chopper.pilot.Angler;
+import org.haldean.chopper.pilot.PidLoops;
+
+/**
+ * Flies a Simulator with the PID loops of Guidance, without Guidance's
+ * handler, messages or log.  The target is either held, as set with
+ * setTarget, or taken from an Angler at the navigation rate, as Guidance
+ * does in autopilot.
+ */
+public class SimulatedGuidance implements Controller {
+	/** Default time between evaluations of the Angler, in ms, as in Guidance */
+	public static final long DEFAULT_NAV_PERIOD = 100;
+
+	private Simulator mSim;
+	private PidLoops mLoops;
+	private Angler mAngler;
+	private long mNavPeriod = DEFAULT_NAV_PERIOD;
+	private long mLastNavUpdate = 0;
+
+	private double[] mTarget = new double[4];
+	private double[] mMotorSpeed = new double[4];
+
+	public SimulatedGuidance(Simulator sim) {
+		mSim = sim;
+		mLoops = new PidLoops(sim.getSensors());
+	}
+
+	public PidLoops getLoops() {
+		return mLoops;
+	}
+
+	/**
+	 * Holds a fixed target.
+	 * @param target Roll, pitch, vertical speed and azimuth; see PidLoops.setTarget.
+	 */
+	public void setTarget(double[] target) {
+		mAngler = null;
+		mLoops.setTarget(target);
+	}
+
+	/**
+	 * Takes the target from an Angler, as in autopilot.
+	 * @param angler The Angler.
+	 * @param navPeriod Time between evaluations of the Angler, in ms.
+	 */
+	public void setAngler(Angler angler, long navPeriod) {
+		mAngler = angler;
+		mNavPeriod = navPeriod;
+		mLastNavUpdate = 0;
+	}
+
+	public void step() {
+		long now = mSim.currentTimeMillis();
+		mLoops.step(now, mMotorSpeed);
+		mSim.setMotorCommand(mMotorSpeed);
+		if (mAngler != null && now - mLastNavUpdate >= mNavPeriod) {
+			mLastNavUpdate = now;
+			mAngler.getAngleTarget(mTarget);
+			mLoops.setTarget(mTarget);
+		}
+	}
+}
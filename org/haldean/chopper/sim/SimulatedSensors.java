@@ -0,0 +1,72 @@
+package org.haldean.chopper.sim;
+
+import org.haldean.chopper.pilot.Constants;
+import org.haldean.chopper.pilot.SensorSource;
+
+/**
+ * Synthesizes the orientation sensors and the GPS of the chopper from a
+ * FlightModel, with the same indices and conventions as ChopperStatus.
+ */
+public class SimulatedSensors implements SensorSource, Constants {
+	/** Location of the start of each flight */
+	public static final double ORIGIN_LAT = 40.8075;
+	public static final double ORIGIN_LONG = -73.9619;
+	public static final double ORIGIN_ALT = 30.0;
+	private static final double METERS_PER_DEGREE = 111320.0;
+
+	private FlightModel mModel;
+
+	private double[] mReading = new double[SENSORS];
+	private double[] mGps = new double[GPS_FIELDS];
+	private long mGpsTimeStamp;
+
+	public SimulatedSensors(FlightModel model) {
+		mModel = model;
+		updateReadings();
+		mGps[ALTITUDE] = ORIGIN_ALT;
+	}
+
+	/**
+	 * Takes new orientation and acceleration readings from the model.
+	 */
+	public void updateReadings() {
+		mReading[AZIMUTH] = mModel.getAngle(FlightModel.YAW);
+		mReading[PITCH] = mModel.getAngle(FlightModel.PITCH);
+		// Guidance reads roll with the opposite sign.
+		mReading[ROLL] = -mModel.getAngle(FlightModel.ROLL);
+		mReading[X_ACCEL] = mModel.getAcceleration(0);
+		mReading[Y_ACCEL] = mModel.getAcceleration(1);
+		mReading[Z_ACCEL] = mModel.getAcceleration(2);
+	}
+
+	/**
+	 * Takes a GPS fix; vertical speed is estimated from successive fixes, as on the chopper.
+	 * @param time The time of the fix, in ms.
+	 */
+	public void updateGps(long time) {
+		double newAlt = ORIGIN_ALT + mModel.getPosition(FlightModel.UP);
+		if (mGpsTimeStamp != 0 && time != mGpsTimeStamp) {
+			mGps[dALT] = (newAlt - mGps[ALTITUDE]) * 1000.0 / (time - mGpsTimeStamp);
+		}
+		mGps[ALTITUDE] = newAlt;
+		mGps[BEARING] = mModel.getBearing();
+		mGps[SPEED] = mModel.getGroundSpeed();
+		mGps[LAT] = ORIGIN_LAT + mModel.getPosition(FlightModel.NORTH) / METERS_PER_DEGREE;
+		mGps[LONG] = ORIGIN_LONG + mModel.getPosition(FlightModel.EAST) /
+			(METERS_PER_DEGREE * Math.cos(Math.toRadians(ORIGIN_LAT)));
+		mGpsTimeStamp = time;
+	}
+
+	public double getGpsField(int whichField) {
+		return mGps[whichField];
+	}
+
+	/** @return The time of the last fix, in ms. */
+	public long getGpsTimeStamp() {
+		return mGpsTimeStamp;
+	}
+
+	public double getReadingField(int whichField) {
+		return mReading[whichField];
+	}
+}
@@ -0,0 +1,106 @@
+package org.haldean.chopper.sim;
+
+import org.haldean.chopper.pilot.Clock;
+import org.haldean.chopper.pilot.PidLoops;
+
+/**
+ * Closes the loop between a FlightModel and a Controller, in plain Java so
+ * that it runs headless on any JVM: the pilot's tests fly Guidance with it,
+ * and the server screens PID values with it.
+ *
+ * Time only advances in step(), so a flight is deterministic and runs as
+ * fast as the host can compute it.  The model is stepped every
+ * PHYSICS_STEP ms, the controller every CONTROL_PERIOD ms, and the GPS
+ * delivers a fix every GPS period, as it would on the chopper.
+ */
+public class Simulator implements Clock {
+	/** Time step of the physics model, in ms */
+	public static final long PHYSICS_STEP = 2;
+	/** Time between evaluations of the controller, in ms */
+	public static final long CONTROL_PERIOD = 1000 / PidLoops.PIDREPS;
+	/** Default time between GPS fixes, in ms */
+	public static final long DEFAULT_GPS_PERIOD = 1000;
+
+	/** Simulated time, in ms.  NavTask treats 0 as "never", so time starts at 1. */
+	private long mTime = 1;
+	private long mNextControl;
+	private long mNextGps;
+	private long mGpsPeriod = DEFAULT_GPS_PERIOD;
+
+	private FlightModel mModel;
+	private SimulatedSensors mSensors;
+	private Controller mController;
+
+	public Simulator() {
+		this(new QuadrotorModel());
+	}
+
+	public Simulator(FlightModel model) {
+		mModel = model;
+		mSensors = new SimulatedSensors(model);
+		mSensors.updateGps(mTime);
+		mNextControl = mTime;
+		mNextGps = mTime + mGpsPeriod;
+	}
+
+	public FlightModel getModel() {
+		return mModel;
+	}
+
+	public SimulatedSensors getSensors() {
+		return mSensors;
+	}
+
+	/**
+	 * Sets the controller.  A new controller is first evaluated at once,
+	 * then every CONTROL_PERIOD.
+	 * @param controller The controller, or null to hold the motor commands.
+	 */
+	public void setController(Controller controller) {
+		mController = controller;
+		mNextControl = mTime;
+	}
+
+	/**
+	 * Sets the commanded motor speeds.
+	 * @param speeds North, South, East and West speeds, between 0 and 1.
+	 */
+	public void setMotorCommand(double[] speeds) {
+		mModel.setMotorCommand(speeds);
+	}
+
+	/**
+	 * Sets the time between GPS fixes.
+	 * @param period The period, in ms.
+	 */
+	public void setGpsPeriod(long period) {
+		mGpsPeriod = period;
+		mNextGps = mTime + period;
+	}
+
+	/**
+	 * Advances the flight.
+	 * @param millis How much simulated time to run, in ms.
+	 */
+	public void step(long millis) {
+		long end = mTime + millis;
+		double dt = PHYSICS_STEP / 1000.0;
+		while (mTime < end) {
+			mModel.step(dt);
+			mTime += PHYSICS_STEP;
+			mSensors.updateReadings();
+			if (mTime >= mNextGps) {
+				mSensors.updateGps(mTime);
+				mNextGps += mGpsPeriod;
+			}
+			if (mController != null && mTime >= mNextControl) {
+				mController.step();
+				mNextControl += CONTROL_PERIOD;
+			}
+		}
+	}
+
+	public long currentTimeMillis() {
+		return mTime;
+	}
+}